@@ -0,0 +1,275 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueMapEntry;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.bundle.value.ValueString;
+
+import org.apache.hadoop.conf.Configuration;
+
+import parquet.column.ColumnDescriptor;
+import parquet.hadoop.api.WriteSupport;
+import parquet.io.api.Binary;
+import parquet.io.api.RecordConsumer;
+import parquet.schema.GroupType;
+import parquet.schema.MessageType;
+import parquet.schema.OriginalType;
+import parquet.schema.PrimitiveType;
+import parquet.schema.Type;
+
+/**
+ * Writes bundles to parquet without an intermediate record. Top level fields of the schema are
+ * taken from the bundle fields of the same name and the fields of nested groups from the keys of
+ * maps. Repeated fields take the elements of arrays, as do groups annotated as lists. Groups
+ * annotated as maps take the entries of maps. Missing and empty values are not written, and
+ * missing values of required fields are an error that is raised before any of the record is
+ * written.
+ * <p/>
+ * Not thread safe, as each instance belongs to a single file.
+ */
+class BundleWriteSupport extends WriteSupport<Bundle> {
+
+    private final MessageType schema;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final ValueObject[] values;
+    private RecordConsumer consumer;
+
+    /** A bundle that lacks a required value, rejected before any of its record was written. */
+    static final class MissingValueException extends IllegalArgumentException {
+
+        MissingValueException(String field) {
+            super("missing value for required field " + field);
+        }
+    }
+
+    BundleWriteSupport(MessageType schema) {
+        this.schema = schema;
+        this.values = new ValueObject[schema.getFieldCount()];
+        for (int i = 0; i < values.length; i++) {
+            indexes.put(schema.getFieldName(i), i);
+        }
+        for (ColumnDescriptor column : schema.getColumns()) {
+            if (column.getType() == PrimitiveType.PrimitiveTypeName.INT96) {
+                throw new IllegalArgumentException("INT96 columns are not supported: "
+                                                   + String.join(".", column.getPath()));
+            }
+        }
+    }
+
+    @Override
+    public WriteContext init(Configuration configuration) {
+        return new WriteContext(schema, Collections.<String, String>emptyMap());
+    }
+
+    @Override
+    public void prepareForWrite(RecordConsumer recordConsumer) {
+        this.consumer = recordConsumer;
+    }
+
+    @Override
+    public void write(Bundle bundle) {
+        for (BundleField field : bundle) {
+            Integer index = indexes.get(field.getName());
+            if (index != null) {
+                values[index] = bundle.getValue(field);
+            }
+        }
+        try {
+            for (int i = 0; i < values.length; i++) {
+                checkRequired(schema.getType(i), values[i]);
+            }
+            consumer.startMessage();
+            for (int i = 0; i < values.length; i++) {
+                writeField(schema, i, values[i]);
+            }
+            consumer.endMessage();
+        } finally {
+            Arrays.fill(values, null);
+        }
+    }
+
+    private static boolean isList(GroupType group) {
+        return (group.getOriginalType() == OriginalType.LIST) && (group.getFieldCount() == 1)
+               && group.getType(0).isRepetition(Type.Repetition.REPEATED);
+    }
+
+    private static boolean isMap(GroupType group) {
+        return ((group.getOriginalType() == OriginalType.MAP) || (group.getOriginalType() == OriginalType.MAP_KEY_VALUE))
+               && (group.getFieldCount() == 1) && !group.getType(0).isPrimitive()
+               && (group.getType(0).asGroupType().getFieldCount() == 2);
+    }
+
+    /**
+     * Throws for a missing value of a required field anywhere in the value, following the same
+     * paths as {@link #writeField}, so that a bad bundle leaves no partial record in the columns.
+     */
+    private static void checkRequired(Type type, ValueObject value) {
+        if (missing(value)) {
+            if (type.isRepetition(Type.Repetition.REQUIRED)) {
+                throw new MissingValueException(type.getName());
+            }
+            return;
+        }
+        if (type.isPrimitive()) {
+            return;
+        }
+        if (type.isRepetition(Type.Repetition.REPEATED) && (value instanceof ValueArray)) {
+            for (ValueObject element : (ValueArray) value) {
+                if (!missing(element)) {
+                    checkGroup(type.asGroupType(), element);
+                }
+            }
+        } else {
+            checkGroup(type.asGroupType(), value);
+        }
+    }
+
+    private static void checkGroup(GroupType group, ValueObject value) {
+        if (isList(group)) {
+            checkRequired(group.getType(0), (value instanceof ValueArray) ? value : value.asArray());
+        } else if (isMap(group)) {
+            Type valueType = group.getType(0).asGroupType().getType(1);
+            for (ValueMapEntry entry : value.asMap()) {
+                // entries missing a required value are left out rather than failing the record
+                if (!missing(entry.getValue())) {
+                    checkRequired(valueType, entry.getValue());
+                }
+            }
+        } else {
+            ValueMap map = value.asMap();
+            for (Type field : group.getFields()) {
+                checkRequired(field, map.get(field.getName()));
+            }
+        }
+    }
+
+    private static boolean missing(ValueObject value) {
+        return (value == null) || ((value instanceof ValueString) && value.toString().isEmpty());
+    }
+
+    private void writeField(GroupType group, int index, ValueObject value) {
+        Type type = group.getType(index);
+        String name = type.getName();
+        if (missing(value)) {
+            if (type.isRepetition(Type.Repetition.REQUIRED)) {
+                throw new IllegalArgumentException("missing value for required field " + name);
+            }
+            return;
+        }
+        if (type.isRepetition(Type.Repetition.REPEATED) && (value instanceof ValueArray)) {
+            ValueArray array = (ValueArray) value;
+            boolean started = false;
+            for (ValueObject element : array) {
+                if (missing(element)) {
+                    continue;
+                }
+                if (!started) {
+                    consumer.startField(name, index);
+                    started = true;
+                }
+                writeValue(type, element);
+            }
+            if (started) {
+                consumer.endField(name, index);
+            }
+        } else {
+            consumer.startField(name, index);
+            writeValue(type, value);
+            consumer.endField(name, index);
+        }
+    }
+
+    private void writeValue(Type type, ValueObject value) {
+        if (type.isPrimitive()) {
+            writePrimitive(type.asPrimitiveType(), value);
+            return;
+        }
+        GroupType group = type.asGroupType();
+        consumer.startGroup();
+        if (isList(group)) {
+            writeField(group, 0, (value instanceof ValueArray) ? value : value.asArray());
+        } else if (isMap(group)) {
+            writeMap(group, value.asMap());
+        } else {
+            ValueMap map = value.asMap();
+            List<Type> fields = group.getFields();
+            for (int i = 0; i < fields.size(); i++) {
+                writeField(group, i, map.get(fields.get(i).getName()));
+            }
+        }
+        consumer.endGroup();
+    }
+
+    private void writeMap(GroupType group, ValueMap map) {
+        GroupType entry = group.getType(0).asGroupType();
+        String name = entry.getName();
+        boolean started = false;
+        for (ValueMapEntry mapEntry : map) {
+            if (missing(mapEntry.getValue()) && entry.getType(1).isRepetition(Type.Repetition.REQUIRED)) {
+                continue;
+            }
+            if (!started) {
+                consumer.startField(name, 0);
+                started = true;
+            }
+            consumer.startGroup();
+            consumer.startField(entry.getFieldName(0), 0);
+            writePrimitive(entry.getType(0).asPrimitiveType(), ValueFactory.create(mapEntry.getKey()));
+            consumer.endField(entry.getFieldName(0), 0);
+            writeField(entry, 1, mapEntry.getValue());
+            consumer.endGroup();
+        }
+        if (started) {
+            consumer.endField(name, 0);
+        }
+    }
+
+    private void writePrimitive(PrimitiveType type, ValueObject value) {
+        switch (type.getPrimitiveTypeName()) {
+            case INT32:
+                consumer.addInteger((int) value.asLong().getLong());
+                break;
+            case INT64:
+                consumer.addLong(value.asLong().getLong());
+                break;
+            case FLOAT:
+                consumer.addFloat((float) value.asDouble().getDouble());
+                break;
+            case DOUBLE:
+                consumer.addDouble(value.asDouble().getDouble());
+                break;
+            case BOOLEAN:
+                consumer.addBoolean(Boolean.parseBoolean(value.toString()));
+                break;
+            default:
+                if (value.getObjectType() == ValueObject.TYPE.BYTES) {
+                    consumer.addBinary(Binary.fromByteArray(value.asBytes().asNative()));
+                } else {
+                    consumer.addBinary(Binary.fromString(value.toString()));
+                }
+        }
+    }
+}
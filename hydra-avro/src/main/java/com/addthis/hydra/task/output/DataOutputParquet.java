@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output;
+
+import javax.annotation.Nonnull;
+
+import java.nio.file.Path;
+
+import com.addthis.codec.annotations.FieldConfig;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * This output sink <span class="hydra-summary">shards the output stream to parquet files</span>.
+ * <p/>
+ * <p>The 'path' parameter takes the same substitution variables as the
+ * {@link DataOutputFile file output}, and each distinct path is written to its own files.
+ * <p>Example:</p>
+ * <pre>
+ *  output.parquet {
+ *      path:["{{DATE_YMD}}", "/", "{{SHARD}}"]
+ *      writer:{
+ *          dir:"split"
+ *          schema:"message event { required int64 TIME; optional binary UID (UTF8); repeated binary TAGS (UTF8); }"
+ *          codec:"GZIP"
+ *          diskFlushThreads:4
+ *      }
+ *  }
+ * </pre>
+ *
+ * @user-reference
+ */
+public class DataOutputParquet extends AbstractDataOutput {
+
+    /**
+     * Output configuration parameters. This field is required.
+     */
+    @FieldConfig(codable = true, required = true)
+    private ParquetOutputWriter writer;
+
+    @Override
+    protected AbstractOutputWriter getWriter() {
+        return writer;
+    }
+
+    @Nonnull @Override
+    public ImmutableList<Path> writableRootPaths() {
+        return writer.writableRootPaths();
+    }
+}
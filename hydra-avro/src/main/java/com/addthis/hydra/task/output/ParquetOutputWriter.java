@@ -0,0 +1,387 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output;
+
+import javax.annotation.Nonnull;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.addthis.basis.util.LessStrings;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.codec.annotations.Bytes;
+import com.addthis.codec.annotations.FieldConfig;
+
+import com.google.common.collect.ImmutableList;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import parquet.hadoop.ParquetFileReader;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.metadata.BlockMetaData;
+import parquet.hadoop.metadata.ColumnChunkMetaData;
+import parquet.hadoop.metadata.CompressionCodecName;
+import parquet.schema.MessageType;
+import parquet.schema.MessageTypeParser;
+
+/**
+ * <p>Specifies configuration parameters for writing parquet files.
+ * <p/>
+ * Bundles are written straight into the column buffers of a row group, which is compressed and
+ * written out once it reaches {@link #rowGroupSize}. Every open file holds a row group in memory,
+ * so {@link #maxOpen} bounds the memory of the writer: opening a file beyond it first closes the
+ * files that have been open longest, except those being written at that moment. Files are written
+ * to a temporary name and renamed when they are complete. A file whose write fails is abandoned
+ * and its temporary file deleted, since the failed row may have been partly written. Parquet files cannot be appended to, so each time an output path
+ * is opened a new file is started, numbered like the parts of the file output.
+ * <p/>
+ * Bundles of different output paths are written in parallel by the disk flush threads, so jobs
+ * writing many partitions should raise {@code diskFlushThreads}. The bytes written for each
+ * column are reported as metrics when files are closed.
+ * <p>Example:</p>
+ * <pre>writer : {
+ *   dir : "split",
+ *   schema : "message event { required int64 TIME; optional binary UID (UTF8); }",
+ *   codec : "SNAPPY",
+ *   diskFlushThreads : 4,
+ * }</pre>
+ *
+ * @user-reference
+ */
+public class ParquetOutputWriter extends AbstractOutputWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(ParquetOutputWriter.class);
+
+    /** Path to the root directory of the output files. Default is "split". */
+    @FieldConfig(codable = true)
+    private String dir = "split";
+
+    /** Schema of the files in the parquet message type syntax. This field is required. */
+    @FieldConfig(codable = true, required = true)
+    private String schema;
+
+    /** Compression of the column pages. Default is SNAPPY. */
+    @FieldConfig(codable = true)
+    private CompressionCodecName codec = CompressionCodecName.SNAPPY;
+
+    /** If true then columns with few distinct values are dictionary encoded. Default is true. */
+    @FieldConfig(codable = true)
+    private boolean dictionary = true;
+
+    /** Largest dictionary of a column before it falls back to plain encoding. Default is 1MB. */
+    @Bytes
+    @FieldConfig(codable = true)
+    private int dictionaryPageSize = 1024 * 1024;
+
+    /** Size of the row groups buffered in memory. Default is 64MB. */
+    @Bytes
+    @FieldConfig(codable = true)
+    private int rowGroupSize = 64 * 1024 * 1024;
+
+    /** Size of the pages within a column. Default is 1MB. */
+    @Bytes
+    @FieldConfig(codable = true)
+    private int pageSize = 1024 * 1024;
+
+    /** Rows after which a file is closed and the next part started. Default is 0 for no limit. */
+    @FieldConfig(codable = true)
+    private long maxRows;
+
+    /** Maximum number of files that can be open at any time. Default is 16. */
+    @FieldConfig(codable = true)
+    private int maxOpen = 16;
+
+    private final Configuration conf = new Configuration();
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Partition> openPartitions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger openFiles = new AtomicInteger();
+
+    private final Counter rows = Metrics.newCounter(ParquetOutputWriter.class, "rows");
+    private final Counter files = Metrics.newCounter(ParquetOutputWriter.class, "files");
+    private final Counter abandonedFiles = Metrics.newCounter(ParquetOutputWriter.class, "abandonedFiles");
+
+    private MessageType messageType;
+
+    public ParquetOutputWriter() {
+        // checksum files would be left behind by renaming and are not used by readers of the output
+        conf.set("fs.file.impl", RawLocalFileSystem.class.getName());
+        conf.setBoolean("fs.file.impl.disable.cache", true);
+    }
+
+    @Override
+    public void open() {
+        messageType = MessageTypeParser.parseMessageType(schema);
+        // fail on unsupported schemas before any file is opened
+        new BundleWriteSupport(messageType);
+        super.open();
+        Metrics.newGauge(ParquetOutputWriter.class, "openFiles", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return openFiles.get();
+            }
+        });
+        writerMaintenanceThread.scheduleAtFixedRate(() -> {
+            while (openFiles.get() > maxOpen) {
+                Partition partition = openPartitions.poll();
+                if (partition == null) {
+                    break;
+                }
+                partition.lock.lock();
+                try {
+                    partition.retire();
+                } catch (IOException e) {
+                    log.error("error closing {}", partition.target, e);
+                } finally {
+                    partition.lock.unlock();
+                }
+            }
+        }, 500, 500, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * called by multiple thread consumers of the input queue. must be thread
+     * safe.
+     */
+    @Override
+    protected void dequeueWrite(List<WriteTuple> outputTuples) throws IOException {
+        if ((outputTuples == null) || outputTuples.isEmpty()) {
+            return;
+        }
+        Map<String, List<Bundle>> byTarget = new LinkedHashMap<>();
+        for (WriteTuple tuple : outputTuples) {
+            byTarget.computeIfAbsent(tuple.fileName, target -> new ArrayList<>()).add(tuple.bundle);
+        }
+        for (Map.Entry<String, List<Bundle>> entry : byTarget.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void write(String target, List<Bundle> bundles) throws IOException {
+        int next = 0;
+        while (next < bundles.size()) {
+            Partition partition = partitions.computeIfAbsent(target, Partition::new);
+            partition.lock.lock();
+            try {
+                if (partition.retired) {
+                    // closed by another thread before we got the lock
+                    continue;
+                }
+                while (next < bundles.size()) {
+                    partition.write(bundles.get(next));
+                    next++;
+                }
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    protected void doCloseOpenOutputs() {
+        int closed = 0;
+        for (Partition partition : partitions.values()) {
+            partition.lock.lock();
+            try {
+                partition.retire();
+                closed++;
+            } catch (Exception e) {
+                log.error("Error closing output {}", partition.target, e);
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+        log.info("closed {} open outputs", closed);
+    }
+
+    /** @return the name of a version of the target, like the parts of {@link DefaultOutputWrapperFactory} */
+    private static String fileName(String target, PartitionData partitionData, int version) {
+        String part = LessStrings.padleft(Integer.toString(version), partitionData.getPadTo(), LessStrings.pad0);
+        if (partitionData.getReplacementString() != null) {
+            return target.replace(partitionData.getReplacementString(), part) + ".parquet";
+        }
+        return target + "-" + part + ".parquet";
+    }
+
+    private void recordColumnBytes(File file) throws IOException {
+        for (BlockMetaData block : ParquetFileReader.readFooter(
+                conf, new org.apache.hadoop.fs.Path(file.getAbsolutePath())).getBlocks()) {
+            for (ColumnChunkMetaData column : block.getColumns()) {
+                Metrics.newCounter(ParquetOutputWriter.class, "columnBytes",
+                                   String.join(".", column.getPath().toArray())).inc(column.getTotalSize());
+            }
+        }
+    }
+
+    /** The files written for one output path. Guarded by its lock. */
+    private final class Partition {
+
+        final String target;
+        final PartitionData partitionData;
+        final ReentrantLock lock = new ReentrantLock();
+
+        ParquetWriter<Bundle> writer;
+        File file;
+        File tmpFile;
+        long fileRows;
+        boolean retired;
+
+        Partition(String target) {
+            this.target = target;
+            this.partitionData = PartitionData.getPartitionData(target);
+        }
+
+        void write(Bundle bundle) throws IOException {
+            if (writer == null) {
+                openFile();
+            }
+            try {
+                writer.write(bundle);
+            } catch (BundleWriteSupport.MissingValueException e) {
+                // nothing of the row was written, so the file is still good
+                throw new IOException("unable to write " + bundle + " to " + file, e);
+            } catch (RuntimeException e) {
+                abandonFile();
+                throw new IOException("unable to write " + bundle + " to " + file, e);
+            }
+            fileRows++;
+            rows.inc();
+            if ((maxRows > 0) && (fileRows >= maxRows)) {
+                closeFile();
+            }
+        }
+
+        private void openFile() throws IOException {
+            makeRoom();
+            int version = 0;
+            do {
+                file = new File(dir, fileName(target, partitionData, version++));
+                tmpFile = new File(file.getPath() + ".tmp");
+            } while (file.exists() || tmpFile.exists());
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("unable to create target " + target);
+            }
+            writer = new ParquetWriter<>(new org.apache.hadoop.fs.Path(tmpFile.getAbsolutePath()),
+                                         new BundleWriteSupport(messageType), codec, rowGroupSize, pageSize,
+                                         dictionaryPageSize, dictionary, false,
+                                         ParquetWriter.DEFAULT_WRITER_VERSION, conf);
+            fileRows = 0;
+            if (openFiles.incrementAndGet() > maxOpen) {
+                log.debug("{} parquet files open with a limit of {}", openFiles.get(), maxOpen);
+            }
+            openPartitions.add(this);
+        }
+
+        private void closeFile() throws IOException {
+            if (writer == null) {
+                return;
+            }
+            openFiles.decrementAndGet();
+            openPartitions.remove(this);
+            try {
+                writer.close();
+            } finally {
+                writer = null;
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+            }
+            files.inc();
+            recordColumnBytes(file);
+        }
+
+        /**
+         * Closes the files that have been open longest until there is room for another one. Files
+         * being written by other threads are passed over rather than waited for, as those threads
+         * may in turn be waiting to close this one.
+         */
+        private void makeRoom() {
+            for (int tries = openPartitions.size(); (openFiles.get() >= maxOpen) && (tries > 0); tries--) {
+                Partition oldest = openPartitions.poll();
+                if (oldest == null) {
+                    break;
+                }
+                if (!oldest.lock.tryLock()) {
+                    openPartitions.add(oldest);
+                    continue;
+                }
+                try {
+                    oldest.retire();
+                } catch (IOException e) {
+                    log.error("error closing {}", oldest.target, e);
+                } finally {
+                    oldest.lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Drops the open file after a failed write, which may have left part of a row in the
+         * column buffers, and deletes its temporary file instead of renaming it.
+         */
+        private void abandonFile() {
+            openFiles.decrementAndGet();
+            openPartitions.remove(this);
+            try {
+                writer.close();
+            } catch (Exception e) {
+                log.debug("error closing abandoned {}", tmpFile, e);
+            } finally {
+                writer = null;
+            }
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                log.error("unable to delete abandoned {}", tmpFile);
+            }
+            log.warn("abandoned {} after a failed write, dropping {} rows", file, fileRows);
+            rows.dec(fileRows);
+            abandonedFiles.inc();
+        }
+
+        /** Closes the open file and removes this partition, so that the next write starts another one. */
+        void retire() throws IOException {
+            if (!retired) {
+                retired = true;
+                partitions.remove(target, this);
+                closeFile();
+            }
+        }
+    }
+
+    @Nonnull @Override
+    public ImmutableList<Path> writableRootPaths() {
+        return ImmutableList.of(Paths.get(dir));
+    }
+}
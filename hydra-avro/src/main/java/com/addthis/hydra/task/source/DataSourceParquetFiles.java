@@ -0,0 +1,452 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.codec.annotations.FieldConfig;
+import com.addthis.codec.codables.Codable;
+import com.addthis.hydra.task.run.TaskRunConfig;
+import com.addthis.hydra.task.util.RingBuffer;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import parquet.column.ColumnDescriptor;
+import parquet.column.page.PageReadStore;
+import parquet.column.statistics.DoubleStatistics;
+import parquet.column.statistics.FloatStatistics;
+import parquet.column.statistics.IntStatistics;
+import parquet.column.statistics.LongStatistics;
+import parquet.column.statistics.Statistics;
+import parquet.hadoop.ParquetFileReader;
+import parquet.hadoop.metadata.BlockMetaData;
+import parquet.hadoop.metadata.ColumnChunkMetaData;
+import parquet.hadoop.metadata.ParquetMetadata;
+import parquet.io.ColumnIOFactory;
+import parquet.io.MessageColumnIO;
+import parquet.io.RecordReader;
+import parquet.schema.MessageType;
+import parquet.schema.Type;
+
+/**
+ * This data source <span class="hydra-summary">reads parquet files</span>.
+ * <p/>
+ * Only the columns of the top level {@link #fields} and of the filter are read from the files. Row
+ * groups are read by {@link #workers} threads in parallel, so rows of different row groups are not
+ * returned in file order. The {@link #filter} ranges drop rows outside of them, and row groups
+ * whose column statistics show that none of their rows can be in range are not read at all.
+ * <p/>
+ * The row groups of all the files are divided into {@link #shardTotal} shards, and each task of
+ * the job reads the row groups of its own shards, so that every row is read by one task.
+ * <p/>
+ * <b>This source is one-shot.</b> It keeps no marks, so every run of the job reads all of the
+ * files again. Point it at files that are only read once, such as a dated directory per job run,
+ * rather than at a directory that new files are added to.
+ * <p/>
+ * <p>Example:</p>
+ * <pre>
+ * source: {
+ *     parquet: {
+ *         files: ["hdfs://namenode/logs/2015-06-01/*.parquet"]
+ *         fields: [TIME, UID, URL]
+ *         filter: [{field: TIME, min: "1433116800000", max: "1433203199999"}]
+ *     }
+ * }</pre>
+ *
+ * @user-reference
+ */
+public class DataSourceParquetFiles extends TaskDataSource {
+
+    private static final Logger log = LoggerFactory.getLogger(DataSourceParquetFiles.class);
+
+    /** Paths or glob patterns of the files to read. Any hadoop file system may be used. */
+    @FieldConfig(required = true) private String[] files;
+
+    /**
+     * Top level fields to read. The fields of the {@link #filter} are read as well. Default is all
+     * fields of each file.
+     */
+    @FieldConfig private String[] fields;
+
+    /** Rows must fall inside all of these ranges. Default is no filter. */
+    @FieldConfig private Range[] filter = new Range[0];
+
+    /** Number of threads reading row groups. Default is 2. */
+    @FieldConfig private int workers = 2;
+
+    /** Bundles read ahead of the task. Default is 1024. */
+    @FieldConfig private int buffer = 1024;
+
+    /** Bundles handed from a reader thread to the task at a time. Default is 256. */
+    @FieldConfig private int batchSize = 256;
+
+    /** Number of shards the row groups are divided into. Default is the number of tasks of the job. */
+    @FieldConfig private int shardTotal;
+
+    /** Shards read by this task. Default is the shards of this task out of {@link #shardTotal}. */
+    @FieldConfig private Integer[] shards;
+
+    @JsonProperty private TaskRunConfig config;
+
+    /**
+     * Limits the values of a field. Numeric values are compared as numbers to numeric bounds,
+     * all other values are compared as strings. Rows without the field are out of range.
+     */
+    public static final class Range implements Codable {
+
+        /** Field of the range. This field is required. */
+        @FieldConfig(required = true) private String field;
+
+        /** Smallest value in range, inclusive. Default is unbounded. */
+        @FieldConfig private String min;
+
+        /** Largest value in range, inclusive. Default is unbounded. */
+        @FieldConfig private String max;
+
+        private Double numericMin;
+        private Double numericMax;
+
+        void init() {
+            numericMin = number(min);
+            numericMax = number(max);
+        }
+
+        private static Double number(String bound) {
+            if (bound == null) {
+                return null;
+            }
+            try {
+                return Double.valueOf(bound);
+            } catch (NumberFormatException notNumeric) {
+                return null;
+            }
+        }
+
+        boolean contains(ValueObject value) {
+            if (value == null) {
+                return false;
+            }
+            if ((value.getObjectType() == ValueObject.TYPE.INT) || (value.getObjectType() == ValueObject.TYPE.FLOAT)) {
+                double number = value.asDouble().getDouble();
+                if ((numericMin != null || min == null) && (numericMax != null || max == null)) {
+                    return (numericMin == null || number >= numericMin)
+                           && (numericMax == null || number <= numericMax);
+                }
+            }
+            String string = value.asString().toString();
+            return (min == null || string.compareTo(min) >= 0) && (max == null || string.compareTo(max) <= 0);
+        }
+
+        /**
+         * Binary statistics are not used because parquet-mr before 1.8 wrote them with a signed
+         * byte order (PARQUET-251).
+         *
+         * @return false if no value of a column chunk with these statistics can be in range
+         */
+        boolean mayContain(Statistics statistics, long values) {
+            if (statistics.isEmpty()) {
+                // either no statistics were written or every value is null
+                return (values == 0) || (statistics.getNumNulls() < values);
+            }
+            double lowest;
+            double highest;
+            if (statistics instanceof IntStatistics) {
+                lowest = ((IntStatistics) statistics).getMin();
+                highest = ((IntStatistics) statistics).getMax();
+            } else if (statistics instanceof LongStatistics) {
+                lowest = ((LongStatistics) statistics).getMin();
+                highest = ((LongStatistics) statistics).getMax();
+            } else if (statistics instanceof DoubleStatistics) {
+                lowest = ((DoubleStatistics) statistics).getMin();
+                highest = ((DoubleStatistics) statistics).getMax();
+            } else if (statistics instanceof FloatStatistics) {
+                lowest = ((FloatStatistics) statistics).getMin();
+                highest = ((FloatStatistics) statistics).getMax();
+            } else {
+                return true;
+            }
+            return (numericMin == null || highest >= numericMin) && (numericMax == null || lowest <= numericMax);
+        }
+    }
+
+    /** A row group and the projection of its file. */
+    private static final class RowGroup {
+
+        final Path path;
+        final BlockMetaData block;
+        final MessageType schema;
+        final MessageColumnIO columns;
+        final List<ColumnDescriptor> descriptors;
+
+        RowGroup(Path path, BlockMetaData block, MessageType schema, MessageColumnIO columns,
+                 List<ColumnDescriptor> descriptors) {
+            this.path = path;
+            this.block = block;
+            this.schema = schema;
+            this.columns = columns;
+            this.descriptors = descriptors;
+        }
+    }
+
+    private final BundleFormat format = new ListBundleFormat();
+    private final Queue<RowGroup> rowGroups = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    private Configuration conf;
+    /** fields read from the files, or null for all */
+    private Set<String> projection;
+    /** bundle fields of the filter ranges */
+    private BundleField[] ranged;
+    /** shards of this task */
+    private Set<Integer> shardSet;
+    /** position of the next row group among those of all the files, which decides its shard */
+    private int rowGroupIndex;
+    private int skippedRowGroups;
+    private RingBuffer<Bundle> queue;
+    private ExecutorService readers;
+    private Bundle peeked;
+    private volatile boolean closed;
+
+    @Override public void init() {
+        conf = new Configuration();
+        if (fields != null) {
+            projection = new HashSet<>(Arrays.asList(fields));
+        }
+        // resolved here because reader threads must not add fields to the shared format
+        ranged = new BundleField[filter.length];
+        for (int i = 0; i < filter.length; i++) {
+            filter[i].init();
+            ranged[i] = format.getField(filter[i].field);
+            if (projection != null) {
+                // a filter on a field that is not read would drop every row
+                projection.add(filter[i].field);
+            }
+        }
+        if (shardTotal <= 0) {
+            shardTotal = config.nodeCount;
+        }
+        if (shards == null) {
+            shards = config.calcShardList(shardTotal);
+        }
+        shardSet = new HashSet<>(Arrays.asList(shards));
+        int total = 0;
+        try {
+            for (String file : files) {
+                Path pattern = new Path(file);
+                FileSystem fileSystem = pattern.getFileSystem(conf);
+                FileStatus[] matches = fileSystem.globStatus(pattern);
+                if (matches == null) {
+                    log.warn("no parquet files match {}", file);
+                    continue;
+                }
+                for (FileStatus match : matches) {
+                    total += addRowGroups(match.getPath());
+                }
+            }
+        } catch (IOException e) {
+            throw new DataChannelError(e);
+        }
+        skippedRowGroups = total - rowGroups.size();
+        log.info("reading {} of {} row groups of shards {} of {}", rowGroups.size(), total,
+                 shardSet, shardTotal);
+        queue = new RingBuffer<>(buffer);
+        int threads = Math.max(1, Math.min(workers, rowGroups.size()));
+        running.set(threads);
+        readers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("parquetReader-%d").setDaemon(true).build());
+        for (int i = 0; i < threads; i++) {
+            readers.execute(this::read);
+        }
+        readers.shutdown();
+    }
+
+    /** @return the number of row groups of the file in the shards of this task, including those that are skipped */
+    private int addRowGroups(Path path) throws IOException {
+        ParquetMetadata footer = ParquetFileReader.readFooter(conf, path);
+        List<BlockMetaData> blocks = footer.getBlocks();
+        MessageType fileSchema = footer.getFileMetaData().getSchema();
+        List<Type> projected = new ArrayList<>();
+        for (Type type : fileSchema.getFields()) {
+            if ((projection == null) || projection.contains(type.getName())) {
+                projected.add(type);
+                // fields are added while only this thread uses the format
+                format.getField(type.getName());
+            }
+        }
+        MessageType schema = new MessageType(fileSchema.getName(), projected);
+        List<ColumnDescriptor> descriptors = new ArrayList<>();
+        for (ColumnDescriptor column : fileSchema.getColumns()) {
+            if ((projection == null) || projection.contains(column.getPath()[0])) {
+                descriptors.add(column);
+            }
+        }
+        MessageColumnIO columns = new ColumnIOFactory().getColumnIO(schema, fileSchema);
+        int owned = 0;
+        for (BlockMetaData block : blocks) {
+            if (!shardSet.contains(rowGroupIndex++ % shardTotal)) {
+                continue;
+            }
+            owned++;
+            // parquet-mr before 1.6 closes files that were just flushed with an empty row group
+            if ((block.getRowCount() > 0) && mayContainRows(block)) {
+                rowGroups.add(new RowGroup(path, block, schema, columns, descriptors));
+            }
+        }
+        return owned;
+    }
+
+    @VisibleForTesting int skippedRowGroups() {
+        return skippedRowGroups;
+    }
+
+    private boolean mayContainRows(BlockMetaData block) {
+        for (ColumnChunkMetaData column : block.getColumns()) {
+            String[] path = column.getPath().toArray();
+            if (path.length != 1) {
+                continue;
+            }
+            for (Range range : filter) {
+                if (range.field.equals(path[0]) && !range.mayContain(column.getStatistics(), column.getValueCount())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void read() {
+        try {
+            List<Bundle> batch = new ArrayList<>(batchSize);
+            int limit = Math.max(1, Math.min(batchSize, queue.capacity()));
+            RowGroup rowGroup;
+            while (!closed && ((rowGroup = rowGroups.poll()) != null)) {
+                PageReadStore pages;
+                try (ParquetFileReader reader = new ParquetFileReader(conf, rowGroup.path,
+                        Collections.singletonList(rowGroup.block), rowGroup.descriptors)) {
+                    pages = reader.readNextRowGroup();
+                }
+                RecordReader<Bundle> records = rowGroup.columns.getRecordReader(
+                        pages, new ParquetBundleMaterializer(rowGroup.schema, format));
+                for (long row = pages.getRowCount(); row > 0 && !closed; row--) {
+                    Bundle bundle = records.read();
+                    if (inRange(bundle)) {
+                        batch.add(bundle);
+                        if (batch.size() >= limit) {
+                            hand(batch);
+                        }
+                    }
+                }
+            }
+            hand(batch);
+        } catch (Throwable t) {
+            error.compareAndSet(null, t);
+            closed = true;
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private boolean inRange(Bundle bundle) {
+        for (int i = 0; i < ranged.length; i++) {
+            if (!filter[i].contains(bundle.getValue(ranged[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void hand(List<Bundle> batch) throws InterruptedException {
+        while (!batch.isEmpty() && !closed) {
+            if (queue.offerAll(batch, 1, TimeUnit.SECONDS)) {
+                batch.clear();
+            }
+        }
+    }
+
+    @Override public Bundle next() throws DataChannelError {
+        if (peeked != null) {
+            Bundle next = peeked;
+            peeked = null;
+            return next;
+        }
+        try {
+            while (true) {
+                checkError();
+                // workers hand over their last bundles before they stop running
+                boolean done = running.get() == 0;
+                Bundle next = queue.poll(100, TimeUnit.MILLISECONDS);
+                if ((next != null) || done) {
+                    checkError();
+                    return next;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataChannelError(e);
+        }
+    }
+
+    private void checkError() {
+        Throwable failure = error.get();
+        if (failure != null) {
+            throw DataChannelError.promote(failure);
+        }
+    }
+
+    @Override public Bundle peek() throws DataChannelError {
+        if (peeked == null) {
+            peeked = next();
+        }
+        return peeked;
+    }
+
+    @Override public void close() {
+        closed = true;
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+    }
+}
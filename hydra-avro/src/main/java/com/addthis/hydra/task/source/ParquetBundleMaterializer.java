@@ -0,0 +1,362 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueObject;
+
+import parquet.column.Dictionary;
+import parquet.io.api.Binary;
+import parquet.io.api.Converter;
+import parquet.io.api.GroupConverter;
+import parquet.io.api.PrimitiveConverter;
+import parquet.io.api.RecordMaterializer;
+import parquet.schema.GroupType;
+import parquet.schema.MessageType;
+import parquet.schema.OriginalType;
+import parquet.schema.PrimitiveType;
+import parquet.schema.Type;
+
+/**
+ * Assembles parquet records straight into bundles, with the same value types as the avro
+ * conversion of {@link DataSourceParquet}: strings, enums and booleans become strings, other
+ * binary values bytes, integers longs and floating point numbers doubles. Lists and repeated
+ * fields become arrays, and maps and nested records become maps. Missing values are left unset.
+ * <p/>
+ * Dictionary encoded columns are converted once per dictionary rather than once per value.
+ */
+class ParquetBundleMaterializer extends RecordMaterializer<Bundle> {
+
+    private final RecordConverter root;
+
+    ParquetBundleMaterializer(MessageType schema, BundleFormat format) {
+        root = new RecordConverter(schema, format);
+    }
+
+    @Override
+    public Bundle getCurrentRecord() {
+        return root.bundle;
+    }
+
+    @Override
+    public GroupConverter getRootConverter() {
+        return root;
+    }
+
+    /** @return a converter that passes each value of type to the sink */
+    static Converter converter(Type type, Consumer<ValueObject> sink) {
+        if (type.isPrimitive()) {
+            return new ValueConverter(type.asPrimitiveType(), sink);
+        }
+        GroupType group = type.asGroupType();
+        if ((group.getOriginalType() == OriginalType.LIST) && (group.getFieldCount() == 1)) {
+            return new ListConverter(group, sink);
+        }
+        if (((group.getOriginalType() == OriginalType.MAP) || (group.getOriginalType() == OriginalType.MAP_KEY_VALUE))
+            && (group.getFieldCount() == 1) && !group.getType(0).isPrimitive()
+            && (group.getType(0).asGroupType().getFieldCount() == 2)) {
+            return new MapConverter(group, sink);
+        }
+        return new GroupMapConverter(group, sink);
+    }
+
+    /** Converts the fields of a group, collecting the values of repeated fields into arrays. */
+    private abstract static class FieldsConverter extends GroupConverter {
+
+        private final Converter[] converters;
+        private final boolean[] repeated;
+        private final ValueArray[] arrays;
+
+        FieldsConverter(GroupType group) {
+            List<Type> fields = group.getFields();
+            converters = new Converter[fields.size()];
+            repeated = new boolean[fields.size()];
+            arrays = new ValueArray[fields.size()];
+            for (int i = 0; i < converters.length; i++) {
+                int index = i;
+                Type field = fields.get(i);
+                repeated[i] = field.isRepetition(Type.Repetition.REPEATED);
+                if (repeated[i]) {
+                    converters[i] = converter(field, value -> {
+                        if (arrays[index] == null) {
+                            arrays[index] = ValueFactory.createArray(4);
+                        }
+                        arrays[index].add(value);
+                    });
+                } else {
+                    converters[i] = converter(field, value -> set(index, value));
+                }
+            }
+        }
+
+        abstract void set(int field, ValueObject value);
+
+        @Override
+        public Converter getConverter(int fieldIndex) {
+            return converters[fieldIndex];
+        }
+
+        @Override
+        public void start() {
+            for (int i = 0; i < arrays.length; i++) {
+                arrays[i] = null;
+            }
+        }
+
+        @Override
+        public void end() {
+            for (int i = 0; i < arrays.length; i++) {
+                if (arrays[i] != null) {
+                    set(i, arrays[i]);
+                }
+            }
+        }
+    }
+
+    /** The top level record, whose fields are those of the bundle. */
+    private static final class RecordConverter extends FieldsConverter {
+
+        private final BundleFormat format;
+        private final BundleField[] fields;
+        Bundle bundle;
+
+        RecordConverter(MessageType schema, BundleFormat format) {
+            super(schema);
+            this.format = format;
+            fields = new BundleField[schema.getFieldCount()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = format.getField(schema.getFieldName(i));
+            }
+        }
+
+        @Override
+        void set(int field, ValueObject value) {
+            bundle.setValue(fields[field], value);
+        }
+
+        @Override
+        public void start() {
+            bundle = format.createBundle();
+            super.start();
+        }
+    }
+
+    /** A nested record, which becomes a map. */
+    private static final class GroupMapConverter extends FieldsConverter {
+
+        private final String[] names;
+        private final Consumer<ValueObject> sink;
+        private ValueMap map;
+
+        GroupMapConverter(GroupType group, Consumer<ValueObject> sink) {
+            super(group);
+            this.sink = sink;
+            names = new String[group.getFieldCount()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = group.getFieldName(i);
+            }
+        }
+
+        @Override
+        void set(int field, ValueObject value) {
+            map.put(names[field], value);
+        }
+
+        @Override
+        public void start() {
+            map = ValueFactory.createMap();
+            super.start();
+        }
+
+        @Override
+        public void end() {
+            super.end();
+            sink.accept(map);
+        }
+    }
+
+    /** A group annotated as a list, holding a single repeated field. */
+    private static final class ListConverter extends GroupConverter {
+
+        private final Converter element;
+        private final Consumer<ValueObject> sink;
+        private ValueArray array;
+
+        ListConverter(GroupType group, Consumer<ValueObject> sink) {
+            this.sink = sink;
+            this.element = converter(group.getType(0), value -> array.add(value));
+        }
+
+        @Override
+        public Converter getConverter(int fieldIndex) {
+            return element;
+        }
+
+        @Override
+        public void start() {
+            array = ValueFactory.createArray(4);
+        }
+
+        @Override
+        public void end() {
+            sink.accept(array);
+        }
+    }
+
+    /** A group annotated as a map, holding a single repeated group of keys and values. */
+    private static final class MapConverter extends GroupConverter {
+
+        private final GroupConverter entry;
+        private final Consumer<ValueObject> sink;
+        private ValueMap map;
+        private String key;
+        private ValueObject value;
+
+        MapConverter(GroupType group, Consumer<ValueObject> sink) {
+            this.sink = sink;
+            GroupType entryType = group.getType(0).asGroupType();
+            Converter keys = converter(entryType.getType(0), key -> this.key = key.toString());
+            Converter values = converter(entryType.getType(1), value -> this.value = value);
+            entry = new GroupConverter() {
+                @Override
+                public Converter getConverter(int fieldIndex) {
+                    return (fieldIndex == 0) ? keys : values;
+                }
+
+                @Override
+                public void start() {
+                    key = null;
+                    value = null;
+                }
+
+                @Override
+                public void end() {
+                    if ((key != null) && (value != null)) {
+                        map.put(key, value);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Converter getConverter(int fieldIndex) {
+            return entry;
+        }
+
+        @Override
+        public void start() {
+            map = ValueFactory.createMap();
+        }
+
+        @Override
+        public void end() {
+            sink.accept(map);
+        }
+    }
+
+    private static final class ValueConverter extends PrimitiveConverter {
+
+        private final PrimitiveType.PrimitiveTypeName primitive;
+        private final boolean string;
+        private final Consumer<ValueObject> sink;
+        private ValueObject[] dictionary;
+
+        ValueConverter(PrimitiveType type, Consumer<ValueObject> sink) {
+            this.sink = sink;
+            this.primitive = type.getPrimitiveTypeName();
+            this.string = (type.getOriginalType() == OriginalType.UTF8)
+                          || (type.getOriginalType() == OriginalType.ENUM);
+        }
+
+        @Override
+        public boolean hasDictionarySupport() {
+            return true;
+        }
+
+        @Override
+        public void setDictionary(Dictionary dictionary) {
+            this.dictionary = new ValueObject[dictionary.getMaxId() + 1];
+            for (int i = 0; i < this.dictionary.length; i++) {
+                this.dictionary[i] = decode(dictionary, i);
+            }
+        }
+
+        /** dictionaries only implement decoding to the type of their column */
+        private ValueObject decode(Dictionary values, int id) {
+            switch (primitive) {
+                case BINARY:
+                case FIXED_LEN_BYTE_ARRAY:
+                case INT96:
+                    return binary(values.decodeToBinary(id));
+                case INT64:
+                    return ValueFactory.create(values.decodeToLong(id));
+                case INT32:
+                    return ValueFactory.create((long) values.decodeToInt(id));
+                case DOUBLE:
+                    return ValueFactory.create(values.decodeToDouble(id));
+                case FLOAT:
+                    return ValueFactory.create((double) values.decodeToFloat(id));
+                default:
+                    throw new UnsupportedOperationException("no dictionary for " + primitive + " columns");
+            }
+        }
+
+        private ValueObject binary(Binary value) {
+            return string ? ValueFactory.create(value.toStringUsingUTF8()) : ValueFactory.create(value.getBytes());
+        }
+
+        @Override
+        public void addValueFromDictionary(int dictionaryId) {
+            sink.accept(dictionary[dictionaryId]);
+        }
+
+        @Override
+        public void addBinary(Binary value) {
+            sink.accept(binary(value));
+        }
+
+        @Override
+        public void addBoolean(boolean value) {
+            sink.accept(ValueFactory.create(Boolean.toString(value)));
+        }
+
+        @Override
+        public void addDouble(double value) {
+            sink.accept(ValueFactory.create(value));
+        }
+
+        @Override
+        public void addFloat(float value) {
+            sink.accept(ValueFactory.create((double) value));
+        }
+
+        @Override
+        public void addInt(int value) {
+            sink.accept(ValueFactory.create((long) value));
+        }
+
+        @Override
+        public void addLong(long value) {
+            sink.accept(ValueFactory.create(value));
+        }
+    }
+}
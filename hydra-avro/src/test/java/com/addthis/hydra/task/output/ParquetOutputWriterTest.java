@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.hydra.task.source.DataSourceParquetFiles;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.addthis.codec.config.Configs.decodeObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ParquetOutputWriterTest {
+
+    private static final String SCHEMA = "message event { required int64 TIME; optional binary UID (UTF8); "
+                                         + "repeated binary TAGS (UTF8); "
+                                         + "optional group GEO { optional binary COUNTRY (UTF8); } }";
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static Bundle row(ListBundleFormat format, int i) {
+        Bundle bundle = new ListBundle(format);
+        bundle.setValue(format.getField("TIME"), ValueFactory.create(i));
+        if ((i % 2) == 0) {
+            bundle.setValue(format.getField("UID"), ValueFactory.create("u" + i));
+        }
+        ValueArray tags = ValueFactory.createArray(2);
+        tags.add(ValueFactory.create("a" + i));
+        tags.add(ValueFactory.create("b" + i));
+        bundle.setValue(format.getField("TAGS"), tags);
+        ValueMap geo = ValueFactory.createMap();
+        geo.put("COUNTRY", ValueFactory.create("c" + (i % 3)));
+        bundle.setValue(format.getField("GEO"), geo);
+        // not in the schema
+        bundle.setValue(format.getField("EXTRA"), ValueFactory.create("x"));
+        return bundle;
+    }
+
+    private static void write(ParquetOutputWriter writer, String target, Bundle bundle) throws IOException {
+        writer.dequeueWrite(Collections.singletonList(new AbstractOutputWriter.WriteTuple(target, bundle)));
+    }
+
+    private static Set<Long> readTimes(File dir) throws Exception {
+        DataSourceParquetFiles source = decodeObject(DataSourceParquetFiles.class,
+                "files: [\"" + dir.getAbsolutePath() + "/*.parquet\"]");
+        source.init();
+        Set<Long> times = new HashSet<>();
+        try {
+            Bundle bundle;
+            while ((bundle = source.next()) != null) {
+                times.add(bundle.getValue(bundle.getFormat().getField("TIME")).asLong().getLong());
+            }
+        } finally {
+            source.close();
+        }
+        return times;
+    }
+
+    @Test
+    public void writtenBundlesReadBack() throws Exception {
+        File dir = tempFolder.getRoot();
+        ParquetOutputWriter writer = decodeObject(ParquetOutputWriter.class,
+                "dir: \"" + dir.getAbsolutePath() + "\", schema: \"" + SCHEMA + "\", maxRows: 60");
+        writer.open();
+        ListBundleFormat format = new ListBundleFormat();
+        for (int i = 0; i < 100; i++) {
+            writer.writeLine("events", row(format, i));
+        }
+        writer.closeOpenOutputs();
+        File[] files = dir.listFiles((parent, name) -> name.endsWith(".parquet"));
+        assertEquals(2, files.length);
+
+        DataSourceParquetFiles source = decodeObject(DataSourceParquetFiles.class,
+                "files: [\"" + dir.getAbsolutePath() + "/*.parquet\"]");
+        source.init();
+        Set<Long> times = new HashSet<>();
+        try {
+            Bundle bundle;
+            while ((bundle = source.next()) != null) {
+                long time = bundle.getValue(bundle.getFormat().getField("TIME")).asLong().getLong();
+                times.add(time);
+                if ((time % 2) == 0) {
+                    assertEquals("u" + time, bundle.getValue(bundle.getFormat().getField("UID")).toString());
+                } else {
+                    assertNull(bundle.getValue(bundle.getFormat().getField("UID")));
+                }
+                ValueArray tags = bundle.getValue(bundle.getFormat().getField("TAGS")).asArray();
+                assertEquals(2, tags.size());
+                assertEquals("a" + time, tags.get(0).toString());
+                assertEquals("b" + time, tags.get(1).toString());
+                ValueMap geo = bundle.getValue(bundle.getFormat().getField("GEO")).asMap();
+                assertEquals("c" + (time % 3), geo.get("COUNTRY").toString());
+                assertNull(bundle.getValue(bundle.getFormat().getField("EXTRA")));
+            }
+        } finally {
+            source.close();
+        }
+        assertEquals(100, times.size());
+    }
+
+    @Test
+    public void missingRequiredValueKeepsFile() throws Exception {
+        File dir = tempFolder.getRoot();
+        ParquetOutputWriter writer = decodeObject(ParquetOutputWriter.class,
+                "dir: \"" + dir.getAbsolutePath() + "\", schema: \"" + SCHEMA + "\"");
+        writer.open();
+        ListBundleFormat format = new ListBundleFormat();
+        for (int i = 0; i < 10; i++) {
+            write(writer, "events", row(format, i));
+        }
+        Bundle noTime = row(format, 10);
+        noTime.removeValue(format.getField("TIME"));
+        try {
+            write(writer, "events", noTime);
+            fail("a bundle without a required value must not be written");
+        } catch (IOException expected) {
+        }
+        for (int i = 11; i < 20; i++) {
+            write(writer, "events", row(format, i));
+        }
+        writer.closeOpenOutputs();
+        assertEquals(1, dir.listFiles((parent, name) -> name.endsWith(".parquet")).length);
+        assertEquals(19, readTimes(dir).size());
+    }
+
+    @Test
+    public void failedWriteAbandonsFile() throws Exception {
+        File dir = tempFolder.getRoot();
+        ParquetOutputWriter writer = decodeObject(ParquetOutputWriter.class,
+                "dir: \"" + dir.getAbsolutePath() + "\", schema: \"" + SCHEMA + "\"");
+        writer.open();
+        ListBundleFormat format = new ListBundleFormat();
+        write(writer, "events", row(format, 0));
+        Bundle badTime = row(format, 1);
+        badTime.setValue(format.getField("TIME"), ValueFactory.create("not a number"));
+        try {
+            write(writer, "events", badTime);
+            fail("a bundle whose value cannot be converted must not be written");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, dir.listFiles((parent, name) -> name.endsWith(".tmp")).length);
+        // the next write starts another file
+        write(writer, "events", row(format, 2));
+        writer.closeOpenOutputs();
+        assertEquals(1, dir.listFiles((parent, name) -> name.endsWith(".parquet")).length);
+        assertEquals(Collections.singleton(2L), readTimes(dir));
+    }
+
+    @Test
+    public void openingBeyondMaxOpenClosesOldest() throws Exception {
+        File dir = tempFolder.getRoot();
+        ParquetOutputWriter writer = decodeObject(ParquetOutputWriter.class,
+                "dir: \"" + dir.getAbsolutePath() + "\", schema: \"" + SCHEMA + "\", maxOpen: 2");
+        writer.open();
+        ListBundleFormat format = new ListBundleFormat();
+        for (int i = 0; i < 4; i++) {
+            write(writer, "events-" + i, row(format, i));
+            // the files of the targets before the last two have been completed
+            assertEquals(Math.max(0, i - 1), dir.listFiles((parent, name) -> name.endsWith(".parquet")).length);
+            assertEquals(Math.min(2, i + 1), dir.listFiles((parent, name) -> name.endsWith(".tmp")).length);
+        }
+        writer.closeOpenOutputs();
+        assertEquals(4, readTimes(dir).size());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.io.File;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.addthis.bundle.core.Bundle;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import parquet.example.data.Group;
+import parquet.example.data.simple.SimpleGroupFactory;
+import parquet.hadoop.ParquetFileReader;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.example.GroupWriteSupport;
+import parquet.hadoop.metadata.CompressionCodecName;
+import parquet.schema.MessageType;
+import parquet.schema.MessageTypeParser;
+
+import static com.addthis.codec.config.Configs.decodeObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DataSourceParquetFilesTest {
+
+    private static final MessageType SCHEMA = MessageTypeParser.parseMessageType(
+            "message event { required int64 TIME; required binary UID (UTF8); optional binary URL (UTF8); }");
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private int write(File file, int rows) throws Exception {
+        return write(file, 0, rows);
+    }
+
+    /** @return the number of row groups written */
+    private int write(File file, int first, int rows) throws Exception {
+        Configuration conf = new Configuration();
+        GroupWriteSupport.setSchema(SCHEMA, conf);
+        SimpleGroupFactory groups = new SimpleGroupFactory(SCHEMA);
+        // the smallest row group size closes a row group at every size check
+        try (ParquetWriter<Group> writer = new ParquetWriter<>(
+                new Path(file.getAbsolutePath()), new GroupWriteSupport(), CompressionCodecName.UNCOMPRESSED, 1,
+                1024, 1024, false, false, ParquetWriter.DEFAULT_WRITER_VERSION, conf)) {
+            for (int i = first; i < (first + rows); i++) {
+                writer.write(groups.newGroup().append("TIME", (long) i).append("UID", "u" + i).append("URL", "/" + i));
+            }
+        }
+        return ParquetFileReader.readFooter(conf, new Path(file.getAbsolutePath())).getBlocks().size();
+    }
+
+    @Test
+    public void filterFieldsAreReadAndRowGroupsSkipped() throws Exception {
+        File file = new File(tempFolder.getRoot(), "events.parquet");
+        int rowGroups = write(file, 1000);
+        assertTrue(rowGroups > 1);
+        DataSourceParquetFiles source = decodeObject(DataSourceParquetFiles.class,
+                "files: [\"" + file.getAbsolutePath() + "\"], fields: [UID], "
+                + "filter: [{field: TIME, min: \"0\", max: \"49\"}]");
+        source.init();
+        Set<Long> times = new HashSet<>();
+        try {
+            Bundle bundle;
+            while ((bundle = source.next()) != null) {
+                long time = bundle.getValue(bundle.getFormat().getField("TIME")).asLong().getLong();
+                times.add(time);
+                assertEquals("u" + time, bundle.getValue(bundle.getFormat().getField("UID")).toString());
+                assertNull(bundle.getValue(bundle.getFormat().getField("URL")));
+            }
+        } finally {
+            source.close();
+        }
+        assertEquals(50, times.size());
+        // only the first row group holds times up to 49, and the last one is empty
+        assertEquals(rowGroups - 1, source.skippedRowGroups());
+    }
+
+    @Test
+    public void shardsReadEveryRowOnce() throws Exception {
+        File dir = tempFolder.getRoot();
+        int rows = 0;
+        for (int i = 0; i < 3; i++) {
+            write(new File(dir, "events-" + i + ".parquet"), rows, 300);
+            rows += 300;
+        }
+        Map<Long, Integer> read = new HashMap<>();
+        for (int node = 0; node < 2; node++) {
+            DataSourceParquetFiles source = decodeObject(DataSourceParquetFiles.class,
+                    "files: [\"" + dir.getAbsolutePath() + "/*.parquet\"], "
+                    + "config: {node: " + node + ", nodeCount: 2, jobId: test}");
+            source.init();
+            int ownRows = 0;
+            try {
+                Bundle bundle;
+                while ((bundle = source.next()) != null) {
+                    long time = bundle.getValue(bundle.getFormat().getField("TIME")).asLong().getLong();
+                    read.merge(time, 1, Integer::sum);
+                    ownRows++;
+                }
+            } finally {
+                source.close();
+            }
+            // each task reads part of the rows
+            assertTrue(ownRows > 0);
+            assertTrue(ownRows < rows);
+        }
+        assertEquals(rows, read.size());
+        for (int count : read.values()) {
+            assertEquals(1, count);
+        }
+    }
+}
@@ -62,6 +62,18 @@ public abstract class AbstractQueryOp implements QueryOp {
         return sourceBinder;
     }
 
+    /**
+     * @return a new bundle with the same format and values as row. Ops that accept reused rows
+     *         must retain copies instead of the rows passed to send.
+     */
+    protected static Bundle copyRow(Bundle row) {
+        Bundle copy = row.createBundle();
+        for (BundleField field : row) {
+            copy.setValue(field, row.getValue(field));
+        }
+        return copy;
+    }
+
     @Override public ChannelProgressivePromise getOpPromise() {
         return opPromise;
     }
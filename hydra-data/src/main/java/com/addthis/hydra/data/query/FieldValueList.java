@@ -13,7 +13,8 @@
  */
 package com.addthis.hydra.data.query;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleFactory;
@@ -25,37 +26,79 @@ import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueMap;
 import com.addthis.bundle.value.ValueObject;
 
-
+/**
+ * The stack of field values collected while walking a query path. Backed by arrays that are
+ * grown once and then reused for every row so that pushes and pops do not allocate.
+ */
 public class FieldValueList implements BundleFormatted {
 
-    private final LinkedList<FieldValue> list = new LinkedList<>();
+    private static final int INITIAL_CAPACITY = 8;
+
     private final BundleFormat bundleFormat;
+
+    private BundleField[] fields = new BundleField[INITIAL_CAPACITY];
+    private ValueObject[] values = new ValueObject[INITIAL_CAPACITY];
+    private int size;
     private int lastCommit;
 
+    /** fields of the bundle format last passed to createBundle, by stack position (lazily resolved) */
+    private BundleField[] resolved = new BundleField[INITIAL_CAPACITY];
+    private BundleFormat resolvedFormat;
+
+    /** when enabled, createBundle refills this bundle instead of creating a new one */
+    private boolean reuseRows;
+    private Bundle reusableRow;
+    private BundleFactory reusableRowFactory;
+    private BundleField[] reusableRowFields = new BundleField[INITIAL_CAPACITY];
+    private int reusableRowFieldCount;
+
     public FieldValueList(BundleFormat bundleFormat) {
         this.bundleFormat = bundleFormat;
     }
 
+    /**
+     * If enabled, {@link #createBundle(BundleFactory)} returns the same bundle for every call with the same
+     * factory. Only enable this when the consumer of the bundles has accepted reused rows
+     * (see {@link ReusedRowConsumer}).
+     */
+    public FieldValueList reuseRows(boolean reuseRows) {
+        this.reuseRows = reuseRows;
+        if (!reuseRows) {
+            reusableRow = null;
+            reusableRowFactory = null;
+        }
+        return this;
+    }
+
     /**
      * pushes must be committed
      */
     public void push(FieldValue fv) {
-        list.addLast(fv);
+        push(fv.field, fv.value);
     }
 
     /**
      * pushes must be committed
      */
     public void push(BundleField field, ValueObject value) {
-        push(new FieldValue(field, value));
+        if (size == fields.length) {
+            int capacity = size * 2;
+            fields = Arrays.copyOf(fields, capacity);
+            values = Arrays.copyOf(values, capacity);
+            resolved = Arrays.copyOf(resolved, capacity);
+        }
+        fields[size] = field;
+        values[size] = value;
+        resolved[size] = null;
+        size++;
     }
 
     /**
      * pops are immediate and must NOT be committed
      */
     public void pop() {
-        list.removeLast();
-        lastCommit = list.size();
+        removeLast();
+        lastCommit = size;
     }
 
     public void pop(int count) {
@@ -65,25 +108,36 @@ public class FieldValueList implements BundleFormatted {
     }
 
     public void commit() {
-        lastCommit = list.size();
+        lastCommit = size;
     }
 
     public void rollback() {
-        while (list.size() > lastCommit) {
-            list.removeLast();
+        while (size > lastCommit) {
+            removeLast();
+        }
+    }
+
+    private void removeLast() {
+        if (size == 0) {
+            throw new NoSuchElementException();
         }
+        size--;
+        fields[size] = null;
+        values[size] = null;
+        resolved[size] = null;
     }
 
     public boolean updateBundle(Bundle bundle) {
-        for (FieldValue fv : list) {
-            bundle.setValue(fv.field, fv.value);
+        for (int i = 0; i < size; i++) {
+            bundle.setValue(fields[i], values[i]);
         }
-        return list.size() > 0;
+        return size > 0;
     }
 
     public boolean updateBundleWithListAppend(Bundle bundle) {
-        for (FieldValue fv : list) {
-            ValueObject oldValue = bundle.getValue(fv.field);
+        for (int i = 0; i < size; i++) {
+            BundleField field = fields[i];
+            ValueObject oldValue = bundle.getValue(field);
             ValueArray newValue;
             if (oldValue == null) {
                 newValue = ValueFactory.createArray(1);
@@ -93,15 +147,17 @@ public class FieldValueList implements BundleFormatted {
                 newValue = ValueFactory.createArray(2);
                 newValue.add(oldValue);
             }
-            newValue.add(fv.value);
-            bundle.setValue(fv.field, newValue);
+            newValue.add(values[i]);
+            bundle.setValue(field, newValue);
         }
-        return !list.isEmpty();
+        return size > 0;
     }
 
     public boolean updateBundleWithMapAppend(Bundle bundle) {
-        for (FieldValue fv : list) {
-            ValueObject oldValue = bundle.getValue(fv.field);
+        for (int i = 0; i < size; i++) {
+            BundleField field = fields[i];
+            ValueObject value = values[i];
+            ValueObject oldValue = bundle.getValue(field);
             ValueMap newValue;
             if (oldValue == null) {
                 newValue = ValueFactory.createMap();
@@ -111,16 +167,45 @@ public class FieldValueList implements BundleFormatted {
                 newValue = ValueFactory.createMap();
                 newValue.put(oldValue.asString().asNative(), oldValue);
             }
-            newValue.put(fv.value.asString().asNative(), fv.value);
-            bundle.setValue(fv.field, newValue);
+            newValue.put(value.asString().asNative(), value);
+            bundle.setValue(field, newValue);
         }
-        return !list.isEmpty();
+        return size > 0;
     }
 
     public Bundle createBundle(BundleFactory factory) {
-        Bundle bundle = factory.createBundle();
-        for (FieldValue fv : list) {
-            bundle.setValue(bundle.getFormat().getField(fv.field.getName()), fv.value);
+        Bundle bundle;
+        if (reuseRows && (reusableRow != null) && (reusableRowFactory == factory)) {
+            bundle = reusableRow;
+            for (int i = 0; i < reusableRowFieldCount; i++) {
+                bundle.removeValue(reusableRowFields[i]);
+            }
+        } else {
+            bundle = factory.createBundle();
+            if (reuseRows) {
+                reusableRow = bundle;
+                reusableRowFactory = factory;
+            }
+        }
+        BundleFormat format = bundle.getFormat();
+        if (format != resolvedFormat) {
+            Arrays.fill(resolved, null);
+            resolvedFormat = format;
+        }
+        for (int i = 0; i < size; i++) {
+            BundleField field = resolved[i];
+            if (field == null) {
+                field = format.getField(fields[i].getName());
+                resolved[i] = field;
+            }
+            bundle.setValue(field, values[i]);
+        }
+        if (reuseRows) {
+            if (reusableRowFields.length < size) {
+                reusableRowFields = new BundleField[resolved.length];
+            }
+            System.arraycopy(resolved, 0, reusableRowFields, 0, size);
+            reusableRowFieldCount = size;
         }
         return bundle;
     }
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.io.IOException;
+
+import java.util.Map;
+
+import com.addthis.basis.util.Parameter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Compression of the messages a query worker sends to the query master. A compressed message is
+ * {@link FramedDataChannelReader#FRAME_SNAPPY} followed by a snappy block holding the frames of the
+ * uncompressed message. Messages are compressed independently, so each can be decoded on its own;
+ * field names are already only sent once per stream by the bundle codec.
+ * <p/>
+ * The master advertises that it can decode compressed messages with the {@link #OPTION} stream option,
+ * so workers never compress for masters that do not. The query parameter {@link #QUERY_PARAMETER}
+ * selects compression per query: "true", "false", or "auto" (the default), which only compresses
+ * messages whose rows are wide enough to be worth it and keeps a message uncompressed when compression
+ * does not shrink it.
+ */
+public enum FrameCompression {
+    NONE, AUTO, ALWAYS;
+
+    /** stream option set by masters that decode compressed messages */
+    public static final String OPTION = "compression";
+    public static final String CODEC = "snappy";
+    public static final String QUERY_PARAMETER = "compress";
+
+    private static final String DEFAULT = Parameter.value("meshQuerySource.compress", "auto");
+    /** in auto mode, messages with a smaller average encoded row size are sent as is */
+    private static final int MIN_ROW_BYTES = Parameter.intValue("meshQuerySource.compress.minRowBytes", 24);
+    /** in auto mode, messages smaller than this are sent as is */
+    private static final int MIN_BYTES = Parameter.intValue("meshQuerySource.compress.minBytes", 1024);
+    /** in auto mode, compressed messages are only sent if at most this fraction of the original size */
+    private static final double MAX_RATIO = Double.parseDouble(Parameter.value("meshQuerySource.compress.maxRatio", ".9"));
+
+    private static final Counter rawBytes = Metrics.newCounter(FrameCompression.class, "rawBytes");
+    private static final Counter sentBytes = Metrics.newCounter(FrameCompression.class, "sentBytes");
+
+    /** @return the compression a worker should use for a query sent with the given stream options */
+    public static FrameCompression select(Map<String, String> options, Query query) {
+        if (!CODEC.equals(options.get(OPTION))) {
+            return NONE;
+        }
+        String mode = query.getParameter(QUERY_PARAMETER, DEFAULT);
+        switch (mode) {
+            case "true":
+                return ALWAYS;
+            case "false":
+                return NONE;
+            default:
+                return AUTO;
+        }
+    }
+
+    /**
+     * @param message whole frames as written by the worker
+     * @param rows    number of rows in the message, or 0 if not known
+     * @return the message to send
+     */
+    public byte[] encode(byte[] message, int rows) throws IOException {
+        rawBytes.inc(message.length);
+        if ((this == NONE) || (message.length == 0) || ((this == AUTO) && !worthTrying(message, rows))) {
+            sentBytes.inc(message.length);
+            return message;
+        }
+        byte[] compressed = new byte[1 + Snappy.maxCompressedLength(message.length)];
+        compressed[0] = (byte) FramedDataChannelReader.FRAME_SNAPPY;
+        int length = 1 + Snappy.compress(message, 0, message.length, compressed, 1);
+        double limit = (this == AUTO) ? (message.length * MAX_RATIO) : message.length;
+        if (length >= limit) {
+            sentBytes.inc(message.length);
+            return message;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(compressed, 0, result, 0, length);
+        sentBytes.inc(length);
+        return result;
+    }
+
+    private static boolean worthTrying(byte[] message, int rows) {
+        return (message.length >= MIN_BYTES) && ((rows == 0) || ((message.length / rows) >= MIN_ROW_BYTES));
+    }
+
+    /** @return the frames of a message that may or may not be compressed */
+    public static byte[] decode(byte[] message) throws IOException {
+        if ((message.length == 0) || (message[0] != FramedDataChannelReader.FRAME_SNAPPY)) {
+            return message;
+        }
+        byte[] frames = new byte[Snappy.uncompressedLength(message, 1, message.length - 1)];
+        Snappy.uncompress(message, 1, message.length - 1, frames, 0);
+        return frames;
+    }
+}
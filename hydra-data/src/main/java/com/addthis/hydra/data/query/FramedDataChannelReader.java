@@ -18,6 +18,7 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 
 import java.util.concurrent.BlockingQueue;
@@ -48,6 +49,8 @@ public class FramedDataChannelReader implements BundleReader {
     public static final int FRAME_EOF = 1;
     public static final int FRAME_ERROR = 2;
     public static final int FRAME_BUSY = 3;
+    /** starts a whole message of frames compressed with snappy, see {@link FrameCompression} */
+    public static final int FRAME_SNAPPY = 4;
 
     private final StreamSource streamSource;
     private final DataChannelCodec.ClassIndexMap classMap;
@@ -56,7 +59,8 @@ public class FramedDataChannelReader implements BundleReader {
     private final BlockingQueue<byte[]> queue;
     private final int pollWaitTime;
 
-    private ByteArrayInputStream bis;
+    /** the frame being read. rows are decoded from it in place and it is dropped once consumed. */
+    private final FrameInputStream frame;
     private DataChannelError err;
     private boolean eof;
 
@@ -75,6 +79,7 @@ public class FramedDataChannelReader implements BundleReader {
 
         this.queue = streamSource.getMessageQueue();
         this.factory = new ListBundle();
+        this.frame = new FrameInputStream();
         this.eof = false;
     }
 
@@ -87,7 +92,7 @@ public class FramedDataChannelReader implements BundleReader {
         if (eof) {
             return null;
         }
-        if ((bis == null) || (bis.available() == 0)) {
+        if (!frame.hasData()) {
             byte[] data;
             try {
                 data = queue.poll(pollWaitTime, TimeUnit.MILLISECONDS);
@@ -103,24 +108,28 @@ public class FramedDataChannelReader implements BundleReader {
                 return null;
             } else {
                 // more data to read
-                bis = new ByteArrayInputStream(data);
+                frame.setData(FrameCompression.decode(data));
             }
         }
 
-        int frame = bis.read();
-        switch (frame) {
+        int frameType = frame.read();
+        switch (frameType) {
             case FRAME_BUSY:
                 err = new DataChannelError("busy frames are not supported");
                 throw err;
             case FRAME_MORE:
-                return DataChannelCodec.decodeBundle(factory.createBundle(), LessBytes.readBytes(bis), fieldMap, classMap);
+                Bundle bundle = frame.decodeBundle(factory.createBundle(), fieldMap, classMap);
+                if (!frame.hasData()) {
+                    frame.release();
+                }
+                return bundle;
             case FRAME_EOF:
                 close();
                 return null;
             case FRAME_ERROR:
                 try {
-                    String error = LessBytes.readString(bis);
-                    String errorMessage = LessBytes.readString(bis);
+                    String error = LessBytes.readString(frame);
+                    String errorMessage = LessBytes.readString(frame);
                     Class clazz = Class.forName(error);
                     err = (DataChannelError) clazz.getConstructor(String.class).newInstance(errorMessage);
                 } catch (DataChannelError ex) {
@@ -131,7 +140,7 @@ public class FramedDataChannelReader implements BundleReader {
                 }
                 throw err;
             default:
-                err = new DataChannelError("invalid framing: " + frame);
+                err = new DataChannelError("invalid framing: " + frameType);
                 throw err;
         }
     }
@@ -154,6 +163,7 @@ public class FramedDataChannelReader implements BundleReader {
 
     @Override public void close() throws IOException {
         eof = true;
+        frame.release();
     }
 
     public boolean isClosed() {
@@ -163,4 +173,52 @@ public class FramedDataChannelReader implements BundleReader {
     @Override public BundleFactory getFactory() {
         return factory;
     }
+
+    /**
+     * A view of the current meshy frame. Each row is length prefixed; instead of copying it out
+     * into its own array the codec reads it directly from the frame, bounded to the row's length.
+     */
+    private static final class FrameInputStream extends ByteArrayInputStream {
+
+        private static final byte[] EMPTY = new byte[0];
+
+        FrameInputStream() {
+            super(EMPTY);
+        }
+
+        void setData(byte[] data) {
+            buf = data;
+            pos = 0;
+            mark = 0;
+            count = data.length;
+        }
+
+        boolean hasData() {
+            return pos < count;
+        }
+
+        /** drops the reference to the frame so it can be collected while the caller holds the rows */
+        void release() {
+            setData(EMPTY);
+        }
+
+        @Nullable Bundle decodeBundle(Bundle bundle,
+                                      DataChannelCodec.FieldIndexMap fieldMap,
+                                      DataChannelCodec.ClassIndexMap classMap) throws IOException {
+            long length = LessBytes.readLength(this);
+            if ((length < 0) || (length > (count - pos))) {
+                throw new EOFException("bundle of " + length + " bytes exceeds the remaining frame");
+            }
+            int end = pos + (int) length;
+            int frameEnd = count;
+            count = end;
+            try {
+                return DataChannelCodec.decodeBundle(bundle, this, fieldMap, classMap);
+            } finally {
+                // skip anything the codec did not read, as decoding a copy of the row would have
+                count = frameEnd;
+                pos = end;
+            }
+        }
+    }
 }
@@ -54,6 +54,7 @@ import com.addthis.hydra.data.query.op.OpSkip;
 import com.addthis.hydra.data.query.op.OpSleep;
 import com.addthis.hydra.data.query.op.OpString;
 import com.addthis.hydra.data.query.op.OpTitle;
+import com.addthis.hydra.data.query.op.OpTopK;
 import com.addthis.hydra.data.query.op.OpTranspose;
 
 import io.netty.channel.ChannelProgressivePromise;
@@ -429,6 +430,14 @@ enum Op {
             return GATHER.build(processor, args, opPromise);
         }
     },
+    TOPK {
+        @Override
+        QueryOp build(QueryOpProcessor processor,
+                      String args,
+                      ChannelProgressivePromise opPromise) {
+            return new OpTopK(args, opPromise);
+        }
+    },
     TITLE {
         @Override
         QueryOp build(QueryOpProcessor processor,
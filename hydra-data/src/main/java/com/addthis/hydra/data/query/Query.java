@@ -193,6 +193,18 @@ public class Query implements Codable {
             newQuery.ops = newops;
             String pop = ops[0];
             ops = new String[]{pop};
+            if (TopKPushdown.enabled(this)) {
+                // op strings are chained last to first, so the end of the worker chain is newops[0]
+                String workerOps = (newops.length > 0) ? newops[0] : null;
+                String pushed = TopKPushdown.rewrite(pop, workerOps);
+                if (pushed != workerOps) {
+                    if (newops.length == 0) {
+                        newops = new String[1];
+                    }
+                    newops[0] = pushed;
+                    newQuery.ops = newops;
+                }
+            }
         }
         return newQuery;
     }
@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.data.query;
 
+import javax.annotation.Nullable;
+
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -197,10 +199,22 @@ public class QueryElement implements SuperCodable {
     }
 
     public Iterator<DataTreeNode> matchNodes(DataTree tree, LinkedList<DataTreeNode> stack) {
-        return node != null ? node.getNodes(stack) : null;
+        return matchNodes(tree, stack, null);
+    }
+
+    public Iterator<DataTreeNode> matchNodes(DataTree tree, LinkedList<DataTreeNode> stack,
+                                             @Nullable QuerySampler sampler) {
+        return node != null ? node.getNodes(stack, sampler) : null;
     }
 
     public int update(FieldValueList fvlist, DataTreeNode tn) {
+        return update(fvlist, tn, 1);
+    }
+
+    /**
+     * @param counterScale factor applied to counter properties of sampled nodes
+     */
+    public int update(FieldValueList fvlist, DataTreeNode tn, double counterScale) {
         if (tn == null) {
             // whether or not the entire node being null is the business of the isnullokay operator in the caller
             return 0;
@@ -218,6 +232,9 @@ public class QueryElement implements SuperCodable {
                     return -1;
                 }
                 if (p.show()) {
+                    if ((val != null) && p.counter()) {
+                        val = QuerySampler.scale(val, counterScale);
+                    }
                     fvlist.push(p.field(fvlist.getFormat()), val);
                     updates++;
                 }
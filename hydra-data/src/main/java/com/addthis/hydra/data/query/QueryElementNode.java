@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.data.query;
 
+import javax.annotation.Nullable;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -290,6 +292,40 @@ public class QueryElementNode implements Codable {
         return not != null && not;
     }
 
+    /**
+     * @return true if this element enumerates children (wildcard, regex or range) and can
+     *         therefore be sampled by a {@link QuerySampler}
+     */
+    public boolean sampleable() {
+        if (up() || (path != null)) {
+            return false;
+        }
+        if (match == null) {
+            return (regex == null) && (data == null);
+        }
+        return regex() || range() || rangeStrict();
+    }
+
+    /**
+     * @return how many times a regex element matches a child with this name (once per matching pattern)
+     */
+    public int regexMatches(String name) {
+        if (regexPatterns == null) {
+            Pattern[] patterns = new Pattern[match.length];
+            for (int i = 0; i < match.length; i++) {
+                patterns[i] = Pattern.compile(match[i]);
+            }
+            regexPatterns = patterns;
+        }
+        int count = 0;
+        for (Pattern pattern : regexPatterns) {
+            if (pattern.matcher(name).matches() ^ not()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private DataTreeNode followPath(DataTreeNode from, String[] path) {
         DataTreeNode node = from;
         for (String name : path) {
@@ -301,6 +337,10 @@ public class QueryElementNode implements Codable {
         return node;
     }
 
+    private static Iterator<DataTreeNode> sample(@Nullable QuerySampler sampler, Iterator<DataTreeNode> nodes) {
+        return (sampler != null) ? sampler.sample(nodes) : nodes;
+    }
+
     private static class LazyNodeMatch extends AbstractIterator<DataTreeNode> {
 
         final DataTreeNode parent;
@@ -343,6 +383,13 @@ public class QueryElementNode implements Codable {
     }
 
     public Iterator<DataTreeNode> getNodes(LinkedList<DataTreeNode> stack) {
+        return getNodes(stack, null);
+    }
+
+    /**
+     * @param sampler if not null then enumerated children are restricted to the sampled ones
+     */
+    public Iterator<DataTreeNode> getNodes(LinkedList<DataTreeNode> stack, @Nullable QuerySampler sampler) {
         List<DataTreeNode> ret = null;
         if (up()) {
             ret = new ArrayList<>(1);
@@ -363,7 +410,7 @@ public class QueryElementNode implements Codable {
             if ((match == null) && (regex == null) && (data == null)) {
                 Iterator<DataTreeNode> result = parent.getIterator();
                 if (result.hasNext() || (defaultNode == null)) {
-                    return result;
+                    return sample(sampler, result);
                 } else {
                     return Iterators.singletonIterator(defaultNode);
                 }
@@ -371,35 +418,31 @@ public class QueryElementNode implements Codable {
             ret = new LinkedList<>();
             if (match != null) {
                 if (regex()) {
-                    if (regexPatterns == null) {
-                        regexPatterns = new Pattern[match.length];
-                        for (int i = 0; i < match.length; i++) {
-                            regexPatterns[i] = Pattern.compile(match[i]);
-                        }
-                    }
                     for (Iterator<DataTreeNode> iter = parent.getIterator(); iter.hasNext();) {
                         tmp = iter.next();
-                        for (Pattern name : regexPatterns) {
-                            if (name.matcher(tmp.getName()).matches() ^ not()) {
-                                ret.add(tmp);
-                            }
+                        if ((sampler != null) && !sampler.accept(tmp)) {
+                            continue;
+                        }
+                        for (int i = regexMatches(tmp.getName()); i > 0; i--) {
+                            ret.add(tmp);
                         }
                     }
                 } else if (range()) {
                     if (match.length == 0) {
-                        return parent.getIterator();
+                        return sample(sampler, parent.getIterator());
                     } else if (match.length == 1) {
-                        return parent.getIterator(match[0]);
+                        return sample(sampler, parent.getIterator(match[0]));
                     } else {
                         ArrayList<Iterator<DataTreeNode>> metaIterator = new ArrayList<>();
                         for (String name : match) {
                             metaIterator.add(parent.getIterator(name));
                         }
-                        return Iterators.concat(metaIterator.iterator());
+                        return sample(sampler, Iterators.concat(metaIterator.iterator()));
                     }
                 } else if (rangeStrict()) {
                     if (match.length <= 2) {
-                        return parent.getIterator(match.length > 0 ? match[0] : null, match.length > 1 ? match[1] : null);
+                        return sample(sampler, parent.getIterator(match.length > 0 ? match[0] : null,
+                                                                  match.length > 1 ? match[1] : null));
                     } else {
                         List<Iterator<DataTreeNode>> metaIterator = new ArrayList<>((match.length + 1) / 2);
                         for (int i = 0; i < match.length; i += 2) {
@@ -409,7 +452,7 @@ public class QueryElementNode implements Codable {
                                 metaIterator.add(parent.getIterator(match[i], null));
                             }
                         }
-                        return Iterators.concat(metaIterator.iterator());
+                        return sample(sampler, Iterators.concat(metaIterator.iterator()));
                     }
                 } else if (data == null) {
                     return new LazyNodeMatch(parent, match, defaultNode);
@@ -63,7 +63,14 @@ public class QueryElementProperty implements Codable {
     }
 
     public String column() {
-        return column();
+        return column;
+    }
+
+    /**
+     * @return true if this property reads the node counter ("hits" or "count")
+     */
+    public boolean counter() {
+        return (key != null) && ("hits".equals(key.name) || "count".equals(key.name));
     }
 
     public boolean show() {
@@ -0,0 +1,307 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.tree.DataTree;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.TreeCommonParameters;
+import com.addthis.hydra.store.common.AbstractPageCache;
+
+/**
+ * Estimates the cost of a query path without running it. Enabled by setting the query parameter
+ * "explain": the task then sends a single row with the columns below instead of searching, and
+ * the query master sums the rows of all tasks.
+ * <ul>
+ * <li>tasks - number of tasks that answered</li>
+ * <li>nodes - tree nodes the search would visit</li>
+ * <li>pages - database pages the search would read</li>
+ * <li>rows - rows the search would emit before query ops</li>
+ * </ul>
+ * The path is walked one element at a time over a bounded set of representative nodes, each
+ * standing for a number of real nodes. Elements that enumerate children (see
+ * {@link QueryElementNode#sampleable()}) read at most "query.estimate.samples" children per parent
+ * and extrapolate from the child count kept in every node ({@link DataTreeNode#getNodeCount()}).
+ * Regex matches are scaled by the fraction of sampled children they match, and range matches
+ * that do not end within the samples are assumed to run to the last child. Children of a parent
+ * are stored together, so reading k of them costs about k divided by the keys per page.
+ */
+public class QueryEstimator {
+
+    public static final String EXPLAIN_PARAMETER = "explain";
+
+    /** master side ops that sum the rows of all tasks */
+    public static final String MERGE_OPS = "gather=ssss";
+
+    static final int SAMPLES = Parameter.intValue("query.estimate.samples", 100);
+    static final int FRONTIER = Parameter.intValue("query.estimate.frontier", 100);
+
+    private final int samples;
+    private final int frontierSize;
+    private final int pageKeys;
+
+    private double nodes;
+    private double pages;
+    private double rows;
+
+    public QueryEstimator() {
+        this(SAMPLES, FRONTIER);
+    }
+
+    QueryEstimator(int samples, int frontierSize) {
+        this.samples = Math.max(1, samples);
+        this.frontierSize = Math.max(1, frontierSize);
+        int maxPageSize = TreeCommonParameters.maxPageSize;
+        this.pageKeys = (maxPageSize > 0) ? maxPageSize : AbstractPageCache.defaultMaxPageEntries;
+    }
+
+    public static boolean requested(Query query) {
+        return requested(query.getParameter(EXPLAIN_PARAMETER));
+    }
+
+    /**
+     * @param explain value of the {@link #EXPLAIN_PARAMETER explain parameter}, if any
+     */
+    public static boolean requested(@Nullable String explain) {
+        return (explain != null) && !"0".equals(explain) && !"false".equals(explain);
+    }
+
+    /**
+     * Adds the estimated cost of every path of {@code query} and sends the totals as one row.
+     */
+    public void explain(DataTree tree, Query query, DataChannelOutput output) {
+        for (QueryElement[] path : query.getQueryPaths()) {
+            estimate(tree, path);
+        }
+        Bundle row = output.createBundle();
+        BundleFormat format = row.getFormat();
+        row.setValue(format.getField("tasks"), ValueFactory.create(1));
+        row.setValue(format.getField("nodes"), ValueFactory.create(getNodes()));
+        row.setValue(format.getField("pages"), ValueFactory.create(getPages()));
+        row.setValue(format.getField("rows"), ValueFactory.create(getRows()));
+        output.send(row);
+        output.sendComplete();
+    }
+
+    /**
+     * Adds the estimated cost of one path.
+     */
+    public void estimate(DataTree tree, QueryElement[] path) {
+        List<Representative> frontier = new ArrayList<>();
+        LinkedList<DataTreeNode> rootStack = new LinkedList<>();
+        rootStack.push(tree);
+        frontier.add(new Representative(rootStack, 1));
+        for (int i = 0; i < path.length; i++) {
+            QueryElement element = path[i];
+            List<Representative> next = new ArrayList<>();
+            double matched = 0;
+            for (Representative parent : frontier) {
+                matched += expand(element, parent, next);
+            }
+            if (element.flatten()) {
+                // the matches of each parent collapse into one row and the search stops descending
+                if (flattenedToEnd(path, i + 1)) {
+                    rows += weight(frontier);
+                }
+                return;
+            }
+            frontier = thin(next, matched);
+            if (frontier.isEmpty()) {
+                return;
+            }
+        }
+        rows += weight(frontier);
+    }
+
+    /**
+     * Elements after a flattened one have no node to match, so a row is only emitted if each of
+     * them is flattened and accepts no matches.
+     */
+    private static boolean flattenedToEnd(QueryElement[] path, int from) {
+        for (int i = from; i < path.length; i++) {
+            if (!path[i].flatten() || !path[i].emptyok()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches one element below a representative node and adds the representatives of the matches to
+     * {@code next}.
+     *
+     * @return the estimated number of real nodes matched
+     */
+    private double expand(QueryElement element, Representative parent, List<Representative> next) {
+        QueryElementNode node = element.getNode();
+        DataTreeNode root = parent.stack.peek();
+        if ((node == null) || (root == null)) {
+            return 0;
+        }
+        int children = Math.max(0, root.getNodeCount());
+        List<DataTreeNode> sample = new ArrayList<>();
+        double matches;
+        double visited;
+        if (node.sampleable() && node.regex() && (children > samples)) {
+            // a regex scans every child, so only look at a prefix of them
+            int scanned = 0;
+            int hits = 0;
+            Iterator<DataTreeNode> iter = root.getIterator();
+            try {
+                while (iter.hasNext() && (scanned < samples)) {
+                    DataTreeNode child = iter.next();
+                    scanned++;
+                    int count = node.regexMatches(child.getName());
+                    for (int i = 0; i < count; i++) {
+                        sample.add(child);
+                    }
+                    hits += count;
+                }
+            } finally {
+                close(iter);
+            }
+            matches = (scanned > 0) ? ((double) children * hits / scanned) : 0;
+            visited = children;
+        } else {
+            Iterator<DataTreeNode> iter = element.matchNodes(null, parent.stack);
+            if (iter == null) {
+                return 0;
+            }
+            boolean truncated = false;
+            try {
+                int limit = samples + element.skip();
+                while (iter.hasNext()) {
+                    if (sample.size() >= limit) {
+                        truncated = true;
+                        break;
+                    }
+                    sample.add(iter.next());
+                }
+            } finally {
+                close(iter);
+            }
+            matches = truncated ? Math.max(sample.size(), children) : sample.size();
+            visited = (node.sampleable() && node.regex()) ? Math.max(children, matches) : matches;
+        }
+        int skip = Math.min(element.skip(), sample.size());
+        double emitted = Math.max(0, matches - element.skip());
+        if (element.limit() > 0) {
+            emitted = Math.min(emitted, element.limit());
+            if (!node.regex()) {
+                visited = Math.min(visited, element.skip() + emitted);
+            }
+        }
+        nodes += parent.weight * visited;
+        pages += parent.weight * pages(node, visited, children);
+        List<DataTreeNode> kept = sample.subList(skip, sample.size());
+        if (kept.size() > emitted) {
+            kept = kept.subList(0, (int) Math.ceil(emitted));
+        }
+        for (DataTreeNode child : kept) {
+            if (child == null) {
+                continue;
+            }
+            LinkedList<DataTreeNode> stack = new LinkedList<>(parent.stack);
+            stack.push(child);
+            next.add(new Representative(stack, parent.weight * emitted / kept.size()));
+        }
+        return parent.weight * emitted;
+    }
+
+    private double pages(QueryElementNode node, double visited, int children) {
+        if (visited <= 0) {
+            return 0;
+        }
+        double childPages = Math.ceil(Math.max(children, 1) / (double) pageKeys);
+        if (node.sampleable()) {
+            // a scan reads consecutive keys
+            return Math.min(childPages, Math.ceil(visited / pageKeys));
+        }
+        // each lookup may land on its own page
+        return Math.min(childPages, visited);
+    }
+
+    /**
+     * Keeps at most {@link #frontierSize} evenly spaced representatives, scaled to keep the total weight.
+     */
+    private List<Representative> thin(List<Representative> next, double total) {
+        if (next.size() <= frontierSize) {
+            return next;
+        }
+        List<Representative> thinned = new ArrayList<>(frontierSize);
+        double step = (double) next.size() / frontierSize;
+        double kept = 0;
+        for (int i = 0; i < frontierSize; i++) {
+            Representative representative = next.get((int) (i * step));
+            thinned.add(representative);
+            kept += representative.weight;
+        }
+        double scale = (kept > 0) ? (total / kept) : 0;
+        for (Representative representative : thinned) {
+            representative.weight *= scale;
+        }
+        return thinned;
+    }
+
+    private static double weight(List<Representative> frontier) {
+        double weight = 0;
+        for (Representative representative : frontier) {
+            weight += representative.weight;
+        }
+        return weight;
+    }
+
+    private static void close(Iterator<DataTreeNode> iter) {
+        if (iter instanceof ClosableIterator) {
+            ((ClosableIterator<DataTreeNode>) iter).close();
+        }
+    }
+
+    public long getNodes() {
+        return Math.round(nodes);
+    }
+
+    public long getPages() {
+        return Math.round(pages);
+    }
+
+    public long getRows() {
+        return Math.round(rows);
+    }
+
+    /** A matched node and the number of real nodes it stands for. */
+    private static final class Representative {
+
+        final LinkedList<DataTreeNode> stack;
+        double weight;
+
+        Representative(LinkedList<DataTreeNode> stack, double weight) {
+            this.stack = stack;
+            this.weight = weight;
+        }
+    }
+}
@@ -44,7 +44,7 @@ import io.netty.channel.ChannelProgressivePromise;
  * @hydra-category Query Operations
  * @hydra-doc-position 9
  */
-public interface QueryOp extends BundleOutput, Closeable {
+public interface QueryOp extends BundleOutput, Closeable, ReusedRowConsumer {
 
     /**
      * @param next next op in the op chain
@@ -72,4 +72,12 @@ public interface QueryOp extends BundleOutput, Closeable {
     public String getSimpleName();
 
     public ChannelProgressivePromise getOpPromise();
+
+    /**
+     * Ops that keep rows must copy them before accepting reused rows, so the default is to decline.
+     */
+    @Override
+    public default boolean acceptReusedRows() {
+        return false;
+    }
 }
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import java.nio.file.Path;
 
@@ -34,6 +35,7 @@ import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.table.DataTable;
 import com.addthis.bundle.table.DataTableFactory;
+import com.addthis.hydra.data.query.op.OpParallelGather;
 import com.addthis.hydra.data.util.BundleUtils;
 
 import org.slf4j.Logger;
@@ -57,7 +59,7 @@ import io.netty.util.concurrent.ImmediateEventExecutor;
  * TODO see Query for other TODOs that need implementation / support here
  */
 @NotThreadSafe
-public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Closeable {
+public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Closeable, ReusedRowConsumer {
 
     private static final Logger log = LoggerFactory.getLogger(QueryOpProcessor.class);
 
@@ -71,6 +73,8 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
     private final long memTip;
     private final long rowTip;
     private final File tempDir;
+    private final int  mergePartitions;
+    private final Executor mergeCompletionExecutor;
 
     private final ChannelProgressivePromise opPromise;
     private final ResultChannelOutput       output;
@@ -79,12 +83,16 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
 
     @Nonnull private QueryOp firstOp;
     private QueryOp lastOp;
+    /** the ops after a leading gather, or null if the ops do not start with one */
+    @Nullable private String[] snapshotOps;
+    /** completes the op promise itself once its merge threads are done */
+    @Nullable private OpParallelGather parallelGather;
     private long    rowsin;
     private long    cellsin;
 
     private QueryOpProcessor(Builder builder) {
-        this(builder.output, builder.queryPromise, builder.tempDir,
-             builder.memTip, builder.rowTip, builder.memTracker, builder.ops);
+        this(builder.output, builder.queryPromise, builder.tempDir, builder.memTip, builder.rowTip,
+             builder.memTracker, builder.mergePartitions, builder.mergeCompletionExecutor, builder.ops);
     }
 
     public QueryOpProcessor(DataChannelOutput output, String[] ops) {
@@ -101,7 +109,16 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
     public QueryOpProcessor(
             DataChannelOutput output, ChannelProgressivePromise opPromise,
             File tempDir, long memTip, long rowTip, QueryMemTracker memTracker, String[] ops) {
+        this(output, opPromise, tempDir, memTip, rowTip, memTracker, 1, Runnable::run, ops);
+    }
+
+    private QueryOpProcessor(
+            DataChannelOutput output, ChannelProgressivePromise opPromise,
+            File tempDir, long memTip, long rowTip, QueryMemTracker memTracker, int mergePartitions,
+            Executor mergeCompletionExecutor, String[] ops) {
         this.opPromise = opPromise;
+        this.mergePartitions = mergePartitions;
+        this.mergeCompletionExecutor = mergeCompletionExecutor;
         this.tempDir = tempDir;
         this.memTip = memTip;
         this.rowTip = rowTip;
@@ -188,7 +205,25 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
     }
 
     private void parseOps(String... opslist) {
+        if ((opslist != null) && (opslist.length == 1) && (opslist[0] != null)) {
+            String ops = opslist[0];
+            int end = ops.indexOf(';');
+            KVPair kv = KVPair.parsePair((end < 0) ? ops : ops.substring(0, end));
+            if ("gather".equalsIgnoreCase(kv.getKey())) {
+                snapshotOps = (end < 0) ? new String[0] : new String[]{ops.substring(end + 1)};
+                if ((mergePartitions > 1) && OpParallelGather.supports(kv.getValue())) {
+                    parallelGather = new OpParallelGather(kv.getValue(), mergePartitions, memTip, rowTip,
+                                                          tempDir.toString(), opPromise, this::sourceError,
+                                                          mergeCompletionExecutor);
+                    opslist = snapshotOps;
+                }
+            }
+        }
         QueryOp newFirstOp = generateOps(this, opPromise, output, opslist);
+        if (parallelGather != null) {
+            parallelGather.setNext(this, (newFirstOp != null) ? newFirstOp : output);
+            newFirstOp = parallelGather;
+        }
         // follow the query operations to the lastOp
         if (newFirstOp != null) {
             firstOp = newFirstOp;
@@ -200,6 +235,38 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
         }
     }
 
+    /**
+     * @return true if {@link #snapshot(DataChannelOutput)} can send results before the input is complete
+     */
+    public boolean canSnapshot() {
+        return (snapshotOps != null) && (firstOp instanceof SnapshotQueryOp);
+    }
+
+    /**
+     * Sends the rows these ops would emit if the input ended now to {@code snapshotOutput}, followed
+     * by sendComplete. Only possible when the ops start with a gather: the rest of the ops run on a
+     * copy of the rows gathered so far, so the final results are not affected. Must be called from
+     * the thread that sends rows.
+     *
+     * @return false if the ops can not send a snapshot
+     */
+    public boolean snapshot(DataChannelOutput snapshotOutput) {
+        if (!canSnapshot()) {
+            return false;
+        }
+        ChannelProgressivePromise snapshotPromise =
+                new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
+        QueryOpProcessor rest = new QueryOpProcessor(snapshotOutput, snapshotPromise, tempDir, memTip, rowTip,
+                                                     null, 1, Runnable::run, snapshotOps);
+        try {
+            ((SnapshotQueryOp) firstOp).snapshot(rest);
+            rest.sendComplete();
+        } finally {
+            rest.close();
+        }
+        return true;
+    }
+
     public QueryOpProcessor appendOp(QueryOp op) {
         if (lastOp == null) {
             firstOp = op;
@@ -251,6 +318,17 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
         }
     }
 
+    /** Accepts reused rows only if every op in the chain and the final output do. */
+    @Override
+    public boolean acceptReusedRows() {
+        for (QueryOp op = firstOp; op != null; op = op.getNext()) {
+            if (!op.acceptReusedRows()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public long getInputRows() {
         return rowsin;
     }
@@ -279,7 +357,9 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
             // anyone who sets the opPromise to success is responsible for ensuring query completion
             if (!opPromise.isDone()) {
                 firstOp.sendComplete();
-                opPromise.trySuccess();
+                if (parallelGather == null) {
+                    opPromise.trySuccess();
+                }
             } else if (opPromise.isSuccess()) {
                 log.debug("skipping sendComplete because opPromise was already complete");
             } else {
@@ -353,6 +433,8 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
         private long rowTip = OP_TIPROW;
         private File tempDir = new File(TMP_SORT_DIR_STRING);
         private QueryMemTracker memTracker = null;
+        private int mergePartitions = 1;
+        private Executor mergeCompletionExecutor = Runnable::run;
 
         public Builder(DataChannelOutput output, String... ops) {
             this.output = output;
@@ -379,6 +461,24 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
             return this;
         }
 
+        /**
+         * Merge a leading gather op in this many partitions on a shared thread pool. Only worth it
+         * where many sources feed a single processor, such as the query master.
+         */
+        public Builder mergePartitions(int mergePartitions) {
+            this.mergePartitions = mergePartitions;
+            return this;
+        }
+
+        /**
+         * The executor that sends rows to the processor. Merged rows are emitted on it when the
+         * partitions finish merging on the shared pool. Defaults to running on the merge thread.
+         */
+        public Builder mergeCompletionExecutor(Executor mergeCompletionExecutor) {
+            this.mergeCompletionExecutor = mergeCompletionExecutor;
+            return this;
+        }
+
         public Builder queryPromise(ChannelProgressivePromise queryPromise) {
             this.queryPromise = queryPromise;
             return this;
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import javax.annotation.Nullable;
+
+import java.util.Iterator;
+
+import java.nio.charset.StandardCharsets;
+
+import com.addthis.basis.util.ClosableIterator;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.Numeric;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.tree.DataTreeNode;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Approximate execution of a query path. Enabled by setting the query parameter "sample" to a rate
+ * between 0 (exclusive) and 1.
+ * <p/>
+ * Path elements that enumerate children (wildcard, regex and range matches, see
+ * {@link QueryElementNode#sampleable()}) only visit the children whose name hashes below the rate.
+ * Sampling depends only on the node name and the optional "sampleSeed" parameter, so every task
+ * and every repetition of a query picks the same keys and merged results stay consistent.
+ * <p/>
+ * The "hits" and "count" properties are scaled by the inverse of the probability that their node
+ * was visited. If the path shows one of those properties each row also gets an error column
+ * (named by the "sampleError" parameter, default "error") holding the estimated standard error of
+ * the first scaled value in the row. Errors of merged rows combine as the square root of the sum
+ * of squares, which gather ("e") and num ("eadd") provide.
+ */
+public class QuerySampler {
+
+    public static final String RATE_PARAMETER = "sample";
+    public static final String SEED_PARAMETER = "sampleSeed";
+    public static final String ERROR_PARAMETER = "sampleError";
+
+    private final HashFunction hash;
+    private final double rate;
+    private final double[] scale;
+    private final String errorColumn;
+    @Nullable private final String errorSource;
+    private final double errorFactor;
+
+    QuerySampler(double rate, int seed, String errorColumn, QueryElement[] path) {
+        this.hash = Hashing.murmur3_128(seed);
+        this.rate = rate;
+        this.errorColumn = errorColumn;
+        this.scale = new double[path.length];
+        double probability = 1;
+        String source = null;
+        double sourceProbability = 1;
+        for (int i = 0; i < path.length; i++) {
+            QueryElementNode node = path[i].getNode();
+            if ((node != null) && node.sampleable()) {
+                probability *= rate;
+            }
+            scale[i] = 1 / probability;
+            if ((source == null) && (path[i].getProp() != null)) {
+                for (QueryElementProperty prop : path[i].getProp()) {
+                    if (prop.show() && prop.counter()) {
+                        source = prop.column();
+                        sourceProbability = probability;
+                        break;
+                    }
+                }
+            }
+        }
+        this.errorSource = source;
+        this.errorFactor = Math.sqrt(1 - sourceProbability);
+    }
+
+    /**
+     * @return a sampler for the path or null if the query does not ask for sampling
+     */
+    @Nullable public static QuerySampler create(Query query, QueryElement[] path) throws QueryException {
+        String rateValue = query.getParameter(RATE_PARAMETER);
+        if (rateValue == null) {
+            return null;
+        }
+        double rate;
+        int seed;
+        try {
+            rate = Double.parseDouble(rateValue);
+            seed = Integer.parseInt(query.getParameter(SEED_PARAMETER, "0"));
+        } catch (NumberFormatException ex) {
+            throw new QueryException("invalid sampling parameters: " + ex.getMessage());
+        }
+        if (!(rate > 0) || (rate > 1)) {
+            throw new QueryException("sample rate must be in (0, 1]: " + rateValue);
+        }
+        if (rate == 1) {
+            return null;
+        }
+        return new QuerySampler(rate, seed, query.getParameter(ERROR_PARAMETER, "error"), path);
+    }
+
+    /**
+     * @return the sampling parameters of a query, for use in result cache keys
+     */
+    public static String describe(Query query) {
+        String rate = query.getParameter(RATE_PARAMETER);
+        if (rate == null) {
+            return "";
+        }
+        return rate + ':' + query.getParameter(SEED_PARAMETER, "0") + ':' +
+               query.getParameter(ERROR_PARAMETER, "error");
+    }
+
+    public boolean accept(DataTreeNode node) {
+        long bits = hash.hashString(node.getName(), StandardCharsets.UTF_8).asLong() >>> 11;
+        return (bits * 0x1.0p-53) < rate;
+    }
+
+    /**
+     * @return an iterator over the sampled nodes of {@code nodes}. The source is closed along with it.
+     */
+    public Iterator<DataTreeNode> sample(Iterator<DataTreeNode> nodes) {
+        return new SampledIterator(nodes);
+    }
+
+    /**
+     * @return the factor applied to counters of the nodes matched by element {@code pathIndex}
+     */
+    public double scale(int pathIndex) {
+        return scale[pathIndex];
+    }
+
+    /**
+     * Sets the error column of a row emitted from this path.
+     */
+    public void updateError(Bundle row) {
+        if (errorSource == null) {
+            return;
+        }
+        BundleField errorField = row.getFormat().getField(errorColumn);
+        ValueObject source = row.getValue(row.getFormat().getField(errorSource));
+        Numeric value = (source != null) ? ValueUtil.asNumberOrParseDouble(source) : null;
+        if (value == null) {
+            row.removeValue(errorField);
+        } else {
+            row.setValue(errorField, ValueFactory.create(value.asDouble().getDouble() * errorFactor));
+        }
+    }
+
+    static ValueObject scale(ValueObject value, double factor) {
+        if (factor == 1) {
+            return value;
+        }
+        return ValueFactory.create(Math.round(value.asLong().getLong() * factor));
+    }
+
+    private final class SampledIterator extends AbstractIterator<DataTreeNode>
+            implements ClosableIterator<DataTreeNode> {
+
+        private final Iterator<DataTreeNode> nodes;
+
+        SampledIterator(Iterator<DataTreeNode> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        protected DataTreeNode computeNext() {
+            while (nodes.hasNext()) {
+                DataTreeNode next = nodes.next();
+                if ((next != null) && accept(next)) {
+                    return next;
+                }
+            }
+            return endOfData();
+        }
+
+        @Override
+        public void close() {
+            if (nodes instanceof ClosableIterator) {
+                ((ClosableIterator<DataTreeNode>) nodes).close();
+            }
+        }
+    }
+}
@@ -49,6 +49,11 @@ public class ResultChannelOutput extends AbstractQueryOp {
         }
     }
 
+    @Override
+    public boolean acceptReusedRows() {
+        return ReusedRowConsumer.acceptReusedRows(output);
+    }
+
     @Override
     public void sendComplete() {
         reportLines();
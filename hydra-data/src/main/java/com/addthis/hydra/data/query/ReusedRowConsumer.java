@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+/**
+ * A row consumer that can be handed the same mutable bundle for every row. The query engine
+ * asks its output once before a search and, if accepted, refills a single bundle per leaf
+ * instead of allocating a new one.
+ * <p/>
+ * Accepting means that no reference to a row passed to send is kept after send returns: rows
+ * are either fully handled (and forwarded to a consumer that also accepted) before returning,
+ * or copied if they need to be retained.
+ */
+public interface ReusedRowConsumer {
+
+    /**
+     * Called once before any rows are sent.
+     *
+     * @return true if rows sent from now on may be reused by the caller after send returns
+     */
+    public boolean acceptReusedRows();
+
+    public static boolean acceptReusedRows(Object output) {
+        return (output instanceof ReusedRowConsumer) && ((ReusedRowConsumer) output).acceptReusedRows();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import com.addthis.bundle.core.BundleOutput;
+
+/**
+ * An op that holds its rows until its input is complete, such as a gather. It can send the rows it
+ * would emit if the input ended now, which progressive queries show while they are still running.
+ *
+ * @see QueryOpProcessor#snapshot(com.addthis.bundle.channel.DataChannelOutput)
+ */
+public interface SnapshotQueryOp extends QueryOp {
+
+    /**
+     * Sends the rows this op would emit if its input ended now. Neither completes {@code output}
+     * nor changes what this op emits later. Must be called from the thread that sends it rows.
+     */
+    public void snapshot(BundleOutput output);
+}
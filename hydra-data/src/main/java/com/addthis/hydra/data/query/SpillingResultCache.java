@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A byte array cache for encoded query results with a heap tier and a local disk tier. Entries are
+ * kept on the heap until the heap budget is exceeded and are then spilled to a size bounded
+ * directory. Both tiers evict the least recently used entries first and expire entries after a
+ * fixed time.
+ * <p/>
+ * Keys are used as file names (with '/' replaced) and are expected to be short. Callers that need
+ * to drop a group of entries at once should give them a common prefix and use
+ * {@link #invalidatePrefix(String)}.
+ * <p/>
+ * The disk tier lives in a subdirectory of the configured directory that is named after the owner
+ * and only ever holds files written by the cache. Spills and the opening of disk tier entries run
+ * on a small shared I/O pool (see {@link #executor()}) so that callers on event loops never block
+ * on the disk.
+ */
+public class SpillingResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SpillingResultCache.class);
+
+    private static final int ioThreads = Parameter.intValue("resultCache.ioThreads", 2);
+
+    /** suffix of disk tier entries, and of entries that are still being written */
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private static final ThreadPoolExecutor io = new ThreadPoolExecutor(
+            ioThreads, ioThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("resultCacheIO-%d").setDaemon(true).build());
+
+    static {
+        io.allowCoreThreadTimeOut(true);
+    }
+
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter stores;
+    private final Meter spills;
+
+    private final Cache<String, Entry> heap;
+    @Nullable private final File dir;
+    private final long diskLimit;
+    private final long ttlMillis;
+    private final boolean enabled;
+
+    /** entries evicted from the heap whose spill has not finished yet */
+    private final ConcurrentMap<String, Entry> spilling = new ConcurrentHashMap<>();
+
+    /** disk tier index in access order; guarded by itself */
+    private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskUsed;
+
+    /**
+     * @param owner      class that metrics are reported under
+     * @param heapLimit  bytes to keep on the heap
+     * @param diskLimit  bytes to keep on disk. 0 disables the disk tier
+     * @param ttlSeconds seconds that an entry may be served for after it was stored
+     * @param dir        parent of the disk tier directory. Only entries left behind by an earlier cache
+     *                   of the same owner are deleted
+     */
+    public SpillingResultCache(Class<?> owner, long heapLimit, long diskLimit, long ttlSeconds, File dir) {
+        this.hits = Metrics.newMeter(owner, "hits", "hits", TimeUnit.SECONDS);
+        this.misses = Metrics.newMeter(owner, "misses", "misses", TimeUnit.SECONDS);
+        this.stores = Metrics.newMeter(owner, "stores", "stores", TimeUnit.SECONDS);
+        this.spills = Metrics.newMeter(owner, "spills", "spills", TimeUnit.SECONDS);
+        this.diskLimit = diskLimit;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        File cacheDir = null;
+        if (diskLimit > 0) {
+            try {
+                cacheDir = new File(dir.getCanonicalFile(), owner.getSimpleName());
+                if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                    throw new IOException("unable to create " + cacheDir);
+                }
+                deleteEntryFiles(cacheDir);
+            } catch (Exception e) {
+                log.warn("Error while cleaning the result cache directory {}; disk tier disabled", dir, e);
+                cacheDir = null;
+            }
+        }
+        this.dir = cacheDir;
+        this.enabled = (heapLimit > 0) || (cacheDir != null);
+        this.heap = CacheBuilder.newBuilder()
+                                .maximumWeight(Math.max(heapLimit, 0))
+                                .weigher((String key, Entry entry) -> entry.size)
+                                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                .removalListener((RemovalListener<String, Entry>) notification -> {
+                                    if (notification.getCause() == RemovalCause.SIZE) {
+                                        scheduleSpill(notification.getKey(), notification.getValue());
+                                    }
+                                })
+                                .build();
+    }
+
+    /** Deletes the entries (complete or not) that an earlier cache left in dir. */
+    private static void deleteEntryFiles(File dir) {
+        File[] files = dir.listFiles((parent, name) -> name.endsWith(ENTRY_SUFFIX) || name.endsWith(PARTIAL_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("unable to delete stale result cache file {}", file);
+                }
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return the pool that spills entries and opens disk tier entries; for other I/O on entries */
+    public Executor executor() {
+        return io;
+    }
+
+    public void put(String key, byte[] value) {
+        if (enabled) {
+            heap.put(key, new Entry(value, value.length, System.currentTimeMillis()));
+            stores.mark();
+        }
+    }
+
+    /** @return the value stored for key or null on a miss */
+    @Nullable public byte[] get(String key) {
+        Entry entry = inMemory(key);
+        if (entry != null) {
+            hits.mark();
+            return entry.value;
+        }
+        File file = diskFile(key);
+        if (file != null) {
+            try {
+                byte[] value = Files.readAllBytes(file.toPath());
+                hits.mark();
+                return value;
+            } catch (IOException e) {
+                log.warn("unable to read result cache entry {}", key, e);
+                invalidate(key);
+            }
+        }
+        misses.mark();
+        return null;
+    }
+
+    /**
+     * Like {@link #get(String)} but entries on the disk tier are streamed from their file instead of
+     * being read into memory.
+     */
+    @Nullable public InputStream open(String key) {
+        Entry entry = inMemory(key);
+        if (entry != null) {
+            hits.mark();
+            return new ByteArrayInputStream(entry.value);
+        }
+        File file = diskFile(key);
+        if (file != null) {
+            try {
+                InputStream in = new FileInputStream(file);
+                hits.mark();
+                return in;
+            } catch (FileNotFoundException e) {
+                log.warn("unable to open result cache entry {}", key, e);
+                invalidate(key);
+            }
+        }
+        misses.mark();
+        return null;
+    }
+
+    /**
+     * Like {@link #open(String)} but entries on the disk tier are opened on {@link #executor()}.
+     * The future completes with null on a miss.
+     */
+    public CompletableFuture<InputStream> openAsync(String key) {
+        if ((inMemory(key) != null) || (dir == null)) {
+            return CompletableFuture.completedFuture(open(key));
+        }
+        return CompletableFuture.supplyAsync(() -> open(key), io);
+    }
+
+    /** @return the entry on the heap, or evicted from it and still being spilled */
+    @Nullable private Entry inMemory(String key) {
+        Entry entry = heap.getIfPresent(key);
+        return (entry != null) ? entry : spilling.get(key);
+    }
+
+    public void invalidate(String key) {
+        heap.invalidate(key);
+        spilling.remove(key);
+        synchronized (disk) {
+            Entry removed = disk.remove(key);
+            if (removed != null) {
+                deleteFile(key, removed);
+            }
+        }
+    }
+
+    /** Drops every entry whose key starts with prefix. */
+    public void invalidatePrefix(String prefix) {
+        heap.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        spilling.keySet().removeIf(key -> key.startsWith(prefix));
+        synchronized (disk) {
+            Iterator<Map.Entry<String, Entry>> iterator = disk.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> next = iterator.next();
+                if (next.getKey().startsWith(prefix)) {
+                    iterator.remove();
+                    deleteFile(next.getKey(), next.getValue());
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        heap.invalidateAll();
+        spilling.clear();
+        synchronized (disk) {
+            for (Map.Entry<String, Entry> next : disk.entrySet()) {
+                deleteFile(next.getKey(), next.getValue());
+            }
+            disk.clear();
+        }
+    }
+
+    /** @return the file of an unexpired disk tier entry or null */
+    @Nullable private File diskFile(String key) {
+        if (dir == null) {
+            return null;
+        }
+        synchronized (disk) {
+            Entry entry = disk.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if ((System.currentTimeMillis() - entry.created) > ttlMillis) {
+                disk.remove(key);
+                deleteFile(key, entry);
+                return null;
+            }
+        }
+        return fileFor(key);
+    }
+
+    /** Called on the thread that evicted the entry from the heap, so the write is left to the I/O pool. */
+    private void scheduleSpill(String key, Entry entry) {
+        if ((dir == null) || (entry.size > diskLimit)) {
+            return;
+        }
+        spilling.put(key, entry);
+        io.execute(() -> spill(key, entry));
+    }
+
+    private void spill(String key, Entry entry) {
+        Path file = fileFor(key).toPath();
+        Path partial = file.resolveSibling(file.getFileName() + PARTIAL_SUFFIX);
+        try {
+            // readers of an older entry for the key keep their file
+            Files.write(partial, entry.value);
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("unable to spill result cache entry {} to disk", key, e);
+            spilling.remove(key, entry);
+            partial.toFile().delete();
+            return;
+        }
+        synchronized (disk) {
+            if (!spilling.remove(key, entry)) {
+                // invalidated while it was written
+                if (!disk.containsKey(key)) {
+                    file.toFile().delete();
+                }
+                return;
+            }
+            Entry previous = disk.put(key, new Entry(null, entry.size, entry.created));
+            if (previous != null) {
+                diskUsed -= previous.size;
+            }
+            diskUsed += entry.size;
+            Iterator<Map.Entry<String, Entry>> eldest = disk.entrySet().iterator();
+            while ((diskUsed > diskLimit) && eldest.hasNext()) {
+                Map.Entry<String, Entry> next = eldest.next();
+                eldest.remove();
+                deleteFile(next.getKey(), next.getValue());
+            }
+        }
+        spills.mark();
+    }
+
+    /** must hold the disk lock */
+    private void deleteFile(String key, Entry entry) {
+        diskUsed -= entry.size;
+        File file = fileFor(key);
+        if (file.exists() && !file.delete()) {
+            log.warn("unable to delete result cache file {}", file);
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(dir, key.replace('/', '_') + ENTRY_SUFFIX);
+    }
+
+    private static final class Entry {
+
+        @Nullable final byte[] value;
+        final int size;
+        final long created;
+
+        Entry(@Nullable byte[] value, int size, long created) {
+            this.value = value;
+            this.size = size;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import com.addthis.basis.kv.KVPair;
+import com.addthis.basis.util.LessStrings;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.data.query.op.merge.MergeConfig;
+import com.addthis.hydra.data.query.op.merge.MergedValue;
+
+import com.google.common.primitives.Ints;
+
+/**
+ * Recognizes master ops that begin with "sort;limit" (optionally preceded by a "gather"
+ * whose key columns cover the sort columns) and derives a "topk" op that the query workers
+ * can append to their own ops. Each task then only sends its local top K rows (or the rows
+ * of its top K gather keys) instead of every row that matched the query path.
+ */
+public final class TopKPushdown {
+
+    private static final boolean ENABLED = Parameter.boolValue("query.topk.pushdown", true);
+
+    /** query parameter that can be set to "false" to disable the rewrite for a single query */
+    public static final String QUERY_PARAMETER = "topkPushdown";
+
+    private TopKPushdown() {}
+
+    public static boolean enabled(Query query) {
+        return ENABLED && Boolean.parseBoolean(query.getParameter(QUERY_PARAMETER, "true"));
+    }
+
+    /**
+     * @param masterOps ops that will run on the query master
+     * @param workerOps ops that will run on each query worker (may be null)
+     * @return the worker ops with a topk op appended, or {@code workerOps} unchanged if
+     *         the master ops do not allow a pushdown
+     */
+    @Nullable public static String rewrite(@Nullable String masterOps, @Nullable String workerOps) {
+        String topK = topKFor(masterOps);
+        if (topK == null) {
+            return workerOps;
+        }
+        if (LessStrings.isEmpty(workerOps)) {
+            return topK;
+        }
+        return workerOps.concat(";").concat(topK);
+    }
+
+    /** @return a "topk=..." op equivalent to the leading sort/limit of {@code masterOps} or null */
+    @Nullable static String topKFor(@Nullable String masterOps) {
+        if (LessStrings.isEmpty(masterOps)) {
+            return null;
+        }
+        List<KVPair> ops = new ArrayList<>();
+        for (String s : LessStrings.split(masterOps, ";")) {
+            ops.add(KVPair.parsePair(s));
+            if (ops.size() == 3) {
+                break;
+            }
+        }
+        String gatherArgs = null;
+        int next = 0;
+        if (!ops.isEmpty() && isGather(ops.get(0).getKey())) {
+            gatherArgs = ops.get(0).getValue();
+            next = 1;
+        }
+        if (ops.size() < (next + 2)) {
+            return null;
+        }
+        KVPair sort = ops.get(next);
+        KVPair limit = ops.get(next + 1);
+        if (!isSort(sort.getKey()) || !"limit".equalsIgnoreCase(limit.getKey())) {
+            return null;
+        }
+        Integer k = parseLimit(limit.getValue());
+        if (k == null) {
+            return null;
+        }
+        String sortArgs = sort.getValue() != null ? sort.getValue() : "";
+        StringTokenizer st = new StringTokenizer(sortArgs, ":");
+        String cols = st.hasMoreTokens() ? st.nextToken() : "0";
+        String type = st.hasMoreTokens() ? st.nextToken() : "";
+        String dir = st.hasMoreTokens() ? st.nextToken() : "";
+        if (gatherArgs == null) {
+            return "topk=" + k + ":" + cols + ":" + type + ":" + dir;
+        }
+        String[] inputCols = mapGatherColumns(gatherArgs, cols);
+        if (inputCols == null) {
+            return null;
+        }
+        return "topk=" + k + ":" + inputCols[0] + ":" + type + ":" + dir + ":" + inputCols[1];
+    }
+
+    /**
+     * Translates sort columns on the output of a gather back to columns of its input.
+     *
+     * @return {sort columns, gather key columns} as csv strings, or null if any sort column
+     *         is not a gather key or the gather uses a topper
+     */
+    @Nullable private static String[] mapGatherColumns(@Nullable String gatherArgs, String cols) {
+        if (LessStrings.isEmpty(gatherArgs)) {
+            return null;
+        }
+        MergeConfig mergeConfig = new MergeConfig(gatherArgs);
+        if (mergeConfig.topColumn >= 0) {
+            return null;
+        }
+        MergedValue[] conf = mergeConfig.conf;
+        List<Integer> outputToInput = new ArrayList<>(conf.length);
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < conf.length; i++) {
+            if ((mergeConfig.mergeCountValue != null) && (conf[i] == mergeConfig.mergeCountValue)) {
+                break;
+            }
+            if (conf[i] != null) {
+                outputToInput.add(i);
+                if (conf[i].isKey()) {
+                    if (keys.length() > 0) {
+                        keys.append(',');
+                    }
+                    keys.append(i);
+                }
+            }
+        }
+        StringBuilder sortCols = new StringBuilder();
+        for (String col : LessStrings.splitArray(cols, ",")) {
+            Integer output = Ints.tryParse(col);
+            if ((output == null) || (output < 0) || (output >= outputToInput.size())) {
+                return null;
+            }
+            int input = outputToInput.get(output);
+            if (!conf[input].isKey()) {
+                return null;
+            }
+            if (sortCols.length() > 0) {
+                sortCols.append(',');
+            }
+            sortCols.append(input);
+        }
+        return new String[]{sortCols.toString(), keys.toString()};
+    }
+
+    @Nullable private static Integer parseLimit(@Nullable String args) {
+        if (LessStrings.isEmpty(args)) {
+            return null;
+        }
+        String[] v = LessStrings.splitArray(args, ":");
+        if (v.length == 1) {
+            Integer count = Ints.tryParse(v[0]);
+            return ((count != null) && (count > 0)) ? count : null;
+        } else if (v.length == 2) {
+            Integer skip = Ints.tryParse(v[0]);
+            Integer count = Ints.tryParse(v[1]);
+            if ((skip == null) || (count == null) || (skip < 0) || (count <= 0)) {
+                return null;
+            }
+            return skip + count;
+        }
+        return null;
+    }
+
+    private static boolean isGather(String name) {
+        return "gather".equalsIgnoreCase(name) || "top".equalsIgnoreCase(name);
+    }
+
+    private static boolean isSort(String name) {
+        return "sort".equalsIgnoreCase(name) || "dsort".equalsIgnoreCase(name);
+    }
+}
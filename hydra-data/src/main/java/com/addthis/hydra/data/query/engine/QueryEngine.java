@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.data.query.engine;
 
+import javax.annotation.Nullable;
+
 import java.io.IOException;
 
 import java.util.Arrays;
@@ -22,15 +24,20 @@ import java.util.LinkedList;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.addthis.basis.util.ClosableIterator;
 
 import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.hydra.data.query.FieldValueList;
 import com.addthis.hydra.data.query.Query;
 import com.addthis.hydra.data.query.QueryElement;
 import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.QueryEstimator;
+import com.addthis.hydra.data.query.QuerySampler;
+import com.addthis.hydra.data.query.ReusedRowConsumer;
 import com.addthis.hydra.data.tree.DataTree;
 import com.addthis.hydra.data.tree.DataTreeNode;
 
@@ -49,7 +56,10 @@ public class QueryEngine {
 
     private static final Logger log = LoggerFactory.getLogger(QueryEngine.class);
 
+    private static final AtomicLong generations = new AtomicLong(0);
+
     protected final DataTree tree;
+    private final long generation;
     private final AtomicInteger used;
     private final AtomicBoolean isOpen;
     private final AtomicBoolean isClosed;
@@ -58,12 +68,21 @@ public class QueryEngine {
 
     public QueryEngine(DataTree tree) {
         this.tree = tree;
+        this.generation = generations.incrementAndGet();
         this.used = new AtomicInteger(0);
         this.isOpen = new AtomicBoolean(false);
         this.isClosed = new AtomicBoolean(false);
         this.active = new HashSet<>();
     }
 
+    /**
+     * @return a number unique to this engine instance. A refreshed engine for the same directory
+     *         gets a new generation, so it can be used to key anything derived from the tree data.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
     public int getLeasesCount() {
         return used.intValue();
     }
@@ -190,11 +209,21 @@ public class QueryEngine {
             ChannelProgressivePromise queryPromise) throws QueryException {
         for (QueryElement[] path : query.getQueryPaths()) {
             if (!(queryPromise.isDone())) {
-                search(path, result, queryPromise);
+                search(path, result, queryPromise, QuerySampler.create(query, path));
             }
         }
     }
 
+    /**
+     * Writes the estimated cost of a query instead of running it.
+     *
+     * @see QueryEstimator
+     */
+    public void explain(Query query, DataChannelOutput result) throws QueryException {
+        init();
+        new QueryEstimator().explain(tree, query, result);
+    }
+
     /**
      * Performs a query search, writes the results to a data channel, and stops processing if the source sets
      * queryPromise.queryCancelled to true.
@@ -228,6 +257,14 @@ public class QueryEngine {
      */
     public void search(QueryElement[] path, DataChannelOutput result,
             ChannelProgressivePromise queryPromise) throws QueryException {
+        search(path, result, queryPromise, null);
+    }
+
+    /**
+     * Performs a query search as above, visiting only the nodes selected by {@code sampler} if it is not null.
+     */
+    public void search(QueryElement[] path, DataChannelOutput result,
+            ChannelProgressivePromise queryPromise, @Nullable QuerySampler sampler) throws QueryException {
         init();
         Thread thread = Thread.currentThread();
         synchronized (active) {
@@ -238,7 +275,9 @@ public class QueryEngine {
         try {
             LinkedList<DataTreeNode> stack = new LinkedList<>();
             stack.push(tree);
-            tableSearch(stack, new FieldValueList(new ListBundleFormat()), path, 0, result, 0, queryPromise);
+            FieldValueList prefix = new FieldValueList(new ListBundleFormat());
+            prefix.reuseRows(ReusedRowConsumer.acceptReusedRows(result));
+            tableSearch(stack, prefix, path, 0, result, 0, queryPromise, sampler);
         } catch (QueryException | CancellationException ex) {
             log.debug("", ex);
         } catch (RuntimeException ex)  {
@@ -275,9 +314,9 @@ public class QueryEngine {
      */
     private void tableSearch(LinkedList<DataTreeNode> stack, DataTreeNode root, FieldValueList prefix, QueryElement[] path,
             int pathIndex, DataChannelOutput result, int collect,
-            ChannelProgressivePromise queryPromise) throws QueryException {
+            ChannelProgressivePromise queryPromise, @Nullable QuerySampler sampler) throws QueryException {
         stack.push(root);
-        tableSearch(stack, prefix, path, pathIndex, result, collect, queryPromise);
+        tableSearch(stack, prefix, path, pathIndex, result, collect, queryPromise, sampler);
         stack.pop();
     }
 
@@ -304,7 +343,7 @@ public class QueryEngine {
      */
     private void tableSearch(LinkedList<DataTreeNode> stack, FieldValueList prefix, QueryElement[] path,
             int pathIndex, DataChannelOutput sink, int collect,
-            ChannelProgressivePromise queryPromise) throws QueryException {
+            ChannelProgressivePromise queryPromise, @Nullable QuerySampler sampler) throws QueryException {
         if (queryPromise.isDone()) {
             log.debug("Query promise completed during processing");
             if (queryPromise.isCancelled()) {
@@ -327,15 +366,20 @@ public class QueryEngine {
         if (pathIndex >= path.length) {
             log.debug("pathIndex>path.length, return root={}", root);
             if (!queryPromise.isDone()) {
-                sink.send(prefix.createBundle(sink));
+                Bundle row = prefix.createBundle(sink);
+                if (sampler != null) {
+                    sampler.updateError(row);
+                }
+                sink.send(row);
             }
             return;
         }
         QueryElement next = path[pathIndex];
-        Iterator<DataTreeNode> iter = root != null ? next.matchNodes(tree, stack) : next.emptyok() ? Iterators.<DataTreeNode>emptyIterator() : null;
+        Iterator<DataTreeNode> iter = root != null ? next.matchNodes(tree, stack, sampler) : next.emptyok() ? Iterators.<DataTreeNode>emptyIterator() : null;
         if (iter == null) {
             return;
         }
+        double counterScale = (sampler != null) ? sampler.scale(pathIndex) : 1;
         try {
             int skip = next.skip();
             int limit = next.limit();
@@ -368,14 +412,14 @@ public class QueryEngine {
                         skip--;
                         continue;
                     }
-                    int updates = next.update(prefix, tn);
+                    int updates = next.update(prefix, tn, counterScale);
                     if (updates > 0) {
                         count += updates;
                     }
                     limit--;
                 }
                 if (!queryPromise.isDone()) {
-                    tableSearch(null, prefix, path, pathIndex + 1, sink, collect + count, queryPromise);
+                    tableSearch(null, prefix, path, pathIndex + 1, sink, collect + count, queryPromise, sampler);
                 }
                 prefix.pop(count);
                 return;
@@ -410,10 +454,10 @@ public class QueryEngine {
                     skip--;
                     continue;
                 }
-                int count = next.update(prefix, tn);
+                int count = next.update(prefix, tn, counterScale);
                 if (count >= 0) {
                     if (!queryPromise.isDone()) {
-                        tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect + count, queryPromise);
+                        tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect + count, queryPromise, sampler);
                     }
                     prefix.pop(count);
                     limit--;
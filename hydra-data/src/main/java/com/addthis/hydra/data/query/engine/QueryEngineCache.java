@@ -13,9 +13,12 @@
  */
 package com.addthis.hydra.data.query.engine;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import com.addthis.basis.util.Parameter;
 
@@ -96,6 +99,12 @@ public class QueryEngineCache {
      */
     protected final LoadingCache<String, QueryEngine> loadingEngineCache;
 
+    /**
+     * Called with engines that are no longer handed out, either because a refresh swapped in an engine for
+     * newer data or because they were evicted.
+     */
+    private final List<Consumer<QueryEngine>> retiredEngineListeners = new CopyOnWriteArrayList<>();
+
     private final long engineCacheSize;
     private final long refreshInterval;
     private final long failInterval;
@@ -199,6 +208,20 @@ public class QueryEngineCache {
         throw new RuntimeException("Can't lease engine");
     }
 
+    public void addRetiredEngineListener(Consumer<QueryEngine> listener) {
+        retiredEngineListeners.add(listener);
+    }
+
+    void engineRetired(QueryEngine engine) {
+        for (Consumer<QueryEngine> listener : retiredEngineListeners) {
+            try {
+                listener.accept(engine);
+            } catch (Throwable t) {
+                log.error("Generic Error in retired engine listener", t);
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
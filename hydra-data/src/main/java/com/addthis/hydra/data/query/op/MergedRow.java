@@ -64,6 +64,19 @@ public class MergedRow implements DiskBackedMap.DiskObject, Bundle {
         return mergedBundle;
     }
 
+    /**
+     * @return the row {@link #emit()} would return, leaving this row free to merge more rows
+     */
+    Bundle snapshot() {
+        Bundle copy = mergedBundle.createBundle();
+        for (BundleField field : mergedBundle) {
+            copy.setValue(field, mergedBundle.getValue(field));
+        }
+        MergedRow row = new MergedRow(conf, copy);
+        row.numMergedRows = numMergedRows;
+        return row.emit();
+    }
+
     public int getMergedCount() {
         return numMergedRows;
     }
@@ -109,6 +109,7 @@ public class OpDiskSort extends AbstractRowOp {
     private BundleComparator comparator;
     private BundleComparator comparatorSS;
     private int chunk = 0;
+    private boolean copyRows;
 
     public OpDiskSort(String args, String tempDirString, ChannelProgressivePromise queryPromise) {
         super(queryPromise);
@@ -167,12 +168,19 @@ public class OpDiskSort extends AbstractRowOp {
         }
     }
 
+    /** Rows are buffered until the next spill, so reused rows are copied. */
+    @Override
+    public boolean acceptReusedRows() {
+        copyRows = true;
+        return true;
+    }
+
     @Override
     public Bundle rowOp(Bundle row) {
         if (bufferIndex > CHUNK_ROWS) {
             dumpBufferToMFM();
         }
-        buffer[bufferIndex++] = row;
+        buffer[bufferIndex++] = copyRows ? copyRow(row) : row;
         return null;
     }
 
@@ -20,6 +20,9 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
 import com.addthis.basis.util.MemoryCounter;
 import com.addthis.basis.util.Parameter;
@@ -27,6 +30,7 @@ import com.addthis.basis.util.Parameter;
 import com.addthis.bundle.channel.DataChannelError;
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleOutput;
 import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.bundle.util.ValueUtil;
@@ -35,6 +39,7 @@ import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.query.AbstractQueryOp;
 import com.addthis.hydra.data.query.DiskBackedMap;
 import com.addthis.hydra.data.query.QueryOp;
+import com.addthis.hydra.data.query.SnapshotQueryOp;
 import com.addthis.hydra.data.query.op.merge.MergeConfig;
 import com.addthis.hydra.data.query.op.merge.MergedValue;
 import com.addthis.hydra.data.util.KeyTopper;
@@ -60,6 +65,7 @@ import io.netty.channel.ChannelProgressivePromise;
  * <li>t - this column is a key topper.</li>
  * <li>a - generate average values for this column</li>
  * <li>d - generate iterated diff values for this column</li>
+ * <li>e - combine standard errors (the error column of sampled queries) for this column</li>
  * <li>m - generate min values for this column</li>
  * <li>M - generate max values for this column</li>
  * <li>s - generate sum values for this column</li>
@@ -91,7 +97,7 @@ import io.netty.channel.ChannelProgressivePromise;
  * @user-reference
  * @hydra-name gather
  */
-public class OpGather extends AbstractQueryOp {
+public class OpGather extends AbstractQueryOp implements SnapshotQueryOp {
 
     public static Numeric num(ValueObject o) {
         Numeric num = ValueUtil.asNumberOrParseLong(o, 10);
@@ -105,6 +111,8 @@ public class OpGather extends AbstractQueryOp {
     private final long tipMem;
     private final long tipRow;
     private long totalMem;
+    /** usage of all the gathers that share these tips, or null if the tips are this gather's own */
+    @Nullable private final Usage sharedUsage;
 
     private final MergeConfig mergeConfig;
     private final KeyTopper topper;
@@ -119,10 +127,16 @@ public class OpGather extends AbstractQueryOp {
     private static final Meter diskTips = Metrics.newMeter(OpGather.class, "diskTips", "diskTips", TimeUnit.SECONDS);
 
     public OpGather(String args, long tipMem, long tipRow, String tmpDir, ChannelProgressivePromise queryPromise) {
+        this(args, tipMem, tipRow, tmpDir, queryPromise, null);
+    }
+
+    OpGather(String args, long tipMem, long tipRow, String tmpDir, ChannelProgressivePromise queryPromise,
+             @Nullable Usage sharedUsage) {
         super(queryPromise);
         this.tmpDir = tmpDir;
         this.tipMem = tipMem;
         this.tipRow = tipRow;
+        this.sharedUsage = sharedUsage;
         totalMem = 0;
 
         mergeConfig = new MergeConfig(args);
@@ -137,6 +151,8 @@ public class OpGather extends AbstractQueryOp {
         if (opPromise.isDone()) {
             return;
         }
+        long memBefore = totalMem;
+        int rowsBefore = tippedToDisk ? 0 : resultTable.size();
         String key = mergeConfig.handleBindAndGetKey(row, format);
         MergedRow merge = resultTable.get(key);
         if (merge == null) {
@@ -177,18 +193,27 @@ public class OpGather extends AbstractQueryOp {
             }
         }
 
+        if (tippedToDisk) {
+            return;
+        }
+        long mem = totalMem;
+        long rows = resultTable.size();
+        if (sharedUsage != null) {
+            mem = sharedUsage.mem.addAndGet(totalMem - memBefore);
+            rows = sharedUsage.rows.addAndGet(rows - rowsBefore);
+        }
         if (!tipToDisk) {
             // If we're not tipping to disk, and the tips are set, then we will issue errors if we pass them
-            if (tipMem > 0 && totalMem > tipMem) {
+            if (tipMem > 0 && mem > tipMem) {
                 throw new DataChannelError("Memory usage of gathered objects exceeds allowed " + tipMem);
             }
 
-            if (tipRow > 0 && resultTable.size() > tipRow) {
+            if (tipRow > 0 && rows > tipRow) {
                 throw new DataChannelError("Number of gathered rows exceeds allowed " + tipRow);
             }
         } else {
             // If we're tipping to disk, and the tips are non zero, then spill to disk once we pass them
-            if (!tippedToDisk && ((tipMem > 0 && totalMem > tipMem) || (tipRow > 0 && resultTable.size() > tipRow))) {
+            if ((tipMem > 0 && mem > tipMem) || (tipRow > 0 && rows > tipRow)) {
                 tippedToDisk = true;
                 diskTips.mark();
 
@@ -207,6 +232,22 @@ public class OpGather extends AbstractQueryOp {
         }
     }
 
+    /** Rows are merged into bundles owned by this op, so the input rows are never retained. */
+    @Override
+    public boolean acceptReusedRows() {
+        return true;
+    }
+
+    @Override
+    public void snapshot(BundleOutput output) {
+        for (MergedRow mergedRow : resultTable.values()) {
+            if (opPromise.isDone()) {
+                break;
+            }
+            output.send(mergedRow.snapshot());
+        }
+    }
+
     @Override
     public void sendComplete() {
         QueryOp next = getNext();
@@ -226,4 +267,11 @@ public class OpGather extends AbstractQueryOp {
             ((Closeable) resultTable).close();
         }
     }
+
+    /** Memory and row counts of several gathers that are tipped as a whole. */
+    static final class Usage {
+
+        final AtomicLong mem = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+    }
 }
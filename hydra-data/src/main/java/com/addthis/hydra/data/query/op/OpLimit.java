@@ -97,6 +97,11 @@ public class OpLimit extends AbstractQueryOp {
         }
     }
 
+    @Override
+    public boolean acceptReusedRows() {
+        return true;
+    }
+
     @Override
     public void sendComplete() {
         if (!done) {
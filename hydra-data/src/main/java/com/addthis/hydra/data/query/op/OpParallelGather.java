@@ -0,0 +1,434 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleOutput;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.hydra.data.query.AbstractQueryOp;
+import com.addthis.hydra.data.query.QueryOp;
+import com.addthis.hydra.data.query.SnapshotQueryOp;
+import com.addthis.hydra.data.query.op.merge.MergeConfig;
+import com.addthis.hydra.data.util.BundleUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.ChannelProgressivePromise;
+
+/**
+ * A {@link OpGather gather} that merges on several threads. Rows are hash partitioned on their
+ * merge key and each partition is merged by its own gather, so every key is owned by exactly one
+ * partition. Partitions are drained by tasks on a shared pool that never block, which lets any
+ * number of concurrent queries share it. The thread sending rows never blocks either: when the pool
+ * falls behind it merges queued batches itself. Once the input is complete and the last batch is
+ * merged, the partitions are emitted one after the other into the rest of the op chain on the
+ * executor of the query, so the rest of the chain still only runs on one thread at a time and a slow
+ * client never holds up a merge thread.
+ * Snapshots only wait briefly for a partition that is being merged, and otherwise send the rows of
+ * its previous snapshot again.
+ * <p/>
+ * Not a user visible op: the query master substitutes it for a leading gather when parallel merging
+ * is enabled (see {@link com.addthis.hydra.data.query.QueryOpProcessor.Builder#mergePartitions(int)})
+ * and the gather arguments are {@link #supports(String) supported}.
+ */
+public class OpParallelGather extends AbstractQueryOp implements SnapshotQueryOp {
+
+    private static final Logger log = LoggerFactory.getLogger(OpParallelGather.class);
+
+    static final int MERGE_THREADS = Parameter.intValue("query.merge.threads",
+                                                        Runtime.getRuntime().availableProcessors());
+    static final int BATCH_SIZE = Parameter.intValue("query.merge.batchSize", 256);
+    static final int BATCHES_PER_PARTITION = Parameter.intValue("query.merge.batchesPerPartition", 4);
+    static final long SNAPSHOT_WAIT_MILLIS = Parameter.longValue("query.merge.snapshotWaitMillis", 50);
+
+    private static final ExecutorService mergePool =
+            new ThreadPoolExecutor(MERGE_THREADS, MERGE_THREADS, 0L, TimeUnit.MILLISECONDS,
+                                   new LinkedBlockingQueue<>(),
+                                   new ThreadFactoryBuilder().setNameFormat("queryMerge-%d").setDaemon(true).build());
+
+    private final MergeConfig keyConfig;
+    private final ListBundleFormat keyFormat = new ListBundleFormat();
+    private final Partition[] partitions;
+    /** batches handed off but not yet merged */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /** past this many outstanding batches the sending thread merges them itself */
+    private final int maxOutstanding;
+    /** reports errors that happen after sendComplete returned */
+    private final Consumer<Throwable> completionError;
+    /** runs the emit of the merged rows once the merge threads are done */
+    private final Executor completionExecutor;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private volatile boolean inputComplete;
+    private volatile boolean closed;
+    private volatile Throwable mergeError;
+
+    /**
+     * @param completionError    called with the cause if emitting the merged rows fails. The op
+     *                           promise is completed by this op on success.
+     * @param completionExecutor the executor that sends rows to this op. Emits the merged rows when
+     *                           the last batch is merged by a merge thread
+     */
+    public OpParallelGather(String args, int partitionCount, long tipMem, long tipRow, String tmpDir,
+                            ChannelProgressivePromise queryPromise, Consumer<Throwable> completionError,
+                            Executor completionExecutor) {
+        super(queryPromise);
+        this.keyConfig = new MergeConfig(args);
+        this.partitions = new Partition[partitionCount];
+        this.completionError = completionError;
+        this.completionExecutor = completionExecutor;
+        // memory and row limits apply to the gather as a whole
+        OpGather.Usage usage = new OpGather.Usage();
+        PartitionOutput partitionOutput = new PartitionOutput();
+        for (int i = 0; i < partitionCount; i++) {
+            OpGather gather = new OpGather(args, tipMem, tipRow, tmpDir, queryPromise, usage);
+            gather.setNext(null, partitionOutput);
+            partitions[i] = new Partition(gather);
+        }
+        this.maxOutstanding = partitionCount * BATCHES_PER_PARTITION;
+    }
+
+    /**
+     * Key toppers keep the top keys across all rows, which a single partition cannot know.
+     *
+     * @return true if gather with these arguments gives the same rows when merged in partitions
+     */
+    public static boolean supports(String args) {
+        return (args != null) && (new MergeConfig(args).topper == null);
+    }
+
+    @Override
+    public void send(Bundle row) throws DataChannelError {
+        throwIfMergeFailed();
+        if (opPromise.isDone()) {
+            return;
+        }
+        String key = keyConfig.handleBindAndGetKey(row, keyFormat);
+        Partition partition = partitions[(key.hashCode() & Integer.MAX_VALUE) % partitions.length];
+        partition.pending.add(row);
+        if (partition.pending.size() >= BATCH_SIZE) {
+            handOff(partition);
+            if (outstanding.get() > maxOutstanding) {
+                // the pool is behind, so merge on this thread rather than queue without bound
+                for (Partition busy : partitions) {
+                    busy.mergeQueued();
+                }
+                throwIfMergeFailed();
+            }
+        }
+    }
+
+    /**
+     * Returns without waiting for the merge threads. The merged rows are emitted and the op promise
+     * completed on this thread if every batch is merged by then, and otherwise on the completion
+     * executor once the last batch is.
+     */
+    @Override
+    public void sendComplete() {
+        for (Partition partition : partitions) {
+            if (!partition.pending.isEmpty()) {
+                handOff(partition);
+            }
+        }
+        inputComplete = true;
+        // merge whatever the pool has not started on rather than wait for it
+        for (Partition partition : partitions) {
+            partition.mergeQueued();
+        }
+        if (outstanding.get() == 0) {
+            complete();
+        }
+    }
+
+    /**
+     * Brings each partition up to date on this thread and sends its rows. A partition that stays busy
+     * merging for longer than "query.merge.snapshotWaitMillis" sends the rows of its previous snapshot
+     * instead, so every key already snapshotted stays in the snapshot. Must be called from the thread
+     * sending rows.
+     */
+    @Override
+    public void snapshot(BundleOutput output) {
+        int busy = 0;
+        for (Partition partition : partitions) {
+            if (opPromise.isDone()) {
+                break;
+            }
+            if (!partition.snapshot(output)) {
+                busy++;
+            }
+        }
+        if (busy > 0) {
+            log.debug("resent the previous snapshot of {} of {} busy partitions", busy, partitions.length);
+        }
+        throwIfMergeFailed();
+    }
+
+    /** Waits for the merges in progress, which drop their rows from then on, before closing the partitions. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Partition partition : partitions) {
+            partition.merging.lock();
+            try {
+                partition.gather.close();
+            } finally {
+                partition.merging.unlock();
+            }
+        }
+    }
+
+    private void handOff(Partition partition) {
+        outstanding.incrementAndGet();
+        partition.batches.add(partition.pending);
+        partition.pending = new ArrayList<>(BATCH_SIZE);
+        partition.schedule();
+    }
+
+    private void batchMerged() {
+        if ((outstanding.decrementAndGet() == 0) && inputComplete) {
+            completionExecutor.execute(this::complete);
+        }
+    }
+
+    /** emits the partitions once every batch is merged. runs once */
+    private void complete() {
+        if (closed || !completed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            throwIfMergeFailed();
+            // partitions hold disjoint keys, so combining them is just emitting one after the other
+            for (Partition partition : partitions) {
+                if (opPromise.isDone() || closed) {
+                    break;
+                }
+                partition.merging.lock();
+                try {
+                    partition.gather.sendComplete();
+                } finally {
+                    partition.merging.unlock();
+                }
+            }
+            getNext().sendComplete();
+            opPromise.trySuccess();
+        } catch (Throwable t) {
+            log.debug("failed to emit merge partitions", t);
+            completionError.accept(t);
+        }
+    }
+
+    private void throwIfMergeFailed() {
+        Throwable error = mergeError;
+        if (error != null) {
+            throw BundleUtils.promoteHackForThrowables(error);
+        }
+    }
+
+    @VisibleForTesting
+    ReentrantLock mergeLock(int partition) {
+        return partitions[partition].merging;
+    }
+
+    @Override
+    public String getSimpleName() {
+        return "OpParallelGather[" + partitions.length + "]";
+    }
+
+    /**
+     * The gather and queued rows of one partition. Its gather is only used while holding
+     * {@link #merging}, so by one thread at a time: a pool task or the thread sending rows.
+     */
+    private final class Partition implements Runnable {
+
+        private final OpGather gather;
+        private final Queue<List<Bundle>> batches = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final ReentrantLock merging = new ReentrantLock();
+
+        /** rows not yet handed off. only used by the thread sending rows */
+        private List<Bundle> pending = new ArrayList<>(BATCH_SIZE);
+        /** rows of the last snapshot. only used by the thread sending rows */
+        private List<Bundle> lastSnapshot = new ArrayList<>();
+
+        Partition(OpGather gather) {
+            this.gather = gather;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                mergePool.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            mergeQueued();
+        }
+
+        /** merges the queued batches unless another thread already is */
+        void mergeQueued() {
+            if (!merging.tryLock()) {
+                // the thread holding the lock checks for stranded batches once it lets go
+                return;
+            }
+            try {
+                mergeBatches();
+            } finally {
+                merging.unlock();
+            }
+            // a batch added after the last poll but before the lock was released would be stranded
+            if (!batches.isEmpty()) {
+                schedule();
+            }
+        }
+
+        /**
+         * Merges the queued and pending rows and sends a snapshot of the gather, unless another
+         * thread keeps merging this partition for too long.
+         *
+         * @return false if the partition was busy and its previous snapshot was sent again
+         */
+        boolean snapshot(BundleOutput output) {
+            boolean locked;
+            try {
+                locked = merging.tryLock(SNAPSHOT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                locked = false;
+            }
+            if (!locked) {
+                for (Bundle row : lastSnapshot) {
+                    output.send(row);
+                }
+                return false;
+            }
+            try {
+                mergeBatches();
+                if (mergeError == null) {
+                    try {
+                        for (Bundle row : pending) {
+                            gather.send(row);
+                        }
+                    } catch (Throwable t) {
+                        log.debug("merge partition failed", t);
+                        mergeError = t;
+                    }
+                }
+                pending.clear();
+                if (mergeError == null) {
+                    SnapshotRecorder recorder = new SnapshotRecorder(output, lastSnapshot.size());
+                    gather.snapshot(recorder);
+                    lastSnapshot = recorder.rows;
+                }
+            } finally {
+                merging.unlock();
+            }
+            if (!batches.isEmpty()) {
+                schedule();
+            }
+            return true;
+        }
+
+        /** must hold {@link #merging} */
+        void mergeBatches() {
+            List<Bundle> batch;
+            while ((batch = batches.poll()) != null) {
+                try {
+                    if ((mergeError == null) && !closed) {
+                        for (Bundle row : batch) {
+                            gather.send(row);
+                        }
+                    }
+                } catch (Throwable t) {
+                    log.debug("merge partition failed", t);
+                    mergeError = t;
+                } finally {
+                    batchMerged();
+                }
+            }
+        }
+    }
+
+    /** Forwards the snapshot rows of a partition and keeps them in case the partition is busy next time. */
+    private static final class SnapshotRecorder implements BundleOutput {
+
+        private final BundleOutput output;
+        private final List<Bundle> rows;
+
+        SnapshotRecorder(BundleOutput output, int expectedRows) {
+            this.output = output;
+            this.rows = new ArrayList<>(expectedRows);
+        }
+
+        @Override
+        public void send(Bundle row) {
+            rows.add(row);
+            output.send(row);
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            for (Bundle row : bundles) {
+                send(row);
+            }
+        }
+
+        @Override
+        public void sendComplete() {
+            output.sendComplete();
+        }
+    }
+
+    /** Forwards merged rows to the rest of the chain. Completion is signalled once for all partitions. */
+    private final class PartitionOutput extends AbstractQueryOp {
+
+        PartitionOutput() {
+            super(OpParallelGather.this.opPromise);
+        }
+
+        @Override
+        public void send(Bundle row) throws DataChannelError {
+            OpParallelGather.this.getNext().send(row);
+        }
+
+        @Override
+        public void sendComplete() {
+            // sent by the parallel gather once every partition is emitted
+        }
+    }
+}
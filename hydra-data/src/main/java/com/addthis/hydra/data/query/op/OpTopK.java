@@ -0,0 +1,317 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import com.addthis.basis.util.LessStrings;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.util.BundleColumnBinder;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.AbstractQueryOp;
+import com.addthis.hydra.data.query.QueryOp;
+
+import io.netty.channel.ChannelProgressivePromise;
+
+/**
+ * <p>This query operation <span class="hydra-summary">keeps only the first K rows of a sort</span>.
+ * <p/>
+ * <p>The syntax is topk=[k]:[cols]:[type]:[direction]:[keys]. [k] is the number of rows
+ * to retain and [cols], [type] and [direction] have the same meaning as in {@link OpSort sort}.
+ * Only a bounded heap of K rows is held in memory and the rows are emitted in sorted order
+ * once the input is complete, so "topk=100:1:n:d" produces the same rows as
+ * "sort=1:n:d;limit=100" without buffering the entire input.</p>
+ * <p/>
+ * <p>The optional [keys] is a comma separated list of columns that identify a row for a
+ * downstream {@link OpGather gather}. When present, the op retains every row belonging to
+ * the first K distinct keys (including all keys tied with the K-th) instead of the first K
+ * rows. This is the form that the query master pushes down to the query workers when a
+ * query begins with "gather;sort;limit" and the sort is on gather key columns.</p>
+ * <p/>
+ * <p>Example:</p>
+ * <pre>
+ * A 1
+ * B 2
+ * C 3
+ * D 4
+ *
+ * topk=2:1:n:d
+ *
+ * D 4
+ * C 3
+ * </pre>
+ *
+ * @user-reference
+ * @hydra-name topk
+ */
+public class OpTopK extends AbstractQueryOp {
+
+    private final int k;
+    private final String[] cols;
+    private final char[] type;
+    private final char[] dir;
+    private final String[] keyCols;
+    private final RowComparator comparator;
+
+    /** used when no key columns are given. head is the worst retained row. */
+    private PriorityQueue<SequencedRow> heap;
+    /** used when key columns are given. groups of keys that compare equal, best group first. */
+    private TreeMap<Bundle, Map<String, List<Bundle>>> groups;
+    private BundleField[] keyFields;
+    private int distinctKeys;
+    private long sequence;
+    private boolean copyRows;
+
+    public OpTopK(String args, ChannelProgressivePromise queryPromise) {
+        super(queryPromise);
+        String[] v = LessStrings.splitArray(args, ":");
+        if (v.length == 0) {
+            throw new IllegalArgumentException("topk requires at least a row count");
+        }
+        k = Integer.parseInt(v[0]);
+        if (k <= 0) {
+            throw new IllegalArgumentException("topk row count must be > 0");
+        }
+        cols = LessStrings.splitArray((v.length > 1) && !v[1].isEmpty() ? v[1] : "0", ",");
+
+        String ts = (v.length > 2) && !v[2].isEmpty() ? v[2] : "s";
+        while (ts.length() < cols.length) {
+            ts = ts.concat(ts.substring(0, 1));
+        }
+        type = ts.toCharArray();
+
+        String ds = (v.length > 3) && !v[3].isEmpty() ? v[3] : "a";
+        while (ds.length() < cols.length) {
+            ds = ds.concat(ds.substring(0, 1));
+        }
+        dir = ds.toCharArray();
+
+        keyCols = (v.length > 4) && !v[4].isEmpty() ? LessStrings.splitArray(v[4], ",") : null;
+        comparator = new RowComparator();
+        if (keyCols == null) {
+            heap = new PriorityQueue<>(Math.min(k, 1024) + 1,
+                                       (o1, o2) -> -compareSequenced(o1, o2));
+        } else {
+            groups = new TreeMap<>(comparator);
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public boolean acceptReusedRows() {
+        copyRows = true;
+        return true;
+    }
+
+    @Override
+    public void send(Bundle row) throws DataChannelError {
+        if (opPromise.isDone()) {
+            return;
+        }
+        if (heap != null) {
+            sendRow(row);
+        } else {
+            sendKeyedRow(row);
+        }
+    }
+
+    private void sendRow(Bundle row) {
+        if (heap.size() >= k) {
+            // strictly better rows only, so earlier rows win ties like a stable sort would
+            if (comparator.compare(row, heap.peek().row) >= 0) {
+                return;
+            }
+            heap.poll();
+        }
+        heap.add(new SequencedRow(copyRows ? copyRow(row) : row, sequence++));
+    }
+
+    private void sendKeyedRow(Bundle row) {
+        if ((distinctKeys >= k) && (comparator.compare(row, groups.lastKey()) > 0)) {
+            return;
+        }
+        if (copyRows) {
+            row = copyRow(row);
+        }
+        if (keyFields == null) {
+            keyFields = new BundleColumnBinder(row, keyCols).getFields();
+        }
+        String key = "";
+        for (BundleField field : keyFields) {
+            ValueObject lval = row.getValue(field);
+            key = key.concat(lval == null ? "" : lval.toString());
+        }
+        Map<String, List<Bundle>> group = groups.get(row);
+        if (group == null) {
+            group = new LinkedHashMap<>();
+            groups.put(row, group);
+        }
+        List<Bundle> rows = group.get(key);
+        if (rows == null) {
+            rows = new ArrayList<>(1);
+            group.put(key, rows);
+            distinctKeys++;
+        }
+        rows.add(row);
+        // drop the worst group only while the remaining groups still hold k keys
+        while (groups.size() > 1) {
+            Map<String, List<Bundle>> last = groups.lastEntry().getValue();
+            if ((distinctKeys - last.size()) < k) {
+                break;
+            }
+            distinctKeys -= last.size();
+            groups.pollLastEntry();
+        }
+    }
+
+    @Override
+    public void sendComplete() {
+        QueryOp next = getNext();
+        if (heap != null) {
+            SequencedRow[] sorted = heap.toArray(new SequencedRow[heap.size()]);
+            heap.clear();
+            Arrays.sort(sorted, this::compareSequenced);
+            for (SequencedRow sequencedRow : sorted) {
+                if (opPromise.isDone()) {
+                    break;
+                }
+                next.send(sequencedRow.row);
+            }
+        } else {
+            emit:
+            for (Map<String, List<Bundle>> group : groups.values()) {
+                for (List<Bundle> rows : group.values()) {
+                    for (Bundle row : rows) {
+                        if (opPromise.isDone()) {
+                            break emit;
+                        }
+                        next.send(row);
+                    }
+                }
+            }
+            groups.clear();
+        }
+        next.sendComplete();
+    }
+
+    private int compareSequenced(SequencedRow o1, SequencedRow o2) {
+        int delta = comparator.compare(o1.row, o2.row);
+        if (delta == 0) {
+            return Long.compare(o1.sequence, o2.sequence);
+        }
+        return delta;
+    }
+
+    private static final class SequencedRow {
+
+        final Bundle row;
+        final long sequence;
+
+        SequencedRow(Bundle row, long sequence) {
+            this.row = row;
+            this.sequence = sequence;
+        }
+    }
+
+    /** Same ordering as {@link OpSort} and {@link OpDiskSort}. */
+    private class RowComparator implements Comparator<Bundle> {
+
+        private BundleField[] columns;
+
+        @Override
+        public int compare(Bundle o1, Bundle o2) {
+            if (columns == null) {
+                columns = new BundleColumnBinder(o1, cols).getFields();
+            }
+            int delta = 0;
+            for (int i = 0; (i < columns.length) && (delta == 0); i++) {
+                BundleField col = columns[i];
+                switch (type[i]) {
+                    case 'i': // int
+                    case 'l': // long
+                    case 'n': // legacy "number"
+                        delta = longCompare(o1.getValue(col), o2.getValue(col));
+                        break;
+                    case 'd': // double
+                    case 'f': // float
+                        delta = doubleCompare(o1.getValue(col), o2.getValue(col));
+                        break;
+                    case 's': // string
+                    default:
+                        delta = stringCompare(o1.getValue(col), o2.getValue(col));
+                        break;
+                }
+                if (dir[i] == 'd') {
+                    delta = -delta;
+                }
+            }
+            return delta;
+        }
+    }
+
+    private static int longCompare(ValueObject s1, ValueObject s2) {
+        if (s1 == s2) {
+            return 0;
+        }
+        if (s1 == null) {
+            return 1;
+        }
+        if (s2 == null) {
+            return -1;
+        }
+        return Long.compare(ValueUtil.asNumberOrParseLong(s1, 10).asLong().getLong(),
+                            ValueUtil.asNumberOrParseLong(s2, 10).asLong().getLong());
+    }
+
+    private static int doubleCompare(ValueObject s1, ValueObject s2) {
+        if (s1 == s2) {
+            return 0;
+        }
+        if (s1 == null) {
+            return 1;
+        }
+        if (s2 == null) {
+            return -1;
+        }
+        return Double.compare(ValueUtil.asNumberOrParseDouble(s1).asDouble().getDouble(),
+                              ValueUtil.asNumberOrParseDouble(s2).asDouble().getDouble());
+    }
+
+    private static int stringCompare(ValueObject s1, ValueObject s2) {
+        if (s1 == s2) {
+            return 0;
+        }
+        if (s1 == null) {
+            return 1;
+        }
+        if (s2 == null) {
+            return -1;
+        }
+        return s1.toString().compareTo(s2.toString());
+    }
+}
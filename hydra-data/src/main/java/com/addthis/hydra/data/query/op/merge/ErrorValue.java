@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.hydra.data.query.op.merge;
+
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.Numeric;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.AbstractQueryOp;
+
+/**
+ * Combines independent standard errors (the error column of sampled queries)
+ * as the square root of the sum of their squares.
+ */
+public class ErrorValue extends AbstractMergedNumber {
+
+    @Override
+    protected Numeric convert(ValueObject nextValue) {
+        Numeric num = ValueUtil.asNumberOrParseDouble(nextValue);
+        return (num != null) ? num : AbstractQueryOp.ZERO;
+    }
+
+    @Override
+    public Numeric doMerge(Numeric nextValue, Numeric value) {
+        return ValueFactory.create(Math.hypot(nextValue.asDouble().getDouble(), value.asDouble().getDouble()));
+    }
+}
@@ -59,6 +59,10 @@ public class MergeConfig {
                 case 'd':
                     op = new DiffValue();
                     break;
+                // standard error of sampled values
+                case 'e':
+                    op = new ErrorValue();
+                    break;
                 // ignore/drop
                 case 'i':
                     break;
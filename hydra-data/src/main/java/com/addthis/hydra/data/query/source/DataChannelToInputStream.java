@@ -14,10 +14,12 @@
 
 package com.addthis.hydra.data.query.source;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -37,8 +39,10 @@ import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.bundle.io.DataChannelWriter;
 import com.addthis.hydra.data.query.FieldValueList;
+import com.addthis.hydra.data.query.FrameCompression;
 import com.addthis.hydra.data.query.FramedDataChannelReader;
 import com.addthis.hydra.data.query.QueryElement;
+import com.addthis.hydra.data.query.ReusedRowConsumer;
 import com.addthis.hydra.data.query.engine.QueryEngine;
 import com.addthis.hydra.data.tree.DataTreeNode;
 import com.addthis.meshy.VirtualFileInput;
@@ -52,7 +56,7 @@ import io.netty.channel.ChannelProgressivePromise;
  * This class is the last point the bundles reach before getting converted into bytes and read by meshy to be
  * sent over the network to the client (MQMaster). The last class in the three step query process.
  */
-class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, BundleFormatted {
+class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, BundleFormatted, ReusedRowConsumer {
 
     static final Logger log = LoggerFactory.getLogger(DataChannelToInputStream.class);
 
@@ -71,6 +75,10 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
      */
     public final ChannelProgressivePromise queryPromise;
     private int rows = 0;
+    /** rows written to out since the last chunk was emitted */
+    @GuardedBy("out")
+    private int chunkRows = 0;
+    private volatile FrameCompression compression = FrameCompression.NONE;
     /**
      * A boolean flag that gets set to true once all the data have been sent to the stream, and not necessarily
      * pulled or read from the stream.
@@ -85,6 +93,9 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
      */
     private volatile boolean closed = false;
 
+    /** when set, every emitted chunk is also handed to the search result cache */
+    @Nullable private volatile SearchResultCache.Recording recording;
+
     /**
      * A non-public constructor. This class can only be instantiated from it outer class MeshQueryMaster. The objects
      * can be accessed elsewhere using the interfaces.
@@ -139,7 +150,25 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
             return;
         }
         byte[] bytes = out.toByteArray();
+        int bytesRows = chunkRows;
         out.reset();
+        chunkRows = 0;
+        SearchResultCache.Recording currentRecording = recording;
+        if (currentRecording != null) {
+            currentRecording.append(bytes, bytesRows);
+        }
+        enqueue(encode(bytes, bytesRows));
+    }
+
+    private byte[] encode(byte[] bytes, int bytesRows) {
+        try {
+            return compression.encode(bytes, bytesRows);
+        } catch (IOException ex) {
+            throw new DataChannelError(ex);
+        }
+    }
+
+    private void enqueue(byte[] bytes) {
         try {
             for (int i = 0; i < queueAttemptLimit; i++) //Try adding to queue queueAttemptLimit times
             {
@@ -161,6 +190,43 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
         }
     }
 
+    /** Compresses chunks emitted from now on. */
+    void compress(FrameCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Records every chunk emitted from now on. The recording is committed once the stream completes
+     * normally and abandoned on errors or cancellation.
+     */
+    void record(SearchResultCache.Recording recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Sends a complete stream that was previously recorded for the same search instead of any bundles.
+     * The stream must already end with an EOF frame. Chunks are sent as they were recorded so that
+     * rows never span messages.
+     */
+    void replay(InputStream in) throws IOException {
+        SearchResultCache.Chunk chunk;
+        while ((chunk = SearchResultCache.readChunk(in)) != null) {
+            if (closed) {
+                throw new CancellationException("master cancelled query");
+            }
+            enqueue(encode(chunk.bytes, chunk.rows));
+        }
+        eof = true;
+    }
+
+    private void stopRecording() {
+        SearchResultCache.Recording currentRecording = recording;
+        if (currentRecording != null) {
+            currentRecording.abandon();
+            recording = null;
+        }
+    }
+
     /**
      * Returns true if the eof flag is set and there is no data queued in the stream to be sent.
      *
@@ -177,6 +243,7 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
     @Override
     public void close() {
         closed = true;
+        stopRecording();
         queryPromise.cancel(false);
     }
 
@@ -212,6 +279,7 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
             synchronized (out) {
                 out.write(FramedDataChannelReader.FRAME_MORE);
                 writer.write(bundle);
+                chunkRows++;
                 if (out.size() > outputBufferSize) {
                     emitChunks();
                 }
@@ -236,6 +304,11 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
             out.write(FramedDataChannelReader.FRAME_EOF);
             emitChunks();
             eof = true;
+            SearchResultCache.Recording currentRecording = recording;
+            if (currentRecording != null) {
+                currentRecording.commit();
+                recording = null;
+            }
         }
     }
 
@@ -246,6 +319,7 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
      */
     @Override
     public void sourceError(Throwable er) {
+        stopRecording();
         if (closed) {
             log.debug("Unable to send source error due to closed channel", er);
             return;
@@ -266,6 +340,12 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
         }
     }
 
+    /** Rows are encoded before send returns. */
+    @Override
+    public boolean acceptReusedRows() {
+        return true;
+    }
+
     @Override
     public Bundle createBundle() {
         return new ListBundle(format);
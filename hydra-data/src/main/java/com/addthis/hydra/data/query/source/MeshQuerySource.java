@@ -87,6 +87,12 @@ public class MeshQuerySource implements LocalFileHandler {
 
     static final QueryEngineCache queryEngineCache = new QueryEngineCache();
 
+    static final SearchResultCache searchResultCache = new SearchResultCache();
+
+    static {
+        queryEngineCache.addRetiredEngineListener(searchResultCache::invalidate);
+    }
+
     //Temp directory to use for sorting and caching
     private static final String tmpDirPath = Parameter.value("query.tmpdir", "query.tmpdir");
 
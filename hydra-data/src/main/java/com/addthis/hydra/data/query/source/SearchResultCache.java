@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.source;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import java.nio.charset.StandardCharsets;
+
+import com.addthis.basis.util.LessBytes;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QuerySampler;
+import com.addthis.hydra.data.query.SpillingResultCache;
+import com.addthis.hydra.data.query.engine.QueryEngine;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+
+/**
+ * Caches the encoded output of a search on a query worker: the framed messages that
+ * {@link DataChannelToInputStream} hands to meshy after the worker ops have run, before any compression
+ * and with their boundaries kept so that rows never span messages on replay. Entries are keyed by
+ * task directory, engine generation, query paths and worker ops, so the same search from any query master
+ * is served by streaming the stored bytes instead of walking the tree again.
+ * <p/>
+ * All entries of an engine are dropped once the engine cache retires it (refreshed to newer data or evicted).
+ */
+class SearchResultCache {
+
+    private static final boolean enabled = Parameter.boolValue("meshQuerySource.resultCache.enable", true);
+    private static final long heapBytes = Parameter.longValue("meshQuerySource.resultCache.heapBytes", 64L << 20);
+    private static final long diskBytes = Parameter.longValue("meshQuerySource.resultCache.diskBytes", 1L << 30);
+    private static final int maxEntryBytes = Parameter.intValue("meshQuerySource.resultCache.maxEntryBytes", 8 << 20);
+    private static final long ttlSeconds = Parameter.longValue("meshQuerySource.resultCache.ttlSeconds", 3600);
+    private static final String diskDir = Parameter.value("meshQuerySource.resultCache.dir", "query.workercache");
+
+    /** query parameter that can be set to "false" to bypass the cache for a single query */
+    static final String QUERY_PARAMETER = "cache";
+
+    /** changes whenever the layout of stored streams does, so entries in the old layout are never read */
+    private static final String STREAM_FORMAT = "chunked-1";
+
+    private static final Joiner KEY_JOINER = Joiner.on('\n').useForNull("");
+
+    private final SpillingResultCache cache;
+    private final int entryLimit;
+
+    SearchResultCache() {
+        this(enabled ? heapBytes : 0, enabled ? diskBytes : 0, maxEntryBytes, ttlSeconds, new File(diskDir));
+    }
+
+    @VisibleForTesting
+    SearchResultCache(long heapLimit, long diskLimit, int entryLimit, long ttlSeconds, File dir) {
+        this.cache = new SpillingResultCache(SearchResultCache.class, heapLimit, diskLimit, ttlSeconds, dir);
+        this.entryLimit = entryLimit;
+    }
+
+    /** @return a cache key for the search or null if it should not be cached */
+    @Nullable String keyFor(String dir, QueryEngine engine, Query query) {
+        if ((entryLimit <= 0) || !cache.isEnabled() ||
+            !Boolean.parseBoolean(query.getParameter(QUERY_PARAMETER, "true"))) {
+            return null;
+        }
+        String raw = KEY_JOINER.join(STREAM_FORMAT, dir,
+                                     KEY_JOINER.join(query.getPaths()),
+                                     query.getOps() != null ? KEY_JOINER.join(query.getOps()) : "",
+                                     QuerySampler.describe(query));
+        return prefix(engine) + Hashing.sha1().hashString(raw, StandardCharsets.UTF_8);
+    }
+
+    /** @return the stored stream for key or null on a miss */
+    @Nullable InputStream open(String key) {
+        return cache.open(key);
+    }
+
+    Recording record(String key) {
+        return new Recording(key);
+    }
+
+    void invalidate(QueryEngine engine) {
+        cache.invalidatePrefix(prefix(engine));
+    }
+
+    private static String prefix(QueryEngine engine) {
+        return engine.getGeneration() + "/";
+    }
+
+    /** @return the next chunk of a stored stream, or null at its end */
+    @Nullable static Chunk readChunk(InputStream in) throws IOException {
+        long rows;
+        try {
+            rows = LessBytes.readLength(in);
+        } catch (EOFException ignored) {
+            return null;
+        }
+        return new Chunk(LessBytes.readBytes(in), (int) rows);
+    }
+
+    /** One message of a stored stream: whole frames and the number of rows in them. */
+    static final class Chunk {
+
+        final byte[] bytes;
+        final int rows;
+
+        Chunk(byte[] bytes, int rows) {
+            this.bytes = bytes;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Collects the chunks emitted for a search. Recording silently stops once the chunks exceed the
+     * maximum entry size.
+     */
+    final class Recording {
+
+        private final String key;
+        @Nullable private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private Recording(String key) {
+            this.key = key;
+        }
+
+        synchronized void append(byte[] chunk, int rows) {
+            if (buffer != null) {
+                try {
+                    LessBytes.writeLength(rows, buffer);
+                    LessBytes.writeBytes(chunk, buffer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                // the size includes the row counts and length prefixes of the chunks
+                if (buffer.size() > entryLimit) {
+                    abandon();
+                }
+            }
+        }
+
+        /** Stores the recorded chunks. Must only be called after the complete stream was emitted. */
+        synchronized void commit() {
+            if (buffer != null) {
+                cache.put(key, buffer.toByteArray());
+                abandon();
+            }
+        }
+
+        synchronized void abandon() {
+            buffer = null;
+        }
+    }
+}
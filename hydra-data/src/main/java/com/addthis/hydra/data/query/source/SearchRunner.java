@@ -14,6 +14,9 @@
 
 package com.addthis.hydra.data.query.source;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import java.util.Map;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
@@ -25,7 +28,9 @@ import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.channel.DataChannelError;
 import com.addthis.codec.json.CodecJSON;
+import com.addthis.hydra.data.query.FrameCompression;
 import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryEstimator;
 import com.addthis.hydra.data.query.QueryOpProcessor;
 import com.addthis.hydra.data.query.engine.QueryEngine;
 import com.addthis.hydra.data.util.BundleUtils;
@@ -93,7 +98,11 @@ public class SearchRunner implements Runnable {
         try {
             setup();
             finalEng = getEngine();
-            search();
+            if (QueryEstimator.requested(query)) {
+                explain();
+            } else if (!replayCachedSearch()) {
+                search();
+            }
             //success
         } catch (CancellationException ignored) {
             log.info("query was cancelled remotely; stopping processing early");
@@ -150,6 +159,7 @@ public class SearchRunner implements Runnable {
         query = CodecJSON.decodeString(Query.class, options.get("query"));
         // set as soon as possible (and especially before creating op processor)
         query.queryPromise = bridge.queryPromise;
+        bridge.compress(FrameCompression.select(options, query));
         // Parse the query and return a reference to the last QueryOpProcessor.
         ChannelProgressivePromise opPromise =
                 new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
@@ -187,6 +197,46 @@ public class SearchRunner implements Runnable {
         return engine;
     }
 
+    /**
+     * Part 3a - RESULT CACHE
+     * If this exact search already ran against the same engine, stream the stored output instead of searching.
+     * Otherwise, have the bridge record the output of the search that is about to run.
+     *
+     * @return true if the query was answered from the cache
+     */
+    protected boolean replayCachedSearch() throws IOException {
+        SearchResultCache cache = MeshQuerySource.searchResultCache;
+        String key = cache.keyFor(goldDirString, finalEng, query);
+        if (key == null) {
+            return false;
+        }
+        InputStream cached = cache.open(key);
+        if (cached == null) {
+            bridge.record(cache.record(key));
+            return false;
+        }
+        final long replayStartTime = System.currentTimeMillis();
+        try (InputStream in = cached) {
+            bridge.replay(in);
+        }
+        if (log.isDebugEnabled() || query.isTraced()) {
+            Query.traceLog.info("[QueryReference] search {} served from result cache in {}ms directory: {}",
+                                query.uuid(), System.currentTimeMillis() - replayStartTime, goldDirString);
+        }
+        return true;
+    }
+
+    /**
+     * Part 3b - EXPLAIN
+     * Send the estimated cost of the query instead of its rows. Query ops are not applied.
+     */
+    protected void explain() throws Exception {
+        finalEng.explain(query, bridge);
+        if (log.isDebugEnabled() || query.isTraced()) {
+            Query.traceLog.info("[QueryReference] explained {} directory: {}", query.uuid(), goldDirString);
+        }
+    }
+
     /**
      * Part 3 - SEARCH
      * Run the search -- most of this logic is in QueryEngine.search(). We only take care of logging times and
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.io.DataChannelWriter;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.meshy.service.stream.StreamSource;
+
+import com.google.common.base.Strings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestFramedDataChannelReader {
+
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final DataChannelWriter writer = new DataChannelWriter(out);
+
+    private FramedDataChannelReader reader;
+
+    @Before
+    public void before() {
+        StreamSource source = mock(StreamSource.class);
+        when(source.getMessageQueue()).thenReturn(queue);
+        // buffer accounting is final; keep it below the refill threshold so it never asks for more
+        Whitebox.setInternalState(source, "expectingBytes", new AtomicLong(-1));
+        reader = new FramedDataChannelReader(source, 0);
+    }
+
+    private void writeRow(String key, long value) throws IOException {
+        Bundle row = new ListBundle();
+        row.setValue(row.getFormat().getField("key"), ValueFactory.create(key));
+        row.setValue(row.getFormat().getField("value"), ValueFactory.create(value));
+        out.write(FramedDataChannelReader.FRAME_MORE);
+        writer.write(row);
+    }
+
+    private void emitFrame() {
+        queue.add(out.toByteArray());
+        out.reset();
+    }
+
+    private void emitFrame(FrameCompression compression, int rows) throws IOException {
+        queue.add(compression.encode(out.toByteArray(), rows));
+        out.reset();
+    }
+
+    private void assertRow(String key, long value, Bundle row) {
+        assertEquals(key, row.getValue(row.getFormat().getField("key")).asString().asNative());
+        assertEquals(value, row.getValue(row.getFormat().getField("value")).asLong().getLong());
+    }
+
+    @Test
+    public void rowsAcrossFrames() throws Exception {
+        writeRow("a", 1);
+        writeRow("b", 2);
+        emitFrame();
+        writeRow("c", 3);
+        out.write(FramedDataChannelReader.FRAME_EOF);
+        emitFrame();
+        assertRow("a", 1, reader.read());
+        assertRow("b", 2, reader.read());
+        assertRow("c", 3, reader.read());
+        assertNull(reader.read());
+        assertTrue(reader.isClosed());
+    }
+
+    @Test
+    public void pollTimeout() throws Exception {
+        assertNull(reader.read());
+        writeRow("a", 1);
+        emitFrame();
+        assertRow("a", 1, reader.read());
+        assertNull(reader.read());
+        assertFalse(reader.isClosed());
+    }
+
+    @Test
+    public void compressedFrames() throws Exception {
+        String wide = Strings.repeat("a long and repetitive value ", 20);
+        for (int i = 0; i < 20; i++) {
+            writeRow(wide + i, i);
+        }
+        byte[] raw = out.toByteArray();
+        emitFrame(FrameCompression.AUTO, 20);
+        byte[] sent = queue.peek();
+        assertEquals(FramedDataChannelReader.FRAME_SNAPPY, sent[0]);
+        assertTrue(sent.length < (raw.length / 2));
+        // narrow rows are not worth compressing
+        writeRow("b", 1);
+        emitFrame(FrameCompression.AUTO, 1);
+        writeRow("c", 2);
+        out.write(FramedDataChannelReader.FRAME_EOF);
+        emitFrame(FrameCompression.ALWAYS, 1);
+        for (int i = 0; i < 20; i++) {
+            assertRow(wide + i, i, reader.read());
+        }
+        assertRow("b", 1, reader.read());
+        assertRow("c", 2, reader.read());
+        assertNull(reader.read());
+        assertTrue(reader.isClosed());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedRow() throws Exception {
+        writeRow("a", 1);
+        byte[] frame = out.toByteArray();
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        queue.add(truncated);
+        reader.read();
+    }
+}
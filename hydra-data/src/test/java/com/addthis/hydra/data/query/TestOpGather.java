@@ -193,4 +193,9 @@ public class TestOpGather extends TestOp {
 
         System.out.println("InMemoryTime:" + inMemoryTime + " onDiskTime:" + onDiskTime);
     }
+
+    @Test
+    public void testGatherErrors() throws Exception {
+        doOpTest(parse("a 30 3|a 40 4|b 10 1"), "gather=kse;sort", parse("a 70 5.0|b 10 1.0"));
+    }
 }
@@ -48,6 +48,12 @@ public class TestOpNumber extends TestOp {
         doOpTest(parse("5|2|3|5"), "num=c0,v4,minif,v0,set", parse("5|4|4|5"));
     }
 
+    @Test
+    public void testErrorAdd() throws Exception {
+        doOpTest(new DataTableHelper().tr(), "num=n3,n4,eadd,v-1,set", new DataTableHelper().tr().td("5.0"));
+        doOpTest(new DataTableHelper().tr(), "num=n0:3:4,vector,eadd,v-1,set", new DataTableHelper().tr().td("5.0"));
+    }
+
     @Test
     public void testHashOperation() throws Exception {
         String inputString = "somethingToHash";
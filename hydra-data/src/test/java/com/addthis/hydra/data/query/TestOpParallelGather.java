@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.op.OpParallelGather;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestOpParallelGather extends TestOp {
+
+    private String tipToDisk;
+
+    @Before
+    public void disableTipToDisk() {
+        // other tests may have turned tipping to disk on
+        tipToDisk = System.getProperty("opgather.tiptodisk");
+        System.setProperty("opgather.tiptodisk", "false");
+    }
+
+    @After
+    public void restoreTipToDisk() {
+        if (tipToDisk == null) {
+            System.clearProperty("opgather.tiptodisk");
+        } else {
+            System.setProperty("opgather.tiptodisk", tipToDisk);
+        }
+    }
+
+    private static List<String> run(DataTable in, String ops, int partitions, int tipRow) throws Exception {
+        BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+        QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, ops)
+                .rowTip(tipRow).mergePartitions(partitions).build();
+        assertEquals(partitions > 1, qp.printOps().startsWith("OpParallelGather"));
+        for (Bundle row : in) {
+            qp.send(row);
+        }
+        qp.sendComplete();
+        List<String> rows = strings(buffer.getTable());
+        qp.close();
+        return rows;
+    }
+
+    private static List<String> strings(DataTable table) {
+        List<String> rows = new ArrayList<>();
+        for (Bundle row : table) {
+            StringBuilder sb = new StringBuilder();
+            for (BundleField field : row) {
+                sb.append(row.getValue(field)).append(' ');
+            }
+            rows.add(sb.toString());
+        }
+        return rows;
+    }
+
+    private static DataTable rows(int count, int keys) {
+        DataTableHelper table = new DataTableHelper();
+        for (int i = 0; i < count; i++) {
+            table.tr().td("k" + (i % keys), Integer.toString(i % 7), Integer.toString(i));
+        }
+        return table;
+    }
+
+    @Test
+    public void matchesSerialGather() throws Exception {
+        DataTable in = rows(20000, 1000);
+        String ops = "gather=ksMu;sort=0";
+        List<String> serial = run(in, ops, 1, 0);
+        assertEquals(1000, serial.size());
+        assertEquals(serial, run(in, ops, 4, 0));
+        assertEquals(run(in, "gather=kij", 1, 0).size(), run(in, "gather=kij", 3, 0).size());
+    }
+
+    @Test
+    public void lastOpInChain() throws Exception {
+        doOpTest(parse("a 1|b 2|a 3"), "gather=ks", parse("a 4|b 2"));
+        assertEquals(2, run(parse("a 1|b 2|a 3"), "gather=ks", 4, 0).size());
+    }
+
+    @Test
+    public void toppersStaySerial() throws Exception {
+        List<String> rows = run(rows(100, 10), "gather=kt5s;sort=0", 1, 0);
+        assertEquals(5, rows.size());
+        BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+        QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, "gather=kt5s")
+                .mergePartitions(4).build();
+        assertFalse(qp.printOps().startsWith("OpParallelGather"));
+        qp.close();
+        assertFalse(OpParallelGather.supports("kt5s"));
+        assertTrue(OpParallelGather.supports("ksMu"));
+    }
+
+    @Test
+    public void rowTipAppliesToWholeGather() throws Exception {
+        DataTable in = rows(2000, 100);
+        // exactly at the tip: uneven partitions would pass a quarter of it if each had its own share
+        assertEquals(run(in, "gather=ks;sort=0", 1, 100), run(in, "gather=ks;sort=0", 4, 100));
+        // each partition stays well under the tip, but together they pass it
+        try {
+            run(in, "gather=ks;sort=0", 4, 60);
+            fail("row tip was not applied");
+        } catch (DataChannelError expected) {
+        }
+    }
+
+    @Test
+    public void snapshotLeavesGatherIntact() throws Exception {
+        String ops = "gather=kasu;sort=0";
+        for (int partitions : new int[]{1, 4}) {
+            BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+            QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, ops).mergePartitions(partitions).build();
+            assertTrue(qp.canSnapshot());
+            DataTable in = rows(100, 10);
+            for (int i = 0; i < 50; i++) {
+                qp.send(in.get(i));
+            }
+            BlockingBufferedConsumer snapshot = new BlockingBufferedConsumer();
+            assertTrue(qp.snapshot(snapshot));
+            assertEquals(run(rows(50, 10), ops, 1, 0), strings(snapshot.getTable()));
+            for (int i = 50; i < 100; i++) {
+                qp.send(in.get(i));
+            }
+            qp.sendComplete();
+            assertEquals(run(in, ops, 1, 0), strings(buffer.getTable()));
+            qp.close();
+        }
+        QueryOpProcessor qp = new QueryOpProcessor(new BlockingBufferedConsumer(), new String[]{"sort=0;gather=ks"});
+        assertFalse(qp.canSnapshot());
+        assertFalse(qp.snapshot(new BlockingBufferedConsumer()));
+        qp.close();
+    }
+
+    @Test
+    public void mergedRowsAreEmittedOffTheMergePool() throws Exception {
+        ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+        try {
+            for (int attempt = 0; attempt < 20; attempt++) {
+                List<String> completedOn = new ArrayList<>();
+                BlockingBufferedConsumer buffer = new BlockingBufferedConsumer() {
+                    @Override public void sendComplete() {
+                        completedOn.add(Thread.currentThread().getName());
+                        super.sendComplete();
+                    }
+                };
+                QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, "gather=ks")
+                        .mergePartitions(4).mergeCompletionExecutor(queryExecutor).build();
+                queryExecutor.submit(() -> {
+                    for (Bundle row : rows(5000, 500)) {
+                        qp.send(row);
+                    }
+                    qp.sendComplete();
+                }).get();
+                assertEquals(500, buffer.getTable().size());
+                queryExecutor.submit(qp::close).get(10, TimeUnit.SECONDS);
+                assertEquals(1, completedOn.size());
+                assertFalse(completedOn.get(0).startsWith("queryMerge"));
+            }
+        } finally {
+            queryExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import org.junit.Test;
+
+public class TestOpTopK extends TestOp {
+
+    @Test
+    public void testTopK() throws Exception {
+        DataTableHelper basicTable = parse("A 1 art|B 2 bot|C 3 cog|D 4 din");
+        DataTableHelper dataTable = parse("0 A 3|0 A 5|1 A 1|1 B 2");
+        doOpTest(parse(""), "topk=2:1:n:d", parse(""));
+        doOpTest(basicTable, "topk=2:1:n:d", parse("D 4 din|C 3 cog"));
+        doOpTest(basicTable, "topk=10:1:n:d", parse("D 4 din|C 3 cog|B 2 bot|A 1 art"));
+        doOpTest(basicTable, "topk=1:0", parse("A 1 art"));
+        doOpTest(dataTable, "topk=3:0,1,2:nsn:add", parse("0 A 5|0 A 3|1 B 2"));
+        // ties keep the earliest rows, like a stable sort followed by a limit
+        doOpTest(dataTable, "topk=2:1:s:a", parse("0 A 3|0 A 5"));
+    }
+
+    @Test
+    public void testTopKeys() throws Exception {
+        DataTableHelper dataTable = parse("x a 1|y b 5|x a 2|z c 9|y b 1|w a 3");
+        // every row of the two best keys is retained so a downstream gather stays exact
+        doOpTest(dataTable, "topk=2:0:s:a:0", parse("w a 3|x a 1|x a 2"));
+        // keys tied with the k-th key are never dropped
+        doOpTest(dataTable, "topk=1:1:s:a:0", parse("x a 1|x a 2|w a 3"));
+        doOpTest(dataTable, "topk=2:0:s:d:0;gather=kis;sort=0:s:d", parse("z 9|y 6"));
+    }
+
+    @Test
+    public void testSameAsSortLimit() throws Exception {
+        DataTableHelper dataTable = parse("a 7|b 3|c 9|d 1|e 3|f 8|g 2");
+        doOpTest(dataTable, "sort=1:n:d;limit=3", parse("c 9|f 8|a 7"));
+        doOpTest(dataTable, "topk=3:1:n:d", parse("c 9|f 8|a 7"));
+        doOpTest(dataTable, "topk=3:1:n:d;sort=1:n:d;limit=3", parse("c 9|f 8|a 7"));
+    }
+}
@@ -33,4 +33,27 @@ public class TestQuery {
         Query subQ = q.createPipelinedQuery();
         System.out.println(subQ.toString());
     }
+
+    @Test
+    public void topKPushdown() {
+        String path = "+:+hits";
+        Query q = new Query("job", new String[] { path }, new String[] {"sort=1:n:d;limit=100", null});
+        Query subQ = q.createPipelinedQuery();
+        Assert.assertArrayEquals(new String[] {"topk=100:1:n:d"}, subQ.getOps());
+        Assert.assertArrayEquals(new String[] {"sort=1:n:d;limit=100"}, q.getOps());
+
+        q = new Query("job", new String[] { path }, new String[] {"gather=iks;sort=0:s:a;limit=5:10", "num=0"});
+        subQ = q.createPipelinedQuery();
+        Assert.assertArrayEquals(new String[] {"num=0;topk=15:1:s:a:1"}, subQ.getOps());
+
+        // sorting on a merged (non key) column cannot be pushed below a gather
+        q = new Query("job", new String[] { path }, new String[] {"gather=ks;sort=1:n:d;limit=5", "num=0"});
+        subQ = q.createPipelinedQuery();
+        Assert.assertArrayEquals(new String[] {"num=0"}, subQ.getOps());
+
+        q = new Query("job", new String[] { path }, new String[] {"sort=1:n:d;limit=100"});
+        q.setParameter(TopKPushdown.QUERY_PARAMETER, false);
+        subQ = q.createPipelinedQuery();
+        Assert.assertArrayEquals(new String[0], subQ.getOps());
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.engine.QueryEngine;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTreeNode;
+import com.addthis.hydra.data.tree.concurrent.TreeBuilder;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.channel.DefaultChannelProgressivePromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestQueryEstimator {
+
+    private static final int CHILDREN = 1000;
+    private static final int GRANDCHILDREN = 4;
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ConcurrentTree tree;
+
+    @Before
+    public void before() throws Exception {
+        tree = new TreeBuilder(tempFolder.newFolder()).multiThreadedTree();
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = 0; i < CHILDREN; i++) {
+            ConcurrentTreeNode child = tree.getOrCreateNode(root, "k" + i, null);
+            for (int j = 0; j < GRANDCHILDREN; j++) {
+                tree.getOrCreateNode(child, "g" + j, null).release();
+            }
+            child.release();
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    private QueryEstimator estimate(String path, int samples) {
+        QueryEstimator estimator = new QueryEstimator(samples, samples);
+        estimator.estimate(tree, new Query("job", new String[]{path}, null).getQueryPaths().get(0));
+        return estimator;
+    }
+
+    private long search(String path) throws Exception {
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+        new QueryEngine(tree).search(new Query("job", new String[]{path}, null), consumer,
+                                     new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE));
+        consumer.sendComplete();
+        return consumer.getTable().size();
+    }
+
+    @Test
+    public void exactWithinSamples() throws Exception {
+        QueryEstimator estimator = estimate("/+/+", 10000);
+        assertEquals(CHILDREN * GRANDCHILDREN, estimator.getRows());
+        assertEquals(search("/+/+"), estimator.getRows());
+        assertEquals(CHILDREN + (CHILDREN * GRANDCHILDREN), estimator.getNodes());
+        assertTrue(estimator.getPages() > 0);
+    }
+
+    @Test
+    public void extrapolatesFromSamples() throws Exception {
+        QueryEstimator estimator = estimate("/+/+", 20);
+        assertEquals(CHILDREN * GRANDCHILDREN, estimator.getRows());
+        assertEquals(CHILDREN + (CHILDREN * GRANDCHILDREN), estimator.getNodes());
+        // lookups of named children only cost the names asked for
+        estimator = estimate("/k1,k2/+", 20);
+        assertEquals(2 * GRANDCHILDREN, estimator.getRows());
+        assertEquals(2 + (2 * GRANDCHILDREN), estimator.getNodes());
+    }
+
+    @Test
+    public void regexAndLimits() throws Exception {
+        // a regex visits every child and matches in proportion to the sampled prefix
+        QueryEstimator estimator = estimate("/|+k1.*", 1000);
+        assertEquals(111, estimator.getRows());
+        assertEquals(search("/|+k1.*"), estimator.getRows());
+        assertEquals(CHILDREN, estimator.getNodes());
+        estimator = estimate("/|+k1.*", 100);
+        assertEquals(CHILDREN, estimator.getNodes());
+        assertTrue(estimator.getRows() > 0);
+        assertTrue(estimator.getRows() <= CHILDREN);
+        // a limit stops the walk early
+        estimator = estimate("/(5)+/+", 20);
+        assertEquals(5 * GRANDCHILDREN, estimator.getRows());
+        assertEquals(search("/(5)+/+"), estimator.getRows());
+        assertEquals(5 + (5 * GRANDCHILDREN), estimator.getNodes());
+    }
+
+    @Test
+    public void explainRow() throws Exception {
+        Query query = new Query("job", new String[]{"/+/+"}, null);
+        assertFalse(QueryEstimator.requested(query));
+        query.setParameter(QueryEstimator.EXPLAIN_PARAMETER, "1");
+        assertTrue(QueryEstimator.requested(query));
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+        new QueryEngine(tree).explain(query, consumer);
+        DataTable table = consumer.getTable();
+        assertEquals(1, table.size());
+        Bundle row = table.get(0);
+        assertEquals(1, row.getValue(row.getFormat().getField("tasks")).asLong().getLong());
+        assertEquals(CHILDREN * GRANDCHILDREN, row.getValue(row.getFormat().getField("rows")).asLong().getLong());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.engine.QueryEngine;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTreeNode;
+import com.addthis.hydra.data.tree.concurrent.TreeBuilder;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.channel.DefaultChannelProgressivePromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestQuerySampler {
+
+    private static final int CHILDREN = 2000;
+    private static final int HITS = 10;
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ConcurrentTree tree;
+
+    @Before
+    public void before() throws Exception {
+        tree = new TreeBuilder(tempFolder.newFolder()).multiThreadedTree();
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = 0; i < CHILDREN; i++) {
+            ConcurrentTreeNode node = tree.getOrCreateNode(root, "k" + i, null);
+            node.setCounter(HITS);
+            node.release();
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    private List<Bundle> search(String path, String sample) throws Exception {
+        Query query = new Query("job", new String[]{path}, null);
+        query.setParameter(QuerySampler.RATE_PARAMETER, sample);
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+        new QueryEngine(tree).search(query, consumer,
+                                     new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE));
+        consumer.sendComplete();
+        DataTable table = consumer.getTable();
+        List<Bundle> rows = new ArrayList<>(table.size());
+        for (Bundle row : table) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String names(List<Bundle> rows) {
+        StringBuilder sb = new StringBuilder();
+        for (Bundle row : rows) {
+            sb.append(row.getValue(row.getFormat().getField("0"))).append(',');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void fullTraversal() throws Exception {
+        List<Bundle> rows = search("+:+hits", null);
+        assertEquals(CHILDREN, rows.size());
+        BundleFormat format = rows.get(0).getFormat();
+        assertEquals(HITS, rows.get(0).getValue(format.getField("1")).asLong().getLong());
+        assertNull(rows.get(0).getValue(format.getField("error")));
+    }
+
+    @Test
+    public void sampledTraversal() throws Exception {
+        List<Bundle> rows = search("+:+hits", "0.25");
+        assertTrue(rows.size() > (CHILDREN / 8));
+        assertTrue(rows.size() < ((CHILDREN * 3) / 8));
+        long total = 0;
+        for (Bundle row : rows) {
+            BundleFormat format = row.getFormat();
+            long hits = row.getValue(format.getField("1")).asLong().getLong();
+            assertEquals(HITS * 4, hits);
+            assertEquals(hits * Math.sqrt(0.75), row.getValue(format.getField("error")).asDouble().getDouble(), 1e-9);
+            total += hits;
+        }
+        assertTrue(Math.abs(total - (CHILDREN * HITS)) < ((CHILDREN * HITS) / 2));
+        // the same nodes are chosen every time
+        assertEquals(names(rows), names(search("+:+hits", "0.25")));
+    }
+
+    @Test
+    public void explicitMatchesAreNotSampled() throws Exception {
+        List<Bundle> rows = search("+k1,k2,k3:+hits", "0.01");
+        assertEquals(3, rows.size());
+        for (Bundle row : rows) {
+            assertEquals(HITS, row.getValue(row.getFormat().getField("1")).asLong().getLong());
+        }
+    }
+
+    @Test(expected = QueryException.class)
+    public void invalidRate() throws Exception {
+        search("+:+hits", "2");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRowReuse extends TestOp {
+
+    /** Collects copies of its input, so it can accept reused rows. */
+    private static class CopyingConsumer extends BlockingBufferedConsumer implements ReusedRowConsumer {
+
+        final Set<Bundle> received = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        CopyingConsumer() throws InterruptedException {
+            super();
+        }
+
+        @Override
+        public void send(Bundle row) {
+            received.add(row);
+            Bundle copy = row.createBundle();
+            for (BundleField field : row) {
+                copy.setValue(field, row.getValue(field));
+            }
+            super.send(copy);
+        }
+
+        @Override
+        public boolean acceptReusedRows() {
+            return true;
+        }
+    }
+
+    /** Emits the rows of {@code in} the way the query engine does, from a field value stack. */
+    private static Set<Bundle> runReused(DataTable in, String ops, DataTable out, boolean expectReuse)
+            throws Exception {
+        CopyingConsumer consumer = new CopyingConsumer();
+        QueryOpProcessor processor = new QueryOpProcessor(consumer, new String[]{ops});
+        assertEquals(expectReuse, ReusedRowConsumer.acceptReusedRows(processor));
+        FieldValueList prefix = new FieldValueList(new ListBundleFormat()).reuseRows(expectReuse);
+        Set<Bundle> sent = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Bundle row : in) {
+            int count = 0;
+            for (BundleField field : row) {
+                prefix.push(field, row.getValue(field));
+                count++;
+            }
+            prefix.commit();
+            Bundle next = prefix.createBundle(processor);
+            sent.add(next);
+            processor.send(next);
+            prefix.pop(count);
+        }
+        processor.sendComplete();
+        Iterator<Bundle> got = consumer.getTable().iterator();
+        for (Bundle expected : out) {
+            assertTrue("missing results", got.hasNext());
+            Bundle next = got.next();
+            for (BundleField field : expected.getFormat()) {
+                assertEquals(expected.getValue(field), next.getValue(field));
+            }
+        }
+        assertFalse(got.hasNext());
+        processor.close();
+        return sent;
+    }
+
+    @Test
+    public void retainingOpsCopy() throws Exception {
+        DataTableHelper in = parse("a 7|b 3|c 9|d 1|e 3");
+        assertEquals(1, runReused(in, "sort=1:n:d", parse("c 9|a 7|b 3|e 3|d 1"), true).size());
+        assertEquals(1, runReused(in, "topk=2:1:n:d", parse("c 9|a 7"), true).size());
+        assertEquals(1, runReused(in, "topk=2:1:n:a:0", parse("d 1|b 3|e 3"), true).size());
+        assertEquals(1, runReused(in, "sort=1:n:a;limit=2", parse("d 1|b 3"), true).size());
+        assertEquals(1, runReused(parse("x 1|y 2|x 3"), "gather=ks", parse("x 4|y 2"), true).size());
+    }
+
+    @Test
+    public void unknownOpsDecline() throws Exception {
+        DataTableHelper in = parse("a 7|b 3|c 9");
+        assertEquals(3, runReused(in, "reverse", parse("c 9|b 3|a 7"), false).size());
+    }
+
+    @Test
+    public void stackResize() {
+        ListBundleFormat format = new ListBundleFormat();
+        FieldValueList prefix = new FieldValueList(format);
+        for (int i = 0; i < 20; i++) {
+            prefix.push(format.getField("f" + i), ValueFactory.create(i));
+        }
+        prefix.commit();
+        Bundle row = prefix.createBundle(new ListBundleFactory());
+        assertEquals("19", row.getValue(row.getFormat().getField("f19")).toString());
+        prefix.push(format.getField("extra"), ValueFactory.create("x"));
+        prefix.rollback();
+        prefix.pop(20);
+        assertFalse(prefix.updateBundle(row));
+    }
+
+    private static class ListBundleFactory implements BundleFactory {
+
+        private final ListBundleFormat format = new ListBundleFormat();
+
+        @Override
+        public Bundle createBundle() {
+            return new ListBundle(format);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleOutput;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.query.AbstractQueryOp;
+
+import org.junit.Test;
+
+import io.netty.channel.DefaultChannelProgressivePromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestOpParallelGatherSnapshot {
+
+    private final ListBundleFormat format = new ListBundleFormat();
+
+    private Bundle row(String key, long value) {
+        Bundle row = new ListBundle(format);
+        row.setValue(format.getField("key"), ValueFactory.create(key));
+        row.setValue(format.getField("value"), ValueFactory.create(value));
+        return row;
+    }
+
+    /** @return the snapshot rows by key */
+    private static Map<String, String> snapshot(OpParallelGather gather) {
+        Map<String, String> rows = new TreeMap<>();
+        gather.snapshot(new BundleOutput() {
+            @Override public void send(Bundle row) {
+                List<String> values = new ArrayList<>();
+                row.forEach(field -> values.add(String.valueOf(row.getValue(field))));
+                rows.put(values.get(0), values.get(1));
+            }
+
+            @Override public void send(List<Bundle> bundles) {
+                bundles.forEach(this::send);
+            }
+
+            @Override public void sendComplete() {
+            }
+        });
+        return rows;
+    }
+
+    @Test
+    public void busyPartitionResendsItsPreviousSnapshot() throws Exception {
+        OpParallelGather gather = new OpParallelGather(
+                "ks", 2, 0, 0, "query.tmpdir", new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE),
+                error -> { throw new AssertionError(error); }, Runnable::run);
+        gather.setNext(null, new AbstractQueryOp(null) {
+            @Override public void send(Bundle row) {
+            }
+
+            @Override public void sendComplete() {
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            gather.send(row("k" + i, 1));
+        }
+        Map<String, String> first = snapshot(gather);
+        assertEquals(10, first.size());
+
+        // another thread holds the first partition for longer than a snapshot waits
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread merger = new Thread(() -> {
+            gather.mergeLock(0).lock();
+            try {
+                locked.countDown();
+                release.await();
+            } catch (InterruptedException ignored) {
+            } finally {
+                gather.mergeLock(0).unlock();
+            }
+        });
+        merger.start();
+        locked.await();
+        for (int i = 0; i < 10; i++) {
+            gather.send(row("k" + i, 1));
+        }
+        Map<String, String> busy = snapshot(gather);
+        assertEquals(first.keySet(), busy.keySet());
+        // the partition that was free is up to date, the busy one is as before
+        assertFalse(first.equals(busy));
+
+        release.countDown();
+        merger.join();
+        Map<String, String> last = snapshot(gather);
+        assertEquals(10, last.size());
+        for (String value : last.values()) {
+            assertEquals("2", value);
+        }
+        gather.close();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.source;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.query.FrameCompression;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.engine.QueryEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.channel.DefaultChannelProgressivePromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SearchResultCacheTest {
+
+    private File tmpDir;
+
+    @Before
+    public void before() throws Exception {
+        tmpDir = LessFiles.createTempDir();
+    }
+
+    @After
+    public void after() {
+        LessFiles.deleteDir(tmpDir);
+    }
+
+    private static DataChannelToInputStream newBridge() throws Exception {
+        return new DataChannelToInputStream(
+                new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE));
+    }
+
+    private static void sendRows(DataChannelToInputStream bridge, int count) {
+        for (int i = 0; i < count; i++) {
+            Bundle row = bridge.createBundle();
+            row.setValue(bridge.getFormat().getField("key"), ValueFactory.create("row" + i));
+            row.setValue(bridge.getFormat().getField("hits"), ValueFactory.create(i));
+            bridge.send(row);
+        }
+        bridge.sendComplete();
+    }
+
+    private static byte[] drain(DataChannelToInputStream bridge) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] next;
+        while ((next = bridge.nextBytes(0)) != null) {
+            out.write(next, 0, next.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void recordAndReplay() throws Exception {
+        SearchResultCache cache = new SearchResultCache(1 << 20, 1 << 20, 1 << 20, 60, tmpDir);
+        QueryEngine engine = new QueryEngine(null);
+        Query query = new Query("job", new String[]{"+:+hits"}, new String[]{"sort=0"});
+        String key = cache.keyFor("/job/0/gold", engine, query);
+        assertNotNull(key);
+        assertNull(cache.open(key));
+
+        DataChannelToInputStream searched = newBridge();
+        searched.record(cache.record(key));
+        sendRows(searched, 100);
+        byte[] expected = drain(searched);
+
+        DataChannelToInputStream replayed = newBridge();
+        try (InputStream in = cache.open(key)) {
+            assertNotNull(in);
+            replayed.replay(in);
+        }
+        assertArrayEquals(expected, drain(replayed));
+    }
+
+    @Test
+    public void replayKeepsRowsWithinMessages() throws Exception {
+        SearchResultCache cache = new SearchResultCache(1 << 24, 1 << 24, 1 << 24, 60, tmpDir);
+        QueryEngine engine = new QueryEngine(null);
+        Query query = new Query("job", new String[]{"+:+hits"}, null);
+        String key = cache.keyFor("/job/0/gold", engine, query);
+
+        DataChannelToInputStream searched = newBridge();
+        searched.record(cache.record(key));
+        // several output buffers worth of rows
+        sendRows(searched, 20000);
+        List<byte[]> expected = messages(searched);
+
+        DataChannelToInputStream replayed = newBridge();
+        try (InputStream in = cache.open(key)) {
+            replayed.replay(in);
+        }
+        List<byte[]> actual = messages(replayed);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+
+        DataChannelToInputStream compressed = newBridge();
+        compressed.compress(FrameCompression.ALWAYS);
+        try (InputStream in = cache.open(key)) {
+            compressed.replay(in);
+        }
+        List<byte[]> decoded = messages(compressed);
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), FrameCompression.decode(decoded.get(i)));
+        }
+    }
+
+    private static List<byte[]> messages(DataChannelToInputStream bridge) {
+        List<byte[]> messages = new ArrayList<>();
+        byte[] next;
+        while ((next = bridge.nextBytes(0)) != null) {
+            messages.add(next);
+        }
+        return messages;
+    }
+
+    @Test
+    public void errorsAreNotRecorded() throws Exception {
+        SearchResultCache cache = new SearchResultCache(1 << 20, 1 << 20, 1 << 20, 60, tmpDir);
+        QueryEngine engine = new QueryEngine(null);
+        Query query = new Query("job", new String[]{"+:+hits"}, new String[]{"sort=0"});
+        String key = cache.keyFor("/job/0/gold", engine, query);
+
+        DataChannelToInputStream bridge = newBridge();
+        bridge.record(cache.record(key));
+        bridge.send(bridge.createBundle());
+        bridge.sourceError(new RuntimeException("failed"));
+        bridge.sendComplete();
+        assertNull(cache.open(key));
+    }
+
+    @Test
+    public void retiredEngineIsInvalidated() throws Exception {
+        SearchResultCache cache = new SearchResultCache(0, 1 << 20, 1 << 20, 60, tmpDir);
+        QueryEngine engine = new QueryEngine(null);
+        Query query = new Query("job", new String[]{"+:+hits"}, null);
+        String key = cache.keyFor("/job/0/gold", engine, query);
+        assertNotEquals(key, cache.keyFor("/job/0/gold", new QueryEngine(null), query));
+
+        DataChannelToInputStream bridge = newBridge();
+        bridge.record(cache.record(key));
+        sendRows(bridge, 10);
+        try (InputStream in = cache.open(key)) {
+            assertNotNull(in);
+        }
+        cache.invalidate(engine);
+        assertNull(cache.open(key));
+    }
+}
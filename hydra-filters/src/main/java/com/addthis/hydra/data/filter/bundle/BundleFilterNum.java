@@ -275,6 +275,12 @@ import com.fasterxml.jackson.annotation.JsonProperty;
  * <td>1</td>
  * </tr>
  * <tr>
+ * <td>"eadd"</td>
+ * <td>2</td>
+ * <td>combine the standard errors a and b (square root of the sum of squares)</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
  * <td>"aX:Y:Z..."</td>
  * <td>0</td>
  * <td>push the arrays in columns X, Y, Z,... onto the stack</td>
@@ -304,7 +310,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
  * <td>modifies the behavior of the next operation.<br>
  * Next operation pops all elements off the stack<br>
  * and pushes a single value onto the stack. Available<br>
- * for "+", "mult", "dmult", "min", and "max".
+ * for "+", "eadd", "mult", "dmult", "min", and "max".
  * <td>0</td>
  * </tr>
  * </table>
@@ -48,6 +48,7 @@ public class BundleCalculator {
 
     private enum Operation {
         OP_ADD,
+        OP_ERRADD,
         OP_SUB,
         OP_DIV,
         OP_MULT,
@@ -103,6 +104,9 @@ public class BundleCalculator {
                 case "add":
                     ops.add(new MathOp(Operation.OP_ADD, null));
                     break;
+                case "eadd":
+                    ops.add(new MathOp(Operation.OP_ERRADD, null));
+                    break;
                 case "-":
                 case "sub":
                     ops.add(new MathOp(Operation.OP_SUB, null));
@@ -330,6 +334,21 @@ public class BundleCalculator {
                             stack.push(v1.sum(v2));
                         }
                         break;
+                    case OP_ERRADD: {
+                        v1 = stack.pop();
+                        double err;
+                        if (v1 == vector) {
+                            err = 0;
+                            while (!stack.isEmpty()) {
+                                err = Math.hypot(err, stack.pop().asDouble().getDouble());
+                            }
+                        } else {
+                            v2 = stack.pop();
+                            err = Math.hypot(v1.asDouble().getDouble(), v2.asDouble().getDouble());
+                        }
+                        stack.push(ValueFactory.create(err));
+                        break;
+                    }
                     case OP_SUB:
                         v1 = stack.pop();
                         v2 = stack.pop();
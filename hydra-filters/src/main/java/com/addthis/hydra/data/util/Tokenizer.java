@@ -136,6 +136,13 @@ public class Tokenizer implements Codable {
         return group;
     }
 
+    /**
+     * @return the escape string, whose first character escapes the next one
+     */
+    public String getEscape() {
+        return escape;
+    }
+
     /**
      * @return will all fields be packed into one?
      */
@@ -83,6 +83,14 @@ public class MeshFileRefCache implements ChannelCloseListener {
         return Collections.emptySet();
     }
 
+    /**
+     * @return the number of tasks with cached references for the job, or 0 if it is not cached
+     */
+    public int getTaskCountIfPresent(String job) {
+        SetMultimap<Integer, FileReference> refMap = fileReferenceCache.getIfPresent(job);
+        return (refMap != null) ? refMap.keySet().size() : 0;
+    }
+
     public void invalidate(String job) {
         fileReferenceCache.invalidate(job);
     }
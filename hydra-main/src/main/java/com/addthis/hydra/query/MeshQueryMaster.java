@@ -30,6 +30,9 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import com.addthis.basis.util.LessStreams;
@@ -61,6 +64,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.typesafe.config.ConfigFactory;
 
@@ -108,6 +112,12 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
     private final WorkerTracker worky;
     private final DefaultTaskAllocators allocators;
 
+    /** Rows previously sent by the workers, keyed on the query and the data version of each task */
+    private final QueryResultCache resultCache;
+
+    /** Drops cached rows of jobs that completed since; null without a spawn data store */
+    @Nullable private final ScheduledExecutorService resultCacheWatcher;
+
     public MeshQueryMaster(QueryTracker tracker) throws Exception {
         this.tracker = tracker;
 
@@ -116,6 +126,7 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         PrometheusServletCreator.create(server, new ServletContextHandler());
         server.start();
         cachey = new MeshFileRefCache(meshy);
+        resultCache = new QueryResultCache();
         worky = new WorkerTracker();
         allocators = new DefaultTaskAllocators(new BalancedAllocator(worky));
         connectToMeshPeers();
@@ -134,6 +145,46 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         } else {
             spawnDataStoreHandler = null;
         }
+        if ((spawnDataStoreHandler != null) && resultCache.isEnabled()) {
+            resultCacheWatcher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("resultCacheWatcher-%d").setDaemon(true).build());
+            resultCacheWatcher.scheduleWithFixedDelay(this::checkJobVersions, QueryResultCache.jobCheckSeconds,
+                                                      QueryResultCache.jobCheckSeconds, TimeUnit.SECONDS);
+        } else {
+            resultCacheWatcher = null;
+        }
+    }
+
+    /** Drops the cached rows of every job that completed a run since they were stored. */
+    private void checkJobVersions() {
+        for (String job : resultCache.cachedJobs()) {
+            try {
+                List<String> jobIds = new ArrayList<>();
+                for (String combinedUnresolved : JOB_SPLITTER.split(job)) {
+                    for (String resolved : expandAlias(getJobWithoutSubdirectory(combinedUnresolved))) {
+                        jobIds.add(getJobWithoutSubdirectory(resolved));
+                    }
+                }
+                resultCache.jobVersion(job, jobDataVersion(jobIds));
+            } catch (Exception e) {
+                log.warn("unable to check whether job {} completed", job, e);
+            }
+        }
+    }
+
+    /**
+     * @return the end times of the last runs of the given jobs as recorded by spawn, which change
+     *         whenever one of the jobs completes a run. Empty without a spawn data store.
+     */
+    private String jobDataVersion(List<String> jobIds) {
+        if (spawnDataStoreHandler == null) {
+            return "";
+        }
+        StringBuilder version = new StringBuilder();
+        for (String jobId : jobIds) {
+            version.append(spawnDataStoreHandler.getJobEndTime(jobId)).append(',');
+        }
+        return version.toString();
     }
 
     public SpawnDataStoreHandler getSpawnDataStoreHandler() {
@@ -148,12 +199,22 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         return worky;
     }
 
+    /**
+     * @return the number of tasks of the job if its file references are cached, otherwise 0
+     */
+    public int cachedTaskCount(String job) {
+        return cachey.getTaskCountIfPresent(job);
+    }
+
     public QueryTracker getQueryTracker() {
         return tracker;
     }
 
     @Override public void close() {
         try {
+            if (resultCacheWatcher != null) {
+                resultCacheWatcher.shutdownNow();
+            }
             if (spawnDataStoreHandler != null) {
                 spawnDataStoreHandler.close();
             }
@@ -177,6 +238,7 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         String job = query.getJob();
         if (job != null) {
             cachey.invalidate(job);
+            resultCache.invalidate(job);
         }
     }
 
@@ -221,6 +283,7 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         boolean allowPartial = Boolean.valueOf(query.getParameter("allowPartial"));
         Set<Integer> tasks = parseTasks(query.getParameter("tasks"));
         List<QueryTaskSource[]> sourcesPerDir = new ArrayList<>(2);
+        List<String> resolvedJobIds = new ArrayList<>(2);
         for (String combinedUnresolved : JOB_SPLITTER.split(query.getJob())) {
             String jobIdOrAlias = getJobWithoutSubdirectory(combinedUnresolved);
             String subdirectory = getJobSubdirectory(combinedUnresolved);
@@ -234,6 +297,7 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
                 }
 
                 sourcesPerDir.add(getSourcesById(resolvedJobId, resolvedSubdirectory, allowPartial, tasks));
+                resolvedJobIds.add(resolvedJobId);
             }
         }
         QueryTaskSource[] sourcesByTaskID;
@@ -244,6 +308,14 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         }
 
         MeshSourceAggregator aggregator = new MeshSourceAggregator(sourcesByTaskID, meshy, this, remoteQuery);
+        String resultCacheKey = null;
+        if (resultCache.isEnabled()) {
+            resultCacheKey = resultCache.keyFor(query.getJob(), jobDataVersion(resolvedJobIds), remoteQuery,
+                                                sourcesByTaskID);
+        }
+        if (resultCacheKey != null) {
+            aggregator.setResultCache(resultCache, resultCacheKey);
+        }
         ctx.pipeline().addLast(ctx.executor(), "query aggregator", aggregator);
         TrackerHandler trackerHandler = new TrackerHandler(tracker, opsLog, aggregator);
         ctx.pipeline().addLast(ctx.executor(), "query tracker", trackerHandler);
@@ -319,7 +391,7 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
                 for (FileReference queryReference : sourceOptions) {
                     WorkerData workerData = worky.get(queryReference.getHostUUID());
                     taskSourceOptions[taskSourceOptionsIndex] =
-                            new QueryTaskSourceOption(queryReference, workerData.queryLeases);
+                            new QueryTaskSourceOption(queryReference, workerData);
                     taskSourceOptionsIndex += 1;
                 }
                 sourcesByTaskID[taskId] = new QueryTaskSource(taskSourceOptions);
@@ -412,7 +484,7 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         cachey.updateFileReferenceForTask(job, task, newReferences);
         FileReference cachedReplacement = newReferences.iterator().next();
         WorkerData workerData = worky.get(cachedReplacement.getHostUUID());
-        return new QueryTaskSourceOption(cachedReplacement, workerData.queryLeases);
+        return new QueryTaskSourceOption(cachedReplacement, workerData);
     }
 
     // omit empty strings so that we don't have to worry about random "//" instead of "/" or leading "/"s
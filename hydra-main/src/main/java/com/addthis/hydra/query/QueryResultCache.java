@@ -0,0 +1,327 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.nio.charset.StandardCharsets;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.io.DataChannelReader;
+import com.addthis.bundle.io.DataChannelWriter;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryEstimator;
+import com.addthis.hydra.data.query.QuerySampler;
+import com.addthis.hydra.data.query.SpillingResultCache;
+import com.addthis.hydra.query.aggregate.QueryTaskSource;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the rows that the query workers sent for a query, keyed by the query paths, the worker ops,
+ * the data version (file reference name, modification time and size) of every task that was queried
+ * and the version of the job data when the query fanned out. A repeated query against tasks whose
+ * data has not changed since is answered from the cache and only the master ops are re-run.
+ * <p/>
+ * Entries live on the heap until the heap budget is exceeded and are then spilled to a size bounded
+ * directory on local disk (see {@link SpillingResultCache}). The entries of a job are dropped as soon
+ * as its version changes (see {@link #jobVersion}).
+ */
+public class QueryResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+    private static final boolean enabled = Parameter.boolValue("qmaster.resultCache.enable", true);
+    private static final long heapBytes = Parameter.longValue("qmaster.resultCache.heapBytes", 64L << 20);
+    private static final long diskBytes = Parameter.longValue("qmaster.resultCache.diskBytes", 1L << 30);
+    private static final int maxEntryBytes = Parameter.intValue("qmaster.resultCache.maxEntryBytes", 8 << 20);
+    private static final long ttlSeconds = Parameter.longValue("qmaster.resultCache.ttlSeconds", 600);
+    private static final String diskDir = Parameter.value("qmaster.resultCache.dir", "query.resultcache");
+    /** seconds between checks for job version changes */
+    static final int jobCheckSeconds = Parameter.intValue("qmaster.resultCache.jobCheckSeconds", 30);
+
+    /** query parameter that can be set to "false" to bypass the cache for a single query */
+    public static final String QUERY_PARAMETER = "cache";
+
+    private static final Joiner KEY_JOINER = Joiner.on('\n').useForNull("");
+
+    private final SpillingResultCache cache;
+    private final int entryLimit;
+
+    /** the job version that the cached entries of a job were stored for, by job */
+    private final ConcurrentMap<String, String> versions = new ConcurrentHashMap<>();
+
+    public QueryResultCache() {
+        this(enabled ? heapBytes : 0, enabled ? diskBytes : 0, maxEntryBytes, ttlSeconds, new File(diskDir));
+    }
+
+    @VisibleForTesting
+    QueryResultCache(long heapLimit, long diskLimit, int entryLimit, long ttlSeconds, File dir) {
+        this.cache = new SpillingResultCache(QueryResultCache.class, heapLimit, diskLimit, ttlSeconds, dir);
+        this.entryLimit = entryLimit;
+    }
+
+    public boolean isEnabled() {
+        return (entryLimit > 0) && cache.isEnabled();
+    }
+
+    /**
+     * @param job       the job string the query was issued against (used for invalidation)
+     * @param version   the version of the job data at fan out, which changes whenever one of the jobs
+     *                  named by the job string completes a run. Must not contain '/'
+     * @param query     the query that will be sent to the workers
+     * @param sources   the task sources selected for the query
+     * @return a cache key for the query or null if the query should not be cached
+     */
+    @Nullable public String keyFor(String job, String version, Query query, QueryTaskSource[] sources) {
+        if (!isEnabled() || !Boolean.parseBoolean(query.getParameter(QUERY_PARAMETER, "true"))) {
+            return null;
+        }
+        StringBuilder versions = new StringBuilder();
+        for (QueryTaskSource source : sources) {
+            versions.append(source.dataVersion()).append(',');
+        }
+        String raw = KEY_JOINER.join(job,
+                                     KEY_JOINER.join(query.getPaths()),
+                                     query.getOps() != null ? KEY_JOINER.join(query.getOps()) : "",
+                                     query.getParameter("injectSource"),
+                                     QuerySampler.describe(query),
+                                     query.getParameter(QueryEstimator.EXPLAIN_PARAMETER),
+                                     versions);
+        return job + '/' + version + '/' + Hashing.sha1().hashString(raw, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Looks up the rows for key without blocking on the disk. The future completes with the cached
+     * rows, to be decoded as they are read, or with null on a miss.
+     */
+    public CompletableFuture<CachedRows> open(String key) {
+        return cache.openAsync(key).thenApply(in -> (in != null) ? new CachedRows(key, in) : null);
+    }
+
+    /** Drops every entry that was stored for the given job (as in {@link #keyFor}). */
+    public void invalidate(String job) {
+        versions.remove(job);
+        cache.invalidatePrefix(job + '/');
+    }
+
+    public void invalidateAll() {
+        versions.clear();
+        cache.invalidateAll();
+    }
+
+    /** @return the jobs (as in {@link #keyFor}) that have entries */
+    public Set<String> cachedJobs() {
+        return new HashSet<>(versions.keySet());
+    }
+
+    /**
+     * Records the current version of a job and drops its entries if they were stored for any other
+     * version.
+     *
+     * @param job     the job as in {@link #keyFor}
+     * @param version the version as in {@link #keyFor}
+     */
+    public void jobVersion(String job, String version) {
+        String previous = versions.put(job, version);
+        if ((previous != null) && !previous.equals(version)) {
+            log.debug("job {} changed from version {} to {}; invalidating its query result cache entries",
+                      job, previous, version);
+            cache.invalidatePrefix(job + '/');
+        }
+    }
+
+    /**
+     * Wraps the output that receives the worker rows of a query so that the rows are recorded for the
+     * cache. The rows are only stored when {@link Recorder#commit()} is called.
+     */
+    public Recorder record(String key, DataChannelOutput output) {
+        return new Recorder(key, output);
+    }
+
+    private void store(String key, byte[] rows) {
+        int hash = key.lastIndexOf('/');
+        int version = key.lastIndexOf('/', hash - 1);
+        jobVersion(key.substring(0, version), key.substring(version + 1, hash));
+        cache.put(key, rows);
+    }
+
+    /**
+     * The rows of an entry, decoded one at a time so that replaying an entry needs no more memory than
+     * the entry itself. An entry that cannot be decoded is dropped.
+     */
+    public final class CachedRows implements Closeable {
+
+        private final String key;
+        private final DataChannelReader reader;
+        private final boolean inMemory;
+        private volatile boolean closed;
+
+        CachedRows(String key, InputStream in) {
+            this.key = key;
+            this.reader = new DataChannelReader(new ListBundle(), in);
+            this.inMemory = in instanceof ByteArrayInputStream;
+        }
+
+        /**
+         * Decodes up to max rows, on the I/O executor of the cache unless the entry is in memory.
+         * Fewer than max rows are only returned for the last batch.
+         */
+        public CompletableFuture<List<Bundle>> read(int max) {
+            CompletableFuture<List<Bundle>> rows = new CompletableFuture<>();
+            Runnable decode = () -> {
+                try {
+                    rows.complete(nextRows(max));
+                } catch (Throwable e) {
+                    rows.completeExceptionally(e);
+                }
+            };
+            if (inMemory) {
+                decode.run();
+            } else {
+                cache.executor().execute(decode);
+            }
+            return rows;
+        }
+
+        private List<Bundle> nextRows(int max) throws IOException {
+            List<Bundle> rows = new ArrayList<>(max);
+            Bundle row;
+            while ((rows.size() < max) && ((row = next()) != null)) {
+                rows.add(row);
+            }
+            return rows;
+        }
+
+        /** @return the next row or null after the last one */
+        @Nullable public Bundle next() throws IOException {
+            try {
+                return reader.read();
+            } catch (EOFException ignored) {
+                return null;
+            } catch (IOException e) {
+                // reading a closed entry fails without the entry being at fault
+                if (!closed) {
+                    log.warn("discarding unreadable query result cache entry {}", key, e);
+                    cache.invalidate(key);
+                }
+                throw e;
+            }
+        }
+
+        @Override public void close() {
+            closed = true;
+            try {
+                reader.close();
+            } catch (IOException e) {
+                log.warn("unable to close query result cache entry {}", key, e);
+            }
+        }
+    }
+
+    /**
+     * Forwards rows to the wrapped output while encoding them. Recording silently stops once the
+     * encoded rows exceed the maximum entry size.
+     */
+    public final class Recorder implements DataChannelOutput {
+
+        private final String key;
+        private final DataChannelOutput output;
+
+        @Nullable private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        @Nullable private DataChannelWriter writer = new DataChannelWriter(buffer);
+
+        Recorder(String key, DataChannelOutput output) {
+            this.key = key;
+            this.output = output;
+        }
+
+        @Override public void send(Bundle bundle) {
+            if (writer != null) {
+                try {
+                    writer.write(bundle);
+                    if (buffer.size() > entryLimit) {
+                        abandon();
+                    }
+                } catch (IOException e) {
+                    log.warn("unable to encode row for the query result cache", e);
+                    abandon();
+                }
+            }
+            output.send(bundle);
+        }
+
+        @Override public void send(List<Bundle> bundles) {
+            for (Bundle bundle : bundles) {
+                send(bundle);
+            }
+        }
+
+        @Override public void sendComplete() {
+            output.sendComplete();
+        }
+
+        @Override public void sourceError(Throwable cause) {
+            abandon();
+            output.sourceError(cause);
+        }
+
+        @Override public Bundle createBundle() {
+            return output.createBundle();
+        }
+
+        /** Stores the recorded rows. Must only be called once every task has completed. */
+        public void commit() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                    store(key, buffer.toByteArray());
+                } catch (IOException e) {
+                    log.warn("unable to store query result cache entry {}", key, e);
+                }
+                abandon();
+            }
+        }
+
+        public void abandon() {
+            writer = null;
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.aggregate;
+
+import javax.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.addthis.meshy.ChannelMaster;
+
+/**
+ * Picks replicas by the recent behavior of their workers (see
+ * {@link com.addthis.hydra.query.loadbalance.WorkerData#score()}). For each task two options are
+ * sampled at random and the one with the better score is activated ("power of two choices"), which
+ * steers work away from slow or failing workers without sending every task to the single
+ * fastest one. If neither sampled option has a lease available the best option that does is used,
+ * and if none do the query task activates one later.
+ */
+public class AdaptiveAllocator implements TaskAllocator {
+
+    @Override
+    public void allocateTasks(QueryTaskSource[] taskSources, ChannelMaster meshy, Map<String, String> queryOptions) {
+        for (QueryTaskSource taskSource : taskSources) {
+            QueryTaskSourceOption[] options = taskSource.options;
+            if (options.length == 0) {
+                continue;
+            }
+            QueryTaskSourceOption choice = chooseOfTwo(options);
+            if (choice.tryActivate(meshy, queryOptions)) {
+                continue;
+            }
+            QueryTaskSourceOption best = bestInactive(options);
+            if (best != null) {
+                best.tryActivate(meshy, queryOptions);
+            }
+        }
+    }
+
+    static QueryTaskSourceOption chooseOfTwo(QueryTaskSourceOption[] options) {
+        if (options.length == 1) {
+            return options[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(options.length);
+        int second = random.nextInt(options.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        QueryTaskSourceOption a = options[first];
+        QueryTaskSourceOption b = options[second];
+        return (b.score() < a.score()) ? b : a;
+    }
+
+    /** @return the best scoring option that is not active and has a lease available, if any */
+    @Nullable static QueryTaskSourceOption bestInactive(QueryTaskSourceOption[] options) {
+        QueryTaskSourceOption best = null;
+        double bestScore = 0;
+        for (QueryTaskSourceOption option : options) {
+            if (option.isActive() || (option.optionLeases.availablePermits() == 0)) {
+                continue;
+            }
+            double score = option.score();
+            if ((best == null) || (score < bestScore)) {
+                best = option;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+}
@@ -27,12 +27,18 @@ public class AggregateConfig {
     public static final int FRAME_READER_READS = Parameter.intValue("meshSourceAggregator.frameReader.reads", 10000);
     // Milliseconds to wait while polling various task sources
     public static final int FRAME_READER_POLL = Parameter.intValue("meshSourceAggregator.frameReader.poll", 0);
+    // Milliseconds to wait before retrying to lease workers for tasks that have no active source
+    static final int LEASE_RETRY_MILLIS = Parameter.intValue("meshSourceAggregator.leaseRetryMillis", 10);
+    // Let workers compress the rows they send (see FrameCompression)
+    static final boolean ACCEPT_COMPRESSION = Parameter.boolValue("meshSourceAggregator.acceptCompression", true);
+    // Lower bound on the period of progressive query snapshots (see QuerySnapshot)
+    static final long SNAPSHOT_MIN_MILLIS = Parameter.longValue("meshSourceAggregator.snapshotMinMillis", 1000);
 
-    static final boolean enableStragglerCheck = Parameter.boolValue("meshSourceAggregator.enableStragglerCheck", false);
+    // Enables straggler check logic (hedged requests, see HedgePolicy).
+    static final boolean enableStragglerCheck = Parameter.boolValue("meshSourceAggregator.enableStragglerCheck", true);
 
-    // Enables straggler check logic.
-    static final int stragglerCheckPeriod = Parameter.intValue("meshSourceAggregator.stragglerCheckPeriodMillis", 1000);
     // Every 100 ms, check for stragglers
+    static final int stragglerCheckPeriod = Parameter.intValue("meshSourceAggregator.stragglerCheckPeriodMillis", 100);
     static final double stragglerCheckHostPercentage = Double.parseDouble(Parameter.value("meshSourceAggregator.stragglerCheckHostPercentage", ".2"));
     // alternate straggler method
     static final boolean useStdDevStragglers = Parameter.boolValue("meshSourceAggregator.useStdDevStraggles", false);
@@ -47,5 +53,15 @@ public class AggregateConfig {
     /* metrics */
     static final Counter totalQueries = Metrics.newCounter(MeshSourceAggregator.class, "totalQueries");
     static final Counter totalStragglerCheckerRequests = Metrics.newCounter(MeshSourceAggregator.class, "totalStragglerCheckerRequests");
+    // hedges whose replica responded before the original
+    static final Counter totalHedgeWins = Metrics.newCounter(MeshSourceAggregator.class, "totalHedgeWins");
+    // hedges cancelled because the original responded first
+    static final Counter totalHedgeLosses = Metrics.newCounter(MeshSourceAggregator.class, "totalHedgeLosses");
+    // hedges not sent because the hedge budget was used up
+    static final Counter totalHedgesDenied = Metrics.newCounter(MeshSourceAggregator.class, "totalHedgesDenied");
+    // time spent by the losing replica of hedged tasks before it was cancelled
+    static final Counter hedgeWastedMillis = Metrics.newCounter(MeshSourceAggregator.class, "hedgeWastedMillis");
+    // snapshots sent by progressive queries
+    static final Counter totalSnapshots = Metrics.newCounter(MeshSourceAggregator.class, "totalSnapshots");
     static final Counter totalRetryRequests = Metrics.newCounter(MeshSourceAggregator.class, "totalRetryRequests");
 }
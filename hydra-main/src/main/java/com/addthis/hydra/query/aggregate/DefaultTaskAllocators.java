@@ -28,11 +28,16 @@ public final class DefaultTaskAllocators {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultTaskAllocators.class);
 
-    private static final String DEFAULT_ALLOCATOR = Parameter.value("hydra.query.tasks.allocator", "balanced");
+    /**
+     * Allocator used unless a query names one with its "allocator" parameter: "adaptive" (the
+     * default), "balanced", "lazy", "parallel" or "legacy".
+     */
+    private static final String DEFAULT_ALLOCATOR = Parameter.value("hydra.query.tasks.allocator", "adaptive");
 
     private static final TaskAllocator PARALLEL_ALLOCATOR = new ParallelAllocator();
     private static final TaskAllocator PER_QUERY_RR_ALLOCATOR = new PerQueryRRAllocator();
     private static final TaskAllocator LAZY_ALLOCATOR = new LazyAllocator();
+    private static final TaskAllocator ADAPTIVE_ALLOCATOR = new AdaptiveAllocator();
 
     private final BalancedAllocator balancedAllocator;
 
@@ -52,6 +57,9 @@ public final class DefaultTaskAllocators {
             case "lazy":
                 LAZY_ALLOCATOR.allocateTasks(taskSources, meshy, queryOptions);
                 break;
+            case "adaptive":
+                ADAPTIVE_ALLOCATOR.allocateTasks(taskSources, meshy, queryOptions);
+                break;
             case "balanced":
                 balancedAllocator.allocateTasks(taskSources, meshy, queryOptions);
                 break;
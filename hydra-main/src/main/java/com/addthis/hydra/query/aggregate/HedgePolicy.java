@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.aggregate;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import com.yammer.metrics.stats.ExponentiallyDecayingSample;
+import com.yammer.metrics.stats.Sample;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * When to send a duplicate ("hedged") request for a task to another replica, and how many.
+ * <p/>
+ * For every job the time from activating a task option to its first frame is sampled. A task that
+ * has been waiting longer than a high percentile of that distribution is hedged. Hedges are paid
+ * for from a budget shared by all queries: every task queried earns a fraction of a hedge, so
+ * hedging adds at most that fraction of extra task queries on top of a small burst allowance.
+ */
+final class HedgePolicy {
+
+    /** percentile of a job's response times a task has to exceed to be hedged */
+    static final double PERCENTILE = Double.parseDouble(Parameter.value("meshSourceAggregator.hedge.percentile", ".95"));
+    /** extra task queries allowed for hedging, as a fraction of all task queries */
+    static final double BUDGET = Double.parseDouble(Parameter.value("meshSourceAggregator.hedge.budget", ".05"));
+    /** hedges that may be saved up while queries are not hedging */
+    static final double BURST = Double.parseDouble(Parameter.value("meshSourceAggregator.hedge.burst", "20"));
+    /** response times needed for a job before its percentile is trusted */
+    static final int MIN_SAMPLES = Parameter.intValue("meshSourceAggregator.hedge.minSamples", 20);
+    /** never hedge a task sooner than this */
+    static final long MIN_DELAY_MILLIS = Parameter.longValue("meshSourceAggregator.hedge.minDelayMillis", 50);
+
+    private static final Cache<String, Sample> responseTimes =
+            CacheBuilder.newBuilder()
+                        .maximumSize(Parameter.intValue("meshSourceAggregator.hedge.jobs", 1000))
+                        .expireAfterAccess(1, TimeUnit.HOURS)
+                        .build();
+
+    // guarded by HedgePolicy.class
+    private static double budget = BURST;
+
+    private HedgePolicy() {
+    }
+
+    /** @return the response times of tasks of the given job, shared by all of its queries */
+    static Sample responseTimes(String job) {
+        try {
+            return responseTimes.get(job, () -> new ExponentiallyDecayingSample(1028, 0.015));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return how long a task may wait for its first frame before it is hedged, or -1 if there are
+     *         too few samples to tell
+     */
+    static long hedgeDelay(Sample samples) {
+        Snapshot snapshot = samples.getSnapshot();
+        if (snapshot.size() < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(MIN_DELAY_MILLIS, (long) snapshot.getValue(PERCENTILE));
+    }
+
+    /** Earns budget for tasks queried. */
+    static synchronized void deposit(int tasks) {
+        budget = Math.min(BURST, budget + (tasks * BUDGET));
+    }
+
+    /** @return true if a hedge may be sent, in which case it is paid for */
+    static synchronized boolean tryWithdraw() {
+        if (budget < 1) {
+            AggregateConfig.totalHedgesDenied.inc();
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    /** Returns a withdrawn hedge that could not be sent. */
+    static synchronized void refund() {
+        budget = Math.min(BURST, budget + 1);
+    }
+
+    @VisibleForTesting
+    static synchronized void resetBudget(double value) {
+        budget = value;
+    }
+}
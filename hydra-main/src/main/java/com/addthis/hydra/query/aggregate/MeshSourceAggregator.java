@@ -13,7 +13,10 @@
  */
 package com.addthis.hydra.query.aggregate;
 
+import javax.annotation.Nullable;
+
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -21,17 +24,25 @@ import java.util.concurrent.TimeUnit;
 import com.addthis.basis.util.JitterClock;
 
 import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.codec.json.CodecJSON;
+import com.addthis.hydra.data.query.FrameCompression;
 import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryOpProcessor;
 import com.addthis.hydra.query.MeshQueryMaster;
+import com.addthis.hydra.query.QueryResultCache;
 import com.addthis.hydra.data.util.BundleUtils;
 import com.addthis.meshy.ChannelMaster;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 
+import com.yammer.metrics.stats.Sample;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -51,17 +62,36 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
     final Map<String, String> queryOptions;
     final MeshQueryMaster meshQueryMaster;
     final Query query;
+    final Sample responseTimes;
+    // progressive results (see QuerySnapshot), 0 when disabled
+    final int snapshotSeconds;
+    final int snapshotTasks;
 
     // set when added to a pipeline
     EventExecutor executor;
+    @Nullable Channel channel;
+    ChannelHandlerContext ctx;
 
     // set when write (query) is called
     ChannelProgressivePromise queryPromise;
     DataChannelOutput consumer;
-    Runnable queryTask;
+    volatile QueryTask queryTask;
+    @Nullable QueryOpProcessor processor;
+    // reads rows into the consumer; the query task, or the replay of cached rows
+    Runnable readTask;
+
+    // optionally set before the aggregator is added to a pipeline
+    @Nullable QueryResultCache resultCache;
+    @Nullable String resultCacheKey;
+    @Nullable QueryResultCache.Recorder resultRecorder;
+    @Nullable QueryResultCache.CachedRows cachedRows;
 
     // optionally set near the end of write
     ScheduledFuture<?> stragglerTaskFuture;
+    ScheduledFuture<?> snapshotFuture;
+
+    // input rows of the master ops at the last snapshot
+    long snapshotRows = -1;
 
     boolean channelWritable;
     boolean needScheduling;
@@ -88,6 +118,39 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
 
         queryOptions = new HashMap<>();
         queryOptions.put("query", CodecJSON.encodeString(query));
+        if (AggregateConfig.ACCEPT_COMPRESSION) {
+            queryOptions.put(FrameCompression.OPTION, FrameCompression.CODEC);
+        }
+        snapshotSeconds = QuerySnapshot.parse(query.getParameter(QuerySnapshot.PERIOD_PARAMETER));
+        snapshotTasks = QuerySnapshot.parse(query.getParameter(QuerySnapshot.TASKS_PARAMETER));
+        responseTimes = HedgePolicy.responseTimes(String.valueOf(query.getJob()));
+        for (QueryTaskSource taskSource : taskSources) {
+            taskSource.responseTimes = responseTimes;
+            for (QueryTaskSourceOption option : taskSource.options) {
+                option.frameListener = () -> sourceReady(taskSource);
+            }
+        }
+    }
+
+    /**
+     * Called from meshy threads whenever a frame arrives for one of the options of a task. Wakes up
+     * the query task unless it is already scheduled.
+     */
+    void sourceReady(QueryTaskSource taskSource) {
+        taskSource.setReady();
+        QueryTask task = queryTask;
+        if (task != null) {
+            task.wakeup();
+        }
+    }
+
+    /**
+     * Answer the query from the given cache if it holds rows for the key, and otherwise record the
+     * rows sent by the workers into the cache once every task has completed.
+     */
+    public void setResultCache(QueryResultCache resultCache, String resultCacheKey) {
+        this.resultCache = resultCache;
+        this.resultCacheKey = resultCacheKey;
     }
 
     @Override
@@ -95,15 +158,18 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
         if (msg instanceof DataChannelOutput) {
             queryPromise = (ChannelProgressivePromise) promise;
             consumer = (DataChannelOutput) msg;
+            if (msg instanceof QueryOpProcessor) {
+                processor = (QueryOpProcessor) msg;
+            }
             AggregateConfig.totalQueries.inc();
             queryPromise.addListener(this);
-            meshQueryMaster.allocators().allocateQueryTasks(query, taskSources, meshy, queryOptions);
-            queryTask = new QueryTask(this);
-            if (ctx.channel().isWritable()) {
-                channelWritable = true;
-                executor.execute(queryTask);
+            if (resultCacheKey != null) {
+                // a lookup may have to open a file, which is left to the cache so the event loop never blocks
+                resultCache.open(resultCacheKey).whenComplete(
+                        (rows, error) -> executor.execute(() -> startFromCache(rows, error)));
+                return;
             }
-            maybeScheduleStragglerChecks();
+            startQuery();
         } else if (msg instanceof DetailedStatusTask) {
             DetailedStatusTask task = (DetailedStatusTask) msg;
             task.run(this);
@@ -112,9 +178,95 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
         }
     }
 
+    private void startQuery() {
+        meshQueryMaster.allocators().allocateQueryTasks(query, taskSources, meshy, queryOptions);
+        HedgePolicy.deposit(totalTasks);
+        queryTask = new QueryTask(this);
+        readTask = queryTask;
+        startReading();
+        maybeScheduleStragglerChecks();
+        maybeScheduleSnapshots();
+    }
+
+    /**
+     * Replays the cached rows on a hit, and otherwise queries the workers while recording their rows.
+     * A failed lookup counts as a miss.
+     */
+    private void startFromCache(@Nullable QueryResultCache.CachedRows rows, @Nullable Throwable error) {
+        if (error != null) {
+            log.warn("result cache lookup failed for query {}", query.uuid(), error);
+        }
+        if (queryPromise.isDone()) {
+            if (rows != null) {
+                rows.close();
+            }
+            return;
+        }
+        try {
+            if (rows != null) {
+                cachedRows = rows;
+                readTask = this::replayCachedRows;
+                startReading();
+            } else {
+                resultRecorder = resultCache.record(resultCacheKey, consumer);
+                consumer = resultRecorder;
+                startQuery();
+            }
+        } catch (Throwable e) {
+            queryPromise.tryFailure(e);
+        }
+    }
+
+    private void startReading() {
+        if (ctx.channel().isWritable()) {
+            channelWritable = true;
+            executor.execute(readTask);
+        } else {
+            needScheduling = true;
+        }
+    }
+
+    /**
+     * Sends cached rows in place of the rows of the workers. The rows are decoded by the cache a batch
+     * at a time, off the event loop, and like the query task the replay pauses while the client is not
+     * keeping up.
+     */
+    private void replayCachedRows() {
+        cachedRows.read(AggregateConfig.FRAME_READER_READS).whenComplete(
+                (rows, error) -> executor.execute(() -> sendCachedRows(rows, error)));
+    }
+
+    private void sendCachedRows(@Nullable List<Bundle> rows, @Nullable Throwable error) {
+        if (queryPromise.isDone()) {
+            return;
+        }
+        if (error != null) {
+            queryPromise.tryFailure(error);
+            return;
+        }
+        try {
+            for (Bundle row : rows) {
+                consumer.send(row);
+            }
+            queryPromise.tryProgress(0, rows.size());
+            if (rows.size() < AggregateConfig.FRAME_READER_READS) {
+                queryPromise.trySuccess();
+            } else if (isChannelWritable()) {
+                executor.execute(readTask);
+            } else {
+                channelWritable = false;
+                needScheduling = true;
+            }
+        } catch (Throwable e) {
+            queryPromise.tryFailure(e);
+        }
+    }
+
     @Override
     public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
         executor = ctx.executor();
+        channel = ctx.channel();
     }
 
     void maybeScheduleStragglerChecks() {
@@ -127,6 +279,84 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
         }
     }
 
+    void maybeScheduleSnapshots() {
+        if ((snapshotSeconds > 0) && (processor != null) && processor.canSnapshot()) {
+            long period = Math.max(AggregateConfig.SNAPSHOT_MIN_MILLIS, TimeUnit.SECONDS.toMillis(snapshotSeconds));
+            snapshotFuture = executor.scheduleWithFixedDelay(this::snapshot, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called by the query task after it has seen tasks complete. Sends a snapshot every time another
+     * "progressiveTasks" tasks have completed.
+     */
+    void tasksCompleted(int completedBefore) {
+        if ((snapshotTasks > 0) && ((completed / snapshotTasks) > (completedBefore / snapshotTasks))) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Writes the rows the master ops would emit if the query ended now, framed by a {@link QuerySnapshot}
+     * and {@link QuerySnapshot#END}. Skipped while the client is not keeping up, once every task has
+     * completed, or if no rows arrived since the last snapshot. Runs on the executor of the query task.
+     */
+    void snapshot() {
+        if ((processor == null) || queryPromise.isDone() || (completed >= totalTasks) || !isChannelWritable()) {
+            return;
+        }
+        long inputRows = processor.getInputRows();
+        if (inputRows == snapshotRows) {
+            return;
+        }
+        snapshotRows = inputRows;
+        ctx.write(new QuerySnapshot(completed, totalTasks), ctx.voidPromise());
+        try {
+            processor.snapshot(new SnapshotOutput());
+            AggregateConfig.totalSnapshots.inc();
+        } catch (Throwable e) {
+            // the final results do not depend on snapshots, so just stop sending them
+            log.warn("stopping snapshots of query {} after error", query.uuid(), e);
+            processor = null;
+            if (snapshotFuture != null) {
+                snapshotFuture.cancel(false);
+            }
+        } finally {
+            ctx.write(QuerySnapshot.END, ctx.voidPromise());
+            ctx.flush();
+        }
+    }
+
+    /** Writes the rows of a snapshot down the pipeline ahead of the final rows. */
+    private class SnapshotOutput implements DataChannelOutput {
+
+        @Override
+        public void send(Bundle row) {
+            ctx.write(row, ctx.voidPromise());
+        }
+
+        @Override
+        public void send(List<Bundle> rows) {
+            for (Bundle row : rows) {
+                send(row);
+            }
+        }
+
+        @Override
+        public void sendComplete() {
+        }
+
+        @Override
+        public void sourceError(Throwable er) {
+            log.warn("error in snapshot of query {}", query.uuid(), er);
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return new ListBundle();
+        }
+    }
+
     void stopSources(String message) {
         for (QueryTaskSource taskSource : taskSources) {
             taskSource.cancelAllActiveOptions(message);
@@ -156,11 +386,15 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
      */
     boolean replaceQuerySource(QueryTaskSource taskSource) throws Exception {
         QueryTaskSourceOption option = taskSource.getSelectedSource();
+        if (option != null) {
+            option.failed();
+        }
         taskSource.reset();
         // Invoked when a cached FileReference throws an IO Exception
         // Get a fresh FileReference and make a new QuerySource with that FileReference
         //      and the same parameters otherwise
         QueryTaskSourceOption newOption = meshQueryMaster.getReplacementQueryTaskOption(option.queryReference);
+        newOption.frameListener = () -> sourceReady(taskSource);
         for (int i = 0; i < taskSource.options.length; i++) {
             if (taskSource.options[i] == option) {
                 taskSource.options[i] = newOption;
@@ -176,11 +410,24 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
         if (stragglerTaskFuture != null) {
             stragglerTaskFuture.cancel(true);
         }
+        if (snapshotFuture != null) {
+            snapshotFuture.cancel(false);
+        }
+        if (cachedRows != null) {
+            cachedRows.close();
+        }
         if (future.isSuccess()) {
             safelyRemoveSelfFromPipeline(future);
             stopSources("query is complete");
+            // a query that was completed early by the master ops has not seen every row
+            if ((resultRecorder != null) && (completed == totalTasks)) {
+                resultRecorder.commit();
+            }
             consumer.sendComplete();
         } else {
+            if (resultRecorder != null) {
+                resultRecorder.abandon();
+            }
             stopSources(future.cause().getMessage());
             consumer.sourceError(BundleUtils.promoteHackForThrowables(future.cause()));
             if (!future.isCancelled()) {
@@ -197,11 +444,22 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
         }
     }
 
+    /**
+     * @return false while the client is not keeping up with the rows already written. Checked by the
+     *         query task between rows, so that reading from the task sources (and through them the
+     *         workers) pauses until {@link #channelWritabilityChanged} resumes it.
+     */
+    boolean isChannelWritable() {
+        return (channel != null) ? channel.isWritable() : channelWritable;
+    }
+
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         channelWritable = ctx.channel().isWritable();
         if (channelWritable && needScheduling) {
-            executor.execute(queryTask);
+            needScheduling = false;
+            executor.execute(readTask);
         }
+        ctx.fireChannelWritabilityChanged();
     }
 }
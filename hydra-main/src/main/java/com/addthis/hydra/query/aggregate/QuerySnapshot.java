@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.aggregate;
+
+import javax.annotation.Nullable;
+
+/**
+ * Written down the pipeline by the {@link MeshSourceAggregator} of a progressive query around the
+ * rows of a snapshot: a snapshot message, the rows the master ops would emit if every task had
+ * already completed, and then {@link #END}. The final rows of the query follow the last snapshot
+ * as usual and replace it.
+ * <p/>
+ * A query is progressive if it sets the parameter "progressive" to the seconds between snapshots
+ * and/or "progressiveTasks" to the number of completed tasks between snapshots. Snapshots are only
+ * possible when the master ops start with a gather.
+ */
+public final class QuerySnapshot {
+
+    public static final String PERIOD_PARAMETER = "progressive";
+    public static final String TASKS_PARAMETER = "progressiveTasks";
+
+    /** ends the rows of a snapshot */
+    public static final Object END = new Object();
+
+    public final int completedTasks;
+    public final int totalTasks;
+
+    public QuerySnapshot(int completedTasks, int totalTasks) {
+        this.completedTasks = completedTasks;
+        this.totalTasks = totalTasks;
+    }
+
+    /** @return true if the parameters of a query ask for progressive results */
+    public static boolean requested(@Nullable String period, @Nullable String tasks) {
+        return (parse(period) > 0) || (parse(tasks) > 0);
+    }
+
+    /** @return the positive integer value of a parameter, or 0 */
+    static int parse(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException ignored) {
+            return 0;
+        }
+    }
+}
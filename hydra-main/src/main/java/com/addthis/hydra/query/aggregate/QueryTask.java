@@ -22,6 +22,7 @@ import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import com.addthis.bundle.core.Bundle;
@@ -36,52 +37,75 @@ import com.google.common.primitives.Ints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Reads the bundles of all task sources of a query on the aggregator's event loop. The task does not
+ * poll: it runs when frames arrive for one of the sources (see {@link MeshSourceAggregator#sourceReady}),
+ * only reads the sources that were marked ready, and only schedules itself on a timer while some tasks
+ * are still waiting for a worker lease.
+ */
 public class QueryTask implements Runnable {
 
     static final Logger log = LoggerFactory.getLogger(QueryTask.class);
 
     private final MeshSourceAggregator sourceAggregator;
 
-    private int pollFailures = 0;
     @Nullable final AutoField sourceField;
+    private final int maxSimul;
     private final Supplier<List<QueryTaskSource>> queryTaskSourceSupplier;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
 
     public QueryTask(MeshSourceAggregator sourceAggregator) {
         this.sourceAggregator = sourceAggregator;
         this.sourceField = getSourceField(sourceAggregator.query);
+        this.maxSimul = getMaxSimul(sourceAggregator.query.getParameter("maxSimul"), sourceAggregator.totalTasks);
         this.queryTaskSourceSupplier = createQueryTaskSourceSupplier(sourceAggregator);
     }
 
+    /** Schedules this task unless a wakeup is already pending. Safe to call from any thread. */
+    void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            sourceAggregator.executor.execute(this);
+        }
+    }
+
     @Override
     public void run() {
+        // frames that arrive from here on schedule another run
+        wakeupPending.set(false);
         try {
             if (sourceAggregator.queryPromise.isDone()) {
                 return;
             }
             // channel is not currently writable, so return immediately and get rescheduled later
-            if (!sourceAggregator.channelWritable) {
-                sourceAggregator.needScheduling = true;
+            if (!sourceAggregator.isChannelWritable()) {
+                pauseUntilWritable();
                 return;
             }
             // NOTE: both provider and readBundles update sourceAggregator.completed
             List<QueryTaskSource> taskSources = queryTaskSourceSupplier.get();
+            int completedBefore = sourceAggregator.completed;
             int bundlesProcessed = readBundles(taskSources, AggregateConfig.FRAME_READER_READS);
             if (bundlesProcessed > 0) {
                 sourceAggregator.queryPromise.tryProgress(0, bundlesProcessed);
             }
+            if ((sourceAggregator.completed > completedBefore)
+                && (sourceAggregator.completed < sourceAggregator.totalTasks)) {
+                sourceAggregator.tasksCompleted(completedBefore);
+            }
             if (sourceAggregator.completed == sourceAggregator.totalTasks) {
                 if (!sourceAggregator.queryPromise.trySuccess()) {
                     log.warn("Tried to complete queryPromise {} , but failed", sourceAggregator.queryPromise);
                 }
-            } else {
-                if (bundlesProcessed > 0) {
-                    pollFailures = 0;
-                    sourceAggregator.executor.execute(this);
-                } else {
-                    pollFailures += 1;
-                    rescheduleSelfWithBackoff();
-                }
+            } else if (!sourceAggregator.isChannelWritable()) {
+                pauseUntilWritable();
+            } else if ((bundlesProcessed >= AggregateConfig.FRAME_READER_READS)
+                       || (sourceAggregator.completed > completedBefore)) {
+                // yielded with frames left to read, or finished tasks made room for others to be activated
+                sourceAggregator.executor.execute(this);
+            } else if (awaitingLeases(taskSources)) {
+                sourceAggregator.executor.schedule(this, AggregateConfig.LEASE_RETRY_MILLIS, TimeUnit.MILLISECONDS);
             }
+            // otherwise the next frame wakes this task up
         } catch (Throwable e) {
             if (!sourceAggregator.queryPromise.tryFailure(e)) {
                 log.warn("Tried to fail queryPromise {} , but failed", sourceAggregator.queryPromise, e);
@@ -89,11 +113,17 @@ public class QueryTask implements Runnable {
         }
     }
 
+    /** the aggregator runs this task again once the channel is writable */
+    private void pauseUntilWritable() {
+        sourceAggregator.channelWritable = false;
+        sourceAggregator.needScheduling = true;
+    }
+
     private int readBundles(List<QueryTaskSource> taskSources, int maxReads) throws Exception {
         int bundlesProcessed = 0;
         int complete = 0;
         boolean processedBundle = true;
-        while (processedBundle && (bundlesProcessed < maxReads)) {
+        while (processedBundle && (bundlesProcessed < maxReads) && sourceAggregator.isChannelWritable()) {
             complete = 0;
             processedBundle = false;
             for (QueryTaskSource taskSource : taskSources) {
@@ -102,8 +132,10 @@ public class QueryTask implements Runnable {
                     continue;
                 }
                 try {
-                    Bundle nextBundle = taskSource.next();
+                    Bundle nextBundle = taskSource.takeReady() ? taskSource.next() : null;
                     if (nextBundle != null) {
+                        // there may be more frames queued behind this one
+                        taskSource.setReady();
                         maybeInjectSourceField(nextBundle, taskSource);
                         sourceAggregator.consumer.send(nextBundle);
                         processedBundle = true;
@@ -130,6 +162,17 @@ public class QueryTask implements Runnable {
         return bundlesProcessed;
     }
 
+    /** @return true if fewer tasks are active than could be, because leases were not available */
+    private boolean awaitingLeases(List<QueryTaskSource> taskSources) {
+        int active = 0;
+        for (QueryTaskSource taskSource : taskSources) {
+            if (!taskSource.complete() && isActivated(taskSource)) {
+                active++;
+            }
+        }
+        return active < Math.min(maxSimul, sourceAggregator.totalTasks - sourceAggregator.completed);
+    }
+
     private static boolean isActivated(QueryTaskSource taskSource) {
         return taskSource.oneHasResponded() || !taskSource.hasNoActiveSources();
     }
@@ -140,25 +183,8 @@ public class QueryTask implements Runnable {
         }
     }
 
-    private void rescheduleSelfWithBackoff() {
-        if (pollFailures <= 25) {
-            sourceAggregator.executor.execute(this);
-        } else if (pollFailures <= 150) {
-            sourceAggregator.executor.schedule(this, 1, TimeUnit.MILLISECONDS);
-        } else if (pollFailures <= 200) { // 125 ms - 625 ms
-            sourceAggregator.executor.schedule(this, 10, TimeUnit.MILLISECONDS);
-        } else if (pollFailures <= 250) { // 625 ms - 1875 ms
-            sourceAggregator.executor.schedule(this, 25, TimeUnit.MILLISECONDS);
-        } else { // > 1.875 seconds
-            sourceAggregator.executor.schedule(this, 100, TimeUnit.MILLISECONDS);
-        }
-    }
-
     private Supplier<List<QueryTaskSource>> createQueryTaskSourceSupplier(MeshSourceAggregator sourceAggregator) {
-        Query query = sourceAggregator.query;
-        int totalTasks = sourceAggregator.totalTasks;
-        int maxSimul = getMaxSimul(query.getParameter("maxSimul"), totalTasks);
-        if (maxSimul == totalTasks) {
+        if (maxSimul == sourceAggregator.totalTasks) {
             return new DefaultQueryTaskSourceSupplier(sourceAggregator);
         } else {
             return new MaxSimulQueryTaskSourceSupplier(sourceAggregator, maxSimul);
@@ -18,8 +18,13 @@ import javax.annotation.Nullable;
 
 import java.io.IOException;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.addthis.bundle.channel.DataChannelError;
 import com.addthis.bundle.core.Bundle;
+import com.addthis.meshy.service.file.FileReference;
+
+import com.yammer.metrics.stats.Sample;
 
 public class QueryTaskSource {
 
@@ -30,6 +35,18 @@ public class QueryTaskSource {
 
     protected TaskChannelReader dataChannelReader;
 
+    /** response times of the tasks of this job; set by the aggregator that owns this task */
+    @Nullable Sample responseTimes;
+
+    /** set once a duplicate request has been sent for this task */
+    boolean hedged;
+
+    /**
+     * Set when a frame may have arrived for one of the options since the last read found none. Starts
+     * out set so that every task is checked once.
+     */
+    private final AtomicBoolean ready = new AtomicBoolean(true);
+
     public QueryTaskSource(QueryTaskSourceOption[] options) {
         this.options = options;
     }
@@ -73,6 +90,21 @@ public class QueryTaskSource {
         return bundle;
     }
 
+    /** Marks this task as having (possibly) unread frames. Safe to call from any thread. */
+    public void setReady() {
+        ready.set(true);
+    }
+
+    /**
+     * Clears the ready mark. Must be called before reading so that a frame that arrives during the read
+     * marks the task again.
+     *
+     * @return true if the task was marked ready
+     */
+    public boolean takeReady() {
+        return ready.getAndSet(false);
+    }
+
     /** Whether this task has any currently active sources. This may be false either if no option was ever
      *  activated or if this task is complete. */
     public boolean hasNoActiveSources() {
@@ -92,6 +124,24 @@ public class QueryTaskSource {
         }
     }
 
+    /**
+     * @return a string that changes whenever the data behind this task changes: the name, modification
+     *         time and size of the newest file reference among the options, or "" if there are none
+     */
+    public String dataVersion() {
+        FileReference newest = null;
+        for (QueryTaskSourceOption option : options) {
+            FileReference reference = option.queryReference;
+            if ((newest == null) || (reference.lastModified > newest.lastModified)) {
+                newest = reference;
+            }
+        }
+        if (newest == null) {
+            return "";
+        }
+        return newest.name + '@' + newest.lastModified + ':' + newest.size;
+    }
+
     public QueryTaskSourceOption getSelectedSource() {
         if (oneHasResponded()) {
             return dataChannelReader.sourceOption;
@@ -103,6 +153,8 @@ public class QueryTaskSource {
         cancelAllActiveOptions("resetting task source");
         lines = 0;
         dataChannelReader = null;
+        hedged = false;
+        setReady();
     }
 
     private void createReader(QueryTaskSourceOption readySourceOption) {
@@ -121,6 +173,10 @@ public class QueryTaskSource {
     private void cancelOtherActiveOptions(QueryTaskSourceOption selectedOption) {
         for (QueryTaskSourceOption option : options) {
             if ((option != selectedOption) && option.isActive()) {
+                long millis = option.lostRace();
+                if (hedged) {
+                    AggregateConfig.hedgeWastedMillis.inc(millis);
+                }
                 option.cancel("Another source option responded first");
             }
         }
@@ -129,6 +185,10 @@ public class QueryTaskSource {
     private boolean checkForReadyOption() {
         QueryTaskSourceOption readyOption = getReadyOption();
         if (readyOption != null) {
+            long millis = readyOption.responded();
+            if ((responseTimes != null) && (millis >= 0)) {
+                responseTimes.update(millis);
+            }
             cancelOtherActiveOptions(readyOption);
             createReader(readyOption);
             return true;
@@ -20,6 +20,7 @@ import java.util.Map;
 import java.util.concurrent.Semaphore;
 
 import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.query.loadbalance.WorkerData;
 import com.addthis.meshy.ChannelMaster;
 import com.addthis.meshy.service.file.FileReference;
 import com.addthis.meshy.service.stream.StreamSource;
@@ -33,12 +34,37 @@ public class QueryTaskSourceOption {
 
     public final FileReference queryReference;
     public final Semaphore optionLeases;
+    /** the worker holding the file, told how this option performed; null if not tracked */
+    @Nullable public final WorkerData worker;
 
     @Nullable StreamSource streamSource;
 
+    /** run whenever a message for this option arrives; set by the aggregator that owns the option */
+    @Nullable Runnable frameListener;
+
+    /** set if this option was activated as a duplicate of a task that was slow to respond */
+    boolean hedge;
+
+    private long activatedAt;
+
     public QueryTaskSourceOption(FileReference queryReference, Semaphore optionLeases) {
+        this(queryReference, optionLeases, null);
+    }
+
+    public QueryTaskSourceOption(FileReference queryReference, WorkerData worker) {
+        this(queryReference, worker.queryLeases, worker);
+    }
+
+    private QueryTaskSourceOption(FileReference queryReference, Semaphore optionLeases,
+                                  @Nullable WorkerData worker) {
         this.queryReference = queryReference;
         this.optionLeases = optionLeases;
+        this.worker = worker;
+    }
+
+    /** @return the score of the worker holding this option (see {@link WorkerData#score()}), lower is better */
+    public double score() {
+        return (worker != null) ? worker.score() : 0;
     }
 
     public boolean tryActivate(ChannelMaster meshy, Map<String, String> queryOptions) {
@@ -52,14 +78,20 @@ public class QueryTaskSourceOption {
 
     private void activate(ChannelMaster meshy, Map<String, String> queryOptions) {
         try {
-            streamSource = new StreamSource(meshy, queryReference.getHostUUID(),
-                                            queryReference.getHostUUID(), queryReference.name, queryOptions, 0);
+            streamSource = new NotifyingStreamSource(meshy, queryReference.getHostUUID(),
+                                                     queryReference.getHostUUID(), queryReference.name,
+                                                     queryOptions, 0, frameListener);
         } catch (Throwable e) {
             log.warn("Error getting query handle for fileReference: {}/{}",
                      queryReference.getHostUUID(), queryReference.name, e);
             optionLeases.release();
             throw new QueryException(e);
         }
+        activatedAt = System.currentTimeMillis();
+        // frames that arrived before the listener was attached
+        if (frameListener != null) {
+            frameListener.run();
+        }
     }
 
     public boolean isActive() {
@@ -73,6 +105,54 @@ public class QueryTaskSourceOption {
         return false;
     }
 
+    /** @return milliseconds since this option was activated, or -1 if it is not active */
+    long activeMillis() {
+        return isActive() ? (System.currentTimeMillis() - activatedAt) : -1;
+    }
+
+    /**
+     * Called when this option is the first of its task to send a frame.
+     *
+     * @return milliseconds from activation to the first frame, or -1 if not active
+     */
+    long responded() {
+        long millis = activeMillis();
+        if (millis >= 0) {
+            if (worker != null) {
+                worker.recordResponse(millis);
+            }
+            if (hedge) {
+                AggregateConfig.totalHedgeWins.inc();
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Called when this option is cancelled because another option of its task responded first.
+     *
+     * @return milliseconds this option was active without responding, or -1 if not active
+     */
+    long lostRace() {
+        long millis = activeMillis();
+        if (millis >= 0) {
+            if (worker != null) {
+                worker.recordNoResponse(millis);
+            }
+            if (hedge) {
+                AggregateConfig.totalHedgeLosses.inc();
+            }
+        }
+        return millis;
+    }
+
+    /** Called when reading from this option failed. */
+    void failed() {
+        if (worker != null) {
+            worker.recordFailure();
+        }
+    }
+
     /** The message is currently a no-op, but is left in to make it easier to support later and because
      *  it is handy for self-documenting-like calls. */
     public void cancel(String message) {
@@ -82,6 +162,7 @@ public class QueryTaskSourceOption {
                 log.debug("lease dropped for {} with reason {}", queryReference.getHostUUID(), message);
                 streamSource.requestClose();
                 streamSource = null;
+                hedge = false;
             }
         } catch (Exception e) {
             log.warn("Exception canceling sourceInputStream for {}", queryReference, e);
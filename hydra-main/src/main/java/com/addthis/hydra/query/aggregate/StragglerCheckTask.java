@@ -21,6 +21,14 @@ import com.addthis.hydra.data.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Sends duplicate requests ("hedges") for tasks that are slow to respond. Once enough response times
+ * are known for the job, a task is hedged when it has waited longer than their
+ * {@link HedgePolicy#PERCENTILE percentile}; until then the last tasks of a query are hedged when
+ * the query runs long compared to the tasks that have completed. Each task is hedged at most once,
+ * to the best scoring replica, and only while the {@link HedgePolicy hedge budget} allows. Whichever
+ * replica sends a frame first is kept and the other is cancelled.
+ */
 class StragglerCheckTask implements Runnable {
 
     static final Logger log = LoggerFactory.getLogger(StragglerCheckTask.class);
@@ -37,7 +45,10 @@ class StragglerCheckTask implements Runnable {
             return;
         }
         try {
-            if (AggregateConfig.useStdDevStragglers) {
+            long hedgeDelay = HedgePolicy.hedgeDelay(sourceAggregator.responseTimes);
+            if (hedgeDelay >= 0) {
+                checkForSlowTasks(hedgeDelay);
+            } else if (AggregateConfig.useStdDevStragglers) {
                 checkForStragglersStdDev();
             } else {
                 checkForStragglersMeans();
@@ -47,6 +58,20 @@ class StragglerCheckTask implements Runnable {
         }
     }
 
+    void checkForSlowTasks(long hedgeDelay) {
+        for (QueryTaskSource taskSource : sourceAggregator.taskSources) {
+            if (taskSource.hedged || taskSource.oneHasResponded()) {
+                continue;
+            }
+            for (QueryTaskSourceOption option : taskSource.options) {
+                if (option.activeMillis() > hedgeDelay) {
+                    hedge(taskSource);
+                    break;
+                }
+            }
+        }
+    }
+
     void checkForStragglersStdDev() {
         Query query = sourceAggregator.query;
 
@@ -159,21 +184,28 @@ class StragglerCheckTask implements Runnable {
 
     public void handleStragglers() {
         for (QueryTaskSource taskSource : sourceAggregator.taskSources) {
-            if (taskSource.oneHasResponded() || (taskSource.options.length == 0)) {
-                continue;
+            if (!taskSource.hedged && !taskSource.oneHasResponded() && !taskSource.hasNoActiveSources()) {
+                hedge(taskSource);
             }
-            for (QueryTaskSourceOption option : taskSource.options) {
-                if (!option.isActive()) {
-                    if (option.tryActivate(sourceAggregator.meshy, sourceAggregator.queryOptions)) {
-                        AggregateConfig.totalStragglerCheckerRequests.inc();
-                        if (MeshSourceAggregator.log.isDebugEnabled() || sourceAggregator.query.isTraced()) {
-                            Query.traceLog.info("Straggler detected for {} sending duplicate query to host: {}",
-                                                sourceAggregator.query.uuid(), option.queryReference.getHostUUID());
-                        }
-                        break;
-                    }
-                }
+        }
+    }
+
+    private void hedge(QueryTaskSource taskSource) {
+        // hedge on the replica whose worker has been answering best
+        QueryTaskSourceOption option = AdaptiveAllocator.bestInactive(taskSource.options);
+        if ((option == null) || !HedgePolicy.tryWithdraw()) {
+            return;
+        }
+        if (option.tryActivate(sourceAggregator.meshy, sourceAggregator.queryOptions)) {
+            option.hedge = true;
+            taskSource.hedged = true;
+            AggregateConfig.totalStragglerCheckerRequests.inc();
+            if (MeshSourceAggregator.log.isDebugEnabled() || sourceAggregator.query.isTraced()) {
+                Query.traceLog.info("Straggler detected for {} sending duplicate query to host: {}",
+                                    sourceAggregator.query.uuid(), option.queryReference.getHostUUID());
             }
+        } else {
+            HedgePolicy.refund();
         }
     }
 }
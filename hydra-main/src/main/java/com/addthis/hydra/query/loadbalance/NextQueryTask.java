@@ -47,6 +47,9 @@ public class NextQueryTask implements Runnable, ChannelFutureListener {
     private final QueryQueue queryQueue;
     private final EventExecutor executor;
 
+    // the query this task is running, if any
+    private QueryRequest current;
+
     public NextQueryTask(QueryQueue queryQueue, EventExecutor executor) {
         this.queryQueue = queryQueue;
         this.executor = executor;
@@ -61,9 +64,10 @@ public class NextQueryTask implements Runnable, ChannelFutureListener {
             log.info("Frame reader thread interrupted -- halting query processing");
             return;
         }
+        current = request;
         try {
             final ChannelFuture queryFuture = HttpQueryCallHandler.handleQuery(
-                    request.querySource, request.kv, request.request, request.ctx, executor);
+                    request.querySource, request.kv, request.request, request.ctx, executor, queryQueue);
             queryFuture.addListener(this);
             queryFuture.channel().closeFuture().addListener(future -> {
                 if (queryFuture.cancel(false)) {
@@ -75,6 +79,8 @@ public class NextQueryTask implements Runnable, ChannelFutureListener {
             if (request.ctx.channel().isActive()) {
                 HttpUtils.sendError(request.ctx, new HttpResponseStatus(500, e.getMessage()));
             }
+            finishCurrent();
+            executor.execute(this);
         }
     }
 
@@ -84,11 +90,19 @@ public class NextQueryTask implements Runnable, ChannelFutureListener {
         if (!future.isSuccess()) {
             safelyHandleQueryFailure(future);
         }
+        finishCurrent();
         // schedule next query poll
         executor.execute(this);
         log.trace("rescheduled");
     }
 
+    private void finishCurrent() {
+        if (current != null) {
+            queryQueue.queryComplete(current);
+            current = null;
+        }
+    }
+
     private static void safelyHandleQueryFailure(ChannelFuture future) {
         try {
             ChannelPipeline pipeline = future.channel().pipeline();
@@ -14,50 +14,422 @@
 
 package com.addthis.hydra.query.loadbalance;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import javax.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 import com.addthis.basis.kv.KVPairs;
 import com.addthis.basis.util.Parameter;
 
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryElement;
+import com.addthis.hydra.data.query.QueryElementNode;
+import com.addthis.hydra.data.query.QueryEstimator;
 import com.addthis.hydra.query.MeshQueryMaster;
+import com.addthis.hydra.query.tracker.QueryTracker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
 
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Timer;
 
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.HttpRequest;
 
+/**
+ * Queries waiting for a query thread. Each query belongs to a {@link Priority priority class} and
+ * to the user that sent it (the "sender" parameter, or else the remote address).
+ * <p/>
+ * Queries are taken in weighted fair order: every (class, user) pair is a flow, a query is tagged
+ * with its estimated cost divided by the weight of its class, and the query with the earliest
+ * virtual finish time is taken next. A user with a long batch of expensive queries therefore only
+ * delays other users by their fair share, and interactive queries get a larger share than batch.
+ * Costs come from the recent run time of queries against the same job when known and otherwise
+ * from the number of tasks of the job.
+ * <p/>
+ * Each class may cap how many of its queries run at once so that some query threads are always
+ * left to the other classes, and how many may wait; a query over the cap is rejected immediately
+ * with a {@link QueryRejectedException} instead of waiting behind the backlog.
+ * <p/>
+ * Explained queries (see {@link QueryEstimator}) leave the estimated number of tree nodes their
+ * job and path visit. Later queries for the same job and path are rejected if the estimate is over
+ * "query.queue.rejectNodes", and run as batch if it is over "query.queue.batchNodes" and they did
+ * not ask for a priority. Queries whose path was never explained get a rough guess from the shape
+ * of the path and the number of tasks of the job instead (see {@link #guessNodes}), which may only
+ * move them to batch: a guess is not reason enough to reject a query.
+ */
 public class QueryQueue {
 
-    static final int DEFAULT_QUEUE_MAX = Parameter.intValue("query.queue.max", 1000);
+    public static final int DEFAULT_QUEUE_MAX = Parameter.intValue("query.queue.max", 1000);
     static final Timer queueTimer = Metrics.newTimer(QueryQueue.class, "queueTimer", TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
     static final Counter queueCount = Metrics.newCounter(QueryQueue.class, "queueCount");
 
-    public final BlockingQueue<QueryRequest> blockingQueue;
+    /** cost of a query with no known run time, per task of its job */
+    static final long TASK_COST_MILLIS = Parameter.longValue("query.queue.taskCostMillis", 10);
+    /** cost of a query with no known run time or task count */
+    static final long DEFAULT_COST_MILLIS = Parameter.longValue("query.queue.defaultCostMillis", 1000);
+
+    /** estimated tree nodes visited above which a query is rejected, or 0 for no limit */
+    static final long REJECT_NODES = Parameter.longValue("query.queue.rejectNodes", 10_000_000_000L);
+    /** estimated tree nodes visited above which a query runs as batch, or 0 for no limit */
+    static final long BATCH_NODES = Parameter.longValue("query.queue.batchNodes", 100_000_000L);
+    /** children a path element that enumerates them is guessed to match, for paths never explained */
+    static final long GUESS_FANOUT = Parameter.longValue("query.queue.estimate.fanout", 100);
+    static final int MAX_ESTIMATES = Parameter.intValue("query.queue.estimates.max", 10000);
+    static final long ESTIMATE_TTL_MINUTES = Parameter.longValue("query.queue.estimates.ttlMinutes", 60);
+
+    private static final Splitter LIST_SPLITTER = Splitter.on(',').omitEmptyStrings().trimResults();
+    private static final Set<String> BATCH_JOBS =
+            ImmutableSet.copyOf(LIST_SPLITTER.split(Parameter.value("query.queue.batch.jobs", "")));
+    private static final Set<String> BATCH_SENDERS =
+            ImmutableSet.copyOf(LIST_SPLITTER.split(Parameter.value("query.queue.batch.senders", "")));
+
+    /**
+     * Priority classes. A query picks its class with the "priority" parameter. Otherwise exports
+     * (queries with a filename or sent to google drive) and queries from the jobs or senders listed
+     * in "query.queue.batch.jobs" and "query.queue.batch.senders" are batch, and the rest interactive.
+     * Each class only gets part of the whole queue, so a backlog of batch queries can not keep
+     * interactive queries out.
+     */
+    public enum Priority {
+        INTERACTIVE(4, 500, 0),
+        BATCH(1, 100, -1);
+
+        final int weight;
+        final int maxQueued;
+        /** 0 is no limit; negative is half of the query threads */
+        final int maxRunning;
+        final Counter rejected;
+
+        Priority(int defaultWeight, int defaultMaxQueued, int defaultMaxRunning) {
+            String prefix = "query.queue." + name().toLowerCase() + ".";
+            this.weight = Math.max(1, Parameter.intValue(prefix + "weight", defaultWeight));
+            this.maxQueued = Parameter.intValue(prefix + "maxQueued", defaultMaxQueued);
+            this.maxRunning = Parameter.intValue(prefix + "maxRunning", defaultMaxRunning);
+            this.rejected = Metrics.newCounter(QueryQueue.class, name().toLowerCase() + "Rejected");
+        }
+    }
+
+    private final int maxQueueSize;
+    private final int[] maxRunning = new int[Priority.values().length];
+
+    /** estimated nodes visited by job and path */
+    private final Cache<String, Long> estimates = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ESTIMATES)
+            .expireAfterWrite(ESTIMATE_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+    private long rejectNodes = REJECT_NODES;
+    private long batchNodes = BATCH_NODES;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    // guarded by lock
+    private final Map<String, Flow>[] flows;
+    private final int[] queued = new int[Priority.values().length];
+    private final int[] running = new int[Priority.values().length];
+    private int size;
+    private double virtualTime;
 
     public QueryQueue() {
-        this(DEFAULT_QUEUE_MAX);
+        this(DEFAULT_QUEUE_MAX, 0);
     }
 
-    public QueryQueue(int maxQueueSize) {
-        this.blockingQueue = new LinkedBlockingQueue<>(maxQueueSize);
+    /**
+     * @param queryThreads number of threads taking queries, or 0 if unknown (no running limits)
+     */
+    @SuppressWarnings("unchecked")
+    public QueryQueue(int maxQueueSize, int queryThreads) {
+        this.maxQueueSize = maxQueueSize;
+        this.flows = new Map[Priority.values().length];
+        for (Priority priority : Priority.values()) {
+            flows[priority.ordinal()] = new HashMap<>();
+            int limit = priority.maxRunning;
+            if (limit < 0) {
+                limit = (queryThreads > 0) ? Math.max(1, queryThreads / 2) : 0;
+            }
+            maxRunning[priority.ordinal()] = limit;
+        }
     }
 
     public void queueQuery(MeshQueryMaster querySource, KVPairs kv, HttpRequest request,
             ChannelHandlerContext ctx) throws Exception {
         QueryRequest queryRequest = new QueryRequest(querySource, kv, request, ctx);
-        // throws exception when queue is full - callers should handle appropriately
-        blockingQueue.add(queryRequest);
-        queueCount.inc();
+        queryRequest.priority = classify(kv);
+        queryRequest.user = user(kv, ctx);
+        if (QueryEstimator.requested(kv.getValue(QueryEstimator.EXPLAIN_PARAMETER))) {
+            // an explained query reads a sample of each tree and emits one row per task
+            queryRequest.cost = TASK_COST_MILLIS;
+        } else {
+            queryRequest.cost = estimateCost(querySource, kv.getValue("job"));
+            String job = kv.getValue("job");
+            applyEstimate(queryRequest, kv, (job != null) ? querySource.cachedTaskCount(job) : 0);
+        }
+        add(queryRequest);
+    }
+
+    /**
+     * @param tasks number of tasks of the job, or 0 if unknown
+     * @throws QueryRejectedException if the query is estimated to visit too many nodes
+     */
+    @VisibleForTesting
+    void applyEstimate(QueryRequest queryRequest, KVPairs kv, int tasks) {
+        Long nodes = estimates.getIfPresent(estimateKey(kv));
+        if (nodes == null) {
+            long guess = guessNodes(kv.getValue("path", kv.getValue("q")), tasks);
+            if ((batchNodes > 0) && (guess > batchNodes) && (kv.getValue("priority") == null)) {
+                queryRequest.priority = Priority.BATCH;
+            }
+            return;
+        }
+        if ((rejectNodes > 0) && (nodes > rejectNodes)) {
+            queryRequest.priority.rejected.inc();
+            throw new QueryRejectedException("query is estimated to visit " + nodes + " tree nodes (limit "
+                                             + rejectNodes + "); see /query/explain");
+        }
+        if ((batchNodes > 0) && (nodes > batchNodes) && (kv.getValue("priority") == null)) {
+            queryRequest.priority = Priority.BATCH;
+        }
+    }
+
+    /**
+     * Guesses the tree nodes a path visits without looking at the trees: every element that
+     * enumerates children (see {@link QueryElementNode#sampleable()}) is taken to match
+     * "query.queue.estimate.fanout" of them, or its limit if lower, and every other element one.
+     *
+     * @param tasks number of tasks of the job, or 0 if unknown
+     * @return the guess for all tasks, or -1 if there is no path or it can not be parsed
+     */
+    @VisibleForTesting
+    static long guessNodes(@Nullable String path, int tasks) {
+        if ((path == null) || path.isEmpty()) {
+            return -1;
+        }
+        List<QueryElement[]> paths;
+        try {
+            paths = new Query(null, new String[]{path}, null).getQueryPaths();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+        double nodes = 0;
+        for (QueryElement[] elements : paths) {
+            double matched = 1;
+            for (QueryElement element : elements) {
+                QueryElementNode node = element.getNode();
+                if ((node != null) && node.sampleable()) {
+                    matched *= (element.limit() > 0) ? Math.min(GUESS_FANOUT, element.limit()) : GUESS_FANOUT;
+                }
+                nodes += matched;
+            }
+        }
+        return (long) Math.min(Long.MAX_VALUE, nodes * Math.max(1, tasks));
     }
 
+    @VisibleForTesting
+    void setNodeLimits(long rejectNodes, long batchNodes) {
+        this.rejectNodes = rejectNodes;
+        this.batchNodes = batchNodes;
+    }
+
+    public void recordEstimate(KVPairs kv, long nodes) {
+        estimates.put(estimateKey(kv), nodes);
+    }
+
+    /**
+     * @return a handler that records the estimate written by an explained query. The query master
+     *         merges the estimates of all tasks into one row, so only the first row is recorded.
+     */
+    public ChannelHandler estimateRecorder(KVPairs kv) {
+        return new ChannelOutboundHandlerAdapter() {
+            private boolean recorded;
+
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                if (!recorded && (msg instanceof Bundle)) {
+                    Bundle row = (Bundle) msg;
+                    ValueObject nodes = row.getValue(row.getFormat().getField("nodes"));
+                    if (nodes != null) {
+                        recordEstimate(kv, ValueUtil.asNumberOrParseLong(nodes, 10).asLong().getLong());
+                        recorded = true;
+                    }
+                }
+                super.write(ctx, msg, promise);
+            }
+        };
+    }
+
+    private static String estimateKey(KVPairs kv) {
+        return kv.getValue("job", "") + '\n' + kv.getValue("path", kv.getValue("q", ""));
+    }
+
+    /**
+     * @throws QueryRejectedException if the queue or the class of the query is full
+     */
+    @VisibleForTesting
+    void add(QueryRequest queryRequest) {
+        Priority priority = queryRequest.priority;
+        lock.lock();
+        try {
+            if (size >= maxQueueSize) {
+                priority.rejected.inc();
+                throw new QueryRejectedException("query queue is full (" + size + " queries waiting)");
+            }
+            if (queued[priority.ordinal()] >= priority.maxQueued) {
+                priority.rejected.inc();
+                throw new QueryRejectedException(priority.name().toLowerCase() + " query queue is full ("
+                                                 + queued[priority.ordinal()] + " queries waiting)");
+            }
+            Flow flow = flows[priority.ordinal()].computeIfAbsent(queryRequest.user, user -> new Flow());
+            queryRequest.startTag = Math.max(virtualTime, flow.lastFinishTag);
+            queryRequest.finishTag = queryRequest.startTag + ((double) queryRequest.cost / priority.weight);
+            flow.lastFinishTag = queryRequest.finishTag;
+            flow.requests.add(queryRequest);
+            queued[priority.ordinal()]++;
+            size++;
+            queueCount.inc();
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next query that may run. It counts against the running limit of its class until
+     * {@link #queryComplete(QueryRequest)} is called.
+     */
     public QueryRequest takeQuery() throws InterruptedException {
-        QueryRequest request = blockingQueue.take();
+        QueryRequest request;
+        lock.lockInterruptibly();
+        try {
+            while ((request = pollEligible()) == null) {
+                available.await();
+            }
+        } finally {
+            lock.unlock();
+        }
         queueTimer.update(System.currentTimeMillis() - request.queueStartTime, TimeUnit.MILLISECONDS);
+        return request;
+    }
+
+    public void queryComplete(QueryRequest request) {
+        lock.lock();
+        try {
+            running[request.priority.ordinal()]--;
+            // a class that was at its running limit may have eligible queries again
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // requires lock
+    private QueryRequest pollEligible() {
+        Flow best = null;
+        Priority bestPriority = null;
+        for (Priority priority : Priority.values()) {
+            int limit = maxRunning[priority.ordinal()];
+            if ((limit > 0) && (running[priority.ordinal()] >= limit)) {
+                continue;
+            }
+            for (Flow flow : flows[priority.ordinal()].values()) {
+                if ((best == null) || (flow.requests.peek().finishTag < best.requests.peek().finishTag)) {
+                    best = flow;
+                    bestPriority = priority;
+                }
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        QueryRequest request = best.requests.poll();
+        if (best.requests.isEmpty()) {
+            flows[bestPriority.ordinal()].remove(request.user);
+        }
+        virtualTime = Math.max(virtualTime, request.startTag);
+        queued[bestPriority.ordinal()]--;
+        running[bestPriority.ordinal()]++;
+        size--;
         queueCount.dec();
         return request;
     }
+
+    /**
+     * @throws IllegalArgumentException if the query asks for a priority that does not exist
+     */
+    static Priority classify(KVPairs kv) {
+        String priority = kv.getValue("priority");
+        if (priority != null) {
+            try {
+                return Priority.valueOf(priority.toUpperCase());
+            } catch (IllegalArgumentException ignored) {
+                throw new IllegalArgumentException("unknown query priority: " + priority);
+            }
+        }
+        if ((kv.getValue("filename") != null) || "gdrive".equals(kv.getValue("format"))
+            || BATCH_JOBS.contains(kv.getValue("job")) || BATCH_SENDERS.contains(kv.getValue("sender"))) {
+            return Priority.BATCH;
+        }
+        return Priority.INTERACTIVE;
+    }
+
+    private static String user(KVPairs kv, ChannelHandlerContext ctx) {
+        String sender = kv.getValue("sender");
+        if (sender != null) {
+            return sender;
+        }
+        SocketAddress remote = ctx.channel().remoteAddress();
+        if (remote instanceof InetSocketAddress) {
+            return ((InetSocketAddress) remote).getAddress().getHostAddress();
+        }
+        return "";
+    }
+
+    private static long estimateCost(MeshQueryMaster querySource, String job) {
+        if (job == null) {
+            return DEFAULT_COST_MILLIS;
+        }
+        QueryTracker tracker = querySource.getQueryTracker();
+        long runTime = (tracker != null) ? tracker.expectedRunTime(job) : -1;
+        if (runTime >= 0) {
+            return Math.max(1, runTime);
+        }
+        int tasks = querySource.cachedTaskCount(job);
+        return (tasks > 0) ? Math.max(1, tasks * TASK_COST_MILLIS) : DEFAULT_COST_MILLIS;
+    }
+
+    private static final class Flow {
+
+        final ArrayDeque<QueryRequest> requests = new ArrayDeque<>();
+        double lastFinishTag;
+    }
 }
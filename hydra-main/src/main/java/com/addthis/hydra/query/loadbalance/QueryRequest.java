@@ -29,6 +29,13 @@ public class QueryRequest {
     final ChannelHandlerContext ctx;
     final long queueStartTime = System.currentTimeMillis();
 
+    // set by the query queue
+    QueryQueue.Priority priority = QueryQueue.Priority.INTERACTIVE;
+    String user = "";
+    long cost;
+    double startTag;
+    double finishTag;
+
     public QueryRequest(MeshQueryMaster querySource, KVPairs kv, HttpRequest request,
             ChannelHandlerContext ctx) {
         this.querySource = querySource;
@@ -16,21 +16,96 @@ package com.addthis.hydra.query.loadbalance;
 
 import java.util.concurrent.Semaphore;
 
+import com.addthis.basis.util.Parameter;
+
+/**
+ * Query leases and recent behavior of one query worker as seen by this query master.
+ * <p/>
+ * Response times (from activating a task option to its first frame) and failures are kept as
+ * exponentially weighted moving averages. Together with the number of leases in use they give
+ * a {@link #score() score} that allocators and the straggler check use to prefer fast replicas.
+ */
 public class WorkerData {
 
+    /** weight of the newest sample in the moving averages */
+    static final double ALPHA = Double.parseDouble(Parameter.value("hydra.query.loadbalance.alpha", "0.2"));
+    /** how much a worker that always fails is penalized relative to one that never does */
+    static final double FAILURE_PENALTY =
+            Double.parseDouble(Parameter.value("hydra.query.loadbalance.failurePenalty", "10"));
+
     public final Semaphore queryLeases;
     public final String hostName;
+    private final int leaseCount;
+
+    // guarded by this
+    private double responseMillis = -1;
+    private double failureRate;
 
     public WorkerData(String hostName, int leaseCount) {
-        this(hostName, new Semaphore(leaseCount));
+        this(hostName, new Semaphore(leaseCount), leaseCount);
     }
 
     public WorkerData(String hostName, Semaphore queryLeases) {
+        this(hostName, queryLeases, queryLeases.availablePermits());
+    }
+
+    private WorkerData(String hostName, Semaphore queryLeases, int leaseCount) {
         this.queryLeases = queryLeases;
         this.hostName = hostName;
+        this.leaseCount = leaseCount;
     }
 
     public Semaphore semaphore() { return this.queryLeases; }
     public int queryLeases() { return this.queryLeases.availablePermits(); }
     public String hostName() { return this.hostName; }
+
+    /** @return leases currently held by queries on this worker */
+    public int inFlight() {
+        return Math.max(0, leaseCount - queryLeases.availablePermits());
+    }
+
+    /** Records the time a task on this worker took to send its first frame. */
+    public synchronized void recordResponse(long millis) {
+        updateResponseMillis(millis);
+        failureRate -= ALPHA * failureRate;
+    }
+
+    /**
+     * Records that a task on this worker had not responded after the given time when it was cancelled
+     * because another replica answered first. Only ever raises the estimate, and is neither a success
+     * nor a failure.
+     */
+    public synchronized void recordNoResponse(long millis) {
+        if (millis > responseMillis) {
+            updateResponseMillis(millis);
+        }
+    }
+
+    // callers hold the lock of this worker
+    private void updateResponseMillis(long millis) {
+        responseMillis = (responseMillis < 0) ? millis : (responseMillis + (ALPHA * (millis - responseMillis)));
+    }
+
+    public synchronized void recordFailure() {
+        failureRate += ALPHA * (1 - failureRate);
+    }
+
+    /** @return moving average response time in milliseconds, or -1 if there have been no responses */
+    public synchronized double responseMillis() {
+        return responseMillis;
+    }
+
+    /**
+     * @return expected cost of sending one more task to this worker; lower is better. Workers without
+     *         samples score as fast so that they get tried.
+     */
+    public double score() {
+        double response;
+        double failures;
+        synchronized (this) {
+            response = Math.max(0, responseMillis);
+            failures = failureRate;
+        }
+        return (response + 1) * (inFlight() + 1) * (1 + (FAILURE_PENALTY * failures));
+    }
 }
@@ -14,6 +14,8 @@
 
 package com.addthis.hydra.query.spawndatastore;
 
+import javax.annotation.Nullable;
+
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -106,6 +108,17 @@ public class SpawnDataStoreHandler implements AutoCloseable {
         return job;
     }
 
+    /**
+     * Reads the job from the data store instead of the cached configuration, so that runs completed
+     * since are seen.
+     *
+     * @return the time the last run of the job completed, or null if it has none or is unknown
+     */
+    @Nullable public Long getJobEndTime(String job) {
+        IJob zkJob = jobConfigManager.getJob(job);
+        return (zkJob != null) ? zkJob.getEndTime() : null;
+    }
+
     public int getCononicalTaskCount(String job) {
         IJob zkJob;
         try {
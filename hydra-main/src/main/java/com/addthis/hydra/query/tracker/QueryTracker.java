@@ -24,6 +24,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.addthis.basis.util.Parameter;
 
@@ -50,12 +51,16 @@ public class QueryTracker implements Closeable {
     static final Logger log = LoggerFactory.getLogger(QueryTracker.class);
 
     static final int MAX_FINISHED_CACHE_SIZE = Parameter.intValue("QueryCache.MAX_FINISHED_CACHE_SIZE", 50);
+    static final int MAX_JOB_RUNTIMES = Parameter.intValue("queryTracker.jobRuntimes", 1000);
 
     /**
      * Contains the queries that are running
      */
     final ConcurrentMap<String, QueryEntry> running = new ConcurrentHashMap<>();
     final Cache<String, QueryEntryInfo> recentlyCompleted;
+    /** moving average of the run time of recent queries per job, in milliseconds */
+    private final Cache<String, AtomicLong> jobRunTimes =
+            CacheBuilder.newBuilder().maximumSize(MAX_JOB_RUNTIMES).build();
     final TaskDataOutput eventLog;
 
     /* metrics */
@@ -116,6 +121,29 @@ public class QueryTracker implements Closeable {
         return recentlyCompleted.asMap().get(uuid);
     }
 
+    /**
+     * Folds the run time of a completed query into the moving average for its job.
+     */
+    public void recordRunTime(String job, long runTime) {
+        if (job == null) {
+            return;
+        }
+        try {
+            AtomicLong average = jobRunTimes.get(job, () -> new AtomicLong(-1));
+            average.getAndUpdate(previous -> (previous < 0) ? runTime : (previous + ((runTime - previous) / 4)));
+        } catch (ExecutionException e) {
+            log.warn("unexpected error recording run time for {}", job, e);
+        }
+    }
+
+    /**
+     * @return the moving average run time of recent queries against the job or -1 if none are known
+     */
+    public long expectedRunTime(String job) {
+        AtomicLong average = (job != null) ? jobRunTimes.getIfPresent(job) : null;
+        return (average != null) ? average.get() : -1;
+    }
+
     public QueryEntry getQueryEntry(String uuid) {
         QueryEntry queryEntry = running.get(uuid); //first try running
         return queryEntry;
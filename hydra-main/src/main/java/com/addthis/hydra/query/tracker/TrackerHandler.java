@@ -18,6 +18,8 @@ import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import com.addthis.basis.util.Parameter;
+
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.core.BundleFormat;
@@ -46,6 +48,10 @@ public class TrackerHandler extends ChannelOutboundHandlerAdapter implements Cha
 
     private static final Logger log = LoggerFactory.getLogger(TrackerHandler.class);
 
+    /** partitions used to merge a leading gather op; 1 merges on the aggregator thread */
+    private static final int MERGE_PARTITIONS = Parameter.intValue(
+            "qmaster.mergePartitions", Math.min(8, Runtime.getRuntime().availableProcessors()));
+
     private final QueryTracker queryTracker;
     private final String[]     opsLog;
     private final MeshSourceAggregator aggregator;
@@ -119,7 +125,11 @@ public class TrackerHandler extends ChannelOutboundHandlerAdapter implements Cha
         this.query = msg;
         query.queryPromise = queryPromise;
         // create a processor chain based in query ops terminating the query user
-        this.opProcessorConsumer = query.newProcessor(queryUser, opPromise);
+        this.opProcessorConsumer = new QueryOpProcessor.Builder(queryUser, query.getOps())
+                .queryPromise(opPromise)
+                .mergePartitions(MERGE_PARTITIONS)
+                .mergeCompletionExecutor(ctx.executor())
+                .build();
         queryEntry = new QueryEntry(query, opsLog, this, aggregator);
 
         // Check if the uuid is repeated, then make a new one
@@ -225,6 +235,7 @@ public class TrackerHandler extends ChannelOutboundHandlerAdapter implements Cha
             }
             queryTracker.recentlyCompleted.put(query.uuid(), entryInfo);
             queryTracker.queryMeter.update(entryInfo.runTime, TimeUnit.MILLISECONDS);
+            queryTracker.recordRunTime(entryInfo.job, entryInfo.runTime);
             queryTracker.eventLog.send(event);
         } catch (Exception e) {
             log.error("Error while doing record keeping for a query.", e);
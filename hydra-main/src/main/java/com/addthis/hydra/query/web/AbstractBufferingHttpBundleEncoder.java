@@ -14,7 +14,10 @@
 
 package com.addthis.hydra.query.web;
 
-import java.nio.CharBuffer;
+import javax.annotation.Nullable;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import com.addthis.basis.util.Parameter;
 
@@ -35,28 +38,43 @@ import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.util.CharsetUtil;
 
 /**
  * parent of all streaming response classes
+ * <p/>
+ * Rows are appended as text to a reused builder and immediately encoded into a buffer from the
+ * channel's allocator, which is written out as one chunk of a chunked response once it holds
+ * {@code qmaster.http.buffer.batch} bytes. Memory use therefore does not grow with the size of the
+ * response; how far rows may run ahead of the client is bounded by the channel's writability, which
+ * pauses reading from the query tasks (see {@link com.addthis.hydra.query.aggregate.MeshSourceAggregator}).
+ * Chunks may be gzip compressed on the fly, see {@link #gzip()}.
  */
 abstract class AbstractBufferingHttpBundleEncoder extends ChannelOutboundHandlerAdapter {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractBufferingHttpBundleEncoder.class);
 
     private static final int DEFAULT_INITIAL_BUFFER_SIZE = Parameter.intValue("qmaster.http.buffer.initial", 100);
+    // bytes of encoded rows to collect before writing them as one chunk
     private static final int DEFAULT_BATCH_BUFFER_SIZE = Parameter.intValue("qmaster.http.buffer.batch", 100000);
+    private static final int GZIP_LEVEL = Parameter.intValue("qmaster.http.gzip.level", 4);
 
     protected final HttpResponse responseStart = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
 
+    /** text of the rows being encoded. reused, and emptied into {@link #pending} after every row */
     private final StringBuilder sendBuffer;
+    private final int initialBufferSize;
     private final int batchBufferSize;
 
+    /** encoded bytes not yet written */
+    @Nullable private ByteBuf pending;
+    @Nullable private GzipEncoder gzip;
+
     private boolean writeStarted = false;
     private boolean responseWritten = false;
 
 
     AbstractBufferingHttpBundleEncoder(int initialBufferSize, int batchBufferSize) {
+        this.initialBufferSize = initialBufferSize;
         this.batchBufferSize = batchBufferSize;
         HttpHeaders.setTransferEncodingChunked(responseStart);
         sendBuffer = new StringBuilder(initialBufferSize);
@@ -66,8 +84,10 @@ abstract class AbstractBufferingHttpBundleEncoder extends ChannelOutboundHandler
         this(DEFAULT_INITIAL_BUFFER_SIZE, DEFAULT_BATCH_BUFFER_SIZE);
     }
 
-    private static ByteBuf encodeString(ByteBufAllocator alloc, CharSequence msg) {
-        return ByteBufUtil.encodeString(alloc, CharBuffer.wrap(msg), CharsetUtil.UTF_8);
+    /** Compresses the response with gzip. Must be called before the encoder is added to a pipeline. */
+    void gzip() {
+        gzip = new GzipEncoder(GZIP_LEVEL);
+        responseStart.headers().set(HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.GZIP);
     }
 
     @Override
@@ -84,13 +104,25 @@ abstract class AbstractBufferingHttpBundleEncoder extends ChannelOutboundHandler
 
     @Override
     public void flush(ChannelHandlerContext ctx) {
-        if (sendBuffer.length() > 0) {
+        if ((sendBuffer.length() > 0) || ((pending != null) && pending.isReadable())) {
             flushStringBuilder(ctx);
         } else {
             ctx.flush();
         }
     }
 
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        // the query may have failed or been cancelled part way through the response
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+        if (gzip != null) {
+            gzip.end();
+        }
+    }
+
     private boolean maybeWriteStart(ChannelHandlerContext ctx, Bundle row) {
         if (!writeStarted) {
             appendResponseStartToString(sendBuffer);
@@ -133,25 +165,139 @@ abstract class AbstractBufferingHttpBundleEncoder extends ChannelOutboundHandler
         if (!maybeWriteStart(ctx, row)) {
             appendBundleToString(row, sendBuffer);
         }
-        if (sendBuffer.length() >= batchBufferSize) {
+        encodeText(ctx);
+        if ((pending != null) && (pending.readableBytes() >= batchBufferSize)) {
             flushStringBuilder(ctx);
         }
     }
 
+    /**
+     * Appends text that is not part of a row, for example to frame a group of rows. Starts the
+     * response if no row has been sent yet.
+     */
+    protected void sendText(ChannelHandlerContext ctx, CharSequence text) {
+        maybeWriteStart(ctx, null);
+        sendBuffer.append(text);
+        encodeText(ctx);
+    }
+
+    /** moves the text of the last row into the pending bytes */
+    private void encodeText(ChannelHandlerContext ctx) {
+        if (sendBuffer.length() > 0) {
+            if (pending == null) {
+                pending = ctx.alloc().buffer(Math.max(initialBufferSize, sendBuffer.length()));
+            }
+            ByteBufUtil.writeUtf8(pending, sendBuffer);
+            sendBuffer.setLength(0);
+        }
+    }
+
     protected void flushStringBuilder(ChannelHandlerContext ctx) {
+        writeChunk(ctx, false);
+    }
+
+    private void writeChunk(ChannelHandlerContext ctx, boolean last) {
+        encodeText(ctx);
         if (!responseWritten) {
             ctx.write(responseStart);
+            responseWritten = true;
         }
-        if (sendBuffer.length() > 0) {
-            ByteBuf msg = encodeString(ctx.alloc(), sendBuffer);
-            sendBuffer.setLength(0);
-            ctx.writeAndFlush(new DefaultHttpContent(msg), ctx.voidPromise());
+        ByteBuf chunk = pending;
+        pending = null;
+        if (gzip != null) {
+            ByteBuf compressed = gzip.encode(ctx.alloc(), chunk, last);
+            if (chunk != null) {
+                chunk.release();
+            }
+            chunk = compressed;
+        }
+        if ((chunk != null) && chunk.isReadable()) {
+            ctx.writeAndFlush(new DefaultHttpContent(chunk), ctx.voidPromise());
+        } else {
+            if (chunk != null) {
+                chunk.release();
+            }
+            ctx.flush();
         }
     }
 
     public void sendComplete(ChannelHandlerContext ctx) {
         maybeWriteStart(ctx, null);
         appendResponseEndToString(sendBuffer);
-        flushStringBuilder(ctx);
+        writeChunk(ctx, true);
+    }
+
+    /**
+     * Streaming gzip (RFC 1952). Every chunk is sync flushed so that the client can decode everything
+     * it has been sent so far.
+     */
+    static final class GzipEncoder {
+
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[8192];
+        private final byte[] output = new byte[8192];
+        private boolean headerWritten;
+
+        GzipEncoder(int level) {
+            deflater = new Deflater(level, true);
+        }
+
+        /**
+         * @param data  bytes to compress, or null if there are none
+         * @param last  whether to end the stream after data
+         * @return compressed bytes; may be empty
+         */
+        ByteBuf encode(ByteBufAllocator alloc, @Nullable ByteBuf data, boolean last) {
+            int size = (data != null) ? data.readableBytes() : 0;
+            ByteBuf result = alloc.buffer((size / 2) + 64);
+            if (!headerWritten) {
+                result.writeBytes(HEADER);
+                headerWritten = true;
+            }
+            while ((data != null) && data.isReadable()) {
+                int length = Math.min(input.length, data.readableBytes());
+                data.readBytes(input, 0, length);
+                crc.update(input, 0, length);
+                deflater.setInput(input, 0, length);
+                while (!deflater.needsInput()) {
+                    deflate(result, Deflater.NO_FLUSH);
+                }
+            }
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(result, Deflater.NO_FLUSH);
+                }
+                writeIntLE(result, (int) crc.getValue());
+                writeIntLE(result, (int) deflater.getBytesRead());
+                end();
+            } else {
+                while (deflate(result, Deflater.SYNC_FLUSH) == output.length) {
+                    // output was full; there may be more
+                }
+            }
+            return result;
+        }
+
+        private int deflate(ByteBuf result, int flush) {
+            int length = deflater.deflate(output, 0, output.length, flush);
+            result.writeBytes(output, 0, length);
+            return length;
+        }
+
+        private static void writeIntLE(ByteBuf buf, int value) {
+            buf.writeByte(value);
+            buf.writeByte(value >>> 8);
+            buf.writeByte(value >>> 16);
+            buf.writeByte(value >>> 24);
+        }
+
+        /** frees the native resources of the deflater. safe to call more than once */
+        void end() {
+            deflater.end();
+        }
     }
-}
\ No newline at end of file
+}
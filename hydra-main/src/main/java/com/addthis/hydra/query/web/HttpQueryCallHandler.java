@@ -14,6 +14,8 @@
 
 package com.addthis.hydra.query.web;
 
+import javax.annotation.Nullable;
+
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 
@@ -24,8 +26,11 @@ import com.addthis.basis.kv.KVPairs;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryEstimator;
 import com.addthis.hydra.data.query.source.ErrorHandlingQuerySource;
 import com.addthis.hydra.data.query.source.QuerySource;
+import com.addthis.hydra.query.aggregate.QuerySnapshot;
+import com.addthis.hydra.query.loadbalance.QueryQueue;
 import com.addthis.hydra.util.StringMapHelper;
 
 import org.slf4j.Logger;
@@ -50,6 +55,8 @@ public final class HttpQueryCallHandler {
     private static final StringEncoder stringer = new StringEncoder(CharsetUtil.UTF_8);
 
     static final int maxQueryTime = Parameter.intValue("qmaster.maxQueryTime", 24 * 60 * 60); // one day
+    // compress query responses for clients that accept gzip
+    static final boolean gzipResponses = Parameter.boolValue("qmaster.http.gzip", true);
 
     private HttpQueryCallHandler() {
     }
@@ -59,6 +66,15 @@ public final class HttpQueryCallHandler {
      */
     public static ChannelFuture handleQuery(ChannelHandler queryToQueryResultsEncoder, KVPairs kv,
             HttpRequest request, ChannelHandlerContext ctx, EventExecutor executor) throws Exception {
+        return handleQuery(queryToQueryResultsEncoder, kv, request, ctx, executor, null);
+    }
+
+    /**
+     * @param queryQueue if not null then the estimates of explained queries are given to it
+     */
+    public static ChannelFuture handleQuery(ChannelHandler queryToQueryResultsEncoder, KVPairs kv,
+            HttpRequest request, ChannelHandlerContext ctx, EventExecutor executor,
+            @Nullable QueryQueue queryQueue) throws Exception {
         String job = kv.getValue("job");
         // support either job=id/dir or job=id&dir=dir for convenience (and don't punish doing both)
         String dir = kv.getValue("dir");
@@ -69,7 +85,11 @@ public final class HttpQueryCallHandler {
                         .collect(Collectors.joining(","));
         }
         String path = kv.getValue("path", kv.getValue("q", ""));
-        Query query = new Query(job, new String[]{path}, new String[]{kv.getValue("ops"), kv.getValue("rops")});
+        boolean explain = QueryEstimator.requested(kv.getValue(QueryEstimator.EXPLAIN_PARAMETER));
+        Query query = new Query(job, new String[]{path}, queryOps(kv));
+        if (explain) {
+            query.setParameter(QueryEstimator.EXPLAIN_PARAMETER, "1");
+        }
         query.setTraced(kv.getIntValue("trace", 0) == 1);
         query.setParameterIfNotYetSet("hosts", kv.getValue("hosts"));
         query.setParameterIfNotYetSet("gate", kv.getValue("gate"));
@@ -127,33 +147,59 @@ public final class HttpQueryCallHandler {
             sendError(ctx, new HttpResponseStatus(500, "missing job"));
             return ctx.newSucceededFuture();
         }
+        AbstractBufferingHttpBundleEncoder encoder;
         switch (format) {
             case "json":
-                ctx.pipeline().addLast(executor, "format", new JsonBundleEncoder());
+                String period = kv.getValue(QuerySnapshot.PERIOD_PARAMETER);
+                String tasks = kv.getValue(QuerySnapshot.TASKS_PARAMETER);
+                if (!explain && QuerySnapshot.requested(period, tasks)) {
+                    // partial results while the query runs, see QuerySnapshot
+                    query.setParameter(QuerySnapshot.PERIOD_PARAMETER, period);
+                    query.setParameter(QuerySnapshot.TASKS_PARAMETER, tasks);
+                    encoder = new ProgressiveJsonBundleEncoder();
+                } else {
+                    encoder = new JsonBundleEncoder();
+                }
                 break;
             case "html":
-                ctx.pipeline().addLast(executor, "format", new HtmlBundleEncoder());
+                encoder = new HtmlBundleEncoder();
                 break;
             case "gdrive":
                 ctx.pipeline().addLast(executor, "stringer", stringer);
-                ctx.pipeline().addLast(executor, "format",
-                        GoogleDriveBundleEncoder.create(filename, gdriveAccessToken));
+                encoder = GoogleDriveBundleEncoder.create(filename, gdriveAccessToken);
                 break;
             case "csv2":
             case "psv2":
             case "tsv2":
-                ctx.pipeline().addLast(executor,
-                                       "format", DelimitedEscapedBundleEncoder.create(filename, format));
+                encoder = DelimitedEscapedBundleEncoder.create(filename, format);
                 break;
             default:
-                ctx.pipeline().addLast(executor,
-                        "format", DelimitedBundleEncoder.create(filename, format));
+                encoder = DelimitedBundleEncoder.create(filename, format);
                 break;
         }
+        // google drive progress messages are written as plain strings around the encoded rows
+        if (gzipResponses && !"gdrive".equals(format) && HttpUtils.acceptsGzip(request)) {
+            encoder.gzip();
+        }
+        ctx.pipeline().addLast(executor, "format", encoder);
+        if (explain && (queryQueue != null)) {
+            ctx.pipeline().addLast(executor, "estimate", queryQueue.estimateRecorder(kv));
+        }
         ctx.pipeline().addLast(executor, "mqm", queryToQueryResultsEncoder);
         return ctx.pipeline().write(query, new DefaultChannelProgressivePromise(ctx.channel(), executor));
     }
 
+    /**
+     * @return the master ops followed by the worker ops of the query asked for by {@code kv}
+     */
+    public static String[] queryOps(KVPairs kv) {
+        if (QueryEstimator.requested(kv.getValue(QueryEstimator.EXPLAIN_PARAMETER))) {
+            // an explained query sums the estimates of all tasks at the master instead of running any ops
+            return new String[]{QueryEstimator.MERGE_OPS};
+        }
+        return new String[]{kv.getValue("ops"), kv.getValue("rops")};
+    }
+
     private static void handleError(QuerySource source, Query query) {
         if (source instanceof ErrorHandlingQuerySource) {
             ((ErrorHandlingQuerySource) source).handleError(query);
@@ -25,8 +25,10 @@ import com.addthis.basis.kv.KVPairs;
 import com.addthis.codec.jackson.Jackson;
 import com.addthis.codec.json.CodecJSON;
 import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryEstimator;
 import com.addthis.hydra.query.MeshQueryMaster;
 import com.addthis.hydra.query.loadbalance.QueryQueue;
+import com.addthis.hydra.query.loadbalance.QueryRejectedException;
 import com.addthis.hydra.query.loadbalance.WorkerData;
 import com.addthis.hydra.query.tracker.DetailedStatusHandler;
 import com.addthis.hydra.query.tracker.QueryEntry;
@@ -163,7 +165,13 @@ public class HttpQueryHandler extends SimpleChannelInboundHandler<FullHttpReques
             case "/query/call":
             case "/query/call/": {
                 rawQueryCalls.inc();
-                queryQueue.queueQuery(meshQueryMaster, kv, request, ctx);
+                queueQuery(ctx, request, kv);
+                break;
+            }
+            case "/query/explain":
+            case "/query/explain/": {
+                kv.putValue(QueryEstimator.EXPLAIN_PARAMETER, "1");
+                queueQuery(ctx, request, kv);
                 break;
             }
             case "/query/google/authorization": {
@@ -173,7 +181,7 @@ public class HttpQueryHandler extends SimpleChannelInboundHandler<FullHttpReques
             case "/query/google/submit": {
                 boolean success = GoogleDriveAuthentication.gdriveAccessToken(kv, ctx);
                 if (success) {
-                    queryQueue.queueQuery(meshQueryMaster, kv, request, ctx);
+                    queueQuery(ctx, request, kv);
                 }
                 break;
             }
@@ -183,6 +191,18 @@ public class HttpQueryHandler extends SimpleChannelInboundHandler<FullHttpReques
         }
     }
 
+    private void queueQuery(ChannelHandlerContext ctx, FullHttpRequest request, KVPairs kv) throws Exception {
+        try {
+            queryQueue.queueQuery(meshQueryMaster, kv, request, ctx);
+        } catch (QueryRejectedException e) {
+            log.info("rejected query: {}", e.getMessage());
+            sendError(ctx, new HttpResponseStatus(503, e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            log.info("bad query: {}", e.getMessage());
+            sendError(ctx, new HttpResponseStatus(400, e.getMessage()));
+        }
+    }
+
     private void fastHandle(ChannelHandlerContext ctx, FullHttpRequest request, String target, KVPairs kv)
             throws Exception {
         StringBuilderWriter writer = new StringBuilderWriter(50);
@@ -18,6 +18,7 @@
 package com.addthis.hydra.query.web;
 
 import javax.activation.MimetypesFileTypeMap;
+import javax.annotation.Nullable;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -41,12 +42,14 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CACHE_CONTROL;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.DATE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.EXPIRES;
 import static io.netty.handler.codec.http.HttpHeaders.Names.LAST_MODIFIED;
 import static io.netty.handler.codec.http.HttpHeaders.Names.LOCATION;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpResponseStatus.FOUND;
@@ -198,4 +201,23 @@ public class HttpUtils {
         setContentTypeHeader(response, "application/json; charset=utf-8");
         return response;
     }
+
+    /** @return true if the request lists gzip as an acceptable content encoding */
+    public static boolean acceptsGzip(@Nullable HttpRequest request) {
+        if (request == null) {
+            return false;
+        }
+        String accepted = request.headers().get(HttpHeaders.Names.ACCEPT_ENCODING);
+        if (accepted == null) {
+            return false;
+        }
+        for (String coding : accepted.split(",")) {
+            String[] parts = coding.split(";");
+            if (HttpHeaders.Values.GZIP.equalsIgnoreCase(parts[0].trim())) {
+                // "gzip;q=0" means not acceptable
+                return (parts.length < 2) || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
 }
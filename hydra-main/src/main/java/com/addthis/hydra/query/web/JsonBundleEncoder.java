@@ -14,6 +14,7 @@
 
 package com.addthis.hydra.query.web;
 
+import java.io.IOException;
 import java.io.UncheckedIOException;
 
 import com.addthis.bundle.core.Bundle;
@@ -21,12 +22,18 @@ import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.codec.jackson.Jackson;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import com.google.common.io.CharStreams;
 
 import static com.addthis.hydra.query.web.HttpUtils.setContentTypeHeader;
 
 public class JsonBundleEncoder extends AbstractBufferingHttpBundleEncoder {
 
+    /** writes values straight into the row text; bound to the builder rows are appended to */
+    private JsonGenerator generator;
+    private StringBuilder generatorTarget;
+
     public JsonBundleEncoder() {
         super();
         setContentTypeHeader(responseStart, "application/json; charset=utf-8");
@@ -60,16 +67,25 @@ public class JsonBundleEncoder extends AbstractBufferingHttpBundleEncoder {
                 o = o.asCustom().asSimple();
             }
             try {
-                // TODO: no worse than the preivous version, but should still be able to avoid the string alloc.
-                String encodedCopy = Jackson.defaultMapper().writeValueAsString(o.asNative());
-                sendBuffer.append(encodedCopy);
-            } catch (JsonProcessingException e) {
+                JsonGenerator json = generator(sendBuffer);
+                json.writeObject(o.asNative());
+                json.flush();
+            } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
         }
         sendBuffer.append(']');
     }
 
+    private JsonGenerator generator(StringBuilder sendBuffer) throws IOException {
+        if (generatorTarget != sendBuffer) {
+            generator = Jackson.defaultMapper().getFactory().createGenerator(CharStreams.asWriter(sendBuffer));
+            generator.setRootValueSeparator(null);
+            generatorTarget = sendBuffer;
+        }
+        return generator;
+    }
+
     @Override
     protected void appendResponseEndToString(StringBuilder sendBuffer) {
         sendBuffer.append("]");
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.web;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.hydra.query.aggregate.QuerySnapshot;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import static com.addthis.hydra.query.web.HttpUtils.setContentTypeHeader;
+
+/**
+ * Json response of a progressive query (see {@link QuerySnapshot}): one json object per line, a
+ * snapshot for every snapshot sent while the query runs
+ * <pre>{"snapshot":true,"tasks":3,"totalTasks":10,"rows":[[...],...]}</pre>
+ * and finally the complete results, which replace the last snapshot
+ * <pre>{"snapshot":false,"rows":[[...],...]}</pre>
+ */
+public class ProgressiveJsonBundleEncoder extends JsonBundleEncoder {
+
+    private static final String FINAL_START = "{\"snapshot\":false,\"rows\":[";
+    private static final String DOCUMENT_END = "]}\n";
+
+    /** true between the start of a snapshot or the final results and the end of its rows */
+    private boolean documentOpen;
+    private boolean firstRow;
+
+    public ProgressiveJsonBundleEncoder() {
+        super();
+        setContentTypeHeader(responseStart, "application/x-ndjson; charset=utf-8");
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof QuerySnapshot) {
+            QuerySnapshot snapshot = (QuerySnapshot) msg;
+            sendText(ctx, "{\"snapshot\":true,\"tasks\":" + snapshot.completedTasks
+                          + ",\"totalTasks\":" + snapshot.totalTasks + ",\"rows\":[");
+            documentOpen = true;
+            firstRow = true;
+        } else if (msg == QuerySnapshot.END) {
+            sendText(ctx, DOCUMENT_END);
+            documentOpen = false;
+        } else {
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    @Override
+    public void appendResponseStartToString(StringBuilder sendBuffer) {
+        // every document is started on its own
+    }
+
+    @Override
+    public void appendBundleToString(Bundle row, StringBuilder sendBuffer) {
+        if (!documentOpen) {
+            sendBuffer.append(FINAL_START);
+            documentOpen = true;
+            firstRow = true;
+        }
+        if (!firstRow) {
+            sendBuffer.append(',');
+        }
+        firstRow = false;
+        super.appendInitialBundleToString(row, sendBuffer);
+    }
+
+    @Override
+    protected void appendInitialBundleToString(Bundle firstRow, StringBuilder sendBuffer) {
+        appendBundleToString(firstRow, sendBuffer);
+    }
+
+    @Override
+    protected void appendResponseEndToString(StringBuilder sendBuffer) {
+        if (!documentOpen) {
+            sendBuffer.append(FINAL_START);
+        }
+        sendBuffer.append(DOCUMENT_END);
+        documentOpen = false;
+    }
+}
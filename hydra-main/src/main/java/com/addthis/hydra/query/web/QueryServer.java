@@ -76,7 +76,7 @@ public class QueryServer implements AutoCloseable {
                         @JsonProperty(value = "queryThreads", required = true) int queryThreads,
                         @JsonProperty(value = "queryThreadFactory", required = true) ThreadFactory queryThreadFactory
     ) throws Exception {
-        queryQueue = new QueryQueue();
+        queryQueue = new QueryQueue(QueryQueue.DEFAULT_QUEUE_MAX, queryThreads);
         bossGroup = new NioEventLoopGroup(1);
         workerGroup = new NioEventLoopGroup();
         executorGroup = new DefaultEventExecutorGroup(queryThreads, queryThreadFactory);
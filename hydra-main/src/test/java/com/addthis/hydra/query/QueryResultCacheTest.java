@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.query.aggregate.QueryTaskSource;
+import com.addthis.hydra.query.aggregate.QueryTaskSourceOption;
+import com.addthis.meshy.service.file.FileReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class QueryResultCacheTest {
+
+    private File tmpDir;
+
+    @Before
+    public void before() throws Exception {
+        tmpDir = LessFiles.createTempDir();
+    }
+
+    @After
+    public void after() {
+        LessFiles.deleteDir(tmpDir);
+    }
+
+    private static QueryTaskSource[] sources(long lastModified) {
+        FileReference reference = new FileReference("/job/0/gold/data/query", lastModified, 100);
+        QueryTaskSourceOption option = new QueryTaskSourceOption(reference, new Semaphore(1));
+        return new QueryTaskSource[]{new QueryTaskSource(new QueryTaskSourceOption[]{option})};
+    }
+
+    private static Query query(String ops) {
+        return new Query("job", new String[]{"+:+hits"}, new String[]{ops});
+    }
+
+    private static List<Bundle> rows(int count) {
+        List<Bundle> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ListBundle row = new ListBundle();
+            row.setValue(row.getFormat().getField("key"), ValueFactory.create("row" + i));
+            row.setValue(row.getFormat().getField("hits"), ValueFactory.create(i));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void record(QueryResultCache cache, String key, List<Bundle> rows) {
+        DataChannelOutput output = mock(DataChannelOutput.class);
+        QueryResultCache.Recorder recorder = cache.record(key, output);
+        for (Bundle row : rows) {
+            recorder.send(row);
+        }
+        recorder.commit();
+        verify(output, times(rows.size())).send(any(Bundle.class));
+    }
+
+    /** @return the rows of the entry or null on a miss */
+    private static List<Bundle> cached(QueryResultCache cache, String key) throws Exception {
+        try (QueryResultCache.CachedRows cached = cache.open(key).get()) {
+            if (cached == null) {
+                return null;
+            }
+            List<Bundle> rows = new ArrayList<>();
+            Bundle row;
+            while ((row = cached.next()) != null) {
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+
+    @Test
+    public void keyTracksDataVersion() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1 << 20, 1 << 20, 60, tmpDir);
+        String key = cache.keyFor("job", "1,", query("sort"), sources(1));
+        assertNotNull(key);
+        assertEquals(key, cache.keyFor("job", "1,", query("sort"), sources(1)));
+        assertNotEquals(key, cache.keyFor("job", "1,", query("sort"), sources(2)));
+        assertNotEquals(key, cache.keyFor("job", "2,", query("sort"), sources(1)));
+        assertNotEquals(key, cache.keyFor("job", "1,", query("limit=1"), sources(1)));
+        Query bypass = query("sort");
+        bypass.setParameter(QueryResultCache.QUERY_PARAMETER, "false");
+        assertNull(cache.keyFor("job", "1,", bypass, sources(1)));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1 << 20, 1 << 20, 60, tmpDir);
+        String key = cache.keyFor("job", "1,", query("sort"), sources(1));
+        assertNull(cached(cache, key));
+        record(cache, key, rows(10));
+        List<Bundle> cached = cached(cache, key);
+        assertNotNull(cached);
+        assertEquals(10, cached.size());
+        assertEquals("row3", cached.get(3).getValue(cached.get(3).getFormat().getField("key")).toString());
+        assertEquals("3", cached.get(3).getValue(cached.get(3).getFormat().getField("hits")).toString());
+    }
+
+    @Test
+    public void abandonedAndOversizedAreNotStored() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1 << 20, 64, 60, tmpDir);
+        String key = cache.keyFor("job", "1,", query("sort"), sources(1));
+        record(cache, key, rows(100));
+        assertNull(cached(cache, key));
+
+        QueryResultCache.Recorder recorder = cache.record(key, mock(DataChannelOutput.class));
+        recorder.send(rows(1).get(0));
+        recorder.abandon();
+        recorder.commit();
+        assertNull(cached(cache, key));
+    }
+
+    @Test
+    public void spillToDisk() throws Exception {
+        // no heap budget so every entry goes straight to the disk tier
+        QueryResultCache cache = new QueryResultCache(0, 1 << 20, 1 << 20, 60, tmpDir);
+        String key = cache.keyFor("job", "1,", query("sort"), sources(1));
+        record(cache, key, rows(10));
+        List<Bundle> cached = cached(cache, key);
+        assertNotNull(cached);
+        assertEquals(10, cached.size());
+    }
+
+    @Test
+    public void invalidateJob() throws Exception {
+        QueryResultCache cache = new QueryResultCache(0, 1 << 20, 1 << 20, 60, tmpDir);
+        String key = cache.keyFor("job", "1,", query("sort"), sources(1));
+        String other = cache.keyFor("other", "1,", query("sort"), sources(1));
+        record(cache, key, rows(10));
+        record(cache, other, rows(10));
+        cache.invalidate("job");
+        assertNull(cached(cache, key));
+        assertNotNull(cached(cache, other));
+    }
+
+    @Test
+    public void jobVersionChangeInvalidates() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1 << 20, 1 << 20, 60, tmpDir);
+        String key = cache.keyFor("job", "1,", query("sort"), sources(1));
+        record(cache, key, rows(10));
+        assertEquals(Collections.singleton("job"), cache.cachedJobs());
+        cache.jobVersion("job", "1,");
+        assertNotNull(cached(cache, key));
+        // the job completed a run while the query was running, so the rows were stored for an old version
+        cache.jobVersion("job", "2,");
+        assertNull(cached(cache, key));
+        String newer = cache.keyFor("job", "2,", query("sort"), sources(1));
+        record(cache, newer, rows(10));
+        assertNotNull(cached(cache, newer));
+    }
+
+    @Test
+    public void onlyOwnFilesAreDeleted() throws Exception {
+        File other = new File(tmpDir, "other");
+        assertTrue(other.createNewFile());
+        QueryResultCache cache = new QueryResultCache(0, 1 << 20, 1 << 20, 60, tmpDir);
+        String key = cache.keyFor("job", "1,", query("sort"), sources(1));
+        record(cache, key, rows(10));
+        assertNotNull(cached(cache, key));
+        // spills are written in the background
+        File cacheDir = new File(tmpDir, QueryResultCache.class.getSimpleName());
+        for (int i = 0; (i < 100) && (cacheDir.list().length == 0); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, cacheDir.list().length);
+        new QueryResultCache(0, 1 << 20, 1 << 20, 60, tmpDir);
+        assertEquals(0, cacheDir.list().length);
+        assertTrue(other.exists());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.aggregate;
+
+import com.yammer.metrics.stats.Sample;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HedgePolicyTest {
+
+    @After
+    public void after() {
+        HedgePolicy.resetBudget(HedgePolicy.BURST);
+    }
+
+    @Test
+    public void delayNeedsSamples() {
+        Sample samples = HedgePolicy.responseTimes("delayNeedsSamples");
+        assertSame(samples, HedgePolicy.responseTimes("delayNeedsSamples"));
+        assertEquals(-1, HedgePolicy.hedgeDelay(samples));
+        for (int i = 1; i <= 100; i++) {
+            samples.update(i * 10);
+        }
+        long delay = HedgePolicy.hedgeDelay(samples);
+        assertTrue(delay >= 900 && delay <= 1000);
+    }
+
+    @Test
+    public void budgetLimitsHedges() {
+        HedgePolicy.resetBudget(0);
+        assertFalse(HedgePolicy.tryWithdraw());
+        // one hedge per twenty tasks at the default budget
+        HedgePolicy.deposit(20);
+        assertTrue(HedgePolicy.tryWithdraw());
+        assertFalse(HedgePolicy.tryWithdraw());
+        HedgePolicy.refund();
+        assertTrue(HedgePolicy.tryWithdraw());
+    }
+
+    @Test
+    public void budgetIsCapped() {
+        HedgePolicy.resetBudget(0);
+        HedgePolicy.deposit(1000000);
+        int hedges = 0;
+        while (HedgePolicy.tryWithdraw()) {
+            hedges++;
+        }
+        assertEquals((int) HedgePolicy.BURST, hedges);
+    }
+}
@@ -14,6 +14,7 @@
 package com.addthis.hydra.query.aggregate;
 
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.bundle.core.Bundle;
@@ -29,7 +30,9 @@ import org.mockito.Spy;
 import io.netty.channel.ChannelProgressivePromise;
 import io.netty.util.concurrent.EventExecutor;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -104,9 +107,40 @@ public class QueryTaskTest {
 
         queryTask.run();
 
-        // verify attempts to active each task source, and resubmission of the query task for execution
+        // verify attempts to active each task source, and a delayed retry while no lease is available
         verify(sourceAggregator, times(4)).tryActivateSource(any(QueryTaskSource.class));
-        verify(sourceAggregator.executor).execute(queryTask);
+        verify(sourceAggregator.executor).schedule(queryTask, AggregateConfig.LEASE_RETRY_MILLIS,
+                                                   TimeUnit.MILLISECONDS);
+        verify(sourceAggregator.executor, never()).execute(queryTask);
+    }
+
+    @Test
+    public void waitsForFrames() throws Exception {
+        // all task sources are active but none has data
+        for (QueryTaskSource x : sourceAggregator.taskSources) {
+            when(x.next()).thenReturn(null);
+            when(x.complete()).thenReturn(false);
+            when(x.hasNoActiveSources()).thenReturn(false);
+        }
+
+        queryTask.run();
+
+        // nothing is rescheduled until a frame arrives, and then exactly once
+        verify(sourceAggregator.executor, never()).execute(queryTask);
+        verify(sourceAggregator.executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        sourceAggregator.queryTask = queryTask;
+        sourceAggregator.sourceReady(taskSource2);
+        sourceAggregator.sourceReady(taskSource1);
+        verify(sourceAggregator.executor, times(1)).execute(queryTask);
+
+        // only the sources that were signaled are read
+        when(taskSource2.next()).thenReturn(mock(Bundle.class)).thenReturn(null);
+        queryTask.run();
+        verify(sourceAggregator.consumer, times(1)).send(any(Bundle.class));
+        verify(taskSource0, times(1)).next();
+        verify(taskSource1, times(2)).next();
+        verify(taskSource2, times(3)).next();
+        verify(taskSource3, times(1)).next();
     }
 
     @Test
@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.loadbalance;
+
+import java.util.List;
+
+import com.addthis.basis.kv.KVPairs;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryOpProcessor;
+import com.addthis.hydra.query.web.HttpQueryCallHandler;
+
+import org.junit.Test;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryQueueTest {
+
+    private static QueryRequest request(QueryQueue.Priority priority, String user, long cost) {
+        QueryRequest request = new QueryRequest(null, new KVPairs(), null, null);
+        request.priority = priority;
+        request.user = user;
+        request.cost = cost;
+        return request;
+    }
+
+    @Test
+    public void interactiveBeforeQueuedBatch() throws Exception {
+        QueryQueue queue = new QueryQueue(100, 0);
+        for (int i = 0; i < 5; i++) {
+            queue.add(request(QueryQueue.Priority.BATCH, "exporter", 1000));
+        }
+        QueryRequest dashboard = request(QueryQueue.Priority.INTERACTIVE, "dashboard", 100);
+        queue.add(dashboard);
+        assertSame(dashboard, queue.takeQuery());
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void usersShareFairly() throws Exception {
+        QueryQueue queue = new QueryQueue(100, 0);
+        QueryRequest[] heavy = new QueryRequest[3];
+        for (int i = 0; i < heavy.length; i++) {
+            heavy[i] = request(QueryQueue.Priority.INTERACTIVE, "heavy", 100);
+            queue.add(heavy[i]);
+        }
+        assertSame(heavy[0], queue.takeQuery());
+        QueryRequest light = request(QueryQueue.Priority.INTERACTIVE, "light", 100);
+        queue.add(light);
+        // arrives after the heavy user's backlog but only waits for its share
+        assertSame(light, queue.takeQuery());
+        assertSame(heavy[1], queue.takeQuery());
+        assertSame(heavy[2], queue.takeQuery());
+    }
+
+    @Test
+    public void batchLeavesThreadsForInteractive() throws Exception {
+        // batch may use half of two query threads
+        QueryQueue queue = new QueryQueue(100, 2);
+        QueryRequest first = request(QueryQueue.Priority.BATCH, "exporter", 10);
+        QueryRequest second = request(QueryQueue.Priority.BATCH, "exporter", 10);
+        queue.add(first);
+        queue.add(second);
+        assertSame(first, queue.takeQuery());
+        QueryRequest dashboard = request(QueryQueue.Priority.INTERACTIVE, "dashboard", 1000);
+        queue.add(dashboard);
+        assertSame(dashboard, queue.takeQuery());
+        queue.queryComplete(first);
+        assertSame(second, queue.takeQuery());
+    }
+
+    @Test(expected = QueryRejectedException.class)
+    public void rejectWhenFull() {
+        QueryQueue queue = new QueryQueue(2, 0);
+        for (int i = 0; i < 3; i++) {
+            queue.add(request(QueryQueue.Priority.INTERACTIVE, "user", 10));
+        }
+    }
+
+    @Test
+    public void classesHaveTheirOwnLimits() {
+        assertTrue(QueryQueue.Priority.BATCH.maxQueued < QueryQueue.Priority.INTERACTIVE.maxQueued);
+        assertTrue(QueryQueue.Priority.INTERACTIVE.maxQueued < QueryQueue.DEFAULT_QUEUE_MAX);
+        QueryQueue queue = new QueryQueue(QueryQueue.DEFAULT_QUEUE_MAX, 0);
+        for (int i = 0; i < QueryQueue.Priority.BATCH.maxQueued; i++) {
+            queue.add(request(QueryQueue.Priority.BATCH, "exporter", 10));
+        }
+        try {
+            queue.add(request(QueryQueue.Priority.BATCH, "exporter", 10));
+            fail("batch query was queued past its class limit");
+        } catch (QueryRejectedException expected) {
+        }
+        queue.add(request(QueryQueue.Priority.INTERACTIVE, "dashboard", 10));
+    }
+
+    @Test
+    public void classify() {
+        KVPairs kv = new KVPairs();
+        kv.add("job", "j");
+        assertEquals(QueryQueue.Priority.INTERACTIVE, QueryQueue.classify(kv));
+        kv.add("filename", "export");
+        assertEquals(QueryQueue.Priority.BATCH, QueryQueue.classify(kv));
+        kv.add("priority", "interactive");
+        assertEquals(QueryQueue.Priority.INTERACTIVE, QueryQueue.classify(kv));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPriority() {
+        KVPairs kv = new KVPairs();
+        kv.add("priority", "urgent");
+        QueryQueue.classify(kv);
+    }
+
+    @Test
+    public void explainedEstimates() {
+        QueryQueue queue = new QueryQueue(100, 0);
+        queue.setNodeLimits(1000000, 1000);
+        KVPairs kv = new KVPairs();
+        kv.add("job", "j");
+        kv.add("path", "/a/b");
+        QueryRequest request = request(QueryQueue.Priority.INTERACTIVE, "user", 10);
+        queue.applyEstimate(request, kv, 1);
+        assertEquals(QueryQueue.Priority.INTERACTIVE, request.priority);
+        queue.recordEstimate(kv, 5000);
+        queue.applyEstimate(request, kv, 1);
+        assertEquals(QueryQueue.Priority.BATCH, request.priority);
+        queue.recordEstimate(kv, 5000000);
+        try {
+            queue.applyEstimate(request, kv, 1);
+            fail("expensive query was admitted");
+        } catch (QueryRejectedException expected) {
+        }
+    }
+
+    @Test
+    public void explainedTasksAreMergedAtTheMaster() {
+        KVPairs kv = new KVPairs();
+        kv.add("job", "j");
+        kv.add("path", "/+");
+        kv.add("explain", "1");
+        Query query = new Query("j", new String[]{"/+"}, HttpQueryCallHandler.queryOps(kv));
+        Query workerQuery = query.createPipelinedQuery();
+        assertEquals(0, workerQuery.getOps().length);
+        // the master ops of the query write to the channel that records the estimate
+        QueryQueue queue = new QueryQueue(100, 0);
+        EmbeddedChannel channel = new EmbeddedChannel(queue.estimateRecorder(kv));
+        ListBundleFormat format = new ListBundleFormat();
+        QueryOpProcessor master = new QueryOpProcessor(new DataChannelOutput() {
+            @Override public void send(Bundle row) {
+                channel.writeOutbound(row);
+            }
+
+            @Override public void send(List<Bundle> bundles) {
+                bundles.forEach(this::send);
+            }
+
+            @Override public void sendComplete() {
+            }
+
+            @Override public void sourceError(Throwable cause) {
+                throw new AssertionError(cause);
+            }
+
+            @Override public Bundle createBundle() {
+                return new ListBundle(format);
+            }
+        }, query.getOps());
+        // one row from each of three tasks
+        for (long nodes : new long[]{3000, 2000, 1000}) {
+            Bundle row = new ListBundle(format);
+            row.setValue(format.getField("tasks"), ValueFactory.create(1));
+            row.setValue(format.getField("nodes"), ValueFactory.create(nodes));
+            row.setValue(format.getField("pages"), ValueFactory.create(1));
+            row.setValue(format.getField("rows"), ValueFactory.create(1));
+            master.send(row);
+        }
+        master.sendComplete();
+        master.close();
+        assertEquals(1, channel.outboundMessages().size());
+        // recorded the sum, not one of the tasks
+        queue.setNodeLimits(5000, 0);
+        try {
+            queue.applyEstimate(request(QueryQueue.Priority.INTERACTIVE, "user", 10), kv, 3);
+            fail("estimate of the whole query was not recorded");
+        } catch (QueryRejectedException expected) {
+        }
+    }
+
+    @Test
+    public void guessedEstimates() {
+        assertEquals(2, QueryQueue.guessNodes("/a/b", 1));
+        assertEquals(10 * (100 + (100 * 100)), QueryQueue.guessNodes("/+/+", 10));
+        assertEquals(-1, QueryQueue.guessNodes(null, 10));
+        QueryQueue queue = new QueryQueue(100, 0);
+        // a guess moves a query to batch but never rejects it
+        queue.setNodeLimits(1000, 50000);
+        KVPairs kv = new KVPairs();
+        kv.add("job", "j");
+        kv.add("path", "/+/+");
+        QueryRequest request = request(QueryQueue.Priority.INTERACTIVE, "user", 10);
+        queue.applyEstimate(request, kv, 10);
+        assertEquals(QueryQueue.Priority.BATCH, request.priority);
+        request = request(QueryQueue.Priority.INTERACTIVE, "user", 10);
+        queue.applyEstimate(request, kv, 1);
+        assertEquals(QueryQueue.Priority.INTERACTIVE, request.priority);
+        kv.add("priority", "interactive");
+        request = request(QueryQueue.Priority.INTERACTIVE, "user", 10);
+        queue.applyEstimate(request, kv, 10);
+        assertEquals(QueryQueue.Priority.INTERACTIVE, request.priority);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.loadbalance;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkerDataTest {
+
+    @Test
+    public void fasterWorkerScoresBetter() {
+        WorkerData fast = new WorkerData("fast", 4);
+        WorkerData slow = new WorkerData("slow", 4);
+        for (int i = 0; i < 10; i++) {
+            fast.recordResponse(10);
+            slow.recordResponse(500);
+        }
+        assertTrue(fast.score() < slow.score());
+        // an unsampled worker looks fast so that it gets tried
+        assertTrue(new WorkerData("new", 4).score() < fast.score());
+    }
+
+    @Test
+    public void inFlightAndFailuresRaiseScore() throws Exception {
+        WorkerData worker = new WorkerData("w", 4);
+        worker.recordResponse(10);
+        double idle = worker.score();
+        worker.queryLeases.acquire(2);
+        assertEquals(2, worker.inFlight());
+        assertTrue(worker.score() > idle);
+        worker.queryLeases.release(2);
+        worker.recordFailure();
+        assertTrue(worker.score() > idle);
+    }
+
+    @Test
+    public void noResponseOnlyRaisesEstimate() {
+        WorkerData worker = new WorkerData("w", 1);
+        worker.recordResponse(100);
+        worker.recordNoResponse(50);
+        assertEquals(100, worker.responseMillis(), 0.001);
+        worker.recordNoResponse(200);
+        assertTrue(worker.responseMillis() > 100);
+    }
+
+    @Test
+    public void noResponseKeepsFailures() {
+        WorkerData worker = new WorkerData("w", 1);
+        worker.recordResponse(100);
+        worker.recordFailure();
+        // the part of the score that is not response time
+        double penalty = worker.score() / (worker.responseMillis() + 1);
+        worker.recordNoResponse(500);
+        assertTrue(worker.responseMillis() > 100);
+        assertEquals(penalty, worker.score() / (worker.responseMillis() + 1), 1e-9);
+    }
+}
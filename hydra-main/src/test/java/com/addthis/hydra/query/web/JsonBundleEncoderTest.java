@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.query.aggregate.QuerySnapshot;
+
+import com.google.common.io.ByteStreams;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonBundleEncoderTest {
+
+    private final ListBundleFormat format = new ListBundleFormat();
+
+    private Bundle row(String key, long value) {
+        Bundle row = new ListBundle(format);
+        row.setValue(format.getField("key"), ValueFactory.create(key));
+        row.setValue(format.getField("value"), ValueFactory.create(value));
+        return row;
+    }
+
+    /** @return the response headers and the body as received, with the number of chunks */
+    private static Object[] respond(AbstractBufferingHttpBundleEncoder encoder, Object... rows) {
+        EmbeddedChannel channel = new EmbeddedChannel(encoder);
+        // the bridge writes rows with void promises, which the encoder never completes
+        for (Object row : rows) {
+            channel.write(row, channel.voidPromise());
+        }
+        channel.writeAndFlush(DataChannelOutputToNettyBridge.SEND_COMPLETE, channel.voidPromise());
+        HttpResponse response = (HttpResponse) channel.readOutbound();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int chunks = 0;
+        Object next;
+        while ((next = channel.readOutbound()) != null) {
+            ByteBuf content = ((HttpContent) next).content();
+            byte[] bytes = new byte[content.readableBytes()];
+            content.readBytes(bytes);
+            content.release();
+            body.write(bytes, 0, bytes.length);
+            chunks++;
+        }
+        assertFalse(channel.finish());
+        return new Object[]{response, body.toByteArray(), chunks};
+    }
+
+    @Test
+    public void rows() {
+        Object[] result = respond(new JsonBundleEncoder(), row("a", 1), row("b\"", 2));
+        assertTrue(HttpHeaders.isTransferEncodingChunked((HttpResponse) result[0]));
+        assertEquals("[[\"a\",1],[\"b\\\"\",2]]", new String((byte[]) result[1], StandardCharsets.UTF_8));
+        assertEquals("[]", new String((byte[]) respond(new JsonBundleEncoder())[1], StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void gzipAcrossChunks() throws IOException {
+        Bundle[] rows = new Bundle[20000];
+        StringBuilder expected = new StringBuilder("[");
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = row("row" + i, i);
+            expected.append((i > 0) ? "," : "").append("[\"row").append(i).append("\",").append(i).append(']');
+        }
+        expected.append(']');
+        JsonBundleEncoder encoder = new JsonBundleEncoder();
+        encoder.gzip();
+        Object[] result = respond(encoder, rows);
+        assertEquals("gzip", ((HttpResponse) result[0]).headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+        assertTrue((Integer) result[2] > 1);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream((byte[]) result[1]))) {
+            assertEquals(expected.toString(), new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void progressiveSnapshots() {
+        Object[] result = respond(new ProgressiveJsonBundleEncoder(),
+                                  new QuerySnapshot(1, 3), row("a", 1), QuerySnapshot.END,
+                                  new QuerySnapshot(2, 3), QuerySnapshot.END,
+                                  row("a", 1), row("b", 2));
+        assertEquals("application/x-ndjson; charset=utf-8",
+                     ((HttpResponse) result[0]).headers().get(HttpHeaders.Names.CONTENT_TYPE));
+        assertEquals("{\"snapshot\":true,\"tasks\":1,\"totalTasks\":3,\"rows\":[[\"a\",1]]}\n"
+                     + "{\"snapshot\":true,\"tasks\":2,\"totalTasks\":3,\"rows\":[]}\n"
+                     + "{\"snapshot\":false,\"rows\":[[\"a\",1],[\"b\",2]]}\n",
+                     new String((byte[]) result[1], StandardCharsets.UTF_8));
+        assertEquals("{\"snapshot\":false,\"rows\":[]}\n",
+                     new String((byte[]) respond(new ProgressiveJsonBundleEncoder())[1], StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void acceptsGzip() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/query/call");
+        assertFalse(HttpUtils.acceptsGzip(request));
+        request.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, "deflate, gzip;q=1.0");
+        assertTrue(HttpUtils.acceptsGzip(request));
+        request.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, "gzip;q=0");
+        assertFalse(HttpUtils.acceptsGzip(request));
+    }
+}
@@ -21,7 +21,9 @@ import java.io.OutputStream;
 
 import java.util.zip.GZIPOutputStream;
 
-import com.addthis.basis.io.GZIPInputStreamX;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.util.BufferPool;
 
 import com.ning.compress.lzf.LZFInputStream;
 import com.ning.compress.lzf.LZFOutputStream;
@@ -40,22 +42,57 @@ public class CompressedStream {
 
     private static final int BUFFER_SIZE = 4096;
 
+    /** size of the pooled buffers that compressed input and decompressed output are read into */
+    static final int READ_BUFFER_SIZE = Parameter.intValue("hydra.compress.readBuffer", 64 * 1024);
+
+    /** buffers and gzip inflaters kept for reuse once the streams using them are closed */
+    static final int POOLED = Parameter.intValue("hydra.compress.pooled", 64);
+
+    private static final BufferPool buffers = new BufferPool(READ_BUFFER_SIZE, POOLED);
+
+    /**
+     * Decompressed streams read ahead into pooled buffers and measure decompression throughput per
+     * compression type. Close them to return their buffers and inflaters to the pools.
+     */
     public static @Nonnull InputStream decompressInputStream(@Nonnull InputStream in,
                                                              @Nonnull String name) throws IOException {
+        InputStream decompressing;
+        CompressionType type;
         if (name.endsWith(CompressionType.GZIP.suffix)) {
-            in = new GZIPInputStreamX(in, BUFFER_SIZE);
+            decompressing = new PooledGZIPInputStream(in, buffers);
+            type = CompressionType.GZIP;
         } else if (name.endsWith(CompressionType.LZF.suffix)) {
-            in = new LZFInputStream(in);
+            decompressing = new LZFInputStream(in);
+            type = CompressionType.LZF;
         } else if (name.endsWith(CompressionType.SNAPPY.suffix)) {
-            in = new SnappyInputStream(in);
+            decompressing = new SnappyInputStream(in);
+            type = CompressionType.SNAPPY;
         } else if (name.endsWith(CompressionType.BZIP2.suffix)) {
-            in = new BZip2CompressorInputStream(in, true);
+            decompressing = new BZip2CompressorInputStream(in, true);
+            type = CompressionType.BZIP2;
         } else if (name.endsWith(CompressionType.LZMA.suffix)) {
-            in = new LZMAInputStream(in);
+            decompressing = new LZMAInputStream(in);
+            type = CompressionType.LZMA;
         } else if (name.endsWith(CompressionType.XZ.suffix)) {
-            in = new XZInputStream(in);
+            decompressing = new XZInputStream(in);
+            type = CompressionType.XZ;
+        } else {
+            return in;
+        }
+        return new DecompressedInputStream(decompressing, type, buffers);
+    }
+
+    /**
+     * @return true if {@link #decompressInputStream} decompresses files with this name, in which
+     *         case byte offsets into the file can not be used to seek to a position of its contents
+     */
+    public static boolean isCompressed(@Nonnull String name) {
+        for (CompressionType type : CompressionType.values()) {
+            if (name.endsWith(type.suffix)) {
+                return true;
+            }
         }
-        return in;
+        return false;
     }
 
     public static @Nonnull OutputStream compressOutputStream(@Nonnull OutputStream out,
@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.compress;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.hydra.store.util.BufferPool;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * Reads ahead of a decompressing stream into a pooled buffer, so that decompressors are called
+ * with large reads however the stream is consumed, and measures the bytes decompressed and the
+ * time spent decompressing them for each compression type.
+ */
+final class DecompressedInputStream extends FilterInputStream {
+
+    private static final Map<CompressionType, Meter> bytes = new EnumMap<>(CompressionType.class);
+    private static final Map<CompressionType, Counter> nanos = new EnumMap<>(CompressionType.class);
+
+    static {
+        for (CompressionType type : CompressionType.values()) {
+            String scope = type.name().toLowerCase();
+            Meter meter = Metrics.newMeter(CompressedStream.class, "decompressedBytes", scope,
+                                           "bytes", TimeUnit.SECONDS);
+            Counter counter = Metrics.newCounter(CompressedStream.class, "decompressNanos", scope);
+            Metrics.newGauge(CompressedStream.class, "decompressBytesPerSecond", scope, new Gauge<Long>() {
+                @Override public Long value() {
+                    long elapsed = counter.count();
+                    return (elapsed > 0) ? (long) ((meter.count() * 1e9) / elapsed) : 0;
+                }
+            });
+            bytes.put(type, meter);
+            nanos.put(type, counter);
+        }
+    }
+
+    private final BufferPool buffers;
+    private final Meter decompressed;
+    private final Counter elapsed;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean closed;
+
+    DecompressedInputStream(InputStream in, CompressionType type, BufferPool buffers) {
+        super(in);
+        this.buffers = buffers;
+        this.decompressed = bytes.get(type);
+        this.elapsed = nanos.get(type);
+        this.buf = buffers.take();
+    }
+
+    private int decompress(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int read = in.read(b, off, len);
+        elapsed.inc(System.nanoTime() - start);
+        if (read > 0) {
+            decompressed.mark(read);
+        }
+        return read;
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = Math.max(0, decompress(buf, 0, buf.length));
+        return limit > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if ((pos >= limit) && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= limit) {
+            if (len >= buf.length) {
+                // nothing is gained by copying large reads through the buffer
+                return decompress(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int read = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, read);
+        pos += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (pos < limit) {
+            int skipped = (int) Math.min(n, limit - pos);
+            pos += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffers.release(buf);
+        buf = null;
+        in.close();
+    }
+}
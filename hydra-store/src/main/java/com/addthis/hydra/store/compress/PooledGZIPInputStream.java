@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.addthis.hydra.store.util.BufferPool;
+
+/**
+ * Reads gzip streams like {@link com.addthis.basis.io.GZIPInputStreamX}, including streams of
+ * concatenated members and streams whose last trailer is corrupt, but with an {@link Inflater}
+ * and input buffer that are reused once the stream is closed rather than allocated per stream.
+ */
+final class PooledGZIPInputStream extends InputStream {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(CompressedStream.POOLED);
+
+    private final InputStream in;
+    private final BufferPool buffers;
+    private final CRC32 crc = new CRC32();
+    private final byte[] single = new byte[1];
+
+    private Inflater inflater;
+    private byte[] buf;
+    /** compressed bytes buf[pos, limit) have not been given to the inflater */
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean closed;
+
+    PooledGZIPInputStream(InputStream in, BufferPool buffers) throws IOException {
+        this.in = in;
+        this.buffers = buffers;
+        this.buf = buffers.take();
+        Inflater pooled = inflaters.poll();
+        this.inflater = (pooled != null) ? pooled : new Inflater(true);
+        try {
+            if (!readHeader(true)) {
+                throw new EOFException();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (!eof) {
+            int inflated;
+            try {
+                inflated = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            if (inflated > 0) {
+                crc.update(b, off, inflated);
+                return inflated;
+            }
+            if (inflater.finished()) {
+                pos = limit - inflater.getRemaining();
+                eof = !readTrailer() || !readHeader(false);
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("gzip member needs a preset dictionary");
+            } else if (inflater.needsInput()) {
+                if (fill() < 0) {
+                    throw new EOFException("Unexpected end of ZLIB input stream");
+                }
+                inflater.setInput(buf, 0, limit);
+                pos = limit;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        return eof ? 0 : 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+        inflater = null;
+        buffers.release(buf);
+        buf = null;
+        in.close();
+    }
+
+    private int fill() throws IOException {
+        pos = 0;
+        limit = Math.max(0, in.read(buf, 0, buf.length));
+        return (limit > 0) ? limit : -1;
+    }
+
+    private int readByte() throws IOException {
+        if ((pos >= limit) && (fill() < 0)) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    private int requireByte() throws IOException {
+        int b = readByte();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private long readInt() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= ((long) requireByte()) << (i * 8);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the header of a member and hands the compressed bytes after it to the reset inflater.
+     *
+     * @return false if there are no more members
+     */
+    private boolean readHeader(boolean first) throws IOException {
+        int magic = readByte();
+        if (magic < 0) {
+            return false;
+        }
+        if ((magic != 0x1f) || (readByte() != 0x8b)) {
+            if (first) {
+                throw new ZipException("Not in GZIP format");
+            }
+            // like GZIPInputStream, ignore trailing garbage
+            return false;
+        }
+        if (requireByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = requireByte();
+        // modification time, extra flags and operating system
+        for (int i = 0; i < 6; i++) {
+            requireByte();
+        }
+        if ((flags & FEXTRA) != 0) {
+            int length = requireByte() | (requireByte() << 8);
+            for (int i = 0; i < length; i++) {
+                requireByte();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (requireByte() != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (requireByte() != 0) {
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            requireByte();
+            requireByte();
+        }
+        inflater.reset();
+        crc.reset();
+        if (pos < limit) {
+            inflater.setInput(buf, pos, limit - pos);
+            pos = limit;
+        }
+        return true;
+    }
+
+    /** @return false if the trailer is corrupt, which ends the stream like GZIPInputStreamX */
+    private boolean readTrailer() throws IOException {
+        long expectedCrc = readInt();
+        long expectedSize = readInt();
+        return (expectedCrc == crc.getValue()) && (expectedSize == (inflater.getBytesWritten() & 0xffffffffL));
+    }
+}
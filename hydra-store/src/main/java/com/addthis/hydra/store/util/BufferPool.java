@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.util;
+
+import javax.annotation.Nonnull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Keeps released byte arrays of one size for reuse, so that streams opened and closed many times
+ * by several threads do not each allocate and zero new buffers. Arrays that are never released
+ * are simply garbage collected, and arrays released beyond the capacity of the pool are dropped.
+ * <p/>
+ * An array must not be used after it is released, and must be released at most once.
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /** @return a released array of {@link #bufferSize()} bytes, or a new one. Its contents are undefined. */
+    @Nonnull public byte[] take() {
+        byte[] buffer = buffers.poll();
+        return (buffer != null) ? buffer : new byte[bufferSize];
+    }
+
+    /** Returns an array to the pool. Arrays of a different size are ignored. */
+    public void release(@Nonnull byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /** @return number of arrays waiting to be reused */
+    public int pooled() {
+        return buffers.size();
+    }
+}
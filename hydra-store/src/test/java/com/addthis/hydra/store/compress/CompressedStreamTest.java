@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CompressedStreamTest {
+
+    private static byte[] data(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            // compressible but not trivially so
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    private static byte[] compress(byte[] data, CompressionType type) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = CompressedStream.compressOutputStream(bytes, type)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** reads alternately a byte at a time and in reads of varying sizes */
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[CompressedStream.READ_BUFFER_SIZE * 2];
+        for (int i = 0; ; i++) {
+            if ((i % 3) == 0) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int read = in.read(buf, 0, ((i % 3) == 1) ? 17 : buf.length);
+                if (read < 0) {
+                    break;
+                }
+                out.write(buf, 0, read);
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        byte[] data = data(300000, 1);
+        for (CompressionType type : CompressionType.values()) {
+            if (type == CompressionType.LZMA) {
+                continue;
+            }
+            byte[] compressed = compress(data, type);
+            InputStream in = CompressedStream.decompressInputStream(
+                    new ByteArrayInputStream(compressed), "file" + type.suffix);
+            assertArrayEquals(type.name(), data, read(in));
+        }
+    }
+
+    @Test
+    public void concatenatedGzipMembers() throws IOException {
+        byte[] first = data(100000, 2);
+        byte[] second = data(5000, 3);
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        members.write(compress(first, CompressionType.GZIP));
+        members.write(compress(second, CompressionType.GZIP));
+        // trailing garbage is ignored like by GZIPInputStream
+        members.write(new byte[]{1, 2, 3});
+        InputStream in = CompressedStream.decompressInputStream(
+                new ByteArrayInputStream(members.toByteArray()), "file.gz");
+        byte[] expected = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, read(in));
+    }
+
+    @Test
+    public void corruptTrailerEndsStream() throws IOException {
+        byte[] data = data(1000, 4);
+        byte[] compressed = compress(data, CompressionType.GZIP);
+        compressed[compressed.length - 5] ^= 1;
+        InputStream in = CompressedStream.decompressInputStream(new ByteArrayInputStream(compressed), "file.gz");
+        assertArrayEquals(data, read(in));
+    }
+
+    @Test
+    public void pooledAfterClose() throws IOException {
+        byte[] data = data(50000, 5);
+        byte[] compressed = compress(data, CompressionType.GZIP);
+        InputStream in = CompressedStream.decompressInputStream(new ByteArrayInputStream(compressed), "file.gz");
+        assertEquals(data[0], (byte) in.read());
+        in.close();
+        in.close();
+        try {
+            in.read();
+            fail("read a closed stream");
+        } catch (IOException expected) {
+        }
+        // streams opened after the close reuse its buffers and inflater
+        for (int i = 0; i < 3; i++) {
+            in = CompressedStream.decompressInputStream(new ByteArrayInputStream(compressed), "file.gz");
+            assertArrayEquals(data, read(in));
+        }
+    }
+
+    @Test
+    public void uncompressedNotWrapped() throws IOException {
+        InputStream in = new ByteArrayInputStream(new byte[1]);
+        assertEquals(in, CompressedStream.decompressInputStream(in, "file.txt"));
+    }
+}
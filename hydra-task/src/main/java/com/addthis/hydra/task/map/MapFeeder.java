@@ -15,10 +15,10 @@ package com.addthis.hydra.task.map;
 
 import javax.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -33,10 +33,12 @@ import com.addthis.bundle.util.AutoField;
 import com.addthis.bundle.util.ValueUtil;
 import com.addthis.hydra.common.hash.PluggableHashFunction;
 import com.addthis.hydra.task.source.TaskDataSource;
+import com.addthis.hydra.task.util.RingBuffer;
 
 import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 
 import org.slf4j.Logger;
@@ -49,6 +51,8 @@ public final class MapFeeder implements Runnable {
     private static final DecimalFormat timeFormat = new DecimalFormat("#,###.00");
     private static final DecimalFormat countFormat = new DecimalFormat("#,###");
     private static final int QUEUE_DEPTH = Parameter.intValue("task.queue.depth", 100);
+    // bundles a processor takes from its queue at once
+    private static final int QUEUE_BATCH = Parameter.intValue("task.queue.batch", 32);
     private static final int stealThreshold = Parameter.intValue("task.queue.worksteal.threshold", 50);
     private static final boolean shouldSteal = Parameter.boolValue("task.worksteal", false);
 
@@ -64,7 +68,7 @@ public final class MapFeeder implements Runnable {
     private final int feeders;
     private final AutoField shardField;
     private final Thread[] threads;
-    private final BlockingQueue<Bundle>[] queues;
+    private final RingBuffer<Bundle>[] queues;
 
     // metrics
     private final long start = System.currentTimeMillis();
@@ -72,6 +76,8 @@ public final class MapFeeder implements Runnable {
 
     @Nullable private final Meter stealAttemptMeter;
     @Nullable private final Meter stealSuccessMeter;
+    // bundles waiting in a processor's queue when it takes a batch
+    private final Histogram queueOccupancy = Metrics.newHistogram(getClass(), "queueOccupancy");
 
     public MapFeeder(StreamMapper task, TaskDataSource source, int feeders) {
         if (shouldSteal) {
@@ -88,10 +94,10 @@ public final class MapFeeder implements Runnable {
 
         shardField = source.getShardField();
         threads = new Thread[feeders];
-        queues = new LinkedBlockingQueue[feeders];
+        queues = new RingBuffer[feeders];
 
         for (int i = 0; i < threads.length; i++) {
-            queues[i] = new LinkedBlockingQueue<>(QUEUE_DEPTH);
+            queues[i] = new RingBuffer<>(QUEUE_DEPTH);
             threads[i] = new Thread(new MapperTask(this, i), "MapProcessor #" + i);
         }
     }
@@ -167,8 +173,22 @@ public final class MapFeeder implements Runnable {
     }
 
     private void pushQueue(int queueNum, Bundle item) {
-        BlockingQueue<Bundle> queue = queues[queueNum];
-        Uninterruptibles.putUninterruptibly(queue, item);
+        RingBuffer<Bundle> queue = queues[queueNum];
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(item);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     private void joinProcessors() {
@@ -201,54 +221,62 @@ public final class MapFeeder implements Runnable {
 
         @Override
         public void run() {
+            List<Bundle> batch = new ArrayList<>(QUEUE_BATCH);
             while (true) {
                 try {
-                    Bundle next = popQueue();
-                    if (next == null) {
-                        return;
-                    }
-                    mapFeeder.task.process(next);
+                    popBatch(batch);
                 } catch (Throwable t) {
                     mapFeeder.handleUncaughtThrowable(t);
                 }
+                // a failure is handled for its own bundle, like when bundles were taken one at a time
+                for (Bundle next : batch) {
+                    if (next == TERM_BUNDLE) {
+                        return;
+                    }
+                    try {
+                        mapFeeder.task.process(next);
+                    } catch (Throwable t) {
+                        mapFeeder.handleUncaughtThrowable(t);
+                    }
+                }
+                batch.clear();
             }
         }
 
-        @Nullable private Bundle popQueue() throws InterruptedException {
-            BlockingQueue<Bundle> queue = mapFeeder.queues[processorID];
-            Bundle item = null;
-            if (shouldSteal) {
-                // first check our own queue
-                item = queue.poll();
-                if (item == null) {
-                    // then check every other queue
-                    item = steal(queue);
-                }
+        /** waits for at least one bundle and takes up to a batch of them */
+        private void popBatch(List<Bundle> batch) throws InterruptedException {
+            RingBuffer<Bundle> queue = mapFeeder.queues[processorID];
+            mapFeeder.queueOccupancy.update(queue.size());
+            // first check our own queue
+            if (queue.drainTo(batch, QUEUE_BATCH) > 0) {
+                return;
             }
-            if (item == null) {
-                item = queue.take();
-            }
-            if (item == TERM_BUNDLE) {
-                return null;
-            } else {
-                return item;
+            // then check every other queue
+            if (shouldSteal && (steal(queue, batch) > 0)) {
+                return;
             }
+            batch.add(queue.take());
         }
 
-        @Nullable private Bundle steal(BlockingQueue<Bundle> primaryQueue) throws InterruptedException {
+        /** takes up to half of the bundles waiting in the first other queue with enough of them */
+        private int steal(RingBuffer<Bundle> primaryQueue, List<Bundle> batch) throws InterruptedException {
             mapFeeder.stealAttemptMeter.mark();
-            for (BlockingQueue<Bundle> queue : mapFeeder.queues) {
-                if ((queue != primaryQueue) && (queue.size() >= stealThreshold)) {
-                    Bundle item = queue.poll();
-                    if (item == TERM_BUNDLE) {
-                        queue.put(item);
-                    } else if (item != null) {
+            for (RingBuffer<Bundle> queue : mapFeeder.queues) {
+                int size = queue.size();
+                if ((queue != primaryQueue) && (size >= stealThreshold)) {
+                    int stolen = queue.drainTo(batch, Math.min(QUEUE_BATCH, Math.max(1, size / 2)));
+                    // the terminating bundle is the last one in its queue and must stay there
+                    if ((stolen > 0) && (batch.get(batch.size() - 1) == TERM_BUNDLE)) {
+                        queue.put(batch.remove(batch.size() - 1));
+                        stolen -= 1;
+                    }
+                    if (stolen > 0) {
                         mapFeeder.stealSuccessMeter.mark();
-                        return item;
+                        return stolen;
                     }
                 }
             }
-            return null;
+            return 0;
         }
     }
 }
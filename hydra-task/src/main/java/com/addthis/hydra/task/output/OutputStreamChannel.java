@@ -24,9 +24,21 @@ import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.io.DataChannelCodec;
 import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
 import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
+import com.addthis.bundle.util.AutoField;
 import com.addthis.codec.annotations.FieldConfig;
+import com.addthis.hydra.task.stream.BlockFile;
 
 /**
+ * Writes bundles in the channel encoding.
+ * <p/>
+ * <p>If {@link #blockBundles blockBundles} is set then the bundles are written in independently
+ * compressed blocks (see {@link BlockFile}) that stream sources can resume at without reading the
+ * whole file again, and decode in parallel. Every file ends with an index of its blocks that lets
+ * sources split large files between several workers (see {@code splitBytes} of the stream
+ * sources). Read such files with the channel bundleizer and
+ * {@code blocks:true}. Block compressed files should not also be compressed by the output flags,
+ * and the flags should not write a header.</p>
+ *
  * @user-reference
  */
 public class OutputStreamChannel extends OutputStreamFormatter {
@@ -36,11 +48,47 @@ public class OutputStreamChannel extends OutputStreamFormatter {
     @FieldConfig(codable = true)
     private HashSet<String> exclude;
 
+    /** If positive then write block compressed files with this many bundles per block. Default is 0. */
+    @FieldConfig(codable = true)
+    private int blockBundles;
+
+    /** Encoded bytes after which a block ends even if it has fewer bundles. Default is 4 MB. */
+    @FieldConfig(codable = true)
+    private int blockBytes = 4 * 1024 * 1024;
+
+    /** Compress blocks with snappy. Default is true. */
+    @FieldConfig(codable = true)
+    private boolean blockCompress = true;
+
+    /** Optionally record the range of values of this field per block in the index of the file. */
+    @FieldConfig(codable = true)
+    private AutoField blockIndexField;
+
     @Override
     public void open() { }
 
     @Override
     public OutputStreamEmitter createEmitter() {
+        if (blockBundles > 0) {
+            return new OutputStreamEmitter() {
+                private final BlockFile.Writer writer =
+                        new BlockFile.Writer(blockBundles, blockBytes, blockCompress, blockIndexField);
+
+                @Override
+                public synchronized void write(OutputStream out, Bundle row) throws IOException {
+                    if (include != null || exclude != null) {
+                        row = new FilteredBundle(row, include, exclude);
+                    }
+                    writer.write(out, row);
+                }
+
+                @Override
+                public synchronized void flush(OutputStream out) throws IOException {
+                    writer.finish(out);
+                    out.flush();
+                }
+            };
+        }
         return new OutputStreamEmitter() {
             private final ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
             private final FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
@@ -24,7 +24,6 @@ import java.io.UncheckedIOException;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
@@ -51,6 +50,7 @@ import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.bundle.util.AutoField;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueString;
+import com.addthis.codec.annotations.Bytes;
 import com.addthis.codec.annotations.Time;
 import com.addthis.hydra.data.filter.value.StringFilter;
 import com.addthis.hydra.store.common.PageFactory;
@@ -60,15 +60,18 @@ import com.addthis.hydra.store.skiplist.ConcurrentPage;
 import com.addthis.hydra.task.run.TaskRunConfig;
 import com.addthis.hydra.task.source.bundleizer.Bundleizer;
 import com.addthis.hydra.task.source.bundleizer.BundleizerFactory;
+import com.addthis.hydra.task.stream.BlockFile;
 import com.addthis.hydra.task.stream.PersistentStreamFileSource;
 import com.addthis.hydra.task.stream.StreamFile;
 import com.addthis.hydra.task.stream.StreamFileSource;
 import com.addthis.hydra.task.stream.StreamSourceFiltered;
 import com.addthis.hydra.task.stream.StreamSourceHashed;
+import com.addthis.hydra.task.util.RingBuffer;
 import com.addthis.hydra.store.compress.CompressedStream;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -170,10 +173,9 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
 
     /**
      * Number of bundles to attempt to pull from a file before returning it to the
-     * circular file queue. Difficult to understand without looking at the source code,
-     * but if you feel the need for a lot of worker threads or are desperate for
-     * potential performance gains you might try increasing this. 25 is a good place
-     * to start, I think. The default is 1.
+     * circular file queue. The bundles are handed to the processing threads together,
+     * up to the buffer size, so larger values cost fewer handoffs. Lower it if
+     * processing must start on many files at once. The default is 32.
      */
     @JsonProperty private int multiBundleReads;
 
@@ -202,6 +204,40 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
     @Min(1)
     @JsonProperty(required = true) private int workers;
 
+    /**
+     * If true then the number of workers reading and the number of files open are adjusted while
+     * the source runs, starting from {@link #workers} and {@link #preOpen}. Workers are added and
+     * files opened further ahead while the buffer runs low, and they are given up while it stays
+     * full. The decisions are exposed as metrics. Default is false.
+     */
+    @JsonProperty private boolean adaptive;
+
+    /** Fewest workers reading when adaptive. Default is 1. */
+    @JsonProperty private int minWorkers;
+
+    /** Most workers reading when adaptive. Default is 0, for {@link #workers}. */
+    @JsonProperty private int maxWorkers;
+
+    /** Fewest open files when adaptive. Default is 1. */
+    @JsonProperty private int minPreOpen;
+
+    /** Most open files when adaptive. Default is 0, for four times the files opened at the start. */
+    @JsonProperty private int maxPreOpen;
+
+    /** Time between adjustments when adaptive. Default is 1 second. */
+    @Time(TimeUnit.MILLISECONDS)
+    @JsonProperty private int adaptInterval;
+
+    /**
+     * Block compressed files (see the channel format with {@code blocks}) of at least twice this
+     * many bytes are split into ranges of whole blocks of about this many bytes, found in the index
+     * at the end of the file, and the ranges are read by any of the workers alongside the rest of
+     * the file. Only files that can be read from an offset, such as local uncompressed files, are
+     * split. Default is 256MB. Set to 0 to read every file with a single worker.
+     */
+    @Bytes
+    @JsonProperty private long splitBytes;
+
     /**
      * Set to enable marks compatibility mode with older source types. eg. 'mesh' for mesh1 and
      * 'stream' for stream2. 'stream2' is also fine. Do not set to anything unless doing an in-place
@@ -230,6 +266,10 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
     private final Counter openNew = Metrics.newCounter(getClass(), "openNew");
     private final Counter openIndex = Metrics.newCounter(getClass(), "openIndex");
     private final Counter openSkip = Metrics.newCounter(getClass(), "openSkip");
+    // files resumed by seeking to the offset in their mark instead of skipping bundles
+    private final Counter openSeek = Metrics.newCounter(getClass(), "openSeek");
+    // ranges of large block compressed files handed to other workers
+    private final Counter openRange = Metrics.newCounter(getClass(), "openRange");
     private final Counter skipping = Metrics.newCounter(getClass(), "skipping");
     private final Counter reading = Metrics.newCounter(getClass(), "reading");
     private final Counter opening = Metrics.newCounter(getClass(), "opening");
@@ -247,12 +287,15 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
 
     // State control
     private final LinkedBlockingQueue<Wrap> preOpened = new LinkedBlockingQueue<>();
+    // files being opened, in preOpened or being read by a worker
+    private final AtomicInteger openWraps = new AtomicInteger();
+    private volatile boolean sourcesExhausted = false;
     protected final AtomicBoolean shuttingDown = new AtomicBoolean(false);
     protected final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
     private final CountDownLatch initialized = new CountDownLatch(1);
     private boolean localInitialized = false;
 
-    private BlockingQueue<Bundle> queue;
+    private RingBuffer<Bundle> queue;
     private PageDB<SimpleMark> markDB;
     private File markDirFile;
     private CompletableFuture<Void> aggregateWorkerFuture;
@@ -260,6 +303,7 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
     private boolean useLegacyStreamPath = false;
 
     private StreamFileSource source;
+    @Nullable private AdaptiveSourceController controller;
 
     public AbstractStreamFileDataSource() {}
 
@@ -337,15 +381,23 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
             if (hash) {
                 setSource(new StreamSourceHashed(source, shards, shardTotal, useLegacyStreamPath));
             }
-            log.info("buffering[capacity={};workers={};preopen={};marks={};maxSkip={};shards={}]",
-                     buffer, workers, preOpen, markDir, skipSourceExit, LessStrings.join(shards, ","));
+            log.info("buffering[capacity={};workers={};preopen={};adaptive={};marks={};maxSkip={};shards={}]",
+                     buffer, workers, preOpen, adaptive, markDir, skipSourceExit, LessStrings.join(shards, ","));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        queue = new LinkedBlockingQueue<>(buffer);
-
+        queue = new RingBuffer<>(buffer);
+
+        int threads = workers;
+        if (adaptive) {
+            threads = Math.max(workers, maxWorkers);
+            int initialOpen = workers * Math.max(1, preOpen / workers);
+            controller = new AdaptiveSourceController(getClass(), minWorkers, threads, workers, minPreOpen,
+                                                      (maxPreOpen > 0) ? maxPreOpen : (4 * initialOpen),
+                                                      initialOpen, adaptInterval);
+        }
         List<CompletableFuture<Void>> workerFutures = new ArrayList<>();
-        for (int i = 0; i < workers; i++) {
+        for (int i = 0; i < threads; i++) {
             Runnable sourceWorker = new SourceWorker(i);
             workerFutures.add(runAsync(sourceWorker, workerThreadPool).whenComplete((ignored, error) -> {
             if (error != null) {
@@ -421,6 +473,8 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
                      .add("opening", opening.count())
                      .add("unseen", openNew.count())
                      .add("continued", openIndex.count())
+                     .add("seeked", openSeek.count())
+                     .add("ranges", openRange.count())
                      .add("skipping", skipping.count())
                      .add("skipped", openSkip.count())
                      .add("bundles-skipped", globalBundleSkip.count())
@@ -520,6 +574,7 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
 
     private class SourceWorker implements Runnable {
         private final int workerId;
+        private final List<Bundle> batch = new ArrayList<>();
 
         public SourceWorker(int workerId) {
             this.workerId = workerId;
@@ -529,12 +584,14 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
         public void run() {
             log.debug("worker {} starting", workerId);
             try {
-                // preopen a number of sources
-                int preOpenSize = Math.max(1, preOpen / workers);
+                // preopen a number of sources; adaptive workers beyond the initial workers start idle
+                int preOpenSize = (workerId < workers) ? Math.max(1, preOpen / workers) : 0;
                 for (int i = 0; i < preOpenSize; i++) {
+                    openWraps.incrementAndGet();
                     Wrap preOpenedWrap = nextWrappedSource();
                     log.debug("pre-init {}", preOpenedWrap);
                     if (preOpenedWrap == null) {
+                        openWraps.decrementAndGet();
                         break;
                     }
                     preOpened.put(preOpenedWrap);
@@ -557,28 +614,55 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
             if (shuttingDown.get()) {
                 return null;
             }
+            long start = System.nanoTime();
             StreamFile stream = source.nextSource();
             if (stream == null) {
+                sourcesExhausted = true;
                 return null;
             }
-            return new Wrap(stream);
+            Wrap wrap = new Wrap(stream);
+            // the ranges of a split file are read by any worker, alongside the rest of the file
+            openWraps.addAndGet(wrap.ranges.size());
+            preOpened.addAll(wrap.ranges);
+            if (controller != null) {
+                controller.opened(System.nanoTime() - start);
+            }
+            return wrap;
         }
 
         private void fill() throws Exception {
             @Nullable Wrap wrap = null;
             try {
                 while (!shuttingDown.get()) {
+                    if ((controller != null) && !awaitTurn()) {
+                        return;
+                    }
                     wrap = preOpened.poll(); //take if immediately available
                     if (wrap == null) {
-                        return; //exits worker thread
+                        if ((controller == null) || isFinished()) {
+                            return; //exits worker thread
+                        }
+                        // adaptive workers wait for the files other workers are reading
+                        wrap = preOpened.poll(100, TimeUnit.MILLISECONDS);
+                        if (wrap == null) {
+                            continue;
+                        }
                     }
                     if (!multiFill(wrap, multiBundleReads)) {
-                        wrap = nextWrappedSource();
+                        // adaptive sources close files by not replacing them
+                        boolean replace = (controller == null) || (openWraps.get() <= controller.preOpen());
+                        wrap = replace ? nextWrappedSource() : null;
+                        if (wrap == null) {
+                            openWraps.decrementAndGet();
+                        }
                     }
                     if (wrap != null) { //May be null from nextWrappedSource -> decreases size of preOpened
                         preOpened.put(wrap);
                     }
                     wrap = null;
+                    if (controller != null) {
+                        openMore();
+                    }
                 }
                 log.debug("[{}] read", workerId);
             } finally {
@@ -588,30 +672,119 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
             }
         }
 
+        /**
+         * Waits while this worker is beyond the workers the adaptive controller wants reading.
+         *
+         * @return false if the worker should exit
+         */
+        private boolean awaitTurn() throws InterruptedException {
+            controller.maybeAdjust();
+            while (workerId >= controller.activeWorkers()) {
+                if (shuttingDown.get() || isFinished()) {
+                    return false;
+                }
+                Thread.sleep(Math.max(1, Math.min(100, adaptInterval)));
+                controller.maybeAdjust();
+            }
+            return true;
+        }
+
+        /** @return true if no more files will be opened and every open file has been read */
+        private boolean isFinished() {
+            return sourcesExhausted && (openWraps.get() == 0);
+        }
+
+        /** opens files until there are as many as the adaptive controller wants */
+        private void openMore() throws IOException, InterruptedException {
+            while (!sourcesExhausted && !shuttingDown.get() && (openWraps.get() < controller.preOpen())) {
+                // counted before opening, so that no worker sees the source finished in between
+                openWraps.incrementAndGet();
+                Wrap extra = nextWrappedSource();
+                if (extra == null) {
+                    openWraps.decrementAndGet();
+                    break;
+                }
+                preOpened.put(extra);
+            }
+        }
+
+        /** reads up to fillCount bundles from the source and queues them together */
         private boolean multiFill(Wrap wrap, int fillCount) throws IOException, InterruptedException {
-            for (int i = 0; i < fillCount; i++) {
-                Bundle next = wrap.next();
-                // is source exhausted?
-                if (next == null) {
+            int batchSize = Math.max(1, Math.min(fillCount, queue.capacity()));
+            boolean exhausted = false;
+            try {
+                long start = (controller != null) ? System.nanoTime() : 0;
+                while (batch.size() < batchSize) {
+                    Bundle next = wrap.next();
+                    // is source exhausted?
+                    if (next == null) {
+                        exhausted = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                if (controller != null) {
+                    controller.read(batch.size(), System.nanoTime() - start);
+                }
+                if (batch.isEmpty()) {
                     return false;
                 }
-                while (!queue.offer(next, 1, TimeUnit.SECONDS)) {
+                while (!queue.offerAll(batch, 1, TimeUnit.SECONDS)) {
                     if (shuttingDown.get()) {
                         wrap.close(false);
                         return false;
                     }
                 }
-                wrap.mark.setIndex(wrap.mark.getIndex() + 1);
-                if (jmxMetrics) {
-                    queueSizeHisto.update(queue.size());
+                if (controller != null) {
+                    controller.queued(queue.size(), queue.capacity());
                 }
-                // may get called multiple times but only first call matters
-                if (!localInitialized) {
-                    initialized.countDown();
-                    localInitialized = true;
+                // the resume position is that of the last bundle queued
+                for (int i = 0; i < batch.size(); i++) {
+                    wrap.accept();
                 }
+            } finally {
+                batch.clear();
+            }
+            if (jmxMetrics) {
+                queueSizeHisto.update(queue.size());
+            }
+            // may get called multiple times but only first call matters
+            if (!localInitialized) {
+                initialized.countDown();
+                localInitialized = true;
+            }
+            return !exhausted;
+        }
+    }
+
+    /**
+     * The parts of a file that is read by several workers: the ranges before the offset it was split
+     * at, and the rest of the file. The mark of the file ends once all of them have.
+     */
+    private class Split {
+
+        private final Wrap file;
+        private int unfinished = 1;
+
+        Split(Wrap file) {
+            this.file = file;
+        }
+
+        synchronized void add() {
+            unfinished++;
+        }
+
+        synchronized void closed(Wrap wrap, boolean wasEnd) {
+            boolean last = wasEnd && (--unfinished == 0);
+            if (wrap == file) {
+                file.mark.update(file.stream);
+                file.mark.setEnd(last);
+            }
+            markDB.put(wrap.dbKey, wrap.mark);
+            if (last && (wrap != file)) {
+                file.mark.setEnd(true);
+                markDB.put(file.dbKey, file.mark);
             }
-            return true;
         }
     }
 
@@ -620,10 +793,19 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
         final DBKey dbKey;
         final StreamFile stream;
         final ValueString sourceName;
+        // ranges of this file to be read by other workers, handed out when it is opened
+        final List<Wrap> ranges = new ArrayList<>();
+        @Nullable Split split;
         InputStream input;
         Bundleizer bundleizer;
         boolean closed;
         SimpleMark mark;
+        // offset the input was opened at, or -1 if the bundles before mark.index must be skipped
+        long openOffset = -1;
+        // raw offset of the bundle after the last accepted one, or -1 if not known
+        long resumeOffset = -1;
+        // index of that bundle within the block at resumeOffset, for block compressed files
+        long resumeBlockIndex = -1;
 
         Wrap(StreamFile stream) throws IOException {
             fileSizeHisto.update(stream.length());
@@ -637,15 +819,20 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
             mark = markDB.get(dbKey);
             String stateValue = Mark.calcValue(stream);
             if (mark == null) {
-                if (useSimpleMarks) {
-                    mark = new SimpleMark().set(stateValue, 0);
-                } else {
-                    mark = new Mark().set(stateValue, 0);
-                }
+                mark = newMark(stateValue);
                 log.debug("mark.init {} / {}", mark, stream);
                 openNew.inc();
                 opening.inc();
-                input = stream.getInputStream();
+                if (splittable()) {
+                    long offset = split(keyString);
+                    input = stream.getInputStream(offset);
+                    openOffset = offset;
+                } else {
+                    input = stream.getInputStream();
+                    if (seekable()) {
+                        openOffset = 0;
+                    }
+                }
             } else {
                 if (mark.getValue().equals(stateValue) && mark.isEnd()) {
                     log.debug("mark.skip {} / {}", mark, stream);
@@ -662,17 +849,125 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
                     }
                 }
                 opening.inc();
-                input = stream.getInputStream();
+                long offset = mark.getOffset();
+                if ((offset >= 0) && (offset <= stream.length()) && seekable()) {
+                    log.debug("mark.seek {} / {}", mark, stream);
+                    openSeek.inc();
+                    if (splittable()) {
+                        resumeRanges(keyString, offset);
+                    }
+                    input = stream.getInputStream(offset);
+                    openOffset = offset;
+                } else {
+                    input = stream.getInputStream();
+                }
             }
+            resumeOffset = openOffset;
+            reading.inc();
+        }
+
+        /** Opens a range of the blocks of a split file, between the offset and the end in its mark. */
+        Wrap(Wrap file, String keyString, SimpleMark mark) throws IOException {
+            this.stream = file.stream;
+            this.dbKey = new DBKey(magicMarksNumber, keyString);
+            this.sourceName = file.sourceName;
+            this.mark = mark;
+            this.split = file.split;
+            long end = Long.parseLong(mark.getValue());
+            openOffset = mark.getOffset();
+            input = ByteStreams.limit(stream.getInputStream(openOffset), end - openOffset);
+            resumeOffset = openOffset;
+            log.debug("mark.range {}:{} / {}", dbKey, mark, stream);
+            openRange.inc();
+            opening.inc();
             reading.inc();
         }
 
+        private SimpleMark newMark(String value) {
+            return useSimpleMarks ? new SimpleMark().set(value, 0) : new Mark().set(value, 0);
+        }
+
+        /** byte offsets of uncompressed files are offsets of their contents */
+        private boolean seekable() {
+            return !CompressedStream.isCompressed(stream.name());
+        }
+
+        /** whether the index at the end of the file can be read cheaply and the file is large enough to split */
+        private boolean splittable() {
+            return (splitBytes > 0) && format.readsBlockFiles() && seekable() && stream.supportsOffsetReads()
+                   && (stream.length() >= (2 * splitBytes));
+        }
+
+        private String rangeKey(String keyString, long offset) {
+            return keyString + "#" + offset;
+        }
+
+        /**
+         * Splits the indexed blocks of a file that has not been read into ranges for other workers.
+         * The mark of each range holds its end in place of the state of the file. The ranges and
+         * the offset this wrap reads from are saved at once, so that a restart finds the same split
+         * even if the file has been appended to.
+         *
+         * @return the offset after the ranges, from which this wrap reads the rest of the file
+         */
+        private long split(String keyString) throws IOException {
+            List<BlockFile.Entry> entries = BlockFile.readIndex(stream);
+            if (entries.isEmpty()) {
+                return 0;
+            }
+            BlockFile.Entry last = entries.get(entries.size() - 1);
+            if (last.end < (2 * splitBytes)) {
+                return 0;
+            }
+            split = new Split(this);
+            long start = 0;
+            for (BlockFile.Entry entry : entries) {
+                if (((entry.end - start) >= splitBytes) || (entry == last)) {
+                    SimpleMark rangeMark = newMark(Long.toString(entry.end));
+                    rangeMark.setOffset(start);
+                    rangeMark.setBlockIndex(0);
+                    String rangeKey = rangeKey(keyString, start);
+                    markDB.put(new DBKey(magicMarksNumber, rangeKey), rangeMark);
+                    split.add();
+                    ranges.add(new Wrap(this, rangeKey, rangeMark));
+                    start = entry.end;
+                }
+            }
+            mark.setIndex(last.firstBundle + last.bundles);
+            mark.setOffset(last.end);
+            mark.setBlockIndex(0);
+            markDB.put(dbKey, mark);
+            return last.end;
+        }
+
+        /** Reopens the unfinished ranges of a file that was split before the offset it resumes at. */
+        private void resumeRanges(String keyString, long offset) throws IOException {
+            for (BlockFile.Entry entry : BlockFile.readIndex(stream)) {
+                if (entry.offset >= offset) {
+                    break;
+                }
+                String rangeKey = rangeKey(keyString, entry.offset);
+                SimpleMark rangeMark = markDB.get(new DBKey(magicMarksNumber, rangeKey));
+                if ((rangeMark != null) && !rangeMark.isEnd()) {
+                    if (split == null) {
+                        split = new Split(this);
+                    }
+                    split.add();
+                    ranges.add(new Wrap(this, rangeKey, rangeMark));
+                }
+            }
+        }
+
         void maybeFinishInit() throws IOException {
             if (bundleizer == null) {
                 input = CompressedStream.decompressInputStream(input, stream.name()); // blocks waiting for network (if compressed)
                 opening.dec();
                 bundleizer = format.createBundleizer(input, AbstractStreamFileDataSource.this);
                 long read = mark.getIndex();
+                if (openOffset >= 0) {
+                    // a block can only be opened at its start
+                    read = Math.max(0, mark.getBlockIndex());
+                }
                 if (read == 0) {
                     return;
                 }
@@ -701,18 +996,44 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
                     }
                 }
                 skipping.dec();
+                if ((openOffset < 0) && seekable()) {
+                    openOffset = 0;
+                    resumeOffset = 0;
+                }
+                // the next restart of this file can seek if the bundleizer knows where it is
+                accepted();
                 localBundleSkip.set(localBundleSkip.get() + bundlesSkipped);
                 globalBundleSkip.inc(bundlesSkipped);
                 log.debug("mark.indx {} / {}", mark, stream);
             }
         }
 
+        /** counts the bundle last returned by {@link #next()} as processed */
+        void accept() {
+            mark.setIndex(mark.getIndex() + 1);
+            accepted();
+        }
+
+        private void accepted() {
+            if (resumeOffset >= 0) {
+                long position = bundleizer.position();
+                resumeOffset = (position >= 0) ? (openOffset + position) : -1;
+                resumeBlockIndex = bundleizer.blockIndex();
+            }
+        }
+
         void close(boolean wasEnd) throws IOException {
             if (!closed) {
                 mark.setEnd(wasEnd);
+                mark.setOffset(resumeOffset);
+                mark.setBlockIndex((resumeOffset >= 0) ? resumeBlockIndex : -1);
                 input.close();
-                mark.update(stream);
-                markDB.put(dbKey, mark);
+                if (split != null) {
+                    split.closed(this, wasEnd);
+                } else {
+                    mark.update(stream);
+                    markDB.put(dbKey, mark);
+                }
                 log.debug("mark.save {}:{} / {}", dbKey, mark, stream);
                 closed = true;
                 reading.dec();
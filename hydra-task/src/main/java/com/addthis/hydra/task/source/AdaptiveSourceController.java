@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes the active source workers and the number of open files of a stream source from what the
+ * workers measure while they run: the time to open files, the time to read bundles from them, and
+ * the occupancy of the queue to the processing threads.
+ * <p/>
+ * Once per interval, a full queue means processing is the bottleneck, so a worker and an open file
+ * are given up. An empty queue means the source is the bottleneck: files are opened further ahead
+ * if opening took longer than reading, and otherwise another worker reads, with at least as many
+ * open files as active workers. An interval without any reads counts as an empty queue, so waiting
+ * workers are let in when the active ones are stuck. Anything in between leaves the sizes alone.
+ */
+final class AdaptiveSourceController {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveSourceController.class);
+
+    static final double LOW_OCCUPANCY = 0.25;
+    static final double HIGH_OCCUPANCY = 0.75;
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final int minPreOpen;
+    private final int maxPreOpen;
+    private final long intervalNanos;
+
+    private volatile int activeWorkers;
+    private volatile int preOpen;
+
+    // measurements since the last adjustment
+    private final LongAdder openNanos = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder bundlesRead = new LongAdder();
+    private final LongAdder occupancyPermille = new LongAdder();
+    private final LongAdder occupancySamples = new LongAdder();
+    private final AtomicLong nextAdjust;
+
+    private volatile double lastOccupancy;
+    private volatile long lastReadRate;
+
+    private final Histogram openLatency;
+    private final Counter workersRaised;
+    private final Counter workersLowered;
+    private final Counter preOpenRaised;
+    private final Counter preOpenLowered;
+
+    AdaptiveSourceController(Class<?> owner, int minWorkers, int maxWorkers, int workers,
+                             int minPreOpen, int maxPreOpen, int preOpen, long intervalMillis) {
+        this.minWorkers = Math.max(1, Math.min(minWorkers, maxWorkers));
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.minPreOpen = Math.max(1, Math.min(minPreOpen, maxPreOpen));
+        this.maxPreOpen = Math.max(1, maxPreOpen);
+        this.activeWorkers = clamp(workers, this.minWorkers, this.maxWorkers);
+        this.preOpen = clamp(preOpen, this.minPreOpen, this.maxPreOpen);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        this.nextAdjust = new AtomicLong(System.nanoTime() + intervalNanos);
+        openLatency = Metrics.newHistogram(owner, "adaptiveOpenLatencyMillis");
+        workersRaised = Metrics.newCounter(owner, "adaptiveWorkersRaised");
+        workersLowered = Metrics.newCounter(owner, "adaptiveWorkersLowered");
+        preOpenRaised = Metrics.newCounter(owner, "adaptivePreOpenRaised");
+        preOpenLowered = Metrics.newCounter(owner, "adaptivePreOpenLowered");
+        Metrics.newGauge(owner, "adaptiveWorkers", new Gauge<Integer>() {
+            @Override public Integer value() {
+                return activeWorkers;
+            }
+        });
+        Metrics.newGauge(owner, "adaptivePreOpen", new Gauge<Integer>() {
+            @Override public Integer value() {
+                return AdaptiveSourceController.this.preOpen;
+            }
+        });
+        Metrics.newGauge(owner, "adaptiveQueueOccupancy", new Gauge<Double>() {
+            @Override public Double value() {
+                return lastOccupancy;
+            }
+        });
+        Metrics.newGauge(owner, "adaptiveReadRate", new Gauge<Long>() {
+            @Override public Long value() {
+                return lastReadRate;
+            }
+        });
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /** @return number of workers that should be reading; workers numbered from this on wait */
+    int activeWorkers() {
+        return activeWorkers;
+    }
+
+    /** @return number of files that should be open */
+    int preOpen() {
+        return preOpen;
+    }
+
+    /** a file was found and opened in this time */
+    void opened(long nanos) {
+        openNanos.add(nanos);
+        openLatency.update(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /** bundles were read from an open file in this time */
+    void read(int bundles, long nanos) {
+        bundlesRead.add(bundles);
+        readNanos.add(nanos);
+    }
+
+    /** a batch of bundles was queued, leaving the queue this full */
+    void queued(int size, int capacity) {
+        occupancyPermille.add((1000L * size) / Math.max(1, capacity));
+        occupancySamples.increment();
+    }
+
+    /**
+     * Adjusts the sizes if an interval has passed since the last adjustment. Only one of the
+     * threads calling this at the same time adjusts them.
+     *
+     * @return true if this call adjusted the sizes
+     */
+    boolean maybeAdjust() {
+        long now = System.nanoTime();
+        long next = nextAdjust.get();
+        if ((now - next) < 0 || !nextAdjust.compareAndSet(next, now + intervalNanos)) {
+            return false;
+        }
+        adjust();
+        return true;
+    }
+
+    @VisibleForTesting void adjust() {
+        long samples = occupancySamples.sumThenReset();
+        long permille = occupancyPermille.sumThenReset();
+        long opening = openNanos.sumThenReset();
+        long reading = readNanos.sumThenReset();
+        long bundles = bundlesRead.sumThenReset();
+        // nothing queued means the processing threads are waiting on the source
+        double occupancy = (samples > 0) ? (permille / (1000.0 * samples)) : 0;
+        lastOccupancy = occupancy;
+        lastReadRate = (reading > 0) ? (long) ((bundles * 1e9) / reading) : 0;
+        int workers = activeWorkers;
+        int open = preOpen;
+        if (occupancy >= HIGH_OCCUPANCY) {
+            workers = Math.max(minWorkers, workers - 1);
+            open = Math.max(minPreOpen, open - 1);
+        } else if (occupancy <= LOW_OCCUPANCY) {
+            if ((opening > reading) && (open < maxPreOpen)) {
+                open = Math.min(maxPreOpen, open * 2);
+            } else if (workers < maxWorkers) {
+                workers += 1;
+                open = Math.min(maxPreOpen, Math.max(open, workers));
+            } else {
+                open = Math.min(maxPreOpen, open + 1);
+            }
+        }
+        update(workers, open, occupancy);
+    }
+
+    private void update(int workers, int open, double occupancy) {
+        if (workers > activeWorkers) {
+            workersRaised.inc();
+        } else if (workers < activeWorkers) {
+            workersLowered.inc();
+        }
+        if (open > preOpen) {
+            preOpenRaised.inc();
+        } else if (open < preOpen) {
+            preOpenLowered.inc();
+        }
+        if ((workers != activeWorkers) || (open != preOpen)) {
+            log.debug("occupancy {} workers {} -> {} preOpen {} -> {}",
+                      occupancy, activeWorkers, workers, preOpen, open);
+        }
+        activeWorkers = workers;
+        preOpen = open;
+    }
+}
@@ -38,6 +38,8 @@ public class Mark extends SimpleMark {
                 .add("error", getError())
                 .add("index", getIndex())
                 .add("end", isEnd())
+                .add("offset", getOffset())
+                .add("blockIndex", getBlockIndex())
                 .toString();
     }
 
@@ -60,6 +62,7 @@ public class Mark extends SimpleMark {
             Varint.writeUnsignedVarLong(getIndex(), buffer);
             buffer.writeByte(isEnd() ? 1 : 0);
             Varint.writeUnsignedVarInt(error, buffer);
+            encodePosition(buffer);
             retBytes = new byte[buffer.readableBytes()];
             buffer.readBytes(retBytes);
         } finally {
@@ -79,6 +82,7 @@ public class Mark extends SimpleMark {
             setIndex(Varint.readUnsignedVarLong(buffer));
             setEnd(buffer.readByte() == 1);
             setError(Varint.readUnsignedVarInt(buffer));
+            decodePosition(buffer);
         } finally {
             buffer.release();
         }
@@ -27,7 +27,10 @@ import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
 
-/** */
+/**
+ * Progress through one stream file: the number of bundles processed and, when the file allows it,
+ * where in the file to resume reading so that those bundles need not be read again.
+ */
 public class SimpleMark implements Codable, BytesCodable {
 
     @FieldConfig(codable = true)
@@ -36,6 +39,12 @@ public class SimpleMark implements Codable, BytesCodable {
     private long index;
     @FieldConfig(codable = true)
     private boolean end;
+    /** byte offset into the raw file of the bundle after the last one counted by index, or -1 if unknown */
+    @FieldConfig(codable = true)
+    private long offset = -1;
+    /** index within the compressed block at offset of that bundle, for block compressed files; or -1 */
+    @FieldConfig(codable = true)
+    private long blockIndex = -1;
 
     public SimpleMark set(String val, long index) {
         this.setValue(val);
@@ -57,6 +66,8 @@ public class SimpleMark implements Codable, BytesCodable {
                 .add("val", getValue())
                 .add("index", getIndex())
                 .add("end", isEnd())
+                .add("offset", getOffset())
+                .add("blockIndex", getBlockIndex())
                 .toString();
     }
 
@@ -84,6 +95,22 @@ public class SimpleMark implements Codable, BytesCodable {
         this.end = end;
     }
 
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public long getBlockIndex() {
+        return blockIndex;
+    }
+
+    public void setBlockIndex(long blockIndex) {
+        this.blockIndex = blockIndex;
+    }
+
     // no-op functions
     public int getError() {
         return -1;
@@ -102,6 +129,7 @@ public class SimpleMark implements Codable, BytesCodable {
             buffer.writeBytes(valBytes);
             Varint.writeUnsignedVarLong(index, buffer);
             buffer.writeByte(end ? 1 : 0);
+            encodePosition(buffer);
             retBytes = new byte[buffer.readableBytes()];
             buffer.readBytes(retBytes);
         } finally {
@@ -120,8 +148,23 @@ public class SimpleMark implements Codable, BytesCodable {
             val = new String(valBytes);
             index = Varint.readUnsignedVarLong(buffer);
             end = buffer.readByte() == 1;
+            decodePosition(buffer);
         } finally {
             buffer.release();
         }
     }
+
+    /**
+     * Appends the resume position. Marks written before the offset existed end without one, and
+     * marks written before the block index existed end after the offset.
+     */
+    protected void encodePosition(ByteBuf buffer) {
+        Varint.writeUnsignedVarLong(offset + 1, buffer);
+        Varint.writeUnsignedVarLong(blockIndex + 1, buffer);
+    }
+
+    protected void decodePosition(ByteBuf buffer) {
+        offset = buffer.isReadable() ? (Varint.readUnsignedVarLong(buffer) - 1) : -1;
+        blockIndex = buffer.isReadable() ? (Varint.readUnsignedVarLong(buffer) - 1) : -1;
+    }
 }
@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
+import com.addthis.hydra.task.stream.BlockFile;
+
+/**
+ * Reads block compressed files (see {@link BlockFile}), decoding blocks in parallel. Can be resumed
+ * at the start of any block.
+ */
+class BlockBundleizer extends ParallelBundleizer {
+
+    private final BlockFile.Reader reader;
+    private final BundleFactory factory;
+
+    BlockBundleizer(InputStream input, BundleFactory factory, int decodeAhead) {
+        super(decodeAhead);
+        this.reader = new BlockFile.Reader(input);
+        this.factory = factory;
+    }
+
+    @Nullable @Override
+    Chunk read() throws IOException {
+        BlockFile.RawBlock block = reader.next();
+        if (block == null) {
+            return null;
+        }
+        return new Chunk(block.offset, block.end) {
+            @Override
+            List<Bundle> decode() throws IOException {
+                return block.decode(factory);
+            }
+        };
+    }
+}
@@ -23,4 +23,21 @@ import com.addthis.bundle.core.Bundle;
 public interface Bundleizer {
 
     public Bundle next() throws IOException;
+
+    /**
+     * @return bytes of input consumed by the bundles returned so far, so that a bundleizer created
+     *         over the input from this offset returns the next bundle; or -1 if not known, for
+     *         example because the format carries state from one bundle to the next
+     */
+    public default long position() {
+        return -1;
+    }
+
+    /**
+     * @return for formats that can only be resumed at the start of a block, the number of bundles
+     *         of the block at {@link #position()} that were already returned; -1 for other formats
+     */
+    public default long blockIndex() {
+        return -1;
+    }
 }
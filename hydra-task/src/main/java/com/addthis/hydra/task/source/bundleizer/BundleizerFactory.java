@@ -34,4 +34,12 @@ import com.addthis.codec.codables.Codable;
 public abstract class BundleizerFactory implements Codable {
 
     public abstract Bundleizer createBundleizer(InputStream input, BundleFactory factory);
+
+    /**
+     * Whether the input is a {@link com.addthis.hydra.task.stream.BlockFile block compressed file},
+     * which ends with an index of its blocks and can be read starting at any of them.
+     */
+    public boolean readsBlockFiles() {
+        return false;
+    }
 }
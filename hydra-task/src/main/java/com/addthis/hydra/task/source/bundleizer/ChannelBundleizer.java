@@ -20,6 +20,7 @@ import java.io.InputStream;
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleFactory;
 import com.addthis.bundle.io.DataChannelReader;
+import com.addthis.codec.annotations.FieldConfig;
 
 
 /**
@@ -28,8 +29,27 @@ import com.addthis.bundle.io.DataChannelReader;
  */
 public class ChannelBundleizer extends BundleizerFactory {
 
+    /**
+     * If true then read block compressed files, written by the channel output format with
+     * blockBundles set. Default is false.
+     */
+    @FieldConfig(codable = true)
+    private boolean blocks;
+
+    /** For block compressed files, the number of blocks to decode in parallel ahead of the reader. Default is 2. */
+    @FieldConfig(codable = true)
+    private int decodeAhead = 2;
+
+    @Override
+    public boolean readsBlockFiles() {
+        return blocks;
+    }
+
     @Override
     public Bundleizer createBundleizer(final InputStream input, final BundleFactory factory) {
+        if (blocks) {
+            return new BlockBundleizer(input, factory, decodeAhead);
+        }
         return new Bundleizer() {
             private final DataChannelReader reader = new DataChannelReader(factory, input);
 
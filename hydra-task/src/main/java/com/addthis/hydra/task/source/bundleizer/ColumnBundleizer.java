@@ -13,9 +13,16 @@
  */
 package com.addthis.hydra.task.source.bundleizer;
 
+import javax.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
 import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.filter.value.ValueFilter;
@@ -65,5 +72,185 @@ public class ColumnBundleizer extends NewlineBundleizer {
         }
         return next;
     }
-}
 
+    /**
+     * Splits lines in their bytes, decoding only the tokens of configured columns, when every
+     * character the tokenizer looks for is ascii. Those bytes then never occur inside the multi-byte
+     * characters of the charsets this accepts. Subclasses of Tokenizer may filter lines and values,
+     * so they get strings.
+     */
+    @Nullable @Override
+    protected LineBytesBundleizer lineBytesBundleizer(Charset charset) {
+        if ((tokens.getClass() != Tokenizer.class) || !(StandardCharsets.UTF_8.equals(charset)
+                                                        || StandardCharsets.US_ASCII.equals(charset)
+                                                        || StandardCharsets.ISO_8859_1.equals(charset))) {
+            return null;
+        }
+        String separator = tokens.getSeparator();
+        String escape = tokens.getEscape();
+        if ((separator == null) || (escape == null) || escape.isEmpty() || !ascii(separator) || !ascii(escape)) {
+            return null;
+        }
+        byte[] quoteOpen = null;
+        byte[] quoteClose = null;
+        String[] group = tokens.getGrouping();
+        if (group != null) {
+            quoteOpen = new byte[group.length];
+            quoteClose = new byte[group.length];
+            for (int i = 0; i < group.length; i++) {
+                String quote = group[i];
+                if (((quote.length() != 1) && (quote.length() != 2)) || !ascii(quote)) {
+                    return null;
+                }
+                quoteOpen[i] = (byte) quote.charAt(0);
+                quoteClose[i] = (byte) quote.charAt(quote.length() - 1);
+            }
+        }
+        return new LineSplitter(charset, separator.getBytes(StandardCharsets.US_ASCII), (byte) escape.charAt(0),
+                                quoteOpen, quoteClose, tokens.isPacked());
+    }
+
+    private static boolean ascii(String chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            if (chars.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Splits lines the way {@link Tokenizer#tokenize(String)} splits strings. */
+    private final class LineSplitter implements LineBytesBundleizer {
+
+        private final Charset charset;
+        private final byte[] separator;
+        private final byte escape;
+        @Nullable private final byte[] quoteOpen;
+        @Nullable private final byte[] quoteClose;
+        private final boolean pack;
+
+        /** fields of the columns in the format of the last bundle */
+        private final BundleField[] fields = new BundleField[columns.length];
+        @Nullable private BundleFormat format;
+        /** bytes of the current token without escapes and quotes */
+        private byte[] token = new byte[256];
+
+        LineSplitter(Charset charset, byte[] separator, byte escape,
+                     @Nullable byte[] quoteOpen, @Nullable byte[] quoteClose, boolean pack) {
+            this.charset = charset;
+            this.separator = separator;
+            this.escape = escape;
+            this.quoteOpen = quoteOpen;
+            this.quoteClose = quoteClose;
+            this.pack = pack;
+        }
+
+        @Nullable @Override
+        public Bundle bundleize(Bundle next, byte[] line, int start, int end) {
+            if (blank(line, start, end)) {
+                return null;
+            }
+            if (next.getFormat() != format) {
+                format = next.getFormat();
+                Arrays.fill(fields, null);
+            }
+            int column = 0;
+            int length = 0;
+            int inGroup = -1;
+            boolean isEscaped = false;
+            boolean isSep = false;
+            int pos = start;
+            while (true) {
+                boolean eol = pos == end;
+                if ((isSep && (inGroup < 0)) || eol) {
+                    if ((length > 0) || !pack) {
+                        if (!set(next, column++, length)) {
+                            return next;
+                        }
+                        length = 0;
+                        if (isSep && eol && !pack) {
+                            set(next, column, 0);
+                        }
+                    }
+                }
+                if (eol) {
+                    return next;
+                }
+                byte ch = line[pos++];
+                if (isEscaped) {
+                    append(length++, ch);
+                    isEscaped = false;
+                    continue;
+                }
+                if (ch == escape) {
+                    isEscaped = true;
+                    isSep = false;
+                    continue;
+                }
+                if (inGroup >= 0) {
+                    if (ch == quoteClose[inGroup]) {
+                        inGroup = -1;
+                    } else {
+                        append(length++, ch);
+                    }
+                    continue;
+                } else if (quoteOpen != null) {
+                    int quote = indexOf(quoteOpen, ch);
+                    if (quote >= 0) {
+                        isSep = false;
+                        inGroup = quote;
+                        continue;
+                    }
+                }
+                if (isSep = (indexOf(separator, ch) >= 0)) {
+                    continue;
+                }
+                append(length++, ch);
+            }
+        }
+
+        /** like {@code String.trim().isEmpty()}; whitespace is ascii in every accepted charset */
+        private boolean blank(byte[] line, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if ((line[i] < 0) || (line[i] > ' ')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void append(int at, byte b) {
+            if (at == token.length) {
+                token = Arrays.copyOf(token, token.length * 2);
+            }
+            token[at] = b;
+        }
+
+        /** @return false if there is no column for the token, so that the rest of the line is ignored */
+        private boolean set(Bundle next, int column, int length) {
+            if (column >= columns.length) {
+                return false;
+            }
+            ValueObject val = ValueFactory.create(new String(token, 0, length, charset));
+            if (tokenFilter != null) {
+                val = tokenFilter.filter(val, next);
+            }
+            BundleField field = fields[column];
+            if (field == null) {
+                field = format.getField(columns[column]);
+                fields[column] = field;
+            }
+            next.setValue(field, val);
+            return true;
+        }
+    }
+}
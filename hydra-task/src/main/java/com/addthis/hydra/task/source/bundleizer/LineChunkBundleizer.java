@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import com.addthis.bundle.core.Bundle;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Splits newline separated input into chunks of whole lines, each of which is bundleized by its
+ * own sequential bundleizer on the decoder pool.
+ */
+class LineChunkBundleizer extends ParallelBundleizer {
+
+    private final InputStream input;
+    private final int chunkBytes;
+    private final Function<InputStream, Bundleizer> lines;
+
+    /** bytes after the last newline of the previous chunk */
+    private byte[] carry = new byte[0];
+    /** offset of the first carried byte */
+    private long offset;
+    private boolean eof;
+
+    /**
+     * @param chunkBytes bytes read per chunk; chunks are longer when a line does not fit
+     * @param lines      bundleizes the lines of one chunk
+     */
+    LineChunkBundleizer(InputStream input, int chunkBytes, int decodeAhead,
+                        Function<InputStream, Bundleizer> lines) {
+        super(decodeAhead);
+        this.input = input;
+        this.chunkBytes = Math.max(1, chunkBytes);
+        this.lines = lines;
+    }
+
+    @Nullable @Override
+    Chunk read() throws IOException {
+        byte[] buffer = Arrays.copyOf(carry, Math.max(chunkBytes, carry.length + chunkBytes / 2));
+        int limit = carry.length;
+        int cut = -1;
+        while (cut < 0) {
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = eof ? 0 : ByteStreams.read(input, buffer, limit, buffer.length - limit);
+            int scanned = limit;
+            limit += read;
+            if (limit < buffer.length) {
+                eof = true;
+            }
+            for (int i = limit - 1; i >= scanned; i--) {
+                if (buffer[i] == '\n') {
+                    cut = i + 1;
+                    break;
+                }
+            }
+            if ((cut < 0) && eof) {
+                cut = limit;
+            }
+        }
+        if (cut == 0) {
+            return null;
+        }
+        carry = Arrays.copyOfRange(buffer, cut, limit);
+        byte[] bytes = buffer;
+        long start = offset;
+        offset += cut;
+        int length = cut;
+        return new Chunk(start, start + length) {
+            @Override
+            List<Bundle> decode() throws IOException {
+                Bundleizer bundleizer = lines.apply(new ByteArrayInputStream(bytes, 0, length));
+                List<Bundle> bundles = new ArrayList<>();
+                Bundle next;
+                while ((next = bundleizer.next()) != null) {
+                    bundles.add(next);
+                }
+                return bundles;
+            }
+        };
+    }
+}
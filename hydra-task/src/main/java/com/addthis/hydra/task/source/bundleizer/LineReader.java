@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.addthis.hydra.store.util.BufferPool;
+
+/**
+ * Splits a stream into lines like {@link java.io.BufferedReader#readLine()}, but scans for line
+ * terminators in the raw bytes so that the number of bytes consumed by the lines read so far is
+ * known. Lines end at '\n', '\r' or "\r\n", and are decoded with the default charset like the
+ * InputStreamReader this replaces; the terminators must be single bytes in that charset.
+ */
+final class LineReader {
+
+    private final InputStream in;
+    private final Charset charset;
+    @Nullable private final BufferPool pool;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private long position;
+    private int lineStart;
+    private int lineEnd;
+
+    LineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.charset = Charset.defaultCharset();
+        this.pool = null;
+        this.buf = new byte[bufferSize];
+    }
+
+    /** Reads into a buffer from the pool, which is returned to it at the end of the input. */
+    LineReader(InputStream in, BufferPool pool) {
+        this.in = in;
+        this.charset = Charset.defaultCharset();
+        this.pool = pool;
+        this.buf = pool.take();
+    }
+
+    /** @return the next line without its terminator, or null at the end of the input */
+    @Nullable String readLine() throws IOException {
+        if (!nextLine()) {
+            return null;
+        }
+        return new String(buf, lineStart, lineEnd - lineStart, charset);
+    }
+
+    /**
+     * Finds the next line without decoding it. Its bytes are those of {@link #buffer()} from
+     * {@link #lineStart()} to {@link #lineEnd()} until the next line is read.
+     *
+     * @return false at the end of the input
+     */
+    boolean nextLine() throws IOException {
+        if (buf == null) {
+            return false;
+        }
+        int scan = pos;
+        while (true) {
+            for (; scan < limit; scan++) {
+                byte b = buf[scan];
+                if ((b == '\n') || (b == '\r')) {
+                    if ((b == '\r') && ((scan + 1) == limit)) {
+                        // look for a following '\n' before moving past the line
+                        int from = pos;
+                        fill();
+                        scan -= from;
+                    }
+                    lineStart = pos;
+                    lineEnd = scan;
+                    int to = scan + 1;
+                    if ((b == '\r') && (to < limit) && (buf[to] == '\n')) {
+                        to += 1;
+                    }
+                    consume(to);
+                    return true;
+                }
+            }
+            // fill moves the unread bytes to the front of the buffer
+            scan -= pos;
+            if (fill() < 0) {
+                if (pos == limit) {
+                    if (pool != null) {
+                        pool.release(buf);
+                    }
+                    buf = null;
+                    return false;
+                }
+                lineStart = pos;
+                lineEnd = limit;
+                consume(limit);
+                return true;
+            }
+        }
+    }
+
+    /** @return the buffer holding the line found by {@link #nextLine()} */
+    byte[] buffer() {
+        return buf;
+    }
+
+    int lineStart() {
+        return lineStart;
+    }
+
+    int lineEnd() {
+        return lineEnd;
+    }
+
+    Charset charset() {
+        return charset;
+    }
+
+    /** @return bytes consumed by the lines read so far, including their terminators */
+    long position() {
+        return position;
+    }
+
+    private void consume(int to) {
+        position += to - pos;
+        pos = to;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer, grows it if they fill it, and reads more.
+     *
+     * @return bytes read, or -1 at the end of the input
+     */
+    private int fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+}
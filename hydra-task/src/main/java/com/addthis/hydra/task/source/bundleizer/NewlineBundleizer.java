@@ -13,10 +13,14 @@
  */
 package com.addthis.hydra.task.source.bundleizer;
 
-import java.io.BufferedReader;
+import javax.annotation.Nullable;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+
+import java.nio.charset.Charset;
+
+import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleFactory;
@@ -24,6 +28,7 @@ import com.addthis.bundle.util.ValueUtil;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.codec.annotations.FieldConfig;
 import com.addthis.hydra.data.filter.value.ValueFilter;
+import com.addthis.hydra.store.util.BufferPool;
 
 
 /**
@@ -31,17 +36,54 @@ import com.addthis.hydra.data.filter.value.ValueFilter;
  */
 public abstract class NewlineBundleizer extends BundleizerFactory {
 
+    /** line buffers shared by the readers of all inputs, returned at the end of each input */
+    private static final BufferPool lineBuffers = new BufferPool(
+            Parameter.intValue("source.bundleizer.lineBuffer", 256 * 1024),
+            Parameter.intValue("source.bundleizer.lineBuffers", 64));
+
     @FieldConfig(codable = true)
     private ValueFilter lineFilter;
 
+    /**
+     * Chunks of lines to bundleize in parallel ahead of the lines being read, so that a single large
+     * file is not limited to the one source worker reading it. The line filter and bundleizer must
+     * then be safe to use from several threads. Default is 0 (bundleize on the reading thread).
+     */
+    @FieldConfig(codable = true)
+    private int decodeAhead = 0;
+
+    /** Bytes of lines per chunk when bundleizing in parallel. Default is 1MB. */
+    @FieldConfig(codable = true)
+    private int chunkBytes = 1024 * 1024;
+
     @Override
     public Bundleizer createBundleizer(final InputStream inputArg, final BundleFactory factoryArg) {
+        if (decodeAhead > 0) {
+            return new LineChunkBundleizer(inputArg, chunkBytes, decodeAhead,
+                                           input -> lineBundleizer(input, factoryArg));
+        }
+        return lineBundleizer(inputArg, factoryArg);
+    }
+
+    private Bundleizer lineBundleizer(final InputStream inputArg, final BundleFactory factoryArg) {
         return new Bundleizer() {
-            private final BufferedReader reader = new BufferedReader(new InputStreamReader(inputArg), 65535);
+            private final LineReader reader = new LineReader(inputArg, lineBuffers);
             private final BundleFactory factory = factoryArg;
+            private final LineBytesBundleizer bytes =
+                    (lineFilter == null) ? lineBytesBundleizer(reader.charset()) : null;
 
             @Override
             public Bundle next() throws IOException {
+                while (bytes != null) {
+                    if (!reader.nextLine()) {
+                        return null;
+                    }
+                    Bundle next = bytes.bundleize(factory.createBundle(), reader.buffer(),
+                                                  reader.lineStart(), reader.lineEnd());
+                    if (next != null) {
+                        return next;
+                    }
+                }
                 while (true) {
                     String line = reader.readLine();
                     if (line == null) {
@@ -59,8 +101,32 @@ public abstract class NewlineBundleizer extends BundleizerFactory {
                     }
                 }
             }
+
+            @Override
+            public long position() {
+                return reader.position();
+            }
         };
     }
 
     public abstract Bundle bundleize(Bundle next, String line);
+
+    /**
+     * Lines are bundleized from the bytes of the input instead of decoded strings when there is no
+     * line filter and this returns a line bundleizer, which is only used by the reader it is
+     * created for.
+     *
+     * @param charset of the input
+     * @return a bundleizer of undecoded lines, or null to bundleize strings
+     */
+    @Nullable protected LineBytesBundleizer lineBytesBundleizer(Charset charset) {
+        return null;
+    }
+
+    /** Bundleizes lines without decoding them first. */
+    protected interface LineBytesBundleizer {
+
+        /** @return next, or null to skip the line, which is {@code line[start, end)} */
+        @Nullable Bundle bundleize(Bundle next, byte[] line, int start, int end);
+    }
 }
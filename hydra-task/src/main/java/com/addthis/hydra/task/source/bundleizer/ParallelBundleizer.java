@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.bundle.core.Bundle;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+/**
+ * Splits its input into chunks that can be bundleized independently of each other. The calling
+ * thread reads the chunks ahead of the bundles being returned, the chunks are bundleized on a pool
+ * shared by all readers, and their bundles are returned in the order of the input. A single large
+ * file is therefore bundleized by as many threads as there are chunks read ahead.
+ * <p/>
+ * Can be resumed at the start of any chunk: {@link #position()} is the offset of the current chunk
+ * and {@link #blockIndex()} the number of its bundles already returned.
+ */
+abstract class ParallelBundleizer implements Bundleizer {
+
+    private static final int DECODE_THREADS = Parameter.intValue("source.bundleizer.decodeThreads",
+                                                                 Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService decoders = Executors.newFixedThreadPool(
+            DECODE_THREADS, new ThreadFactoryBuilder().setNameFormat("bundleizerDecoder-%d").setDaemon(true).build());
+
+    /** A part of the input that can be bundleized on its own. */
+    abstract static class Chunk {
+
+        /** offset of the chunk from the start of the input */
+        final long offset;
+        /** offset of the end of the chunk */
+        final long end;
+
+        Chunk(long offset, long end) {
+            this.offset = offset;
+            this.end = end;
+        }
+
+        /** Called from a decoder thread, or the reading thread if nothing is decoded ahead. */
+        abstract List<Bundle> decode() throws IOException;
+    }
+
+    private final int decodeAhead;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    private boolean exhausted;
+    @Nullable private Chunk chunk;
+    @Nullable private List<Bundle> bundles;
+    private int returned;
+
+    /**
+     * @param decodeAhead chunks to decode in parallel ahead of the current one; 0 decodes each chunk
+     *                    on the calling thread when it is needed
+     */
+    ParallelBundleizer(int decodeAhead) {
+        this.decodeAhead = Math.max(0, decodeAhead);
+    }
+
+    /** @return the next chunk of the input, or null at its end */
+    @Nullable abstract Chunk read() throws IOException;
+
+    @Override
+    public Bundle next() throws IOException {
+        while ((bundles == null) || (returned == bundles.size())) {
+            fill();
+            Pending next = pending.poll();
+            if (next == null) {
+                return null;
+            }
+            chunk = next.chunk;
+            bundles = next.bundles();
+            returned = 0;
+        }
+        return bundles.get(returned++);
+    }
+
+    private void fill() throws IOException {
+        while (!exhausted && (pending.size() <= decodeAhead)) {
+            Chunk next = read();
+            if (next == null) {
+                exhausted = true;
+            } else {
+                pending.add(new Pending(next));
+            }
+        }
+    }
+
+    /** a chunk ends at the offset of the next one */
+    @Override
+    public long position() {
+        if (chunk == null) {
+            return 0;
+        }
+        return (returned == bundles.size()) ? chunk.end : chunk.offset;
+    }
+
+    @Override
+    public long blockIndex() {
+        if ((chunk == null) || (returned == bundles.size())) {
+            return 0;
+        }
+        return returned;
+    }
+
+    private final class Pending {
+
+        final Chunk chunk;
+        @Nullable final CompletableFuture<List<Bundle>> decoded;
+
+        Pending(Chunk chunk) {
+            this.chunk = chunk;
+            if (decodeAhead > 0) {
+                decoded = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return chunk.decode();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, decoders);
+            } else {
+                decoded = null;
+            }
+        }
+
+        List<Bundle> bundles() throws IOException {
+            if (decoded == null) {
+                return chunk.decode();
+            }
+            try {
+                return getUninterruptibly(decoded);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
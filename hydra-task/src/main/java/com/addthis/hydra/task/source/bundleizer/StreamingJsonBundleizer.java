@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.util.AutoField;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueObject;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Bundleizes json objects, one per line, with a pull parser. Without fields or paths every member
+ * of the object becomes a field of the bundle, like the json format. Otherwise only the members
+ * named are read; the values of all other members are skipped without being built.
+ * <p/>
+ * Strings and booleans become strings, integers longs, other numbers doubles, arrays and objects
+ * arrays and maps, and null members are left unset.
+ * <p/>
+ * <p>Example:</p>
+ * <pre>
+ * format: {type: json-stream, fields: [uid, time], paths: {"geo.country": country}}
+ * </pre>
+ *
+ * @user-reference
+ */
+public class StreamingJsonBundleizer extends NewlineBundleizer {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /** members read from the top level object, and null to read all of them */
+    @Nullable private final Node root;
+
+    /**
+     * @param fields members of the object to copy to bundle fields of the same name
+     * @param paths  nested members to copy, from paths of member names separated by '.' to the
+     *               names of bundle fields
+     */
+    @JsonCreator
+    public StreamingJsonBundleizer(@JsonProperty("fields") String[] fields,
+                                   @JsonProperty("paths") Map<String, String> paths) {
+        if (((fields == null) || (fields.length == 0)) && ((paths == null) || paths.isEmpty())) {
+            root = null;
+            return;
+        }
+        root = new Node();
+        if (fields != null) {
+            for (String field : fields) {
+                root.add(new String[]{field}, 0, field);
+            }
+        }
+        if (paths != null) {
+            for (Map.Entry<String, String> path : paths.entrySet()) {
+                root.add(path.getKey().split("\\."), 0, path.getValue());
+            }
+        }
+    }
+
+    @Override
+    public Bundle bundleize(Bundle next, String line) {
+        try (JsonParser parser = JSON.createParser(line)) {
+            return bundleize(next, parser);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** json is parsed straight from the bytes of lines in the encodings it detects */
+    @Nullable @Override
+    protected LineBytesBundleizer lineBytesBundleizer(Charset charset) {
+        if (!StandardCharsets.UTF_8.equals(charset) && !StandardCharsets.US_ASCII.equals(charset)) {
+            return null;
+        }
+        return (next, line, start, end) -> {
+            try (JsonParser parser = JSON.createParser(line, start, end - start)) {
+                return bundleize(next, parser);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        };
+    }
+
+    @Nullable private Bundle bundleize(Bundle next, JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("expected a json object but found " + token);
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (root == null) {
+                ValueObject value = value(parser);
+                if (value != null) {
+                    next.setValue(next.getFormat().getField(name), value);
+                }
+            } else {
+                read(next, parser, root.children.get(name));
+            }
+        }
+        return next;
+    }
+
+    /** reads the member value at the current token into its field, or the members of it that are used */
+    private static void read(Bundle next, JsonParser parser, @Nullable Node node) throws IOException {
+        if (node == null) {
+            parser.skipChildren();
+        } else if (node.field != null) {
+            ValueObject value = value(parser);
+            if (value != null) {
+                node.field.setValue(next, value);
+            }
+        } else if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                read(next, parser, node.children.get(name));
+            }
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    @Nullable private static ValueObject value(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT:
+                ValueMap map = ValueFactory.createMap();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    ValueObject value = value(parser);
+                    if (value != null) {
+                        map.put(name, value);
+                    }
+                }
+                return map;
+            case START_ARRAY:
+                ValueArray array = ValueFactory.createArray(4);
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    array.add(value(parser));
+                }
+                return array;
+            case VALUE_NUMBER_INT:
+                if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                    return ValueFactory.create(parser.getDoubleValue());
+                }
+                return ValueFactory.create(parser.getLongValue());
+            case VALUE_NUMBER_FLOAT:
+                return ValueFactory.create(parser.getDoubleValue());
+            case VALUE_NULL:
+                return null;
+            default:
+                return ValueFactory.create(parser.getText());
+        }
+    }
+
+    /** a member to read, either into a field or for members of its value */
+    private static final class Node {
+
+        final Map<String, Node> children = new HashMap<>();
+        @Nullable AutoField field;
+
+        void add(String[] path, int depth, String fieldName) {
+            if (depth == path.length) {
+                if (!children.isEmpty() || (field != null)) {
+                    throw new IllegalArgumentException("json path " + String.join(".", path)
+                                                       + " is read more than once");
+                }
+                field = AutoField.newAutoField(fieldName);
+                return;
+            }
+            if (field != null) {
+                throw new IllegalArgumentException("json path " + String.join(".", path)
+                                                   + " is inside another path that is read");
+            }
+            children.computeIfAbsent(path[depth], key -> new Node()).add(path, depth + 1, fieldName);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.stream;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
+import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.io.DataChannelReader;
+import com.addthis.bundle.util.AutoField;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Block compressed container for bundles in the channel encoding. A file is a sequence of blocks,
+ * each holding a number of bundles that are encoded and compressed independently of the other
+ * blocks, so that a reader can start at any block and blocks can be decoded in parallel.
+ * <pre>
+ * block:  magic "HBLK" (int), codec (byte), bundles (int), raw length (int), length (int), payload
+ * index:  magic "HIDX" (int), body length (int), body, body length (int), magic "HIDX" (int)
+ * body:   segment length (long), entries (int), per block: offset in segment (long), bundles (int),
+ *         min and max of the index field (int length or -1, utf-8 bytes)
+ * </pre>
+ * Every time a writer finishes it appends an index of the blocks it wrote since it started (a
+ * segment), so files that are appended to stay readable. Sequential readers skip indexes; the
+ * index of the whole file is found by walking the segments back from the end of the file, which
+ * only reads the footers of the segments when the file can be read from an offset.
+ */
+public final class BlockFile {
+
+    static final int BLOCK_MAGIC = 0x48424c4b;
+    static final int INDEX_MAGIC = 0x48494458;
+    static final int BLOCK_HEADER_BYTES = 17;
+
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_SNAPPY = 1;
+
+    private BlockFile() {
+    }
+
+    /** Collects bundles into blocks. Not thread safe. */
+    public static final class Writer {
+
+        private final int blockBundles;
+        private final int blockBytes;
+        private final boolean compress;
+        @Nullable private final AutoField indexField;
+
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        private final List<Entry> entries = new ArrayList<>();
+        private DataChannelCodec.FieldIndexMap fieldMap;
+        private DataChannelCodec.ClassIndexMap classMap;
+        private int bundles;
+        @Nullable private String min;
+        @Nullable private String max;
+        private long segmentLength;
+
+        /**
+         * @param blockBundles bundles per block
+         * @param blockBytes   encoded bytes after which a block ends even if it holds fewer bundles
+         * @param indexField   if not null then the index records the range of its values per block
+         */
+        public Writer(int blockBundles, int blockBytes, boolean compress, @Nullable AutoField indexField) {
+            this.blockBundles = Math.max(1, blockBundles);
+            this.blockBytes = Math.max(1, blockBytes);
+            this.compress = compress;
+            this.indexField = indexField;
+        }
+
+        /** Adds a bundle, writing the current block to {@code out} once it is full. */
+        public void write(OutputStream out, Bundle row) throws IOException {
+            if (bundles == 0) {
+                fieldMap = DataChannelCodec.createFieldIndexMap();
+                classMap = DataChannelCodec.createClassIndexMap();
+            }
+            LessBytes.writeBytes(DataChannelCodec.encodeBundle(row, fieldMap, classMap), payload);
+            bundles++;
+            if (indexField != null) {
+                String value = indexField.getString(row).orElse(null);
+                if (value != null) {
+                    if ((min == null) || (compareValues(value, min) < 0)) {
+                        min = value;
+                    }
+                    if ((max == null) || (compareValues(value, max) > 0)) {
+                        max = value;
+                    }
+                }
+            }
+            if ((bundles >= blockBundles) || (payload.size() >= blockBytes)) {
+                writeBlock(out);
+            }
+        }
+
+        /** Writes the last block and the index of the blocks written since the previous finish. */
+        public void finish(OutputStream out) throws IOException {
+            writeBlock(out);
+            if (entries.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            bodyOut.writeLong(segmentLength);
+            bodyOut.writeInt(entries.size());
+            for (Entry entry : entries) {
+                bodyOut.writeLong(entry.offset);
+                bodyOut.writeInt(entry.bundles);
+                writeString(bodyOut, entry.min);
+                writeString(bodyOut, entry.max);
+            }
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(INDEX_MAGIC);
+            dataOut.writeInt(body.size());
+            body.writeTo(dataOut);
+            dataOut.writeInt(body.size());
+            dataOut.writeInt(INDEX_MAGIC);
+            dataOut.flush();
+            entries.clear();
+            segmentLength = 0;
+        }
+
+        private void writeBlock(OutputStream out) throws IOException {
+            if (bundles == 0) {
+                return;
+            }
+            byte[] raw = payload.toByteArray();
+            byte[] data = raw;
+            byte codec = CODEC_NONE;
+            if (compress) {
+                byte[] compressed = Snappy.compress(raw);
+                if (compressed.length < raw.length) {
+                    data = compressed;
+                    codec = CODEC_SNAPPY;
+                }
+            }
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(BLOCK_MAGIC);
+            dataOut.writeByte(codec);
+            dataOut.writeInt(bundles);
+            dataOut.writeInt(raw.length);
+            dataOut.writeInt(data.length);
+            dataOut.write(data);
+            dataOut.flush();
+            long length = BLOCK_HEADER_BYTES + data.length;
+            entries.add(new Entry(segmentLength, segmentLength + length, 0, bundles, min, max));
+            segmentLength += length;
+            payload.reset();
+            bundles = 0;
+            min = null;
+            max = null;
+        }
+    }
+
+    /** A block as read from the input, not yet decoded. */
+    public static final class RawBlock {
+
+        /** offset of the block from the start of the input */
+        public final long offset;
+        /** offset of the end of the block */
+        public final long end;
+        public final int bundles;
+        private final byte codec;
+        private final int rawLength;
+        private final byte[] data;
+
+        RawBlock(long offset, long end, byte codec, int bundles, int rawLength, byte[] data) {
+            this.offset = offset;
+            this.end = end;
+            this.codec = codec;
+            this.bundles = bundles;
+            this.rawLength = rawLength;
+            this.data = data;
+        }
+
+        /** Decompresses and decodes the bundles of the block. Safe to call from any thread. */
+        public List<Bundle> decode(BundleFactory factory) throws IOException {
+            byte[] raw = data;
+            if (codec == CODEC_SNAPPY) {
+                raw = new byte[rawLength];
+                Snappy.uncompress(data, 0, data.length, raw, 0);
+            } else if (codec != CODEC_NONE) {
+                throw new IOException("unknown block codec " + codec + " at offset " + offset);
+            }
+            DataChannelReader reader = new DataChannelReader(factory, new ByteArrayInputStream(raw));
+            List<Bundle> result = new ArrayList<>(bundles);
+            for (int i = 0; i < bundles; i++) {
+                result.add(reader.read());
+            }
+            return result;
+        }
+    }
+
+    /** Reads the blocks of an input in order, skipping the indexes between them. */
+    public static final class Reader {
+
+        private final DataInputStream in;
+        private long position;
+
+        public Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /** @return the next block, or null at the end of the input */
+        @Nullable public RawBlock next() throws IOException {
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException ignored) {
+                    return null;
+                }
+                if (magic == INDEX_MAGIC) {
+                    int length = in.readInt();
+                    ByteStreams.skipFully(in, length + 8);
+                    position += 16 + length;
+                } else if (magic == BLOCK_MAGIC) {
+                    byte codec = in.readByte();
+                    int bundles = in.readInt();
+                    int rawLength = in.readInt();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    long offset = position;
+                    position += BLOCK_HEADER_BYTES + data.length;
+                    return new RawBlock(offset, position, codec, bundles, rawLength, data);
+                } else {
+                    throw new IOException("not a block compressed file: bad magic at offset " + position);
+                }
+            }
+        }
+    }
+
+    /** One block of the index of a file. */
+    public static final class Entry {
+
+        /** offset of the block in the file */
+        public final long offset;
+        /** offset of the end of the block in the file */
+        public final long end;
+        /** number of bundles in the file before this block */
+        public final long firstBundle;
+        public final int bundles;
+        /** range of the values of the index field in the block, or null */
+        @Nullable public final String min;
+        @Nullable public final String max;
+
+        Entry(long offset, long end, long firstBundle, int bundles, @Nullable String min, @Nullable String max) {
+            this.offset = offset;
+            this.end = end;
+            this.firstBundle = firstBundle;
+            this.bundles = bundles;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /** Reads bytes at an offset of a file. */
+    private interface Positioned {
+
+        void readFully(long offset, byte[] bytes) throws IOException;
+    }
+
+    /**
+     * Reads the index of a block compressed file from the indexes at the end of its segments.
+     * A file that does not end with an index, such as one a writer is still appending to, has no
+     * index until the writer finishes.
+     *
+     * @return the blocks of the file in order
+     */
+    public static List<Entry> readIndex(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return readIndex(in.length(), (offset, bytes) -> {
+                in.seek(offset);
+                in.readFully(bytes);
+            });
+        }
+    }
+
+    /**
+     * Reads the index of a block compressed stream file like {@link #readIndex(File)}. Every
+     * footer and index is read by opening the stream at its offset, so this should only be used
+     * for streams that {@link StreamFile#supportsOffsetReads() support offset reads}.
+     */
+    public static List<Entry> readIndex(StreamFile stream) throws IOException {
+        return readIndex(stream.length(), (offset, bytes) -> {
+            try (InputStream in = stream.getInputStream(offset)) {
+                ByteStreams.readFully(in, bytes);
+            }
+        });
+    }
+
+    private static List<Entry> readIndex(long length, Positioned in) throws IOException {
+        List<List<Entry>> segments = new ArrayList<>();
+        long end = length;
+        byte[] footer = new byte[8];
+        while (end >= 16) {
+            in.readFully(end - 8, footer);
+            DataInputStream footerIn = new DataInputStream(new ByteArrayInputStream(footer));
+            int bodyLength = footerIn.readInt();
+            if ((footerIn.readInt() != INDEX_MAGIC) || (bodyLength < 12) || (bodyLength > (end - 16))) {
+                break;
+            }
+            long indexStart = end - 16 - bodyLength;
+            byte[] index = new byte[bodyLength + 8];
+            in.readFully(indexStart, index);
+            DataInputStream indexIn = new DataInputStream(new ByteArrayInputStream(index));
+            if ((indexIn.readInt() != INDEX_MAGIC) || (indexIn.readInt() != bodyLength)) {
+                break;
+            }
+            long segmentStart = indexStart - indexIn.readLong();
+            int count = indexIn.readInt();
+            List<Entry> segment = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long offset = segmentStart + indexIn.readLong();
+                int bundles = indexIn.readInt();
+                segment.add(new Entry(offset, 0, 0, bundles, readString(indexIn), readString(indexIn)));
+            }
+            // the blocks of a segment are contiguous and its index follows the last one
+            List<Entry> ends = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = segment.get(i);
+                long blockEnd = ((i + 1) < count) ? segment.get(i + 1).offset : indexStart;
+                ends.add(new Entry(entry.offset, blockEnd, 0, entry.bundles, entry.min, entry.max));
+            }
+            segments.add(ends);
+            end = segmentStart;
+        }
+        Collections.reverse(segments);
+        List<Entry> result = new ArrayList<>();
+        long firstBundle = 0;
+        for (List<Entry> segment : segments) {
+            for (Entry entry : segment) {
+                result.add(new Entry(entry.offset, entry.end, firstBundle, entry.bundles, entry.min, entry.max));
+                firstBundle += entry.bundles;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orders values of the index field numerically when both are numbers, and as strings
+     * otherwise, so that a block of 9 and 10 has a min of 9 and a max of 10.
+     */
+    static int compareValues(String a, String b) {
+        Long longA = Longs.tryParse(a);
+        Long longB = Longs.tryParse(b);
+        if ((longA != null) && (longB != null)) {
+            return Long.compare(longA, longB);
+        }
+        Double doubleA = Doubles.tryParse(a);
+        Double doubleB = Doubles.tryParse(b);
+        if ((doubleA != null) && (doubleB != null)) {
+            return Double.compare(doubleA, doubleB);
+        }
+        return a.compareTo(b);
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @Nullable private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -16,11 +16,31 @@ package com.addthis.hydra.task.stream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.google.common.io.ByteStreams;
+
 
 public interface StreamFile {
 
     public InputStream getInputStream() throws IOException;
 
+    /**
+     * Opens the file at a byte offset into its raw contents. Only meaningful for files that are not
+     * compressed as a whole. The default discards the bytes before the offset.
+     */
+    public default InputStream getInputStream(long offset) throws IOException {
+        InputStream in = getInputStream();
+        ByteStreams.skipFully(in, offset);
+        return in;
+    }
+
+    /**
+     * Whether {@link #getInputStream(long)} seeks rather than reading the bytes before the offset,
+     * so that reading a small part of a large file near its end is cheap.
+     */
+    public default boolean supportsOffsetReads() {
+        return false;
+    }
+
     public long lastModified();
 
     public long length();
@@ -106,6 +106,26 @@ public class StreamFileNative implements StreamFile, Codable {
         return in;
     }
 
+    /**
+     * Interface
+     */
+    @Override
+    public InputStream getInputStream(long offset) throws IOException {
+        FileInputStream file = new FileInputStream(name);
+        file.getChannel().position(offset);
+        InputStream in = new BufferedInputStream(file);
+        in = CompressedStream.decompressInputStream(in, name);
+        return in;
+    }
+
+    /**
+     * Interface
+     */
+    @Override
+    public boolean supportsOffsetReads() {
+        return true;
+    }
+
     public String toString() {
         return name + "," + length + "," + lastModified;
     }
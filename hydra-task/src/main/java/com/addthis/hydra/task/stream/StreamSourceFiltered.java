@@ -69,6 +69,16 @@ public class StreamSourceFiltered implements StreamFileSource {
             return wrap.getInputStream();
         }
 
+        @Override
+        public InputStream getInputStream(long offset) throws IOException {
+            return wrap.getInputStream(offset);
+        }
+
+        @Override
+        public boolean supportsOffsetReads() {
+            return wrap.supportsOffsetReads();
+        }
+
         @Override
         public long lastModified() {
             return wrap.lastModified();
@@ -0,0 +1,297 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.util;
+
+import javax.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of preallocated slots that producers and consumers claim in batches, so that
+ * handing off a batch of bundles costs a single compare and set on each side and no allocation.
+ * Any number of threads may put and take.
+ * <p/>
+ * Each slot has a sequence number that says whether it is free or holds an element for the
+ * current lap around the ring. Producers claim a batch by moving the tail if there is room for
+ * all of it, and consumers by moving the head past slots that have all been filled. Only the one
+ * thread whose compare and set succeeds may then fill or empty those slots.
+ * <p/>
+ * Waiting threads spin for a while and then park for increasing intervals, up to a millisecond,
+ * instead of being signalled.
+ */
+public final class RingBuffer<T> {
+
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    // next position to take from, and to put at
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /** @param capacity rounded up to a power of two, and at least two */
+    public RingBuffer(int capacity) {
+        // with a single slot, full for one position would look the same as free for the next
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return elements in the ring, which may have changed by the time this returns */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** @return true if the element was added, or false if the ring is full */
+    public boolean offer(T element) {
+        long position = claimPut(1);
+        if (position < 0) {
+            return false;
+        }
+        publish(position, element);
+        return true;
+    }
+
+    /**
+     * Adds all of the elements or none of them.
+     *
+     * @param batch at most {@link #capacity()} elements
+     * @return false if there is not room for all of them
+     */
+    public boolean offerAll(List<? extends T> batch) {
+        if (batch.size() > capacity) {
+            throw new IllegalArgumentException("batch of " + batch.size() + " exceeds capacity " + capacity);
+        }
+        if (batch.isEmpty()) {
+            return true;
+        }
+        long position = claimPut(batch.size());
+        if (position < 0) {
+            return false;
+        }
+        for (T element : batch) {
+            publish(position++, element);
+        }
+        return true;
+    }
+
+    public void put(T element) throws InterruptedException {
+        for (int waits = 0; !offer(element); waits++) {
+            await(waits);
+        }
+    }
+
+    /** Like {@link #put(Object)}, but returns false instead of waiting longer than the timeout */
+    public boolean offer(T element, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int waits = 0; !offer(element); waits++) {
+            if (!await(waits, deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Like {@link #offerAll(List)}, but waits up to the timeout for room for all of the elements */
+    public boolean offerAll(List<? extends T> batch, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int waits = 0; !offerAll(batch); waits++) {
+            if (!await(waits, deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the next element, or null if the ring is empty */
+    @Nullable public T poll() {
+        long position = claimTake(1);
+        if (position < 0) {
+            return null;
+        }
+        return consume(position);
+    }
+
+    @Nullable public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        T element;
+        for (int waits = 0; (element = poll()) == null; waits++) {
+            if (!await(waits, deadline)) {
+                return null;
+            }
+        }
+        return element;
+    }
+
+    public T take() throws InterruptedException {
+        T element;
+        for (int waits = 0; (element = poll()) == null; waits++) {
+            await(waits);
+        }
+        return element;
+    }
+
+    /**
+     * Moves up to max elements, in order, into the collection without waiting.
+     *
+     * @return the number of elements moved
+     */
+    public int drainTo(Collection<? super T> into, int max) {
+        int count = Math.min(max, capacity);
+        while (count > 0) {
+            long position = claimTake(count);
+            if (position >= 0) {
+                for (int i = 0; i < count; i++) {
+                    into.add(consume(position + i));
+                }
+                return count;
+            }
+            // fewer are ready; try for however many are ready now
+            count = Math.min(count - 1, ready());
+        }
+        return 0;
+    }
+
+    /**
+     * @return the next element without removing it, or null if the ring is empty. The element may be
+     * taken by another consumer by the time this returns.
+     */
+    @Nullable public T peek() {
+        long position = head.get();
+        if (sequences.get(index(position)) != (position + 1)) {
+            return null;
+        }
+        T element = slots.get(index(position));
+        // the slot may have been taken and reused while reading it
+        return (head.get() == position) ? element : null;
+    }
+
+    private int index(long position) {
+        return (int) position & mask;
+    }
+
+    /**
+     * Claims slots as soon as there is room for them, so that batches are not starved by smaller
+     * ones. A consumer may still be emptying a claimed slot, which {@link #publish} waits for.
+     *
+     * @return the first of count slots now owned by the caller, or -1
+     */
+    private long claimPut(int count) {
+        while (true) {
+            long position = tail.get();
+            if (((position + count) - head.get()) > capacity) {
+                if (tail.get() == position) {
+                    return -1;
+                }
+            } else if (tail.compareAndSet(position, position + count)) {
+                return position;
+            }
+        }
+    }
+
+    /** @return the first of count full slots now owned by the caller, or -1 */
+    private long claimTake(int count) {
+        while (true) {
+            long position = head.get();
+            for (int i = count - 1; i >= 0; i--) {
+                if (sequences.get(index(position + i)) != (position + i + 1)) {
+                    // the producer of the slot has not filled it yet
+                    if (head.get() == position) {
+                        return -1;
+                    }
+                    position = -1;
+                    break;
+                }
+            }
+            if ((position >= 0) && head.compareAndSet(position, position + count)) {
+                return position;
+            }
+        }
+    }
+
+    /** @return how many consecutive slots from the head are full */
+    private int ready() {
+        long position = head.get();
+        int ready = 0;
+        while ((ready < capacity) && (sequences.get(index(position + ready)) == (position + ready + 1))) {
+            ready++;
+        }
+        return ready;
+    }
+
+    private void publish(long position, T element) {
+        int index = index(position);
+        // the consumer of the previous lap has moved the head past the slot, and is about to empty it
+        while (sequences.get(index) != position) {
+            Thread.yield();
+        }
+        slots.lazySet(index, element);
+        sequences.set(index, position + 1);
+    }
+
+    private T consume(long position) {
+        int index = index(position);
+        T element = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.set(index, position + capacity);
+        return element;
+    }
+
+    private static void await(int waits) throws InterruptedException {
+        await(waits, Long.MAX_VALUE);
+    }
+
+    /** @return false if the deadline has passed */
+    private static boolean await(int waits, long deadline) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long remaining = (deadline == Long.MAX_VALUE) ? Long.MAX_VALUE : (deadline - System.nanoTime());
+        if (remaining <= 0) {
+            return false;
+        }
+        if (waits < SPINS) {
+            return true;
+        } else if (waits < (SPINS + YIELDS)) {
+            Thread.yield();
+        } else {
+            long park = Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, waits - SPINS - YIELDS));
+            LockSupport.parkNanos(Math.min(park, remaining));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.task.stream.BlockFile;
+import com.addthis.hydra.task.stream.PersistentStreamFileSource;
+import com.addthis.hydra.task.stream.StreamFile;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.addthis.codec.config.Configs.decodeObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AbstractStreamFileDataSourceTest {
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /** Serves files of numbered lines from memory. */
+    public static class MemorySource extends AbstractStreamFileDataSource {
+
+        private final ConcurrentLinkedQueue<StreamFile> files = new ConcurrentLinkedQueue<>();
+
+        void addFile(String name, String contents) {
+            addFile(name, contents.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void addFile(String name, byte[] bytes) {
+            files.add(new StreamFile() {
+                @Override public InputStream getInputStream() {
+                    return new ByteArrayInputStream(bytes);
+                }
+
+                @Override public InputStream getInputStream(long offset) {
+                    return new ByteArrayInputStream(bytes, (int) offset, bytes.length - (int) offset);
+                }
+
+                @Override public boolean supportsOffsetReads() {
+                    return true;
+                }
+
+                @Override public long lastModified() {
+                    return 0;
+                }
+
+                @Override public long length() {
+                    return bytes.length;
+                }
+
+                @Override public String name() {
+                    return name;
+                }
+
+                @Override public String getPath() {
+                    return "/" + name;
+                }
+            });
+        }
+
+        @Override protected PersistentStreamFileSource getSource() {
+            return new PersistentStreamFileSource() {
+                @Override public boolean hasMod() {
+                    return false;
+                }
+
+                @Override public boolean init(File markDir, Integer[] shards) {
+                    return true;
+                }
+
+                @Override public void shutdown() {}
+
+                @Override public StreamFile nextSource() {
+                    return files.poll();
+                }
+            };
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void adaptiveWorkersFinishFiniteSource() throws Exception {
+        MemorySource source = decodeObject(MemorySource.class,
+                "markDir: \"" + tempFolder.getRoot().getAbsolutePath() + "\", processAllData: true, "
+                + "shardTotal: 1, shards: [0], workers: 3, maxWorkers: 4, preOpen: 3, adaptive: true, "
+                + "adaptInterval: 10, buffer: 16, multiBundleReads: 4, pollInterval: 100, pollCountdown: 0, "
+                + "format: {column {columns: [n], tokens {separator: \",\"}}}");
+        int lines = 0;
+        for (int file = 0; file < 20; file++) {
+            StringBuilder contents = new StringBuilder();
+            for (int line = 0; line < 50; line++) {
+                contents.append(lines++).append('\n');
+            }
+            source.addFile("file-" + file, contents.toString());
+        }
+        source.init();
+        Set<String> read = new HashSet<>();
+        Bundle bundle;
+        while ((bundle = source.next()) != null) {
+            read.add(bundle.getValue(bundle.getFormat().getField("n")).toString());
+        }
+        assertEquals(lines, read.size());
+    }
+
+    private MemorySource blockSource() throws Exception {
+        return decodeObject(MemorySource.class,
+                "markDir: \"" + tempFolder.getRoot().getAbsolutePath() + "\", processAllData: true, "
+                + "shardTotal: 1, shards: [0], workers: 3, preOpen: 1, buffer: 16, multiBundleReads: 4, "
+                + "pollInterval: 100, pollCountdown: 0, splitBytes: 2000, format: {channel {blocks: true}}");
+    }
+
+    private static Map<String, Integer> readAll(MemorySource source) {
+        Map<String, Integer> read = new HashMap<>();
+        try {
+            Bundle bundle;
+            while ((bundle = source.next()) != null) {
+                read.merge(bundle.getValue(bundle.getFormat().getField("n")).toString(), 1, Integer::sum);
+            }
+        } finally {
+            source.close();
+        }
+        return read;
+    }
+
+    @Test(timeout = 20000)
+    public void largeBlockFilesAreSplitBetweenWorkers() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockFile.Writer writer = new BlockFile.Writer(20, 1 << 20, false, null);
+        for (int i = 0; i < 1000; i++) {
+            Bundle row = new ListBundle();
+            row.setValue(row.getFormat().getField("n"), ValueFactory.create(i));
+            writer.write(out, row);
+            // several segments, as if the file was appended to
+            if ((i == 499) || (i == 899)) {
+                writer.finish(out);
+            }
+        }
+        writer.finish(out);
+        byte[] bytes = out.toByteArray();
+        Counter ranges = Metrics.newCounter(MemorySource.class, "openRange");
+        long rangesBefore = ranges.count();
+
+        MemorySource source = blockSource();
+        source.addFile("blocks", bytes);
+        source.init();
+        Map<String, Integer> read = readAll(source);
+        assertEquals(1000, read.size());
+        for (int count : read.values()) {
+            assertEquals(1, count);
+        }
+        assertTrue(ranges.count() > rangesBefore);
+
+        // the marks of the ranges finish the mark of the file
+        MemorySource again = blockSource();
+        again.addFile("blocks", bytes);
+        again.init();
+        assertTrue(readAll(again).isEmpty());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AdaptiveSourceControllerTest {
+
+    private static AdaptiveSourceController controller(int workers, int preOpen) {
+        return new AdaptiveSourceController(AdaptiveSourceControllerTest.class, 1, 4, workers, 1, 8, preOpen,
+                                            60000);
+    }
+
+    @Test
+    public void slowOpensPreOpenFurther() {
+        AdaptiveSourceController controller = controller(1, 1);
+        controller.opened(50_000_000);
+        controller.read(32, 1_000_000);
+        controller.queued(0, 128);
+        controller.adjust();
+        assertEquals(1, controller.activeWorkers());
+        assertEquals(2, controller.preOpen());
+        controller.opened(50_000_000);
+        controller.queued(0, 128);
+        controller.adjust();
+        controller.opened(50_000_000);
+        controller.queued(0, 128);
+        controller.adjust();
+        controller.opened(50_000_000);
+        controller.queued(0, 128);
+        controller.adjust();
+        assertEquals(8, controller.preOpen());
+    }
+
+    @Test
+    public void slowReadsAddWorkers() {
+        AdaptiveSourceController controller = controller(1, 1);
+        for (int i = 0; i < 4; i++) {
+            controller.opened(1_000_000);
+            controller.read(32, 50_000_000);
+            controller.queued(10, 128);
+            controller.adjust();
+        }
+        assertEquals(4, controller.activeWorkers());
+        assertEquals(5, controller.preOpen());
+    }
+
+    @Test
+    public void fullQueueGivesUpWorkers() {
+        AdaptiveSourceController controller = controller(3, 6);
+        for (int i = 0; i < 10; i++) {
+            controller.read(32, 1_000_000);
+            controller.queued(120, 128);
+            controller.adjust();
+        }
+        assertEquals(1, controller.activeWorkers());
+        assertEquals(1, controller.preOpen());
+    }
+
+    @Test
+    public void steadyKeepsSizes() {
+        AdaptiveSourceController controller = controller(2, 3);
+        controller.read(32, 1_000_000);
+        controller.queued(64, 128);
+        controller.adjust();
+        assertEquals(2, controller.activeWorkers());
+        assertEquals(3, controller.preOpen());
+        assertFalse(controller.maybeAdjust() && controller.maybeAdjust());
+    }
+
+    @Test
+    public void idleIntervalAddsWorkers() {
+        AdaptiveSourceController controller = controller(2, 2);
+        // nothing measured
+        controller.adjust();
+        assertEquals(3, controller.activeWorkers());
+        assertEquals(3, controller.preOpen());
+    }
+}
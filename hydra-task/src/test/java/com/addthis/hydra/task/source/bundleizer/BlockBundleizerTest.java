@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.util.AutoField;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.task.stream.BlockFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.addthis.codec.config.Configs.decodeObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BlockBundleizerTest {
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final AutoField key = AutoField.newAutoField("key");
+
+    private static Bundle row(int i) {
+        Bundle row = new ListBundle();
+        row.setValue(row.getFormat().getField("key"), ValueFactory.create("k" + (1000 + i)));
+        row.setValue(row.getFormat().getField("value"), ValueFactory.create(i));
+        return row;
+    }
+
+    /** two segments, as if the file was appended to: blocks of 10, 10, 5 and then 10, 2 bundles */
+    private static byte[] write() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockFile.Writer writer = new BlockFile.Writer(10, 1 << 20, true, AutoField.newAutoField("key"));
+        for (int i = 0; i < 25; i++) {
+            writer.write(out, row(i));
+        }
+        writer.finish(out);
+        for (int i = 25; i < 37; i++) {
+            writer.write(out, row(i));
+        }
+        writer.finish(out);
+        return out.toByteArray();
+    }
+
+    private static List<Bundle> readAll(Bundleizer bundleizer) throws Exception {
+        List<Bundle> rows = new ArrayList<>();
+        Bundle row;
+        while ((row = bundleizer.next()) != null) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @Test public void readsAllBlocks() throws Exception {
+        byte[] bytes = write();
+        for (String config : new String[]{"blocks: true", "blocks: true, decodeAhead: 0"}) {
+            ChannelBundleizer factory = decodeObject(ChannelBundleizer.class, config);
+            List<Bundle> rows = readAll(factory.createBundleizer(new ByteArrayInputStream(bytes), ListBundle::new));
+            assertEquals(37, rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                assertEquals("k" + (1000 + i), key.getString(rows.get(i)).get());
+            }
+        }
+    }
+
+    @Test public void resumeMidBlock() throws Exception {
+        byte[] bytes = write();
+        ChannelBundleizer factory = decodeObject(ChannelBundleizer.class, "blocks: true");
+        Bundleizer bundleizer = factory.createBundleizer(new ByteArrayInputStream(bytes), ListBundle::new);
+        for (int i = 0; i < 37; i++) {
+            bundleizer.next();
+            int offset = (int) bundleizer.position();
+            Bundleizer resumed = factory.createBundleizer(
+                    new ByteArrayInputStream(bytes, offset, bytes.length - offset), ListBundle::new);
+            for (long skip = bundleizer.blockIndex(); skip > 0; skip--) {
+                resumed.next();
+            }
+            List<Bundle> rest = readAll(resumed);
+            assertEquals(36 - i, rest.size());
+            if (!rest.isEmpty()) {
+                assertEquals("k" + (1001 + i), key.getString(rest.get(0)).get());
+            }
+        }
+        assertNull(bundleizer.next());
+    }
+
+    @Test public void index() throws Exception {
+        File file = tempFolder.newFile();
+        Files.write(file.toPath(), write());
+        List<BlockFile.Entry> entries = BlockFile.readIndex(file);
+        assertEquals(5, entries.size());
+        long[] firstBundles = {0, 10, 20, 25, 35};
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(firstBundles[i], entries.get(i).firstBundle);
+        }
+        assertEquals("k1020", entries.get(2).min);
+        assertEquals("k1024", entries.get(2).max);
+        // every indexed offset starts a block that a reader can open
+        BlockFile.Entry last = entries.get(4);
+        byte[] bytes = write();
+        BlockFile.RawBlock block = new BlockFile.Reader(new ByteArrayInputStream(
+                bytes, (int) last.offset, bytes.length - (int) last.offset)).next();
+        assertEquals(2, block.bundles);
+        assertEquals("k1035", key.getString(block.decode(ListBundle::new).get(0)).get());
+        assertEquals(last.end, last.offset + block.end);
+    }
+
+    @Test public void numericIndexRange() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockFile.Writer writer = new BlockFile.Writer(3, 1 << 20, true, AutoField.newAutoField("value"));
+        for (int i : new int[]{9, 10, 100}) {
+            writer.write(out, row(i));
+        }
+        writer.finish(out);
+        File file = tempFolder.newFile();
+        Files.write(file.toPath(), out.toByteArray());
+        List<BlockFile.Entry> entries = BlockFile.readIndex(file);
+        assertEquals(1, entries.size());
+        assertEquals("9", entries.get(0).min);
+        assertEquals("100", entries.get(0).max);
+    }
+}
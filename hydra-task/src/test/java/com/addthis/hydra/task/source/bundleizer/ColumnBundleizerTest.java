@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueObject;
+
+import org.junit.Test;
+
+import static com.addthis.codec.config.Configs.decodeObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ColumnBundleizerTest {
+
+    private static final String[] LINES = {
+            "a,b,c", "a,,c,", ",", "", "   ", " x ", "a,b,c,d,e,f,g", "'a,b',c", "\"x\\\"y\",z",
+            "e\\,scaped,\\\\", "trailing\\", "'open,group", "café,über,日本", "a\t,b"
+    };
+
+    private static List<List<String>> bundleize(ColumnBundleizer factory, boolean bytes) throws Exception {
+        List<List<String>> rows = new ArrayList<>();
+        if (bytes) {
+            String input = String.join("\n", LINES);
+            Bundleizer bundleizer = factory.createBundleizer(
+                    new ByteArrayInputStream(input.getBytes(Charset.defaultCharset())), ListBundle::new);
+            Bundle bundle;
+            while ((bundle = bundleizer.next()) != null) {
+                rows.add(values(bundle));
+            }
+        } else {
+            for (String line : LINES) {
+                // decoded like the line reader does
+                line = new String(line.getBytes(Charset.defaultCharset()), Charset.defaultCharset());
+                Bundle bundle = factory.bundleize(new ListBundle(), line);
+                if (bundle != null) {
+                    rows.add(values(bundle));
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static List<String> values(Bundle bundle) {
+        List<String> values = new ArrayList<>();
+        for (String column : new String[]{"a", "b", "c", "d"}) {
+            ValueObject value = bundle.getValue(bundle.getFormat().getField(column));
+            values.add((value == null) ? null : value.toString());
+        }
+        return values;
+    }
+
+    @Test public void bytesMatchStrings() throws Exception {
+        String[] configs = {
+                "columns = [a, b, c, d], tokens {separator = \",\"}",
+                "columns = [a, b, c, d], tokens {separator = \",\\t\", pack = true}",
+                "columns = [a, b, c, d], tokens {separator = \",\", group = [\"'\", \"\\\"\"]}",
+                "columns = [a, b, c, d], tokens {separator = \",\", escape = \"|\"}",
+                "columns = [a, b], tokens {separator = \",\"}, tokenFilter {op = case, upper = true}"
+        };
+        for (String config : configs) {
+            ColumnBundleizer factory = decodeObject(ColumnBundleizer.class, config);
+            assertNotNull(factory.lineBytesBundleizer(StandardCharsets.UTF_8));
+            assertEquals(config, bundleize(factory, false), bundleize(factory, true));
+        }
+    }
+
+    @Test public void lineFilterGetsStrings() throws Exception {
+        ColumnBundleizer factory = decodeObject(ColumnBundleizer.class, "columns = [a, b], tokens {separator = \",\"}, "
+                                                                        + "lineFilter {op = case, upper = true}");
+        Bundle bundle = factory.createBundleizer(
+                new ByteArrayInputStream("x,y\n".getBytes(StandardCharsets.UTF_8)), ListBundle::new).next();
+        assertEquals("X", bundle.getValue(bundle.getFormat().getField("a")).toString());
+        assertEquals("Y", bundle.getValue(bundle.getFormat().getField("b")).toString());
+    }
+}
@@ -13,9 +13,14 @@
  */
 package com.addthis.hydra.task.source.bundleizer;
 
+import java.io.ByteArrayInputStream;
+
+import java.nio.charset.StandardCharsets;
+
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.util.AutoField;
+import com.addthis.bundle.value.ValueMap;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -48,4 +53,40 @@ public class JsonBundleizerTest {
         Assert.assertEquals("freddy", uid.getString(bundle).get());
         Assert.assertEquals("notABundleType", type.getString(bundle).get());
     }
-}
\ No newline at end of file
+
+    @Test public void streamingAllMembers() throws Exception {
+        BundleizerFactory factory = decodeObject(BundleizerFactory.class, "{type: json-stream}");
+        String json = "{\"time\": 100, \"uid\":\"freddy\", \"ok\": true, \"none\": null, "
+                      + "\"geo\": {\"cc\": \"US\"}}";
+        Bundle bundle = ((NewlineBundleizer) factory).bundleize(new ListBundle(), json);
+        Assert.assertEquals(100, AutoField.newAutoField("time").getInt(bundle).getAsInt());
+        Assert.assertEquals("freddy", AutoField.newAutoField("uid").getString(bundle).get());
+        Assert.assertEquals("true", AutoField.newAutoField("ok").getString(bundle).get());
+        Assert.assertNull(AutoField.newAutoField("none").getValue(bundle));
+        ValueMap geo = AutoField.newAutoField("geo").getValue(bundle).asMap();
+        Assert.assertEquals("US", geo.get("cc").asString().asNative());
+    }
+
+    @Test public void streamingProjection() throws Exception {
+        String config = "{type: json-stream, fields: [uid], paths: {\"geo.cc\": country, \"a.b.c\": deep}}";
+        BundleizerFactory factory = decodeObject(BundleizerFactory.class, config);
+        String json = "{\"skip\": {\"x\": [1, {\"uid\": \"nested\"}, \"}\"]}, \"uid\": \"freddy\", "
+                      + "\"geo\": {\"city\": [\"nyc\"], \"cc\": \"US\"}, \"a\": {\"b\": 3}, \"time\": 100}\n"
+                      + "{\"uid\": \"second\", \"a\": {\"b\": {\"c\": 2.5}}}\n";
+        Bundleizer bundleizer = factory.createBundleizer(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), ListBundle::new);
+        Bundle bundle = bundleizer.next();
+        Assert.assertEquals("freddy", AutoField.newAutoField("uid").getString(bundle).get());
+        Assert.assertEquals("US", AutoField.newAutoField("country").getString(bundle).get());
+        Assert.assertEquals(2, bundle.getCount());
+        bundle = bundleizer.next();
+        Assert.assertEquals("second", AutoField.newAutoField("uid").getString(bundle).get());
+        Assert.assertEquals(2.5, bundle.getValue(bundle.getFormat().getField("deep")).asDouble().getDouble(), 0);
+        Assert.assertNull(bundleizer.next());
+    }
+
+    @Test(expected = Exception.class)
+    public void streamingOverlappingPaths() throws Exception {
+        decodeObject(BundleizerFactory.class, "{type: json-stream, fields: [geo], paths: {\"geo.cc\": country}}");
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.util.AutoField;
+
+import org.junit.Test;
+
+import static com.addthis.codec.config.Configs.decodeObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NewlineBundleizerTest {
+
+    private static final String INPUT = "first\r\nsecond\rthird\n\nlast line without terminator";
+
+    @Test public void linesAndPositions() throws Exception {
+        byte[] bytes = INPUT.getBytes(StandardCharsets.UTF_8);
+        // a tiny buffer exercises lines and "\r\n" split across reads
+        LineReader reader = new LineReader(new ByteArrayInputStream(bytes), 3);
+        List<String> lines = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+            positions.add(reader.position());
+        }
+        assertEquals(Arrays.asList("first", "second", "third", "", "last line without terminator"), lines);
+        assertEquals(Arrays.asList(7L, 14L, 20L, 21L, (long) bytes.length), positions);
+    }
+
+    @Test public void resumeFromPosition() throws Exception {
+        RegexBundleizer factory = decodeObject(RegexBundleizer.class, "regex = \"(?<line>.*)\"");
+        AutoField field = AutoField.newAutoField("line");
+        byte[] bytes = INPUT.getBytes(StandardCharsets.UTF_8);
+        Bundleizer bundleizer = factory.createBundleizer(new ByteArrayInputStream(bytes), ListBundle::new);
+        List<String> lines = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        Bundle bundle;
+        while ((bundle = bundleizer.next()) != null) {
+            lines.add(field.getString(bundle).get());
+            positions.add(bundleizer.position());
+        }
+        for (int i = 0; i < positions.size(); i++) {
+            int offset = positions.get(i).intValue();
+            Bundleizer resumed = factory.createBundleizer(
+                    new ByteArrayInputStream(bytes, offset, bytes.length - offset), ListBundle::new);
+            Bundle next = resumed.next();
+            if (i + 1 < lines.size()) {
+                assertEquals(lines.get(i + 1), field.getString(next).get());
+                assertEquals(positions.get(i + 1).longValue(), offset + resumed.position());
+            } else {
+                assertNull(next);
+            }
+        }
+        // rows of the channel format refer to fields defined by earlier rows
+        assertEquals(-1, new ChannelBundleizer().createBundleizer(
+                new ByteArrayInputStream(bytes), ListBundle::new).position());
+    }
+
+    @Test public void parallelChunks() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("line ").append(i).append((i % 3 == 0) ? "\r\n" : "\n");
+        }
+        sb.append("last");
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        AutoField field = AutoField.newAutoField("line");
+        RegexBundleizer sequential = decodeObject(RegexBundleizer.class, "regex = \"(?<line>.*)\"");
+        // tiny chunks put line endings at every position relative to a chunk
+        RegexBundleizer parallel = decodeObject(
+                RegexBundleizer.class, "regex = \"(?<line>.*)\", fields = [], decodeAhead = 3, chunkBytes = 37");
+        List<String> expected = new ArrayList<>();
+        Bundleizer bundleizer = sequential.createBundleizer(new ByteArrayInputStream(bytes), ListBundle::new);
+        Bundle bundle;
+        while ((bundle = bundleizer.next()) != null) {
+            expected.add(field.getString(bundle).get());
+        }
+        assertEquals(5001, expected.size());
+        bundleizer = parallel.createBundleizer(new ByteArrayInputStream(bytes), ListBundle::new);
+        List<String> lines = new ArrayList<>();
+        List<long[]> marks = new ArrayList<>();
+        while ((bundle = bundleizer.next()) != null) {
+            lines.add(field.getString(bundle).get());
+            marks.add(new long[]{bundleizer.position(), bundleizer.blockIndex()});
+        }
+        assertEquals(expected, lines);
+        assertEquals(bytes.length, bundleizer.position());
+        // resume from the offset of a chunk, skipping the bundles already read from it
+        for (int i : new int[]{0, 1, 2500, 4999}) {
+            int offset = (int) marks.get(i)[0];
+            Bundleizer resumed = parallel.createBundleizer(
+                    new ByteArrayInputStream(bytes, offset, bytes.length - offset), ListBundle::new);
+            for (long skip = marks.get(i)[1]; skip > 0; skip--) {
+                resumed.next();
+            }
+            assertEquals(expected.get(i + 1), field.getString(resumed.next()).get());
+        }
+    }
+}
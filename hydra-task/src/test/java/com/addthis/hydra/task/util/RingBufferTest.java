@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    @Test public void batches() throws Exception {
+        RingBuffer<Integer> ring = new RingBuffer<>(5);
+        assertEquals(8, ring.capacity());
+        assertEquals(2, new RingBuffer<>(1).capacity());
+        assertEquals(4, new RingBuffer<>(4).capacity());
+        assertTrue(ring.offerAll(Arrays.asList(1, 2, 3, 4, 5)));
+        // all or nothing
+        assertFalse(ring.offerAll(Arrays.asList(6, 7, 8, 9)));
+        assertFalse(ring.offerAll(Arrays.asList(6, 7, 8, 9), 10, TimeUnit.MILLISECONDS));
+        assertEquals(5, ring.size());
+        assertEquals(1, (int) ring.peek());
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(2, ring.drainTo(drained, 2));
+        assertTrue(ring.offerAll(Arrays.asList(6, 7, 8, 9, 10)));
+        assertFalse(ring.offer(11));
+        // wraps around the end of the ring
+        assertEquals(8, ring.drainTo(drained, 100));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), drained);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        assertNull(ring.peek());
+        assertNull(ring.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(0, ring.drainTo(drained, 4));
+    }
+
+    private static Long pollUninterruptibly(RingBuffer<Long> ring) {
+        try {
+            return ring.poll(10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test public void concurrentHandoff() throws Exception {
+        int producers = 3;
+        int consumers = 3;
+        int perProducer = 30000;
+        RingBuffer<Long> ring = new RingBuffer<>(64);
+        ExecutorService threads = Executors.newFixedThreadPool(producers + consumers);
+        List<CompletableFuture<Void>> producing = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            long first = (long) p * perProducer;
+            producing.add(CompletableFuture.runAsync(() -> {
+                try {
+                    List<Long> batch = new ArrayList<>();
+                    for (long i = first; i < (first + perProducer); i++) {
+                        if ((i % 10) == 0) {
+                            // queue the batch first so that the ring has the producer's elements in order
+                            assertTrue(ring.offerAll(batch, 1, TimeUnit.MINUTES));
+                            batch.clear();
+                            ring.put(i);
+                            continue;
+                        }
+                        batch.add(i);
+                        if (batch.size() == 7) {
+                            assertTrue(ring.offerAll(batch, 1, TimeUnit.MINUTES));
+                            batch.clear();
+                        }
+                    }
+                    assertTrue(ring.offerAll(batch, 1, TimeUnit.MINUTES));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }, threads));
+        }
+        AtomicLong sum = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        long total = (long) producers * perProducer;
+        List<CompletableFuture<Void>> consuming = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            consuming.add(CompletableFuture.runAsync(() -> {
+                List<Long> batch = new ArrayList<>();
+                long[] last = new long[producers];
+                Arrays.fill(last, -1);
+                while (count.get() < total) {
+                    if (ring.drainTo(batch, 16) == 0) {
+                        Long next = pollUninterruptibly(ring);
+                        if (next != null) {
+                            batch.add(next);
+                        }
+                    }
+                    for (long value : batch) {
+                        // each consumer sees the elements of a producer in order
+                        int producer = (int) (value / perProducer);
+                        assertTrue(value > last[producer]);
+                        last[producer] = value;
+                        sum.addAndGet(value);
+                    }
+                    count.addAndGet(batch.size());
+                    batch.clear();
+                }
+            }, threads));
+        }
+        CompletableFuture.allOf(producing.toArray(new CompletableFuture[producers])).get(1, TimeUnit.MINUTES);
+        CompletableFuture.allOf(consuming.toArray(new CompletableFuture[consumers])).get(1, TimeUnit.MINUTES);
+        assertEquals(total, count.get());
+        assertEquals((total * (total - 1)) / 2, sum.get());
+        assertTrue(ring.isEmpty());
+        threads.shutdown();
+    }
+}